@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.benchmarks;
+
+import com.google.android.gms.wearable.Asset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Measures {@code WearUtil#toAsset(Bitmap)} for the image sizes its documentation recommends.
+ * {@code Bitmap#compress} needs the Android runtime, so the PNG encoding of {@link ImageIO} stands
+ * in for it, and the {@code copyInto*} benchmarks isolate what {@code toAsset} adds around the
+ * encoder: growing the output stream, copying it out and wrapping it in an {@link Asset}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class AssetEncodingBenchmark {
+
+    /**
+     * The chunk size in which the Android encoder writes to the stream.
+     */
+    private static final int ENCODER_CHUNK_SIZE = 8 * 1024;
+
+    @Param({"320x320", "640x400"})
+    public String size;
+
+    private BufferedImage mImage;
+    private byte[] mPng;
+
+    @Setup
+    public void setUp() throws IOException {
+        int separator = size.indexOf('x');
+        int width = Integer.parseInt(size.substring(0, separator));
+        int height = Integer.parseInt(size.substring(separator + 1));
+        mImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        // a gradient with some noise compresses about as well as a photo thumbnail
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                mImage.setRGB(x, y, 0xff000000 | ((x * 255 / width) ^ noise) << 16
+                        | ((y * 255 / height) ^ noise) << 8 | noise);
+            }
+        }
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ImageIO.write(mImage, "png", byteStream);
+        mPng = byteStream.toByteArray();
+    }
+
+    @Benchmark
+    public Asset encodeAndWrap() throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ImageIO.write(mImage, "png", byteStream);
+        return Asset.createFromBytes(byteStream.toByteArray());
+    }
+
+    @Benchmark
+    public Asset copyIntoDefaultStream() {
+        return wrap(new ByteArrayOutputStream());
+    }
+
+    @Benchmark
+    public Asset copyIntoPresizedStream() {
+        return wrap(new ByteArrayOutputStream(mImage.getWidth() * mImage.getHeight()));
+    }
+
+    private Asset wrap(ByteArrayOutputStream byteStream) {
+        for (int offset = 0; offset < mPng.length; offset += ENCODER_CHUNK_SIZE) {
+            byteStream.write(mPng, offset, Math.min(ENCODER_CHUNK_SIZE, mPng.length - offset));
+        }
+        return Asset.createFromBytes(byteStream.toByteArray());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.benchmarks;
+
+import com.cscao.libs.gmswear.GmsWear;
+import com.cscao.libs.gmswear.consumer.AbstractDataConsumer;
+import com.cscao.libs.gmswear.transport.LoopbackNetwork;
+import com.cscao.libs.gmswear.transport.LoopbackTransport;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.transport.TransportDataItem;
+import com.cscao.libs.gmswear.transport.TransportMessage;
+import com.cscao.libs.gmswear.transport.TransportNode;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.MessageEvent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers messages and data items to the consumers of a {@link GmsWear} made by
+ * {@link GmsWear#forTransport(Transport, String...)} over a {@link LoopbackNetwork}, through the
+ * same path as the events of the Wearable APIs: the header, the tracing, the streams and the
+ * consumers. The events are handed to the listener of the transport on the benchmark thread
+ * rather than on the thread of the network, so that only the dispatch is measured.
+ * <p>
+ * The metrics are disabled, since those of the data items read their {@code Uri}, which needs the
+ * Android runtime.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsumerFanOutBenchmark {
+
+    private static final String PATH = "/com.cscao.libs.gmswear/benchmark";
+    private static final String SOURCE_NODE_ID = "phone";
+
+    @Param({"1", "4", "16"})
+    public int consumerCount;
+
+    private final TransportMessage mMessage = new TransportMessage(SOURCE_NODE_ID, PATH,
+            new byte[64], 1);
+    private final TransportDataItem mDataItem = new TransportDataItem(SOURCE_NODE_ID, PATH,
+            new byte[64]);
+    private LoopbackNetwork mNetwork;
+    private ListenerCapturingTransport mTransport;
+    private GmsWear mGmsWear;
+
+    @Setup
+    public void setUp() {
+        mNetwork = new LoopbackNetwork(0);
+        mNetwork.createNode(SOURCE_NODE_ID);
+        mTransport = new ListenerCapturingTransport(mNetwork.createNode("watch"));
+        mGmsWear = GmsWear.forTransport(mTransport);
+        mGmsWear.getMetrics().setEnabled(false);
+        for (int i = 0; i < consumerCount; i++) {
+            mGmsWear.addWearConsumer(new CountingConsumer());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mGmsWear.cleanUp();
+        mNetwork.shutdown();
+    }
+
+    @Benchmark
+    public void messageFanOut() {
+        mTransport.getListener().onMessageReceived(mMessage);
+    }
+
+    @Benchmark
+    public void dataFanOut() {
+        mTransport.getListener().onDataChanged(mDataItem, false);
+    }
+
+    private static final class CountingConsumer extends AbstractDataConsumer {
+        private long mMessageCount;
+        private long mDataEventCount;
+
+        @Override
+        public void onMessageReceived(MessageEvent messageEvent) {
+            mMessageCount += messageEvent.getData().length;
+        }
+
+        @Override
+        public void onDataChanged(DataEvent dataEvent) {
+            mDataEventCount += dataEvent.getType();
+        }
+    }
+
+    /**
+     * A {@link LoopbackTransport} that keeps the listener {@link GmsWear} sets on it, so that the
+     * benchmark can deliver events to it directly.
+     */
+    private static final class ListenerCapturingTransport implements Transport {
+        private final LoopbackTransport mTransport;
+        private volatile Listener mListener;
+
+        ListenerCapturingTransport(LoopbackTransport transport) {
+            mTransport = transport;
+        }
+
+        Listener getListener() {
+            return mListener;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            mListener = listener;
+            mTransport.setListener(listener);
+        }
+
+        @Override
+        public void getLocalNode(Callback<TransportNode> callback) {
+            mTransport.getLocalNode(callback);
+        }
+
+        @Override
+        public void getConnectedNodes(Callback<List<TransportNode>> callback) {
+            mTransport.getConnectedNodes(callback);
+        }
+
+        @Override
+        public void sendMessage(String nodeId, String path, byte[] data,
+                Callback<Integer> callback) {
+            mTransport.sendMessage(nodeId, path, data, callback);
+        }
+
+        @Override
+        public void putDataItem(String path, byte[] data, boolean urgent,
+                Callback<TransportDataItem> callback) {
+            mTransport.putDataItem(path, data, urgent, callback);
+        }
+
+        @Override
+        public void getDataItems(String path, int filterType,
+                Callback<List<TransportDataItem>> callback) {
+            mTransport.getDataItems(path, filterType, callback);
+        }
+
+        @Override
+        public void deleteDataItems(String path, int filterType, Callback<Integer> callback) {
+            mTransport.deleteDataItems(path, filterType, callback);
+        }
+
+        @Override
+        public void addLocalCapability(String capability, Callback<Void> callback) {
+            mTransport.addLocalCapability(capability, callback);
+        }
+
+        @Override
+        public void removeLocalCapability(String capability, Callback<Void> callback) {
+            mTransport.removeLocalCapability(capability, callback);
+        }
+
+        @Override
+        public void getCapability(String capability, Callback<Set<TransportNode>> callback) {
+            mTransport.getCapability(capability, callback);
+        }
+
+        @Override
+        public void openChannel(String nodeId, String path, Callback<TransportChannel> callback) {
+            mTransport.openChannel(nodeId, path, callback);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.benchmarks;
+
+import com.cscao.libs.gmswear.filter.NearbyFilter;
+import com.cscao.libs.gmswear.filter.NodeSelectionFilter;
+import com.cscao.libs.gmswear.filter.SingleNodeFilter;
+import com.google.android.gms.wearable.Node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filters the nodes of a capability, half of which are nearby, the way
+ * {@code GmsWear#sendMessage(String, byte[])} and the capability lookups do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NodeFilterBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int nodeCount;
+
+    private final NodeSelectionFilter mNearbyFilter = new NearbyFilter();
+    private final NodeSelectionFilter mSingleNodeFilter = new SingleNodeFilter();
+    private final NodeSelectionFilter mSingleNearbyFilter = new SingleNodeFilter(
+            new NearbyFilter());
+    private Set<Node> mNodes;
+
+    @Setup
+    public void setUp() {
+        mNodes = new HashSet<>();
+        for (int i = 0; i < nodeCount; i++) {
+            mNodes.add(new BenchmarkNode("node-" + i, i % 2 == 0));
+        }
+    }
+
+    @Benchmark
+    public Set<Node> nearby() {
+        return mNearbyFilter.filterNodes(mNodes);
+    }
+
+    @Benchmark
+    public Set<Node> singleNode() {
+        return mSingleNodeFilter.filterNodes(mNodes);
+    }
+
+    @Benchmark
+    public Set<Node> singleNearbyNode() {
+        return mSingleNearbyFilter.filterNodes(mNodes);
+    }
+
+    private static final class BenchmarkNode implements Node {
+        private final String mId;
+        private final boolean mNearby;
+
+        BenchmarkNode(String id, boolean nearby) {
+            mId = id;
+            mNearby = nearby;
+        }
+
+        @Override
+        public String getId() {
+            return mId;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return mId;
+        }
+
+        @Override
+        public boolean isNearby() {
+            return mNearby;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BenchmarkNode && mId.equals(((BenchmarkNode) o).mId);
+        }
+
+        @Override
+        public int hashCode() {
+            return mId.hashCode();
+        }
+    }
+}
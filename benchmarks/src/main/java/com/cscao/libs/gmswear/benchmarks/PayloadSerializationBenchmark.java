@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.benchmarks;
+
+import com.google.android.gms.wearable.DataMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes a typical sensor reading, a name, a timestamp, an accuracy and an array of
+ * values, as a {@link DataMap} and with the hand written alternatives an app could put in a
+ * message instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadSerializationBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String KEY_NAME = "name";
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_ACCURACY = "accuracy";
+    private static final String KEY_VALUES = "values";
+
+    @Param({"3", "256"})
+    public int valueCount;
+
+    private final String mName = "accelerometer";
+    private final long mTimestamp = 1478062267000L;
+    private final int mAccuracy = 3;
+    private float[] mValues;
+    private byte[] mDataMapBytes;
+    private byte[] mStreamBytes;
+    private byte[] mBufferBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        mValues = new float[valueCount];
+        Random random = new Random(42);
+        for (int i = 0; i < valueCount; i++) {
+            mValues[i] = random.nextFloat();
+        }
+        mDataMapBytes = dataMapEncode();
+        mStreamBytes = dataStreamEncode();
+        mBufferBytes = byteBufferEncode();
+    }
+
+    @Benchmark
+    public byte[] dataMapEncode() {
+        DataMap dataMap = new DataMap();
+        dataMap.putString(KEY_NAME, mName);
+        dataMap.putLong(KEY_TIMESTAMP, mTimestamp);
+        dataMap.putInt(KEY_ACCURACY, mAccuracy);
+        dataMap.putFloatArray(KEY_VALUES, mValues);
+        return dataMap.toByteArray();
+    }
+
+    @Benchmark
+    public float[] dataMapDecode() {
+        DataMap dataMap = DataMap.fromByteArray(mDataMapBytes);
+        dataMap.getString(KEY_NAME);
+        dataMap.getLong(KEY_TIMESTAMP);
+        dataMap.getInt(KEY_ACCURACY);
+        return dataMap.getFloatArray(KEY_VALUES);
+    }
+
+    @Benchmark
+    public byte[] dataStreamEncode() throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(64 + 4 * mValues.length);
+        DataOutputStream out = new DataOutputStream(byteStream);
+        out.writeUTF(mName);
+        out.writeLong(mTimestamp);
+        out.writeInt(mAccuracy);
+        out.writeInt(mValues.length);
+        for (float value : mValues) {
+            out.writeFloat(value);
+        }
+        out.flush();
+        return byteStream.toByteArray();
+    }
+
+    @Benchmark
+    public float[] dataStreamDecode() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(mStreamBytes));
+        in.readUTF();
+        in.readLong();
+        in.readInt();
+        float[] values = new float[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readFloat();
+        }
+        return values;
+    }
+
+    @Benchmark
+    public byte[] byteBufferEncode() {
+        byte[] name = mName.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + name.length + 8 + 4 + 4 + 4 * mValues.length);
+        buffer.putInt(name.length).put(name);
+        buffer.putLong(mTimestamp);
+        buffer.putInt(mAccuracy);
+        buffer.putInt(mValues.length);
+        buffer.asFloatBuffer().put(mValues);
+        return buffer.array();
+    }
+
+    @Benchmark
+    public float[] byteBufferDecode() {
+        ByteBuffer buffer = ByteBuffer.wrap(mBufferBytes);
+        byte[] name = new byte[buffer.getInt()];
+        buffer.get(name);
+        new String(name, UTF_8);
+        buffer.getLong();
+        buffer.getInt();
+        float[] values = new float[buffer.getInt()];
+        buffer.asFloatBuffer().get(values);
+        return values;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.benchmarks;
+
+import com.cscao.libs.gmswear.connectivity.TransferPath;
+import com.cscao.libs.gmswear.util.Constants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and parses the paths of the channels opened by file and stream transfers. The
+ * {@code splitBaseline} benchmark parses the same path with {@link String#split(String)}, the way
+ * the paths were parsed before {@link TransferPath}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferPathBenchmark {
+
+    private static final String FILE_PREFIX = Constants.PATH_FILE_TRANSFER_TYPE_FILE;
+    private static final String STREAM_PREFIX = Constants.PATH_FILE_TRANSFER_TYPE_STREAM;
+
+    private final String mName = "IMG_20161102_003107 (1).jpg";
+    private final long mSize = 2457600;
+    private final String mRequestId = "3f1c2a7e-5b0d-4c8e-9a61-7d2f0b4e8c13";
+    private final String mHash = "9e107d9d372bb6826bd81d3542a419d6";
+    private String mFilePath;
+    private String mStreamPath;
+
+    @Setup
+    public void setUp() {
+        mFilePath = encodeFile();
+        mStreamPath = TransferPath.encodeStream(STREAM_PREFIX, mRequestId);
+    }
+
+    @Benchmark
+    public String encodeFile() {
+        return TransferPath.encode(FILE_PREFIX, mName, mSize, mRequestId, mHash);
+    }
+
+    @Benchmark
+    public TransferPath parseFile() {
+        return TransferPath.parse(FILE_PREFIX, mFilePath);
+    }
+
+    @Benchmark
+    public TransferPath parseStream() {
+        return TransferPath.parse(STREAM_PREFIX, mStreamPath);
+    }
+
+    @Benchmark
+    public String[] splitBaseline() throws UnsupportedEncodingException {
+        String[] segments = mFilePath.substring(FILE_PREFIX.length()).split("/");
+        segments[0] = URLDecoder.decode(segments[0], "utf-8");
+        Long.parseLong(segments[1]);
+        return segments;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.async.StatusException;
+import com.cscao.libs.gmswear.async.WearFuture;
+import com.cscao.libs.gmswear.connectivity.ConnectionSupervisor;
+import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.node.NodeRegistry;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.WearableStatusCodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link WearFuture} based calls of {@link GmsWear}. Each call waits for the connection
+ * through the {@link ConnectionSupervisor}, fails with a {@link StatusException} if it is dropped
+ * instead, and cancelling its future cancels the request that is still pending.
+ */
+final class AsyncApi {
+
+    private final GmsWear mGmsWear;
+    private final MessageSender mMessageSender;
+    private final DataItemReader mDataItemReader;
+    private final NodeRegistry mNodeRegistry;
+    private final ConnectionSupervisor mConnectionSupervisor;
+
+    AsyncApi(GmsWear gmsWear, MessageSender messageSender, DataItemReader dataItemReader,
+            NodeRegistry nodeRegistry, ConnectionSupervisor connectionSupervisor) {
+        mGmsWear = gmsWear;
+        mMessageSender = messageSender;
+        mDataItemReader = dataItemReader;
+        mNodeRegistry = nodeRegistry;
+        mConnectionSupervisor = connectionSupervisor;
+    }
+
+    WearFuture<MessageApi.SendMessageResult> sendMessage(String nodeId, String path,
+            @Nullable byte[] bytes) {
+        WearFuture<MessageApi.SendMessageResult> future = new WearFuture<>();
+        mGmsWear.sendMessage(nodeId, path, bytes, WearFuture.completing(future));
+        return future;
+    }
+
+    /**
+     * Sends to the nearby nodes known once connected, so that a message queued before the
+     * discovery of the nodes still finds its targets.
+     */
+    WearFuture<List<MessageApi.SendMessageResult>> sendMessage(final String path,
+            @Nullable final byte[] bytes) {
+        final WearFuture<List<MessageApi.SendMessageResult>> future = new WearFuture<>();
+        mConnectionSupervisor.execute(new ConnectionSupervisor.Operation() {
+            @Override
+            public void run() {
+                List<Node> nearbyNodes = mNodeRegistry.getSnapshot().getNearbyNodes();
+                List<WearFuture<MessageApi.SendMessageResult>> futures = new ArrayList<>(
+                        nearbyNodes.size());
+                for (int i = 0; i < nearbyNodes.size(); i++) {
+                    WearFuture<MessageApi.SendMessageResult> nodeFuture = new WearFuture<>();
+                    mMessageSender.sendNow(nearbyNodes.get(i).getId(), path, bytes,
+                            MessageSender.NO_DEADLINE, WearFuture.completing(nodeFuture));
+                    futures.add(nodeFuture);
+                }
+                final WearFuture<List<MessageApi.SendMessageResult>> results = WearFuture
+                        .successfulAsList(futures);
+                future.whenCancelled(new Runnable() {
+                    @Override
+                    public void run() {
+                        results.cancel(false);
+                    }
+                });
+                results.addCallback(new WearFuture.Callback<List<MessageApi.SendMessageResult>>() {
+                    @Override
+                    public void onSuccess(List<MessageApi.SendMessageResult> value) {
+                        future.complete(value);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable failure) {
+                        future.fail(failure);
+                    }
+                });
+            }
+
+            @Override
+            public void onDropped() {
+                future.fail(new StatusException(CommonStatusCodes.API_NOT_CONNECTED));
+            }
+
+            @Override
+            public String toString() {
+                return "sendMessageAsync(" + path + ")";
+            }
+        });
+        return future;
+    }
+
+    WearFuture<DataApi.DataItemResult> putDataItem(PutDataRequest request) {
+        WearFuture<DataApi.DataItemResult> future = new WearFuture<>();
+        mGmsWear.putDataItem(request, WearFuture.completing(future));
+        return future;
+    }
+
+    WearFuture<DataApi.DataItemResult> getDataItem(final Uri dataItemUri) {
+        return execute("getDataItemAsync(" + dataItemUri + ")",
+                new ApiCall<DataApi.DataItemResult>() {
+                    @Override
+                    public PendingResult<?> call(WearFuture<DataApi.DataItemResult> future) {
+                        return mDataItemReader.requestDataItem(dataItemUri,
+                                WearFuture.completing(future));
+                    }
+                });
+    }
+
+    /**
+     * Releases the buffer itself if the future was cancelled before the result arrived. Throws
+     * right away if the transport can't return a buffer.
+     */
+    WearFuture<DataItemBuffer> getDataItems(final Uri uri, final int filterType) {
+        mDataItemReader.assertDataItemBuffersSupported();
+        return execute("getDataItemsAsync(" + uri + ")", new ApiCall<DataItemBuffer>() {
+            @Override
+            public PendingResult<?> call(WearFuture<DataItemBuffer> future) {
+                PendingResult<DataItemBuffer> pendingResult = mDataItemReader.requestDataItems(
+                        uri, filterType);
+                pendingResult.setResultCallback(WearFuture.completingOrReleasing(future));
+                return pendingResult;
+            }
+        });
+    }
+
+    WearFuture<List<DataItem>> getDataItemList(final Uri uri, final int filterType) {
+        return execute("getDataItemListAsync(" + uri + ")", new ApiCall<List<DataItem>>() {
+            @Override
+            public PendingResult<?> call(final WearFuture<List<DataItem>> future) {
+                return mDataItemReader.requestDataItemList(uri, filterType,
+                        new Transport.Callback<List<DataItem>>() {
+                            @Override
+                            public void onResult(int statusCode, List<DataItem> items) {
+                                if (items == null) {
+                                    future.fail(new StatusException(statusCode));
+                                } else {
+                                    future.complete(items);
+                                }
+                            }
+                        });
+            }
+        });
+    }
+
+    WearFuture<DataApi.DeleteDataItemsResult> deleteDataItems(final Uri dataItemUri) {
+        return execute("deleteDataItemsAsync(" + dataItemUri + ")",
+                new ApiCall<DataApi.DeleteDataItemsResult>() {
+                    @Override
+                    public PendingResult<?> call(
+                            WearFuture<DataApi.DeleteDataItemsResult> future) {
+                        return mDataItemReader.requestDelete(dataItemUri,
+                                WearFuture.completing(future));
+                    }
+                });
+    }
+
+    /**
+     * Closes the channel as soon as it opens if the future was cancelled in the meantime.
+     */
+    WearFuture<TransportChannel> openChannel(Node node, String path) {
+        if (!node.isNearby()) {
+            return WearFuture.failed(new StatusException(WearableStatusCodes.INVALID_TARGET_NODE));
+        }
+        final WearFuture<TransportChannel> future = new WearFuture<>();
+        mGmsWear.openChannel(node, path, new FileTransfer.OnChannelReadyListener() {
+            @Override
+            public void onChannelReady(int statusCode, TransportChannel channel) {
+                if (channel == null) {
+                    future.fail(new StatusException(statusCode));
+                } else if (!future.complete(channel)) {
+                    mGmsWear.closeChannel(channel);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs {@code call} once connected and returns a {@link WearFuture} of its result.
+     */
+    private <T> WearFuture<T> execute(final String name, final ApiCall<T> call) {
+        final WearFuture<T> future = new WearFuture<>();
+        mConnectionSupervisor.execute(new ConnectionSupervisor.Operation() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                final PendingResult<?> pendingResult = call.call(future);
+                if (pendingResult == null) {
+                    return;
+                }
+                future.whenCancelled(new Runnable() {
+                    @Override
+                    public void run() {
+                        pendingResult.cancel();
+                    }
+                });
+            }
+
+            @Override
+            public void onDropped() {
+                future.fail(new StatusException(CommonStatusCodes.API_NOT_CONNECTED));
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        });
+        return future;
+    }
+
+    /**
+     * A call through the transport that is made once connected.
+     */
+    private interface ApiCall<T> {
+
+        /**
+         * Makes the call, which completes {@code future} with its result. Returns the pending
+         * result to cancel along with the future, or {@code null} if the call can't be cancelled.
+         */
+        @Nullable
+        PendingResult<?> call(WearFuture<T> future);
+    }
+}
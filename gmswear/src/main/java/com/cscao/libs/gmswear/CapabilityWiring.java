@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.node.CapabilityManager;
+import com.cscao.libs.gmswear.node.CapabilityRouter;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.google.android.gms.wearable.CapabilityInfo;
+import com.google.android.gms.wearable.Node;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Wires the {@link CapabilityManager} of {@link GmsWear} to the {@link Transport} that registers
+ * the local capabilities and to the {@link DataConsumer}s that are told about them, and keeps the
+ * nodes of each capability for {@link GmsWear#getNodesForCapability(String)} and the
+ * {@link CapabilityRouter}.
+ */
+final class CapabilityWiring {
+
+    private static final String TAG = "CapabilityWiring";
+
+    private final GmsWear mGmsWear;
+    private final Set<DataConsumer> mDataConsumers;
+    private final CapabilityRouter mCapabilityRouter;
+    private final CapabilityManager mCapabilityManager;
+    private final Map<String, Set<Node>> mCapabilityToNodesMapping = Collections
+            .synchronizedMap(new HashMap<String, Set<Node>>());
+
+    CapabilityWiring(GmsWear gmsWear, Set<DataConsumer> dataConsumers,
+            CapabilityRouter capabilityRouter) {
+        mGmsWear = gmsWear;
+        mDataConsumers = dataConsumers;
+        mCapabilityRouter = capabilityRouter;
+        mCapabilityManager = new CapabilityManager(new TransportRegistrar(),
+                new ConsumerListener());
+    }
+
+    CapabilityManager getCapabilityManager() {
+        return mCapabilityManager;
+    }
+
+    /**
+     * Returns the nodes that provide {@code capability}, or {@code null} if no node ever did.
+     */
+    @Nullable
+    Set<Node> getNodes(String capability) {
+        return mCapabilityToNodesMapping.get(capability);
+    }
+
+    /**
+     * Returns the ids of the nodes of each capability, both sorted.
+     */
+    Map<String, Set<String>> getNodeIds() {
+        Map<String, Set<String>> capabilities = new TreeMap<>();
+        synchronized (mCapabilityToNodesMapping) {
+            for (Map.Entry<String, Set<Node>> entry : mCapabilityToNodesMapping.entrySet()) {
+                Set<String> nodeIds = new TreeSet<>();
+                for (Node node : entry.getValue()) {
+                    nodeIds.add(node.getId());
+                }
+                capabilities.put(entry.getKey(), Collections.unmodifiableSet(nodeIds));
+            }
+        }
+        return capabilities;
+    }
+
+    /**
+     * Records the capabilities found once connected; they are the basis of the changes reported
+     * later, and are not reported themselves.
+     */
+    void setInitialCapabilities(@Nullable Map<String, CapabilityInfo> capabilities) {
+        if (capabilities == null) {
+            return;
+        }
+        for (Map.Entry<String, CapabilityInfo> entry : capabilities.entrySet()) {
+            setInitialNodes(entry.getKey(), entry.getValue().getNodes());
+        }
+    }
+
+    /**
+     * Records the nodes of {@code capability} found once connected, the same way as
+     * {@link #setInitialCapabilities(Map)}.
+     */
+    void setInitialNodes(String capability, Set<Node> nodes) {
+        mCapabilityToNodesMapping.put(capability, nodes);
+        mCapabilityRouter.onCapabilityChanged(capability, nodes);
+        mCapabilityManager.setInitialNodes(capability, nodes);
+    }
+
+    /**
+     * Records a change reported by the framework. The mapping and the router are updated right
+     * away, while the consumers are called once the changes of the capability settle down.
+     */
+    void onCapabilityChanged(String capability, Set<Node> nodes) {
+        mCapabilityToNodesMapping.put(capability, nodes);
+        mCapabilityRouter.onCapabilityChanged(capability, nodes);
+        mCapabilityManager.onCapabilityChanged(capability, nodes);
+    }
+
+    private final class TransportRegistrar implements CapabilityManager.Registrar {
+
+        @Override
+        public boolean isConnected() {
+            return mGmsWear.isConnected();
+        }
+
+        @Override
+        public void addLocalCapability(final String capability,
+                final CapabilityManager.OnResultListener listener) {
+            mGmsWear.getTransport().addLocalCapability(capability,
+                    new Transport.Callback<Void>() {
+                        @Override
+                        public void onResult(int statusCode, Void value) {
+                            if (statusCode != Transport.STATUS_SUCCESS) {
+                                WearLog.e(TAG, "Failed to add the capability {}", capability);
+                            }
+                            listener.onResult(statusCode);
+                        }
+                    });
+        }
+
+        @Override
+        public void removeLocalCapability(final String capability,
+                final CapabilityManager.OnResultListener listener) {
+            mGmsWear.getTransport().removeLocalCapability(capability,
+                    new Transport.Callback<Void>() {
+                        @Override
+                        public void onResult(int statusCode, Void value) {
+                            if (statusCode != Transport.STATUS_SUCCESS) {
+                                WearLog.e(TAG, "Failed to remove the capability {}", capability);
+                            }
+                            listener.onResult(statusCode);
+                        }
+                    });
+        }
+    }
+
+    private final class ConsumerListener implements CapabilityManager.Listener {
+
+        @Override
+        public void onLocalCapabilitiesAdded(List<String> capabilities, int statusCode) {
+            for (DataConsumer consumer : mDataConsumers) {
+                consumer.onAddCapabilityResult(statusCode);
+            }
+        }
+
+        @Override
+        public void onLocalCapabilitiesRemoved(List<String> capabilities, int statusCode) {
+            for (DataConsumer consumer : mDataConsumers) {
+                consumer.onRemoveCapabilityResult(statusCode);
+            }
+        }
+
+        @Override
+        public void onCapabilityChanged(String capability, Set<Node> nodes,
+                Set<Node> addedNodes, Set<Node> removedNodes) {
+            WearLog.d(TAG, "onCapabilityChanged(): {}, added: {}, removed: {}", capability,
+                    addedNodes, removedNodes);
+            for (DataConsumer consumer : mDataConsumers) {
+                consumer.onCapabilityChanged(capability, nodes);
+                consumer.onCapabilityNodesChanged(capability, addedNodes, removedNodes);
+            }
+        }
+    }
+}
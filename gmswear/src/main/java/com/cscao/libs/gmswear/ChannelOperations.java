@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.connectivity.ConnectionSupervisor;
+import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.metrics.MetricsRegistry;
+import com.cscao.libs.gmswear.node.CircuitBreaker;
+import com.cscao.libs.gmswear.trace.Span;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.transport.WearableTransport;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.WearableStatusCodes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * Opens the channels of {@link GmsWear} through its {@link Transport} and sends files and streams
+ * over them: each request waits for the connection through the {@link ConnectionSupervisor},
+ * fails fast when the {@link CircuitBreaker} of the node is open, feeds the breaker with its
+ * result, and keeps the open channels known to the {@link DiagnosticsCollector}. The streams of a
+ * {@link TransportChannel} block, so they are only touched on the worker threads of
+ * {@link GmsWear}.
+ */
+final class ChannelOperations {
+
+    private static final String TAG = "ChannelOperations";
+
+    private final GmsWear mGmsWear;
+    private final Set<DataConsumer> mDataConsumers;
+    private final ConnectionSupervisor mConnectionSupervisor;
+    private final CircuitBreaker mCircuitBreaker;
+    private final MetricsRegistry mMetrics;
+    private final Tracer mTracer;
+    private final TraceIds mTraceIds;
+    private final DiagnosticsCollector mDiagnostics;
+
+    ChannelOperations(GmsWear gmsWear, Set<DataConsumer> dataConsumers,
+            ConnectionSupervisor connectionSupervisor, CircuitBreaker circuitBreaker,
+            MetricsRegistry metrics, Tracer tracer, TraceIds traceIds,
+            DiagnosticsCollector diagnostics) {
+        mGmsWear = gmsWear;
+        mDataConsumers = dataConsumers;
+        mConnectionSupervisor = connectionSupervisor;
+        mCircuitBreaker = circuitBreaker;
+        mMetrics = metrics;
+        mTracer = tracer;
+        mTraceIds = traceIds;
+        mDiagnostics = diagnostics;
+    }
+
+    /**
+     * Writes {@code length} bytes of {@code file}, or all of them from {@code startOffset} if
+     * {@code length} is negative, to the output stream of {@code channel} on a worker thread and
+     * closes the channel.
+     */
+    void sendFile(final String requestId, final TransportChannel channel, final File file,
+            final long startOffset, final long length,
+            @Nullable final ResultCallback<Status> callback) {
+        final Span span = mTracer.begin("sendFile", mTraceIds.transferTraceId(requestId), null,
+                Tracer.FLOW_NONE);
+        mDiagnostics.getInFlightFileSends().incrementAndGet();
+        mGmsWear.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                int statusCode = writeFile(channel, file, startOffset, length);
+                close(channel);
+                span.end();
+                mDiagnostics.getInFlightFileSends().decrementAndGet();
+                mCircuitBreaker.onResult(channel.getNodeId(),
+                        statusCode == CommonStatusCodes.SUCCESS);
+                if (callback == null) {
+                    for (DataConsumer consumer : mDataConsumers) {
+                        consumer.onSendFileResult(statusCode, requestId);
+                    }
+                } else {
+                    callback.onResult(new Status(statusCode));
+                }
+            }
+        });
+    }
+
+    private static int writeFile(TransportChannel channel, File file, long startOffset,
+            long length) {
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            if (startOffset > 0 && inputStream.skip(startOffset) < startOffset) {
+                throw new IOException("Failed to skip to " + startOffset);
+            }
+            outputStream = channel.getOutputStream();
+            WearUtil.copy(inputStream, outputStream, length);
+            outputStream.close();
+            outputStream = null;
+            return CommonStatusCodes.SUCCESS;
+        } catch (IOException e) {
+            WearLog.e(TAG, "sendFile(): IO Error while sending {}", file, e);
+            return CommonStatusCodes.ERROR;
+        } finally {
+            WearUtil.closeQuietly(inputStream);
+            WearUtil.closeQuietly(outputStream);
+        }
+    }
+
+    void openChannel(final Node node, final String path,
+            final FileTransfer.OnChannelReadyListener listener) {
+        mConnectionSupervisor.execute(new ConnectionSupervisor.Operation() {
+            @Override
+            public void run() {
+                doOpenChannel(node, path, listener);
+            }
+
+            @Override
+            public void onDropped() {
+                mMetrics.recordFailure(TrafficMetrics.channelPath(path), node.getId());
+                listener.onChannelReady(CommonStatusCodes.API_NOT_CONNECTED, null);
+            }
+
+            @Override
+            public String toString() {
+                return "openChannel(" + path + ")";
+            }
+        });
+    }
+
+    private void doOpenChannel(Node node, String path,
+            final FileTransfer.OnChannelReadyListener listener) {
+        if (node.isNearby()) {
+            final String nodeId = node.getId();
+            final String metricsPath = TrafficMetrics.channelPath(path);
+            if (!mCircuitBreaker.allowRequest(nodeId)) {
+                WearLog.e(TAG, "openChannel(): Circuit to {} is open, failing fast", nodeId);
+                mMetrics.recordFailure(metricsPath, nodeId);
+                listener.onChannelReady(WearableStatusCodes.TARGET_NODE_NOT_CONNECTED, null);
+                return;
+            }
+            final long startNanos = MetricsRegistry.now();
+            final Span span = mTracer.begin("openChannel", mTraceIds.channelTraceId(path),
+                    metricsPath, Tracer.FLOW_OUT);
+            mDiagnostics.getInFlightChannelOpens().incrementAndGet();
+            openTransportChannel(nodeId, path, new Transport.Callback<TransportChannel>() {
+                @Override
+                public void onResult(int statusCode, TransportChannel channel) {
+                    boolean success = statusCode == Transport.STATUS_SUCCESS;
+                    span.end();
+                    mDiagnostics.getInFlightChannelOpens().decrementAndGet();
+                    mCircuitBreaker.onResult(nodeId, success);
+                    mMetrics.recordChannelOpened(metricsPath, nodeId, success, startNanos);
+                    if (success) {
+                        mDiagnostics.trackChannel(channel);
+                    } else {
+                        WearLog.e(TAG, "openChannel(): Failed to get channel, status code: {}",
+                                statusCode);
+                    }
+                    listener.onChannelReady(statusCode, channel);
+                }
+            });
+        } else {
+            WearLog.e(TAG, "openChannel(): Node should be nearby, you have: {}", node);
+        }
+    }
+
+    void getOutputStreamViaChannel(final Node node, final String path,
+            final FileTransfer.OnChannelOutputStreamListener listener) {
+        mConnectionSupervisor.execute(new ConnectionSupervisor.Operation() {
+            @Override
+            public void run() {
+                doGetOutputStreamViaChannel(node, path, listener);
+            }
+
+            @Override
+            public void onDropped() {
+                listener.onOutputStreamForChannelReady(CommonStatusCodes.API_NOT_CONNECTED, null,
+                        null);
+            }
+
+            @Override
+            public String toString() {
+                return "getOutputStreamViaChannel(" + path + ")";
+            }
+        });
+    }
+
+    private void doGetOutputStreamViaChannel(Node node, String path,
+            final FileTransfer.OnChannelOutputStreamListener listener) {
+        if (!node.isNearby()) {
+            WearLog.e(TAG, "getOutputStreamViaChannel(): Node should be nearby, you have: {}",
+                    node);
+        } else if (!mCircuitBreaker.allowRequest(node.getId())) {
+            WearLog.e(TAG, "getOutputStreamViaChannel(): Circuit to {} is open, failing fast",
+                    node.getId());
+            mMetrics.recordFailure(TrafficMetrics.channelPath(path), node.getId());
+            listener.onOutputStreamForChannelReady(
+                    WearableStatusCodes.TARGET_NODE_NOT_CONNECTED, null, null);
+        } else {
+            final String nodeId = node.getId();
+            final String metricsPath = TrafficMetrics.channelPath(path);
+            final long startNanos = MetricsRegistry.now();
+            final long traceId = mTraceIds.channelTraceId(path);
+            final Span openSpan = mTracer.begin("openChannel", traceId, metricsPath,
+                    Tracer.FLOW_OUT);
+            mDiagnostics.getInFlightChannelOpens().incrementAndGet();
+            openTransportChannel(nodeId, path, new Transport.Callback<TransportChannel>() {
+                @Override
+                public void onResult(int statusCode, TransportChannel channel) {
+                    boolean success = statusCode == Transport.STATUS_SUCCESS;
+                    openSpan.end();
+                    mDiagnostics.getInFlightChannelOpens().decrementAndGet();
+                    mCircuitBreaker.onResult(nodeId, success);
+                    mMetrics.recordChannelOpened(metricsPath, nodeId, success, startNanos);
+                    if (success) {
+                        mDiagnostics.trackChannel(channel);
+                        getOutputStream(channel, traceId, listener);
+                    } else {
+                        listener.onOutputStreamForChannelReady(statusCode, null, null);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands the output stream of {@code channel} to {@code listener} on a worker thread. Closing
+     * the stream closes the channel; the {@link com.google.android.gms.wearable.Channel} given to
+     * the listener is {@code null} unless the channel went through a {@link WearableTransport}.
+     */
+    private void getOutputStream(final TransportChannel channel, final long traceId,
+            final FileTransfer.OnChannelOutputStreamListener listener) {
+        mGmsWear.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                Span streamSpan = mTracer.begin("getOutputStream", traceId);
+                OutputStream outputStream;
+                try {
+                    outputStream = channel.getOutputStream();
+                } catch (IOException e) {
+                    WearLog.e(TAG, "getOutputStream(): Failed to open the stream of {}",
+                            channel.getPath(), e);
+                    close(channel);
+                    listener.onOutputStreamForChannelReady(CommonStatusCodes.ERROR, null, null);
+                    return;
+                } finally {
+                    streamSpan.end();
+                }
+                listener.onOutputStreamForChannelReady(CommonStatusCodes.SUCCESS,
+                        WearableTransport.getChannel(channel),
+                        new ChannelOutputStream(outputStream, channel));
+            }
+        });
+    }
+
+    private void openTransportChannel(String nodeId, String path,
+            Transport.Callback<TransportChannel> callback) {
+        mGmsWear.getTransport().openChannel(nodeId, path, callback);
+    }
+
+    /**
+     * Opens both streams of {@code channel} on a worker thread and hands them to
+     * {@code listener} on that thread. If either fails, the channel is closed.
+     */
+    void getChannelStreams(final TransportChannel channel,
+            final FileTransfer.OnChannelStreamsReadyListener listener) {
+        mGmsWear.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                Span span = mTracer.begin("getChannelStreams",
+                        mTraceIds.channelTraceId(channel.getPath()));
+                InputStream inputStream = null;
+                OutputStream outputStream;
+                try {
+                    inputStream = channel.getInputStream();
+                    outputStream = channel.getOutputStream();
+                } catch (IOException e) {
+                    WearLog.e(TAG, "getChannelStreams(): Failed to open the streams of {}",
+                            channel.getPath(), e);
+                    WearUtil.closeQuietly(inputStream);
+                    close(channel);
+                    listener.onChannelStreamsReady(CommonStatusCodes.ERROR, channel, null, null);
+                    return;
+                } finally {
+                    span.end();
+                }
+                listener.onChannelStreamsReady(CommonStatusCodes.SUCCESS, channel, inputStream,
+                        outputStream);
+            }
+        });
+    }
+
+    /**
+     * Closes the {@code channel} if it is not {@code null}.
+     */
+    void close(@Nullable TransportChannel channel) {
+        if (channel != null) {
+            mDiagnostics.untrackChannel(channel);
+            channel.close();
+        }
+    }
+
+    /**
+     * The output stream handed out by {@link #getOutputStreamViaChannel}, which closes its channel
+     * once the caller is done writing.
+     */
+    private final class ChannelOutputStream extends FilterOutputStream {
+        private final TransportChannel mChannel;
+
+        ChannelOutputStream(OutputStream out, TransportChannel channel) {
+            super(out);
+            mChannel = channel;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                ChannelOperations.this.close(mChannel);
+            }
+        }
+    }
+}
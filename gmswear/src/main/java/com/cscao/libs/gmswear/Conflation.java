@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import com.cscao.libs.gmswear.connectivity.DataChangeCoalescer;
+import com.cscao.libs.gmswear.connectivity.SyncConflater;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.PutDataMapRequest;
+
+import java.util.Set;
+
+/**
+ * The latest-value conflation of {@link GmsWear}: the {@link SyncConflater} in front of the
+ * {@code sync*()} methods and the {@link DataChangeCoalescer} in front of
+ * {@link DataConsumer#onDataChanged(DataEvent)}. Both are created on first use, and until then
+ * everything goes straight through.
+ */
+final class Conflation {
+
+    private final SyncConflater.Sink<PutDataMapRequest> mSink;
+    private final Set<DataConsumer> mDataConsumers;
+    private SyncConflater<PutDataMapRequest> mSyncConflater;
+    private DataChangeCoalescer mDataChangeCoalescer;
+
+    /**
+     * @param sink Puts the sync requests that were not conflated, or that were held and are now
+     *             due.
+     */
+    Conflation(SyncConflater.Sink<PutDataMapRequest> sink, Set<DataConsumer> dataConsumers) {
+        mSink = sink;
+        mDataConsumers = dataConsumers;
+    }
+
+    synchronized SyncConflater<PutDataMapRequest> getSyncConflater() {
+        if (mSyncConflater == null) {
+            mSyncConflater = new SyncConflater<>(mSink);
+        }
+        return mSyncConflater;
+    }
+
+    synchronized DataChangeCoalescer getDataChangeCoalescer() {
+        if (mDataChangeCoalescer == null) {
+            mDataChangeCoalescer = new DataChangeCoalescer(new DataChangeCoalescer.Listener() {
+                @Override
+                public void onDataChanged(DataEvent event) {
+                    deliver(event);
+                }
+            });
+        }
+        return mDataChangeCoalescer;
+    }
+
+    /**
+     * Puts {@code request} through the sink unless the {@link SyncConflater} holds it.
+     */
+    void sync(PutDataMapRequest request, boolean isUrgent) {
+        SyncConflater<PutDataMapRequest> syncConflater;
+        synchronized (this) {
+            syncConflater = mSyncConflater;
+        }
+        if (syncConflater == null
+                || !syncConflater.offer(request.getUri().getPath(), request, isUrgent)) {
+            mSink.put(request, isUrgent);
+        }
+    }
+
+    /**
+     * Hands the events to the consumers, except for those that the {@link DataChangeCoalescer}
+     * holds; these are frozen, since the buffer is released once the framework callback returns.
+     */
+    void onDataChanged(Iterable<DataEvent> dataEvents) {
+        DataChangeCoalescer dataChangeCoalescer;
+        synchronized (this) {
+            dataChangeCoalescer = mDataChangeCoalescer;
+        }
+        for (DataEvent event : dataEvents) {
+            if (dataChangeCoalescer != null
+                    && dataChangeCoalescer.isCoalesced(event.getDataItem().getUri().getPath())
+                    && dataChangeCoalescer.offer(event.freeze())) {
+                continue;
+            }
+            deliver(event);
+        }
+    }
+
+    /**
+     * Puts the writes held by the {@link SyncConflater}, if it was ever used.
+     */
+    void flush() {
+        SyncConflater<PutDataMapRequest> syncConflater;
+        synchronized (this) {
+            syncConflater = mSyncConflater;
+        }
+        if (syncConflater != null) {
+            syncConflater.flush();
+        }
+    }
+
+    private void deliver(DataEvent event) {
+        for (DataConsumer consumer : mDataConsumers) {
+            consumer.onDataChanged(event);
+        }
+    }
+}
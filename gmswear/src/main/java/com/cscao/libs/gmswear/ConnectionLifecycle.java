@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+import com.cscao.libs.gmswear.connectivity.ConnectionSupervisor;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.node.NodeRegistry;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.StartupTimings;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.wearable.CapabilityApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the connection of the Google Api Client of {@link GmsWear}, or of the transport it was
+ * given instead of one: it drives the {@link ConnectionSupervisor} that connects, reconnects and
+ * queues the operations requested in the meantime, runs the initial discovery of the nodes and
+ * the capabilities once connected, and reports each step to the {@link DataConsumer}s.
+ */
+final class ConnectionLifecycle implements GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener {
+
+    static final String TRIGGER_INITIALIZE = "initialize";
+    static final String TRIGGER_FOREGROUND = "foreground";
+    static final String TRIGGER_API_USE = "api_use";
+
+    private static final String TAG = "ConnectionLifecycle";
+    private static final long DISCOVERY_TIMEOUT_SECONDS = 30;
+
+    private final Set<DataConsumer> mDataConsumers;
+    private final NodeRegistry mNodeRegistry;
+    private final CapabilityWiring mCapabilities;
+    private final StartupTimings mStartupTimings;
+    private final Executor mWorkerExecutor;
+    private final ConnectionSupervisor mConnectionSupervisor;
+    private GoogleApiClient mGoogleApiClient;
+    private TransportBridge mTransportBridge;
+
+    ConnectionLifecycle(Set<DataConsumer> dataConsumers, NodeRegistry nodeRegistry,
+            CapabilityWiring capabilities, StartupTimings startupTimings,
+            Executor workerExecutor) {
+        mDataConsumers = dataConsumers;
+        mNodeRegistry = nodeRegistry;
+        mCapabilities = capabilities;
+        mStartupTimings = startupTimings;
+        mWorkerExecutor = workerExecutor;
+        mConnectionSupervisor = new ConnectionSupervisor(new ConnectionSupervisor.Connector() {
+            @Override
+            public void connect() {
+                mStartupTimings.setConnectTrigger(TRIGGER_API_USE);
+                mStartupTimings.end(StartupTimings.PHASE_DEFERRED);
+                mStartupTimings.begin(StartupTimings.PHASE_CONNECT);
+                if (mTransportBridge != null) {
+                    connectTransport();
+                } else {
+                    mGoogleApiClient.connect();
+                }
+            }
+        });
+        mConnectionSupervisor.addListener(new ConnectionSupervisor.Listener() {
+            @Override
+            public void onGaveUp(int errorCode) {
+                for (DataConsumer consumer : mDataConsumers) {
+                    consumer.onGmsConnectionAbandoned(errorCode);
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the Google Api Client for the Wearable APIs, with this instance as its listener. It
+     * is not connected until {@link #start(String)} is called.
+     */
+    GoogleApiClient buildClient(Context context) {
+        mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .build();
+        return mGoogleApiClient;
+    }
+
+    /**
+     * Connects through the transport of {@code bridge} instead of a Google Api Client. The
+     * transport is taken to be connected right away; the queued operations run once its connected
+     * nodes are known.
+     */
+    void useTransport(TransportBridge bridge) {
+        mTransportBridge = bridge;
+    }
+
+    ConnectionSupervisor getSupervisor() {
+        return mConnectionSupervisor;
+    }
+
+    /**
+     * Makes the first connection to the Google Api Client, unless it was already made.
+     *
+     * @param trigger One of the {@code TRIGGER_*} constants, recorded in the
+     *                {@link StartupTimings}.
+     */
+    void start(String trigger) {
+        if (!mConnectionSupervisor.isStarted()) {
+            mStartupTimings.setConnectTrigger(trigger);
+            mConnectionSupervisor.start();
+        }
+    }
+
+    /**
+     * Clients can register to {@link DataConsumer#onGmsApiConnected()}.
+     */
+    @Override
+    public void onConnected(Bundle bundle) {
+        WearLog.d(TAG, "Google Api Connected");
+        mStartupTimings.end(StartupTimings.PHASE_CONNECT);
+        for (DataConsumer consumer : mDataConsumers) {
+            consumer.onGmsApiConnected();
+        }
+        mCapabilities.getCapabilityManager().onApiConnected();
+        mStartupTimings.begin(StartupTimings.PHASE_NODE_DISCOVERY);
+        mStartupTimings.begin(StartupTimings.PHASE_CAPABILITY_DISCOVERY);
+        final PendingResult<NodeApi.GetConnectedNodesResult> nodesResult = Wearable.NodeApi
+                .getConnectedNodes(mGoogleApiClient);
+        final PendingResult<CapabilityApi.GetAllCapabilitiesResult> capabilitiesResult =
+                Wearable.CapabilityApi.getAllCapabilities(mGoogleApiClient,
+                        CapabilityApi.FILTER_REACHABLE);
+        // both requests are in flight; wait for them and process them off the main thread
+        mWorkerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onInitialNodesResult(nodesResult.await(DISCOVERY_TIMEOUT_SECONDS,
+                        TimeUnit.SECONDS));
+                onInitialCapabilitiesResult(capabilitiesResult.await(DISCOVERY_TIMEOUT_SECONDS,
+                        TimeUnit.SECONDS));
+            }
+        });
+    }
+
+    /**
+     * Clients can register to {@link DataConsumer#onGmsConnectionSuspended()}.
+     */
+    @Override
+    public void onConnectionSuspended(int i) {
+        mConnectionSupervisor.onDisconnected();
+        for (DataConsumer consumer : mDataConsumers) {
+            consumer.onGmsConnectionSuspended();
+        }
+    }
+
+    /**
+     * Clients can register to {@link DataConsumer#onGmsConnectionFailed()}.
+     */
+    @Override
+    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+        WearLog.e(TAG, "Google Api connection failed, error code: {}",
+                connectionResult.getErrorCode());
+        for (DataConsumer consumer : mDataConsumers) {
+            consumer.onGmsConnectionFailed();
+        }
+        mConnectionSupervisor.onConnectionFailed(connectionResult.getErrorCode());
+    }
+
+    private void connectTransport() {
+        mStartupTimings.end(StartupTimings.PHASE_CONNECT);
+        for (DataConsumer consumer : mDataConsumers) {
+            consumer.onGmsApiConnected();
+        }
+        mCapabilities.getCapabilityManager().onApiConnected();
+        mStartupTimings.begin(StartupTimings.PHASE_NODE_DISCOVERY);
+        mTransportBridge.getConnectedNodes(new Transport.Callback<List<Node>>() {
+            @Override
+            public void onResult(int statusCode, List<Node> nodes) {
+                if (statusCode == Transport.STATUS_SUCCESS) {
+                    mNodeRegistry.publish(nodes);
+                    mStartupTimings.end(StartupTimings.PHASE_NODE_DISCOVERY);
+                    for (DataConsumer consumer : mDataConsumers) {
+                        consumer.onInitialConnectedNodesReceived();
+                    }
+                } else {
+                    WearLog.e(TAG, "getConnectedNodes(): Failed to get the connected nodes, "
+                            + "status code: {}", statusCode);
+                }
+                mConnectionSupervisor.onConnected();
+            }
+        });
+        // transports have no call for all the capabilities; the library only needs its own
+        mTransportBridge.getCapabilityNodes(Constants.CAPABILITY_MESSAGE_HEADER,
+                new Transport.Callback<Set<Node>>() {
+                    @Override
+                    public void onResult(int statusCode, Set<Node> nodes) {
+                        if (statusCode == Transport.STATUS_SUCCESS) {
+                            mCapabilities.setInitialNodes(Constants.CAPABILITY_MESSAGE_HEADER,
+                                    nodes);
+                        }
+                    }
+                });
+    }
+
+    private void onInitialNodesResult(NodeApi.GetConnectedNodesResult getConnectedNodesResult) {
+        if (getConnectedNodesResult.getStatus().isSuccess()) {
+            mNodeRegistry.publish(getConnectedNodesResult.getNodes());
+            mStartupTimings.end(StartupTimings.PHASE_NODE_DISCOVERY);
+            WearLog.d(TAG, "onConnectedInitialNodesReceived");
+            for (DataConsumer consumer : mDataConsumers) {
+                consumer.onInitialConnectedNodesReceived();
+            }
+        } else {
+            WearLog.e(TAG, "getConnectedNodes(): Failed to get the connected nodes, "
+                    + "status code: {}", getConnectedNodesResult.getStatus().getStatusCode());
+        }
+        // run the queued operations once the nearby nodes are known, so that
+        // queued messages to "all nearby nodes" find their targets
+        mConnectionSupervisor.onConnected();
+    }
+
+    private void onInitialCapabilitiesResult(
+            CapabilityApi.GetAllCapabilitiesResult getAllCapabilitiesResult) {
+        if (!getAllCapabilitiesResult.getStatus().isSuccess()) {
+            WearLog.e(TAG, "getAllCapabilities(): Failed to get all the capabilities");
+            return;
+        }
+        mCapabilities.setInitialCapabilities(getAllCapabilitiesResult.getAllCapabilities());
+        mStartupTimings.end(StartupTimings.PHASE_CAPABILITY_DISCOVERY);
+        for (DataConsumer consumer : mDataConsumers) {
+            consumer.onInitialConnectedCapabilitiesReceived();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.async.WearFuture;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.transport.TransportDataItem;
+import com.cscao.libs.gmswear.transport.WearableTransport;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.Result;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and deletes the data items of {@link GmsWear} through its {@link Transport}. Over a
+ * {@link WearableTransport}, the calls go to the Data API and return its results as they are;
+ * other transports only carry the path and the data of an item, which are returned in the same
+ * result types. A {@link DataItemBuffer} only comes from the Data API, so the calls that return
+ * one throw an {@link UnsupportedOperationException} over other transports. The results that
+ * nobody passed a callback for go to the {@link DataConsumer}s.
+ */
+final class DataItemReader {
+
+    private static final String TAG = "DataItemReader";
+    private static final String ANY_NODE = "*";
+
+    private final GmsWear mGmsWear;
+    private final Set<DataConsumer> mDataConsumers;
+
+    DataItemReader(GmsWear gmsWear, Set<DataConsumer> dataConsumers) {
+        mGmsWear = gmsWear;
+        mDataConsumers = dataConsumers;
+    }
+
+    void getDataItem(Uri uri,
+            @Nullable final ResultCallback<? super DataApi.DataItemResult> callback) {
+        requestDataItem(uri, new ResultCallback<DataApi.DataItemResult>() {
+            @Override
+            public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
+                int statusCode = dataItemResult.getStatus().getStatusCode();
+                if (!dataItemResult.getStatus().isSuccess()) {
+                    WearLog.e(TAG, "Failed to get the data item, status code: {}", statusCode);
+                }
+                if (callback == null) {
+                    for (DataConsumer consumer : mDataConsumers) {
+                        consumer.onGetDataItem(statusCode, dataItemResult);
+                    }
+                } else {
+                    callback.onResult(dataItemResult);
+                }
+            }
+        });
+    }
+
+    DataApi.DataItemResult getDataItemSynchronous(Uri uri, long timeoutMillis) {
+        WearableTransport wearableTransport = getWearableTransport();
+        if (wearableTransport != null) {
+            return wearableTransport.getDataItem(uri).await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        WearFuture<DataApi.DataItemResult> future = new WearFuture<>();
+        requestDataItem(uri, completingWithAnyResult(future));
+        DataApi.DataItemResult result = TransportBridge.await(future, timeoutMillis);
+        return result != null ? result
+                : TransportBridge.newDataItemResult(CommonStatusCodes.TIMEOUT, null);
+    }
+
+    /**
+     * Gets the data item at {@code uri} and passes the result to {@code callback}, with a
+     * {@code null} item if there is none. Returns the pending result of the Data API, to cancel
+     * it, or {@code null} if the call went through another transport.
+     */
+    @Nullable
+    PendingResult<DataApi.DataItemResult> requestDataItem(final Uri uri,
+            final ResultCallback<DataApi.DataItemResult> callback) {
+        WearableTransport wearableTransport = getWearableTransport();
+        if (wearableTransport != null) {
+            PendingResult<DataApi.DataItemResult> pendingResult = wearableTransport
+                    .getDataItem(uri);
+            pendingResult.setResultCallback(callback);
+            return pendingResult;
+        }
+        mGmsWear.getTransport().getDataItems(pathOf(uri), Transport.FILTER_LITERAL,
+                new Transport.Callback<List<TransportDataItem>>() {
+                    @Override
+                    public void onResult(int statusCode, List<TransportDataItem> items) {
+                        TransportDataItem found = null;
+                        if (items != null) {
+                            for (TransportDataItem item : items) {
+                                if (isFromHost(item, uri)) {
+                                    found = item;
+                                    break;
+                                }
+                            }
+                        }
+                        callback.onResult(TransportBridge.newDataItemResult(statusCode, found));
+                    }
+                });
+        return null;
+    }
+
+    /**
+     * Gets the data items that match {@code uri}, or all of them if it is {@code null}. The
+     * buffer is released once the callback or the consumers return.
+     */
+    void getDataItems(@Nullable Uri uri, int filterType,
+            @Nullable final ResultCallback<? super DataItemBuffer> callback) {
+        requestDataItems(uri, filterType).setResultCallback(new ResultCallback<DataItemBuffer>() {
+            @Override
+            public void onResult(@NonNull DataItemBuffer dataItems) {
+                try {
+                    int statusCode = dataItems.getStatus().getStatusCode();
+                    if (!dataItems.getStatus().isSuccess()) {
+                        WearLog.e(TAG, "Failed to get items, status code: {}", statusCode);
+                    }
+                    if (callback == null) {
+                        for (DataConsumer consumer : mDataConsumers) {
+                            consumer.onGetDataItems(statusCode, dataItems);
+                        }
+                    } else {
+                        callback.onResult(dataItems);
+                    }
+                } finally {
+                    dataItems.release();
+                }
+            }
+        });
+    }
+
+    DataItemBuffer getDataItemsSynchronous(@Nullable Uri uri, int filterType,
+            long timeoutMillis) {
+        return requestDataItems(uri, filterType).await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the data items that match {@code uri}, or all of them if it is {@code null}, as the
+     * {@link DataItemBuffer} of the Data API, which the caller releases.
+     *
+     * @throws UnsupportedOperationException if the transport is not a {@link WearableTransport}
+     */
+    PendingResult<DataItemBuffer> requestDataItems(@Nullable Uri uri, int filterType) {
+        return requireWearableTransport().getDataItems(uri, filterType);
+    }
+
+    /**
+     * Throws an {@link UnsupportedOperationException} unless the transport can return a
+     * {@link DataItemBuffer}, so that the calls which return one fail before they are queued.
+     */
+    void assertDataItemBuffersSupported() {
+        requireWearableTransport();
+    }
+
+    /**
+     * Gets the data items that match {@code uri}, or all of them if it is {@code null}, and
+     * passes them to {@code callback} as a list that doesn't need to be released, or
+     * {@code null} if the call failed. This works over any transport. Returns the pending result
+     * of the Data API, to cancel it, or {@code null} if the call went through another transport.
+     */
+    @Nullable
+    PendingResult<DataItemBuffer> requestDataItemList(@Nullable final Uri uri, int filterType,
+            final Transport.Callback<List<DataItem>> callback) {
+        WearableTransport wearableTransport = getWearableTransport();
+        if (wearableTransport != null) {
+            PendingResult<DataItemBuffer> pendingResult = wearableTransport.getDataItems(uri,
+                    filterType);
+            pendingResult.setResultCallback(new ResultCallback<DataItemBuffer>() {
+                @Override
+                public void onResult(@NonNull DataItemBuffer dataItems) {
+                    List<DataItem> items = null;
+                    if (dataItems.getStatus().isSuccess()) {
+                        items = new ArrayList<>(dataItems.getCount());
+                        for (DataItem dataItem : dataItems) {
+                            items.add(dataItem.freeze());
+                        }
+                    }
+                    dataItems.release();
+                    callback.onResult(dataItems.getStatus().getStatusCode(), items);
+                }
+            });
+            return pendingResult;
+        }
+        mGmsWear.getTransport().getDataItems(pathOf(uri),
+                uri == null ? Transport.FILTER_PREFIX : filterType,
+                new Transport.Callback<List<TransportDataItem>>() {
+                    @Override
+                    public void onResult(int statusCode, List<TransportDataItem> items) {
+                        List<DataItem> dataItems = null;
+                        if (items != null) {
+                            dataItems = new ArrayList<>(items.size());
+                            for (TransportDataItem item : items) {
+                                if (uri == null || isFromHost(item, uri)) {
+                                    dataItems.add(TransportBridge.newDataItem(item));
+                                }
+                            }
+                        }
+                        callback.onResult(statusCode, dataItems);
+                    }
+                });
+        return null;
+    }
+
+    void deleteDataItems(final Uri uri,
+            @Nullable final ResultCallback<? super DataApi.DeleteDataItemsResult> callback) {
+        requestDelete(uri, new ResultCallback<DataApi.DeleteDataItemsResult>() {
+            @Override
+            public void onResult(@NonNull DataApi.DeleteDataItemsResult deleteDataItemsResult) {
+                int statusCode = deleteDataItemsResult.getStatus().getStatusCode();
+                if (!deleteDataItemsResult.getStatus().isSuccess()) {
+                    WearLog.e(TAG, "Failed to delete data items (status code={}): {}",
+                            statusCode, uri);
+                }
+                if (callback == null) {
+                    for (DataConsumer consumer : mDataConsumers) {
+                        consumer.onDeleteDataItemsResult(statusCode);
+                    }
+                } else {
+                    callback.onResult(deleteDataItemsResult);
+                }
+            }
+        });
+    }
+
+    DataApi.DeleteDataItemsResult deleteDataItemsSynchronous(Uri uri, long timeoutMillis) {
+        WearableTransport wearableTransport = getWearableTransport();
+        if (wearableTransport != null) {
+            return wearableTransport.deleteDataItems(uri, DataApi.FILTER_LITERAL)
+                    .await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        WearFuture<DataApi.DeleteDataItemsResult> future = new WearFuture<>();
+        requestDelete(uri, completingWithAnyResult(future));
+        DataApi.DeleteDataItemsResult result = TransportBridge.await(future, timeoutMillis);
+        return result != null ? result
+                : TransportBridge.newDeleteDataItemsResult(CommonStatusCodes.TIMEOUT, 0);
+    }
+
+    /**
+     * Deletes the data item at the path of {@code uri} and passes the result to
+     * {@code callback}. Returns the pending result of the Data API, to cancel it, or {@code null}
+     * if the call went through another transport.
+     */
+    @Nullable
+    PendingResult<DataApi.DeleteDataItemsResult> requestDelete(Uri uri,
+            final ResultCallback<DataApi.DeleteDataItemsResult> callback) {
+        WearableTransport wearableTransport = getWearableTransport();
+        if (wearableTransport != null) {
+            PendingResult<DataApi.DeleteDataItemsResult> pendingResult = wearableTransport
+                    .deleteDataItems(uri, DataApi.FILTER_LITERAL);
+            pendingResult.setResultCallback(callback);
+            return pendingResult;
+        }
+        mGmsWear.getTransport().deleteDataItems(pathOf(uri), Transport.FILTER_LITERAL,
+                new Transport.Callback<Integer>() {
+                    @Override
+                    public void onResult(int statusCode, Integer numDeleted) {
+                        callback.onResult(TransportBridge.newDeleteDataItemsResult(statusCode,
+                                numDeleted == null ? 0 : numDeleted));
+                    }
+                });
+        return null;
+    }
+
+    @Nullable
+    private WearableTransport getWearableTransport() {
+        Transport transport = mGmsWear.getTransport();
+        return transport instanceof WearableTransport ? (WearableTransport) transport : null;
+    }
+
+    private WearableTransport requireWearableTransport() {
+        WearableTransport wearableTransport = getWearableTransport();
+        if (wearableTransport == null) {
+            throw new UnsupportedOperationException("A DataItemBuffer only comes from the "
+                    + "Wearable APIs, use getDataItemListAsync() with " + mGmsWear.getTransport());
+        }
+        return wearableTransport;
+    }
+
+    private static String pathOf(@Nullable Uri uri) {
+        String path = uri == null ? null : uri.getPath();
+        return path == null ? "" : path;
+    }
+
+    /**
+     * Returns {@code true} if {@code item} belongs to the node named by the host of
+     * {@code uri}, which matches any node if it is missing or {@code *}.
+     */
+    private static boolean isFromHost(TransportDataItem item, Uri uri) {
+        String host = uri.getHost();
+        return host == null || ANY_NODE.equals(host) || host.equals(item.getNodeId());
+    }
+
+    /**
+     * Returns a callback that completes {@code future} with the result it receives, whether it
+     * is successful or not, like {@code PendingResult.await()} returns it.
+     */
+    private static <R extends Result> ResultCallback<R> completingWithAnyResult(
+            final WearFuture<R> future) {
+        return new ResultCallback<R>() {
+            @Override
+            public void onResult(@NonNull R result) {
+                future.complete(result);
+            }
+        };
+    }
+}
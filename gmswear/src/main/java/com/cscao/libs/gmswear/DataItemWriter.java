@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.async.WearFuture;
+import com.cscao.libs.gmswear.connectivity.ConnectionSupervisor;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.metrics.MetricsRegistry;
+import com.cscao.libs.gmswear.node.ClockSync;
+import com.cscao.libs.gmswear.trace.Span;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.transport.TransportDataItem;
+import com.cscao.libs.gmswear.transport.WearableTransport;
+import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts the data items of {@link GmsWear} through its {@link Transport}. Over a
+ * {@link WearableTransport}, the requests go to the Data API as they are and the callers get the
+ * results of the Data API; other transports only carry the path and the data of an item. Each put
+ * waits for the connection through the {@link ConnectionSupervisor} and is counted, traced and
+ * tracked while in flight.
+ */
+final class DataItemWriter {
+
+    private static final String TAG = "DataItemWriter";
+
+    private final GmsWear mGmsWear;
+    private final Set<DataConsumer> mDataConsumers;
+    private final ConnectionSupervisor mConnectionSupervisor;
+    private final MetricsRegistry mMetrics;
+    private final Tracer mTracer;
+    private final TraceIds mTraceIds;
+    private final DiagnosticsCollector mDiagnostics;
+
+    DataItemWriter(GmsWear gmsWear, Set<DataConsumer> dataConsumers,
+            ConnectionSupervisor connectionSupervisor, MetricsRegistry metrics, Tracer tracer,
+            TraceIds traceIds, DiagnosticsCollector diagnostics) {
+        mGmsWear = gmsWear;
+        mDataConsumers = dataConsumers;
+        mConnectionSupervisor = connectionSupervisor;
+        mMetrics = metrics;
+        mTracer = tracer;
+        mTraceIds = traceIds;
+        mDiagnostics = diagnostics;
+    }
+
+    /**
+     * Puts {@code request} once connected. The result goes to {@code callback}, or to the
+     * consumers if it is {@code null}.
+     */
+    void put(final PutDataRequest request,
+            @Nullable final ResultCallback<? super DataApi.DataItemResult> callback) {
+        mConnectionSupervisor.execute(new ConnectionSupervisor.Operation() {
+            @Override
+            public void run() {
+                doPut(request, callback);
+            }
+
+            @Override
+            public void onDropped() {
+                mMetrics.recordFailure(request.getUri().getPath(), null);
+                if (callback == null) {
+                    for (DataConsumer consumer : mDataConsumers) {
+                        consumer.onSendDataResult(CommonStatusCodes.API_NOT_CONNECTED);
+                    }
+                    return;
+                }
+                callback.onResult(TransportBridge.newDataItemResult(
+                        CommonStatusCodes.API_NOT_CONNECTED, null));
+            }
+
+            @Override
+            public String toString() {
+                return "putDataItem(" + request.getUri() + ")";
+            }
+        });
+    }
+
+    private void doPut(PutDataRequest request,
+            @Nullable final ResultCallback<? super DataApi.DataItemResult> callback) {
+        final String path = request.getUri().getPath();
+        final int size = request.getData() == null ? 0 : request.getData().length;
+        final long startNanos = MetricsRegistry.now();
+        final Span span = mTracer.begin("putDataItem", mTraceIds.newTraceId(), path,
+                Tracer.FLOW_NONE);
+        mDiagnostics.getInFlightDataItems().incrementAndGet();
+        putThroughTransport(request,
+                new ResultCallback<DataApi.DataItemResult>() {
+                    @Override
+                    public void onResult(DataApi.DataItemResult dataItemResult) {
+                        span.end();
+                        mDiagnostics.getInFlightDataItems().decrementAndGet();
+                        mMetrics.recordDataItemPut(path, size,
+                                dataItemResult.getStatus().isSuccess(), startNanos);
+                        if (!dataItemResult.getStatus().isSuccess()) {
+                            WearLog.e(TAG, "Failed to send data, status code = {}",
+                                    dataItemResult.getStatus().getStatusCode());
+                        }
+                        if (callback == null) {
+                            for (DataConsumer consumer : mDataConsumers) {
+                                consumer.onSendDataResult(dataItemResult.getStatus()
+                                        .getStatusCode());
+                            }
+                        } else {
+                            callback.onResult(dataItemResult);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Puts {@code request} right away, without waiting for the connection, and blocks for up to
+     * {@code timeoutMillis} for the status code of the result.
+     */
+    int putSynchronous(PutDataRequest request, long timeoutMillis) {
+        Transport transport = mGmsWear.getTransport();
+        if (transport instanceof WearableTransport) {
+            return ((WearableTransport) transport).putDataItem(request)
+                    .await(timeoutMillis, TimeUnit.MILLISECONDS).getStatus().getStatusCode();
+        }
+        final WearFuture<DataApi.DataItemResult> future = new WearFuture<>();
+        putThroughTransport(request, new ResultCallback<DataApi.DataItemResult>() {
+            @Override
+            public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
+                future.complete(dataItemResult);
+            }
+        });
+        DataApi.DataItemResult result = TransportBridge.await(future, timeoutMillis);
+        return result == null ? CommonStatusCodes.TIMEOUT : result.getStatus().getStatusCode();
+    }
+
+    /**
+     * Puts {@code request} through the transport; {@code callback} gets the result. Over a
+     * {@link WearableTransport} that is the result of the Data API. Other transports don't carry
+     * assets, so a request with assets fails there with
+     * {@link CommonStatusCodes#DEVELOPER_ERROR}.
+     */
+    private void putThroughTransport(PutDataRequest request,
+            final ResultCallback<DataApi.DataItemResult> callback) {
+        Transport transport = mGmsWear.getTransport();
+        if (transport instanceof WearableTransport) {
+            ((WearableTransport) transport).putDataItem(request).setResultCallback(callback);
+            return;
+        }
+        if (!request.getAssets().isEmpty()) {
+            WearLog.e(TAG, "putDataItem(): Only the Wearable APIs carry the assets of {}",
+                    request.getUri());
+            callback.onResult(TransportBridge.newDataItemResult(
+                    CommonStatusCodes.DEVELOPER_ERROR, null));
+            return;
+        }
+        transport.putDataItem(request.getUri().getPath(), request.getData(), request.isUrgent(),
+                new Transport.Callback<TransportDataItem>() {
+                    @Override
+                    public void onResult(int statusCode, TransportDataItem dataItem) {
+                        callback.onResult(TransportBridge.newDataItemResult(statusCode,
+                                dataItem));
+                    }
+                });
+    }
+
+    /**
+     * Puts a write of the {@code sync*()} methods once connected, stamped with the send time and
+     * the trace id. Nobody waits for its result, so it is only logged.
+     */
+    void sync(PutDataMapRequest putDataMapRequest, boolean isUrgent) {
+        if (isUrgent) {
+            putDataMapRequest = putDataMapRequest.setUrgent();
+        }
+        if (mGmsWear.isTimestampingEnabled()) {
+            putDataMapRequest.getDataMap().putLong(Constants.KEY_SEND_TIME,
+                    ClockSync.nowMicros());
+        }
+        final long traceId = mTraceIds.newTraceId();
+        if (traceId != 0) {
+            putDataMapRequest.getDataMap().putLong(Constants.KEY_TRACE_ID, traceId);
+        }
+        final PutDataRequest request = putDataMapRequest.asPutDataRequest();
+        mConnectionSupervisor.execute(new ConnectionSupervisor.Operation() {
+            @Override
+            public void run() {
+                doSync(request, traceId);
+            }
+
+            @Override
+            public void onDropped() {
+                // nobody is waiting for the result of a sync
+            }
+
+            @Override
+            public String toString() {
+                return "syncData(" + request.getUri() + ")";
+            }
+        });
+    }
+
+    private void doSync(PutDataRequest request, long traceId) {
+        final String path = request.getUri().getPath();
+        final int size = request.getData() == null ? 0 : request.getData().length;
+        final long startNanos = MetricsRegistry.now();
+        final Span span = mTracer.begin("syncData", traceId, path, Tracer.FLOW_OUT);
+        mDiagnostics.getInFlightDataItems().incrementAndGet();
+        putThroughTransport(request, new ResultCallback<DataApi.DataItemResult>() {
+            @Override
+            public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
+                span.end();
+                mDiagnostics.getInFlightDataItems().decrementAndGet();
+                mMetrics.recordDataItemPut(path, size,
+                        dataItemResult.getStatus().isSuccess(), startNanos);
+                if (dataItemResult.getStatus().isSuccess()) {
+                    WearLog.d(TAG, "putDataItem success");
+                } else {
+                    Status status = dataItemResult.getStatus();
+                    WearLog.e(TAG, "ERROR: failed to putDataItem, status code: {},"
+                            + "status message:{}", status.getStatusCode(),
+                            status.getStatusMessage());
+
+                }
+            }
+        });
+    }
+}
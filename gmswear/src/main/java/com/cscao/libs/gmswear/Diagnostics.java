@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import com.cscao.libs.gmswear.connectivity.ConnectionSupervisor;
+import com.cscao.libs.gmswear.metrics.HistogramSnapshot;
+import com.cscao.libs.gmswear.metrics.MetricsSnapshot;
+import com.cscao.libs.gmswear.metrics.TrafficMetrics;
+import com.cscao.libs.gmswear.node.CircuitBreaker;
+import com.cscao.libs.gmswear.node.ClockOffset;
+import com.cscao.libs.gmswear.node.NodeLatency;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the state of {@link GmsWear}, returned by
+ * {@link GmsWear#diagnostics()}, for troubleshooting a device in the field. It is also what
+ * {@code adb shell dumpsys activity service GmsWearService} prints while the service runs.
+ * <p>
+ * Queue depths and in-flight counts are read one after the other without a common lock, so they
+ * may not add up exactly when operations complete while the snapshot is taken.
+ */
+public final class Diagnostics {
+
+    private final long mTimestampMillis;
+    private final String mVersion;
+    private final boolean mConnected;
+    private final boolean mAppForeground;
+    private final ConnectionSupervisor.Stats mConnectionStats;
+    private final List<NodeEntry> mNodes;
+    private final Map<String, Set<String>> mCapabilities;
+    private final int mConsumerCount;
+    private final int mSubscriberCount;
+    private final int mInFlightMessages;
+    private final int mInFlightDataItems;
+    private final int mInFlightChannelOpens;
+    private final int mInFlightFileSends;
+    private final List<ChannelEntry> mOpenChannels;
+    private final int mWaitingTransfers;
+    private final int mActiveWorkers;
+    private final int mTracedSpans;
+    private final String mStartupTimings;
+    private final List<String> mRecentErrors;
+    private final MetricsSnapshot mMetrics;
+
+    Diagnostics(long timestampMillis, String version, boolean connected, boolean appForeground,
+            ConnectionSupervisor.Stats connectionStats, List<NodeEntry> nodes,
+            Map<String, Set<String>> capabilities, int consumerCount, int subscriberCount,
+            int inFlightMessages, int inFlightDataItems, int inFlightChannelOpens,
+            int inFlightFileSends, List<ChannelEntry> openChannels, int waitingTransfers,
+            int activeWorkers, int tracedSpans, String startupTimings, List<String> recentErrors,
+            MetricsSnapshot metrics) {
+        mTimestampMillis = timestampMillis;
+        mVersion = version;
+        mConnected = connected;
+        mAppForeground = appForeground;
+        mConnectionStats = connectionStats;
+        mNodes = Collections.unmodifiableList(nodes);
+        mCapabilities = Collections.unmodifiableMap(capabilities);
+        mConsumerCount = consumerCount;
+        mSubscriberCount = subscriberCount;
+        mInFlightMessages = inFlightMessages;
+        mInFlightDataItems = inFlightDataItems;
+        mInFlightChannelOpens = inFlightChannelOpens;
+        mInFlightFileSends = inFlightFileSends;
+        mOpenChannels = Collections.unmodifiableList(openChannels);
+        mWaitingTransfers = waitingTransfers;
+        mActiveWorkers = activeWorkers;
+        mTracedSpans = tracedSpans;
+        mStartupTimings = startupTimings;
+        mRecentErrors = Collections.unmodifiableList(recentErrors);
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the wall clock time at which the snapshot was taken.
+     */
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns {@code true} if the Google Api Client was connected.
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public boolean isAppForeground() {
+        return mAppForeground;
+    }
+
+    /**
+     * Returns the reconnection statistics, which include the number of operations waiting for
+     * the connection.
+     */
+    public ConnectionSupervisor.Stats getConnectionStats() {
+        return mConnectionStats;
+    }
+
+    /**
+     * Returns the connected nodes, sorted by node id.
+     */
+    public List<NodeEntry> getNodes() {
+        return mNodes;
+    }
+
+    /**
+     * Returns the ids of the nodes that provide each capability, sorted by capability.
+     */
+    public Map<String, Set<String>> getCapabilities() {
+        return mCapabilities;
+    }
+
+    /**
+     * Returns the number of registered {@link DataConsumer}s.
+     */
+    public int getConsumerCount() {
+        return mConsumerCount;
+    }
+
+    /**
+     * Returns the number of subscriptions to the publishers of {@link GmsWear}, such as
+     * {@link GmsWear#messages(String)}.
+     */
+    public int getSubscriberCount() {
+        return mSubscriberCount;
+    }
+
+    /**
+     * Returns the number of messages that were handed to the transport and whose result has not
+     * arrived yet. Messages waiting for the connection are counted by
+     * {@link ConnectionSupervisor.Stats#getQueueSize()} instead.
+     */
+    public int getInFlightMessages() {
+        return mInFlightMessages;
+    }
+
+    public int getInFlightDataItems() {
+        return mInFlightDataItems;
+    }
+
+    public int getInFlightChannelOpens() {
+        return mInFlightChannelOpens;
+    }
+
+    public int getInFlightFileSends() {
+        return mInFlightFileSends;
+    }
+
+    /**
+     * Returns the channels opened or accepted by this node that were not closed yet, oldest
+     * first.
+     */
+    public List<ChannelEntry> getOpenChannels() {
+        return mOpenChannels;
+    }
+
+    /**
+     * Returns the number of transfers held back by the
+     * {@link com.cscao.libs.gmswear.connectivity.policy.TransferScheduler}, or 0 if it was never
+     * used.
+     */
+    public int getWaitingTransfers() {
+        return mWaitingTransfers;
+    }
+
+    /**
+     * Returns the number of worker threads that were running a task.
+     */
+    public int getActiveWorkers() {
+        return mActiveWorkers;
+    }
+
+    public int getTracedSpans() {
+        return mTracedSpans;
+    }
+
+    /**
+     * Returns the most recent errors and warnings that were logged, oldest first.
+     */
+    public List<String> getRecentErrors() {
+        return mRecentErrors;
+    }
+
+    public MetricsSnapshot getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Writes this snapshot as a human readable report, one section per topic.
+     */
+    public void dump(PrintWriter writer) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        writer.println("GmsWear " + mVersion + " at " + dateFormat.format(new Date(
+                mTimestampMillis)));
+
+        writer.println();
+        writer.println("Connection:");
+        writer.println("  connected=" + mConnected + ", appForeground=" + mAppForeground);
+        writer.println("  " + mConnectionStats);
+
+        writer.println();
+        writer.println("Nodes (" + mNodes.size() + "):");
+        for (NodeEntry node : mNodes) {
+            writer.println("  " + node);
+        }
+
+        writer.println();
+        writer.println("Capabilities (" + mCapabilities.size() + "):");
+        for (Map.Entry<String, Set<String>> entry : mCapabilities.entrySet()) {
+            writer.println("  " + entry.getKey() + " -> " + entry.getValue());
+        }
+
+        writer.println();
+        writer.println("Consumers: " + mConsumerCount + " consumers, " + mSubscriberCount
+                + " subscriptions");
+
+        writer.println();
+        writer.println("In flight: messages=" + mInFlightMessages + ", dataItems="
+                + mInFlightDataItems + ", channelOpens=" + mInFlightChannelOpens + ", fileSends="
+                + mInFlightFileSends);
+
+        writer.println();
+        writer.println("Open channels (" + mOpenChannels.size() + "):");
+        for (ChannelEntry channel : mOpenChannels) {
+            writer.println("  " + channel);
+        }
+
+        writer.println();
+        writer.println("Queues: connection=" + mConnectionStats.getQueueSize()
+                + ", scheduledTransfers=" + mWaitingTransfers + ", activeWorkers="
+                + mActiveWorkers + ", tracedSpans=" + mTracedSpans);
+
+        writer.println();
+        writer.println("Startup: " + mStartupTimings);
+
+        writer.println();
+        writer.println("Recent errors (" + mRecentErrors.size() + "):");
+        for (String error : mRecentErrors) {
+            writer.println("  " + error);
+        }
+
+        writer.println();
+        writer.println("Metrics:");
+        dumpTraffic(writer, mMetrics.getTotal());
+        for (TrafficMetrics metrics : mMetrics.getPaths().values()) {
+            dumpTraffic(writer, metrics);
+        }
+        writer.flush();
+    }
+
+    private static void dumpTraffic(PrintWriter writer, TrafficMetrics metrics) {
+        writer.println("  " + metrics.getKey() + ": sent=" + metrics.getMessagesSent()
+                + ", received=" + metrics.getMessagesReceived() + ", dataItemsPut="
+                + metrics.getDataItemsPut() + ", dataItemsReceived="
+                + metrics.getDataItemsReceived() + ", channels=" + metrics.getChannelsOpened()
+                + ", failures=" + metrics.getFailures() + ", expired="
+                + metrics.getExpiredBeforeSend() + "/" + metrics.getExpiredOnReceive()
+                + ", bytesSent=" + metrics.getBytesSent() + ", bytesReceived="
+                + metrics.getBytesReceived());
+        HistogramSnapshot latency = metrics.getSendLatency();
+        if (latency.getCount() > 0) {
+            writer.println("    send latency us: p50=" + latency.getPercentile(50) + ", p99="
+                    + latency.getPercentile(99) + ", max=" + latency.getMax());
+        }
+        latency = metrics.getOneWayLatency();
+        if (latency.getCount() > 0) {
+            writer.println("    one-way latency us: p50=" + latency.getPercentile(50) + ", p99="
+                    + latency.getPercentile(99) + ", max=" + latency.getMax());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Diagnostics{timestamp=" + mTimestampMillis + ", connected=" + mConnected
+                + ", nodes=" + mNodes.size() + ", openChannels=" + mOpenChannels.size()
+                + ", recentErrors=" + mRecentErrors.size() + "}";
+    }
+
+    /**
+     * A connected node, with the state of its circuit and, if they were measured, its round trip
+     * time and clock offset.
+     */
+    public static final class NodeEntry {
+        private final String mNodeId;
+        private final String mDisplayName;
+        private final boolean mNearby;
+        private final int mCircuitState;
+        private final NodeLatency mLatency;
+        private final ClockOffset mClockOffset;
+
+        NodeEntry(String nodeId, String displayName, boolean nearby, int circuitState,
+                NodeLatency latency, ClockOffset clockOffset) {
+            mNodeId = nodeId;
+            mDisplayName = displayName;
+            mNearby = nearby;
+            mCircuitState = circuitState;
+            mLatency = latency;
+            mClockOffset = clockOffset;
+        }
+
+        public String getNodeId() {
+            return mNodeId;
+        }
+
+        public String getDisplayName() {
+            return mDisplayName;
+        }
+
+        public boolean isNearby() {
+            return mNearby;
+        }
+
+        /**
+         * Returns one of the {@code STATE_} constants of {@link CircuitBreaker}.
+         */
+        public int getCircuitState() {
+            return mCircuitState;
+        }
+
+        /**
+         * Returns the round trip time measured by the
+         * {@link com.cscao.libs.gmswear.node.LatencyProber}, or {@code null} if it never probed
+         * this node.
+         */
+        public NodeLatency getLatency() {
+            return mLatency;
+        }
+
+        /**
+         * Returns the offset estimated by the {@link com.cscao.libs.gmswear.node.ClockSync}, or
+         * {@code null} if there is none yet.
+         */
+        public ClockOffset getClockOffset() {
+            return mClockOffset;
+        }
+
+        @Override
+        public String toString() {
+            return mNodeId + " (" + mDisplayName + "): nearby=" + mNearby + ", circuit="
+                    + CircuitBreaker.stateToString(mCircuitState)
+                    + (mLatency == null ? "" : ", " + mLatency)
+                    + (mClockOffset == null ? "" : ", " + mClockOffset);
+        }
+    }
+
+    /**
+     * A channel that is open between this node and {@link #getNodeId()}.
+     */
+    public static final class ChannelEntry {
+        private final String mPath;
+        private final String mNodeId;
+        private final long mAgeMillis;
+
+        ChannelEntry(String path, String nodeId, long ageMillis) {
+            mPath = path;
+            mNodeId = nodeId;
+            mAgeMillis = ageMillis;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public String getNodeId() {
+            return mNodeId;
+        }
+
+        /**
+         * Returns how long ago the channel was opened.
+         */
+        public long getAgeMillis() {
+            return mAgeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return mPath + " with " + mNodeId + ", open for " + mAgeMillis + " ms";
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.cscao.libs.gmswear.connectivity.ConnectionSupervisor;
+import com.cscao.libs.gmswear.connectivity.policy.TransferScheduler;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.metrics.MetricsRegistry;
+import com.cscao.libs.gmswear.node.CircuitBreaker;
+import com.cscao.libs.gmswear.node.ClockSync;
+import com.cscao.libs.gmswear.node.LatencyProber;
+import com.cscao.libs.gmswear.node.NodeRegistry;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.util.StartupTimings;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.google.android.gms.wearable.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the operations of {@link GmsWear} in flight and the channels open, and gathers them
+ * with the state of the other components of {@link GmsWear} into a {@link Diagnostics}.
+ */
+final class DiagnosticsCollector {
+
+    private static final int MAX_DIAGNOSTICS_ERRORS = 20;
+
+    private final Set<DataConsumer> mDataConsumers;
+    private final NodeRegistry mNodeRegistry;
+    private final CircuitBreaker mCircuitBreaker;
+    private final CapabilityWiring mCapabilities;
+    private final ConnectionSupervisor mConnectionSupervisor;
+    private final EventStreams mStreams;
+    private final ThreadPoolExecutor mWorkerExecutor;
+    private final Tracer mTracer;
+    private final StartupTimings mStartupTimings;
+    private final MetricsRegistry mMetrics;
+    private final AtomicInteger mInFlightMessages = new AtomicInteger();
+    private final AtomicInteger mInFlightDataItems = new AtomicInteger();
+    private final AtomicInteger mInFlightChannelOpens = new AtomicInteger();
+    private final AtomicInteger mInFlightFileSends = new AtomicInteger();
+    private final Map<TransportChannel, Long> mOpenChannels = new ConcurrentHashMap<>();
+
+    DiagnosticsCollector(Set<DataConsumer> dataConsumers, NodeRegistry nodeRegistry,
+            CircuitBreaker circuitBreaker, CapabilityWiring capabilities,
+            ConnectionSupervisor connectionSupervisor, EventStreams streams,
+            ThreadPoolExecutor workerExecutor, Tracer tracer, StartupTimings startupTimings,
+            MetricsRegistry metrics) {
+        mDataConsumers = dataConsumers;
+        mNodeRegistry = nodeRegistry;
+        mCircuitBreaker = circuitBreaker;
+        mCapabilities = capabilities;
+        mConnectionSupervisor = connectionSupervisor;
+        mStreams = streams;
+        mWorkerExecutor = workerExecutor;
+        mTracer = tracer;
+        mStartupTimings = startupTimings;
+        mMetrics = metrics;
+    }
+
+    AtomicInteger getInFlightMessages() {
+        return mInFlightMessages;
+    }
+
+    AtomicInteger getInFlightDataItems() {
+        return mInFlightDataItems;
+    }
+
+    AtomicInteger getInFlightChannelOpens() {
+        return mInFlightChannelOpens;
+    }
+
+    AtomicInteger getInFlightFileSends() {
+        return mInFlightFileSends;
+    }
+
+    /**
+     * Records {@code channel} as open until {@link #untrackChannel(TransportChannel)} is called.
+     */
+    void trackChannel(TransportChannel channel) {
+        mOpenChannels.put(channel, SystemClock.elapsedRealtime());
+    }
+
+    void untrackChannel(TransportChannel channel) {
+        mOpenChannels.remove(channel);
+    }
+
+    /**
+     * Takes the snapshot. The components that {@link GmsWear} creates lazily are passed in, and
+     * are {@code null} if they were never used.
+     */
+    Diagnostics collect(String version, boolean connected, boolean appForeground,
+            @Nullable TransferScheduler transferScheduler, @Nullable LatencyProber latencyProber,
+            @Nullable ClockSync clockSync) {
+        Map<String, Node> sortedNodes = new TreeMap<>();
+        for (Node node : mNodeRegistry.getSnapshot().getNodes()) {
+            sortedNodes.put(node.getId(), node);
+        }
+        List<Diagnostics.NodeEntry> nodes = new ArrayList<>();
+        for (Node node : sortedNodes.values()) {
+            String nodeId = node.getId();
+            nodes.add(new Diagnostics.NodeEntry(nodeId, node.getDisplayName(), node.isNearby(),
+                    mCircuitBreaker.getState(nodeId),
+                    latencyProber == null ? null : latencyProber.getLatency(nodeId),
+                    clockSync == null ? null : clockSync.getOffset(nodeId)));
+        }
+        long nowMillis = SystemClock.elapsedRealtime();
+        List<Map.Entry<TransportChannel, Long>> channels
+                = new ArrayList<>(mOpenChannels.entrySet());
+        Collections.sort(channels, new Comparator<Map.Entry<TransportChannel, Long>>() {
+            @Override
+            public int compare(Map.Entry<TransportChannel, Long> lhs,
+                    Map.Entry<TransportChannel, Long> rhs) {
+                return lhs.getValue().compareTo(rhs.getValue());
+            }
+        });
+        List<Diagnostics.ChannelEntry> openChannels = new ArrayList<>();
+        for (Map.Entry<TransportChannel, Long> entry : channels) {
+            openChannels.add(new Diagnostics.ChannelEntry(entry.getKey().getPath(),
+                    entry.getKey().getNodeId(), nowMillis - entry.getValue()));
+        }
+        return new Diagnostics(System.currentTimeMillis(), version, connected, appForeground,
+                mConnectionSupervisor.getStats(), nodes, mCapabilities.getNodeIds(),
+                mDataConsumers.size(), mStreams.getSubscriberCount(), mInFlightMessages.get(),
+                mInFlightDataItems.get(), mInFlightChannelOpens.get(), mInFlightFileSends.get(),
+                openChannels, transferScheduler == null ? 0 : transferScheduler.getWaitingCount(),
+                mWorkerExecutor.getActiveCount(), mTracer.size(), mStartupTimings.toString(),
+                WearLog.recent(Log.WARN, MAX_DIAGNOSTICS_ERRORS), mMetrics.snapshot());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.cscao.libs.gmswear.stream.ChannelEvent;
+import com.cscao.libs.gmswear.stream.EventHub;
+import com.cscao.libs.gmswear.stream.NodeEvent;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.Node;
+
+import org.reactivestreams.Publisher;
+
+/**
+ * The {@link EventHub}s behind the Reactive Streams publishers of {@link GmsWear}, one per kind
+ * of event, and the filters of the publishers.
+ */
+final class EventStreams {
+
+    private static final EventHub.Filter<Object> ACCEPT_ALL = new EventHub.Filter<Object>() {
+        @Override
+        public boolean accept(Object event) {
+            return true;
+        }
+    };
+
+    private final EventHub<MessageEvent> mMessageHub = new EventHub<>();
+    private final EventHub<DataEvent> mDataHub = new EventHub<>();
+    private final EventHub<NodeEvent> mNodeHub = new EventHub<>();
+    private final EventHub<ChannelEvent> mChannelHub = new EventHub<>();
+
+    Publisher<MessageEvent> messages(final String pathPrefix, int strategy, int capacity) {
+        return mMessageHub.publisher(new EventHub.Filter<MessageEvent>() {
+            @Override
+            public boolean accept(MessageEvent event) {
+                return event.getPath().startsWith(pathPrefix);
+            }
+        }, strategy, capacity);
+    }
+
+    /**
+     * Matches the items whose path starts with the path of {@code uri} and, unless the host of
+     * {@code uri} is empty or {@code *}, that were written by the node with that id.
+     */
+    Publisher<DataEvent> dataChanges(Uri uri, int strategy, int capacity) {
+        final String host = uri.getHost();
+        final String path = uri.getPath() != null ? uri.getPath() : "";
+        final boolean anyHost = TextUtils.isEmpty(host) || "*".equals(host);
+        return mDataHub.publisher(new EventHub.Filter<DataEvent>() {
+            @Override
+            public boolean accept(DataEvent event) {
+                Uri itemUri = event.getDataItem().getUri();
+                return itemUri.getPath() != null && itemUri.getPath().startsWith(path)
+                        && (anyHost || host.equals(itemUri.getHost()));
+            }
+        }, strategy, capacity);
+    }
+
+    Publisher<NodeEvent> nodeChanges() {
+        return mNodeHub.publisher(ACCEPT_ALL);
+    }
+
+    Publisher<ChannelEvent> channelEvents() {
+        return mChannelHub.publisher(ACCEPT_ALL);
+    }
+
+    void publishMessage(MessageEvent messageEvent) {
+        mMessageHub.publish(messageEvent);
+    }
+
+    /**
+     * Publishes frozen copies of the events, since the buffer is released once the framework
+     * callback returns while subscribers may keep them. Nothing is copied without subscribers.
+     */
+    void publishDataChanged(Iterable<DataEvent> dataEvents) {
+        if (mDataHub.hasSubscribers()) {
+            for (DataEvent event : dataEvents) {
+                mDataHub.publish(event.freeze());
+            }
+        }
+    }
+
+    /**
+     * @param type One of the {@code TYPE_*} constants of {@link NodeEvent}.
+     */
+    void publishNodeEvent(int type, Node peer) {
+        mNodeHub.publish(new NodeEvent(type, peer));
+    }
+
+    /**
+     * @param type One of the {@code TYPE_*} constants of {@link ChannelEvent}.
+     */
+    void publishChannelEvent(int type, Channel channel, int closeReason,
+            int appSpecificErrorCode) {
+        mChannelHub.publish(new ChannelEvent(type, channel, closeReason, appSpecificErrorCode));
+    }
+
+    int getSubscriberCount() {
+        return mMessageHub.getSubscriberCount() + mDataHub.getSubscriberCount()
+                + mNodeHub.getSubscriberCount() + mChannelHub.getSubscriberCount();
+    }
+
+    /**
+     * Completes the subscriptions of all the publishers.
+     */
+    void complete() {
+        mMessageHub.complete();
+        mDataHub.complete();
+        mNodeHub.complete();
+        mChannelHub.complete();
+    }
+}
@@ -22,60 +22,91 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.Bundle;
-import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
-import android.util.Log;
 
+import com.cscao.libs.gmswear.async.StatusException;
+import com.cscao.libs.gmswear.async.WearFuture;
+import com.cscao.libs.gmswear.connectivity.ChannelRouter;
+import com.cscao.libs.gmswear.connectivity.ConnectionSupervisor;
+import com.cscao.libs.gmswear.connectivity.DataChangeCoalescer;
 import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.connectivity.MessageHeader;
+import com.cscao.libs.gmswear.connectivity.SyncConflater;
+import com.cscao.libs.gmswear.connectivity.TransferPath;
+import com.cscao.libs.gmswear.connectivity.dedup.ContentStore;
+import com.cscao.libs.gmswear.connectivity.policy.ConnectivitySource;
+import com.cscao.libs.gmswear.connectivity.policy.TransferScheduler;
+import com.cscao.libs.gmswear.connectivity.policy.WifiConnectivitySource;
 import com.cscao.libs.gmswear.consumer.AbstractDataConsumer;
 import com.cscao.libs.gmswear.consumer.DataConsumer;
-import com.cscao.libs.gmswear.filter.NearbyFilter;
+import com.cscao.libs.gmswear.filter.LowestLatencyFilter;
 import com.cscao.libs.gmswear.filter.NodeSelectionFilter;
+import com.cscao.libs.gmswear.metrics.MetricsRegistry;
+import com.cscao.libs.gmswear.node.BalancingStrategy;
+import com.cscao.libs.gmswear.node.CapabilityManager;
+import com.cscao.libs.gmswear.node.CapabilityRouter;
+import com.cscao.libs.gmswear.node.CircuitBreaker;
+import com.cscao.libs.gmswear.node.CircuitMetrics;
+import com.cscao.libs.gmswear.node.ClockSync;
+import com.cscao.libs.gmswear.node.LatencyProber;
+import com.cscao.libs.gmswear.node.LatencyWeightedStrategy;
+import com.cscao.libs.gmswear.node.LeastOutstandingStrategy;
+import com.cscao.libs.gmswear.node.NodeRegistry;
+import com.cscao.libs.gmswear.node.NodeSnapshot;
+import com.cscao.libs.gmswear.node.RoundRobinStrategy;
+import com.cscao.libs.gmswear.stream.ChannelEvent;
+import com.cscao.libs.gmswear.stream.EventHub;
+import com.cscao.libs.gmswear.stream.NodeEvent;
+import com.cscao.libs.gmswear.trace.Span;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.transport.WearableTransport;
 import com.cscao.libs.gmswear.util.AppVisibilityDetector;
 import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.StartupTimings;
+import com.cscao.libs.gmswear.util.WearLog;
 import com.cscao.libs.gmswear.util.WearUtil;
-import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.wearable.Asset;
-import com.google.android.gms.wearable.CapabilityApi;
 import com.google.android.gms.wearable.CapabilityInfo;
 import com.google.android.gms.wearable.Channel;
-import com.google.android.gms.wearable.ChannelApi;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEvent;
-import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
 import com.google.android.gms.wearable.MessageApi;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.NodeApi;
 import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
+import com.google.android.gms.wearable.WearableStatusCodes;
+
+import org.reactivestreams.Publisher;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -96,28 +127,118 @@ import java.util.concurrent.TimeUnit;
 public class GmsWear {
 
     private static final String TAG = "GmsWear";
+    private static final String CONTENT_STORE_DIRECTORY = "gmswear-content-store";
+    private static final String UNKNOWN_VERSION = "unknown";
+    static final String[] TRANSFER_PATH_PREFIXES = {
+            Constants.PATH_FILE_TRANSFER_TYPE_FILE, Constants.PATH_FILE_TRANSFER_TYPE_STREAM,
+            Constants.PATH_FILE_TRANSFER_TYPE_DELTA, Constants.PATH_FILE_TRANSFER_TYPE_DEDUP,
+            Constants.PATH_FILE_TRANSFER_TYPE_SENSOR};
     private static GmsWear sInstance;
     private final Context mContext;
+    private final File mFilesDir;
+    private final ConnectivitySource mConnectivitySource;
     private final String[] mCapabilitiesToBeAdded;
     private final Set<DataConsumer> mDataConsumers = new CopyOnWriteArraySet<>();
-    private final Set<String> mWatchedCapabilities = new CopyOnWriteArraySet<>();
-    private final Set<Node> mConnectedNodes = new CopyOnWriteArraySet<>();
-    private final Map<String, Set<Node>> mCapabilityToNodesMapping = Collections
-            .synchronizedMap(new HashMap<String, Set<Node>>());
+    private final NodeRegistry mNodeRegistry = new NodeRegistry();
     private final String mGmsWearVersion;
+    private final ThreadPoolExecutor mWorkerExecutor = (ThreadPoolExecutor) Executors
+            .newCachedThreadPool();
+    private final ChannelRouter mChannelRouter = new ChannelRouter();
+    private final CapabilityRouter mCapabilityRouter = new CapabilityRouter(
+            new RoundRobinStrategy());
+    private final CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+    private final CapabilityWiring mCapabilities;
+    private final ConnectionLifecycle mConnection;
+    private final ConnectionSupervisor mConnectionSupervisor;
+    private final AsyncApi mAsyncApi;
+    private final DiagnosticsCollector mDiagnostics;
+    private final MessageSender mMessageSender;
+    private final ChannelOperations mChannels;
+    private final DataItemWriter mDataItems;
+    private final DataItemReader mDataItemReader;
+    private final StartupTimings mStartupTimings = new StartupTimings();
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final Tracer mTracer = new Tracer();
+    private final TraceIds mTraceIds = new TraceIds(mTracer);
+    private final LatencyProbing mLatencyProbing = new LatencyProbing(this, mNodeRegistry);
+    private final Conflation mConflation = new Conflation(
+            new SyncConflater.Sink<PutDataMapRequest>() {
+                @Override
+                public void put(PutDataMapRequest request, boolean isUrgent) {
+                    mDataItems.sync(request, isUrgent);
+                }
+            }, mDataConsumers);
+    private final SensorStreamReceiver mSensorStreamReceiver = new SensorStreamReceiver(this,
+            mDataConsumers, mTracer, mTraceIds);
+    private final TrafficMetrics mTrafficMetrics = new TrafficMetrics(this, mMetrics);
+    private final EventStreams mStreams = new EventStreams();
+    private final ResultCallback<MessageApi.SendMessageResult> mIgnoreMessageResultCallback =
+            new ResultCallback<MessageApi.SendMessageResult>() {
+                @Override
+                public void onResult(MessageApi.SendMessageResult sendMessageResult) {
+                    // failures are already logged by sendMessage()
+                }
+            };
     private GoogleApiClient mGoogleApiClient;
+    private Transport mTransport;
+    private WearableTransport mWearableTransport;
     private boolean mAppForeground;
+    private ContentStore mContentStore;
+    private TransferScheduler mTransferScheduler;
+    private ClockSync mClockSync;
+    private volatile boolean mTimestampingEnabled;
 
     /**
      * The private constructor which is called internally by the
-     * {@link #initialize(Context, String...)} method.
+     * {@link #initialize(Context, String...)} method, and without a {@code context} by
+     * {@link #forTransport(Transport, File, ConnectivitySource, String...)}.
+     *
+     * @param filesDir           The directory of the received files, or {@code null} to use the
+     *                           private data storage of {@code context}.
+     * @param connectivitySource The source of the {@link TransferScheduler}, or {@code null} to
+     *                           follow the Wi-Fi state through {@code context}.
      */
-    private GmsWear(Context context, String... capabilitiesToBeAdded) {
+    private GmsWear(@Nullable Context context, @Nullable File filesDir,
+            @Nullable ConnectivitySource connectivitySource, String... capabilitiesToBeAdded) {
         mContext = context;
+        mFilesDir = filesDir;
+        mConnectivitySource = connectivitySource;
         mCapabilitiesToBeAdded = capabilitiesToBeAdded != null ? Arrays.copyOf(
                 capabilitiesToBeAdded, capabilitiesToBeAdded.length) : null;
-        mGmsWearVersion = context.getString(R.string.gms_wear_version);
-        WearUtil.logD(TAG, "*** GmsWear Library version: " + mGmsWearVersion + " ***");
+        mGmsWearVersion = context != null ? context.getString(R.string.gms_wear_version)
+                : UNKNOWN_VERSION;
+        WearLog.d(TAG, "*** GmsWear Library version: {} ***", mGmsWearVersion);
+        new TransferReceiver(this, mDataConsumers, mTrafficMetrics,
+                mSensorStreamReceiver, mTracer, mTraceIds).registerHandlers(mChannelRouter);
+        mCapabilities = new CapabilityWiring(this, mDataConsumers, mCapabilityRouter);
+        mCapabilities.getCapabilityManager().acquire(Constants.CAPABILITY_MESSAGE_HEADER);
+        if (mCapabilitiesToBeAdded != null) {
+            mCapabilities.getCapabilityManager().acquire(mCapabilitiesToBeAdded);
+        }
+        mConnection = new ConnectionLifecycle(mDataConsumers, mNodeRegistry, mCapabilities,
+                mStartupTimings, mWorkerExecutor);
+        mConnectionSupervisor = mConnection.getSupervisor();
+        mDiagnostics = new DiagnosticsCollector(mDataConsumers, mNodeRegistry, mCircuitBreaker,
+                mCapabilities, mConnectionSupervisor, mStreams, mWorkerExecutor, mTracer,
+                mStartupTimings, mMetrics);
+        mMessageSender = new MessageSender(this, mDataConsumers, mNodeRegistry,
+                mConnectionSupervisor, mCircuitBreaker, mMetrics, mTracer, mTraceIds,
+                mDiagnostics, new MessageHeaders(mCapabilities));
+        mChannels = new ChannelOperations(this, mDataConsumers, mConnectionSupervisor,
+                mCircuitBreaker, mMetrics, mTracer, mTraceIds, mDiagnostics);
+        mDataItems = new DataItemWriter(this, mDataConsumers, mConnectionSupervisor, mMetrics,
+                mTracer, mTraceIds, mDiagnostics);
+        mDataItemReader = new DataItemReader(this, mDataConsumers);
+        mAsyncApi = new AsyncApi(this, mMessageSender, mDataItemReader, mNodeRegistry,
+                mConnectionSupervisor);
+        mCircuitBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onCircuitStateChanged(String nodeId, int previousState, int newState) {
+                for (DataConsumer consumer : mDataConsumers) {
+                    consumer.onCircuitStateChanged(nodeId, previousState, newState);
+                }
+            }
+        });
     }
 
     /**
@@ -151,22 +272,183 @@ public class GmsWear {
      */
     public static synchronized GmsWear initialize(Context context, String... capabilities) {
         if (sInstance == null) {
-            sInstance = new GmsWear(context.getApplicationContext(), capabilities);
-            sInstance.initialize();
+            sInstance = new GmsWear(context.getApplicationContext(), null, null, capabilities);
+            sInstance.initialize(false);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Initializes this singleton like {@link #initialize(Context, String...)} does, but does not
+     * connect to the Google Api Client right away. The connection is established when the
+     * application first comes to the foreground or when a method that needs it is first called,
+     * whichever comes first. This keeps the connection and the discovery of the nodes and
+     * capabilities out of the cold start of the application, e.g. on a watch whose activities
+     * don't need the other nodes right away. Calls made before the connection is established are
+     * queued by the {@link ConnectionSupervisor}.
+     *
+     * @see #getStartupTimings()
+     */
+    public static synchronized GmsWear initializeLazily(Context context,
+            String... capabilities) {
+        if (sInstance == null) {
+            sInstance = new GmsWear(context.getApplicationContext(), null, null, capabilities);
+            sInstance.initialize(true);
         }
         return sInstance;
     }
 
-    private void initialize() {
-        mGoogleApiClient = new GoogleApiClient.Builder(mContext)
-                .addApi(Wearable.API)
-                .addConnectionCallbacks(new GmsConnectionCallbacksListener())
-                .addOnConnectionFailedListener(new GmsConnectionFailedListener())
-                .build();
-        mGoogleApiClient.connect();
+    /**
+     * Returns a new instance, apart from the singleton, whose messages, data items, capabilities
+     * and channels go through {@code transport} instead of the Wearable APIs, and which receives
+     * the events of {@code transport} instead of those of the {@link GmsWearService}. It has no
+     * {@link Context} and no Google Api Client: the transport is taken to be connected, and the
+     * methods that need the other Wearable APIs, such as the assets, throw an
+     * {@link IllegalStateException}. Without a files directory, the received files are rejected
+     * and {@link #getContentStore()} throws an {@link IllegalStateException}, as does
+     * {@link #getTransferScheduler()} without a {@link ConnectivitySource}; see
+     * {@link #forTransport(Transport, File, ConnectivitySource, String...)}.
+     * <p>
+     * This is a hook for tests and benchmarks, to run the real paths of this class over a
+     * {@link com.cscao.libs.gmswear.transport.LoopbackNetwork} on the JVM. Files and sensor
+     * streams are received, and can be sent through {@link #openChannel} and {@link #sendFile},
+     * over any transport, while the channels left to
+     * {@link DataConsumer#onChannelOpened(Channel)} are only received from a
+     * {@link WearableTransport}.
+     */
+    public static GmsWear forTransport(Transport transport, String... capabilities) {
+        return forTransport(transport, null, null, capabilities);
+    }
+
+    /**
+     * Returns a new instance like {@link #forTransport(Transport, String...)} does, which saves
+     * the files it receives, and keeps its {@link ContentStore}, in {@code filesDir} instead of
+     * the private data storage of the app, and whose {@link TransferScheduler} follows
+     * {@code connectivitySource}, e.g. a
+     * {@link com.cscao.libs.gmswear.connectivity.policy.FakeConnectivitySource}.
+     */
+    public static GmsWear forTransport(Transport transport, @Nullable File filesDir,
+            @Nullable ConnectivitySource connectivitySource, String... capabilities) {
+        if (transport == null) {
+            throw new NullPointerException("transport cannot be null");
+        }
+        GmsWear gmsWear = new GmsWear(null, filesDir, connectivitySource, capabilities);
+        gmsWear.initialize(transport);
+        return gmsWear;
+    }
+
+    private void initialize(Transport transport) {
+        mTransport = transport;
+        TransportBridge bridge = new TransportBridge(this, transport);
+        transport.setListener(bridge);
+        mConnection.useTransport(bridge);
+        mConnection.start(ConnectionLifecycle.TRIGGER_INITIALIZE);
+    }
+
+    private void initialize(boolean lazy) {
+        mStartupTimings.begin(StartupTimings.PHASE_BUILD_CLIENT);
+        mGoogleApiClient = mConnection.buildClient(mContext);
+        mWearableTransport = new WearableTransport(mGoogleApiClient);
+        mTransport = mWearableTransport;
+        mStartupTimings.end(StartupTimings.PHASE_BUILD_CLIENT);
+        mStartupTimings.begin(StartupTimings.PHASE_REGISTER_VISIBILITY);
         AppVisibilityDetector visibilityDetector = AppVisibilityDetector
                 .forApp((Application) mContext);
         visibilityDetector.addListener(new WearAppVisibilityDetectorListener());
+        mStartupTimings.end(StartupTimings.PHASE_REGISTER_VISIBILITY);
+        if (lazy) {
+            mStartupTimings.begin(StartupTimings.PHASE_DEFERRED);
+        } else {
+            mConnection.start(ConnectionLifecycle.TRIGGER_INITIALIZE);
+        }
+    }
+
+    /**
+     * Returns how long each phase of the startup took: building the client, registering the
+     * visibility detector, waiting for the first use in the lazy mode, connecting, and the
+     * initial discovery of the nodes and the capabilities.
+     *
+     * @see #initializeLazily(Context, String...)
+     */
+    public StartupTimings getStartupTimings() {
+        return mStartupTimings;
+    }
+
+    /**
+     * Returns a snapshot of the state of this library for troubleshooting: the connection, the
+     * node and capability tables, the consumers, the operations in flight, the open channels, the
+     * queues, the recent errors and warnings, and a summary of the metrics. Taking it doesn't
+     * create the components that were never used, such as the {@link LatencyProber}.
+     *
+     * @see GmsWearService
+     */
+    public Diagnostics diagnostics() {
+        TransferScheduler transferScheduler;
+        ClockSync clockSync;
+        synchronized (this) {
+            transferScheduler = mTransferScheduler;
+            clockSync = mClockSync;
+        }
+        return mDiagnostics.collect(mGmsWearVersion, isConnected(), mAppForeground,
+                transferScheduler, mLatencyProbing.peekLatencyProber(), clockSync);
+    }
+
+    /**
+     * Returns the Google Api Client, or throws an {@link IllegalStateException} for an instance
+     * made by {@link #forTransport(Transport, String...)}, which has none.
+     */
+    GoogleApiClient getGoogleApiClient() {
+        if (mGoogleApiClient == null) {
+            throw new IllegalStateException("This instance has no Google Api Client, it was made"
+                    + " for a transport");
+        }
+        return mGoogleApiClient;
+    }
+
+    /**
+     * Returns the {@link Transport} that the messages and the capabilities of this class go
+     * through. Code written against the transport, rather than the Wearable APIs, can be run
+     * against a {@link com.cscao.libs.gmswear.transport.LoopbackNetwork} in tests and benchmarks.
+     * The transport receives the same events as the {@link DataConsumer}s; a listener set on it
+     * replaces any previous one. The listener of a transport given to
+     * {@link #forTransport(Transport, String...)} belongs to this class and must not be replaced.
+     */
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Returns the registry that counts the traffic of this class per path and per node, with the
+     * latencies of sending and of handling what is received. Use
+     * {@link MetricsRegistry#snapshot()} to read it, or
+     * {@link MetricsRegistry#addReporter(MetricsRegistry.Reporter, long, TimeUnit)} to have it
+     * reported periodically.
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the {@link Tracer} that records the spans of the operations of this class. It is
+     * disabled by default; once enabled, the trace ids of messages and synced data items are sent
+     * along with them, with the same caveats as {@link #setTimestampingEnabled(boolean)}, so it
+     * should only be enabled when all the nodes run this version of the library. The trace ids of
+     * file transfers are derived from their request ids and need nothing extra.
+     *
+     * @see #writeTrace(Writer, String)
+     */
+    public Tracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Writes the spans recorded by the {@link #getTracer()} as a Chrome trace to {@code writer}.
+     * If {@code referenceNodeId} is not {@code null} and the clock of that node has been sampled
+     * by {@link #getClockSync()}, the timestamps are moved to the clock of that node, so that the
+     * trace can be viewed along with the one written on that node.
+     */
+    public void writeTrace(Writer writer, @Nullable String referenceNodeId) throws IOException {
+        mTraceIds.writeTrace(writer, getClockSync(), referenceNodeId);
     }
 
     /**
@@ -202,26 +484,27 @@ public class GmsWear {
      * {@code callback} to be used instead. This variant receives the message in an array of bytes.
      */
     public void sendMessage(String nodeId, String path, @Nullable byte[] bytes,
-            @Nullable final ResultCallback<? super MessageApi.SendMessageResult> callback) {
-        assertApiConnectivity();
-        Wearable.MessageApi.sendMessage(mGoogleApiClient, nodeId, path, bytes).setResultCallback(
-                new ResultCallback<MessageApi.SendMessageResult>() {
-                    @Override
-                    public void onResult(MessageApi.SendMessageResult sendMessageResult) {
-                        if (!sendMessageResult.getStatus().isSuccess()) {
-                            Log.e(TAG, "Failed to send message, statusCode: " + sendMessageResult
-                                    .getStatus().getStatusCode());
-                        }
-                        if (callback == null) {
-                            for (DataConsumer consumer : mDataConsumers) {
-                                consumer.onSendMessageResult(sendMessageResult.getStatus()
-                                        .getStatusCode());
-                            }
-                        } else {
-                            callback.onResult(sendMessageResult);
-                        }
-                    }
-                });
+            @Nullable ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        mMessageSender.send(nodeId, path, bytes, MessageSender.NO_DEADLINE, callback);
+    }
+
+    /**
+     * Sends an asynchronous message to the node with the given {@code nodeId} through {@code
+     * path} that is only worth delivering within {@code ttlMillis}, e.g. a sensor reading. If the
+     * message is still waiting for the connection when that time is up, it is dropped and the
+     * result is {@link CommonStatusCodes#TIMEOUT}. The deadline travels with the message to nodes
+     * running this version of the library, so the receiving node also drops it, without calling
+     * {@link DataConsumer#onMessageReceived}, if it arrives late; the receiving node can only tell
+     * once it has sampled the clock of this node, see {@link #startClockSync()}, and delivers the
+     * message until then. Both are counted per path, see
+     * {@link com.cscao.libs.gmswear.metrics.TrafficMetrics#getExpiredBeforeSend()} and
+     * {@link com.cscao.libs.gmswear.metrics.TrafficMetrics#getExpiredOnReceive()}. The result is
+     * reported as in {@link #sendMessage(String, String, byte[], ResultCallback)}.
+     */
+    public void sendMessage(String nodeId, String path, @Nullable byte[] bytes, long ttlMillis,
+            @Nullable ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        mMessageSender.send(nodeId, path, bytes, MessageSender.deadlineAfter(ttlMillis),
+                callback);
     }
 
     /**
@@ -246,12 +529,19 @@ public class GmsWear {
      * {@code callback} to be used instead. This variant receives the message in an array of bytes.
      */
     public void sendMessage(String path, @Nullable byte[] bytes,
-            @Nullable final ResultCallback<? super MessageApi.SendMessageResult> callback) {
-        assertApiConnectivity();
-        Set<Node> nearbyNodes = new NearbyFilter().filterNodes(getConnectedNodes());
-        for (Node node : nearbyNodes) {
-            sendMessage(node.getId(), path, bytes, callback);
-        }
+            @Nullable ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        mMessageSender.sendToNearbyNodes(path, bytes, MessageSender.NO_DEADLINE, callback);
+    }
+
+    /**
+     * Sends an asynchronous message to the nearby nodes through {@code path} that is only worth
+     * delivering within {@code ttlMillis}; see
+     * {@link #sendMessage(String, String, byte[], long, ResultCallback)}.
+     */
+    public void sendMessage(String path, @Nullable byte[] bytes, long ttlMillis,
+            @Nullable ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        mMessageSender.sendToNearbyNodes(path, bytes, MessageSender.deadlineAfter(ttlMillis),
+                callback);
     }
 
     /**
@@ -264,10 +554,114 @@ public class GmsWear {
      * @see GmsWear#sendMessage(String, String, byte[], ResultCallback)
      */
     public void sendMessage(String path, @Nullable byte[] bytes) {
-        Set<Node> nearbyNodes = new NearbyFilter().filterNodes(getConnectedNodes());
-        for (Node node : nearbyNodes) {
-            sendMessage(node.getId(), path, bytes, null);
+        sendMessage(path, bytes, null);
+    }
+
+    /**
+     * Sends an asynchronous message through {@code path} to one of the nodes that advertise
+     * {@code capability}, picked by the {@link BalancingStrategy} of the
+     * {@link CapabilityRouter} (round-robin by default). The message counts as in flight to that
+     * node until its result arrives. If the {@code callback} is null, the result is reported to
+     * {@link DataConsumer#onSendMessageResult}.
+     *
+     * @return The node the message was sent to, or {@code null} if no node advertises
+     * {@code capability}.
+     */
+    @Nullable
+    public Node sendToCapability(String capability, String path, @Nullable byte[] bytes,
+            @Nullable final ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        WearUtil.assertNotEmpty(capability, "capability");
+        final Node node = mCapabilityRouter.acquire(capability);
+        if (node == null) {
+            WearLog.e(TAG, "sendToCapability(): No node provides {}", capability);
+            return null;
+        }
+        sendMessage(node.getId(), path, bytes, new ResultCallback<MessageApi.SendMessageResult>() {
+            @Override
+            public void onResult(MessageApi.SendMessageResult sendMessageResult) {
+                mCapabilityRouter.release(node.getId());
+                if (callback == null) {
+                    for (DataConsumer consumer : mDataConsumers) {
+                        consumer.onSendMessageResult(sendMessageResult.getStatus()
+                                .getStatusCode());
+                    }
+                } else {
+                    callback.onResult(sendMessageResult);
+                }
+            }
+        });
+        return node;
+    }
+
+    /**
+     * Transfers {@code file} to one of the nodes that advertise {@code capability}, picked the
+     * same way as in {@link #sendToCapability(String, String, byte[], ResultCallback)}. The
+     * transfer counts as in flight to that node until it completes.
+     *
+     * @param targetName The name of the file on the receiving node, or {@code null} to use the
+     *                   name of {@code file}.
+     * @param listener An optional listener for the result of the transfer.
+     * @return The started {@link FileTransfer}, or {@code null} if no node advertises
+     * {@code capability}.
+     */
+    @Nullable
+    public FileTransfer transferToCapability(String capability, File file,
+            @Nullable String targetName,
+            @Nullable final FileTransfer.OnFileTransferRequestListener listener) {
+        WearUtil.assertNotEmpty(capability, "capability");
+        final Node node = mCapabilityRouter.acquire(capability);
+        if (node == null) {
+            WearLog.e(TAG, "transferToCapability(): No node provides {}", capability);
+            return null;
+        }
+        FileTransfer fileTransfer;
+        try {
+            fileTransfer = new FileTransfer.Builder(node)
+                    .setFile(file)
+                    .setTargetName(targetName)
+                    .setOnFileTransferResultListener(
+                            new FileTransfer.OnFileTransferRequestListener() {
+                                @Override
+                                public void onFileTransferStatusResult(int statusCode) {
+                                    mCapabilityRouter.release(node.getId());
+                                    if (listener != null) {
+                                        listener.onFileTransferStatusResult(statusCode);
+                                    }
+                                }
+                            })
+                    .build();
+        } catch (RuntimeException e) {
+            mCapabilityRouter.release(node.getId());
+            throw e;
         }
+        fileTransfer.startTransfer();
+        return fileTransfer;
+    }
+
+    /**
+     * Returns the {@link CircuitBreaker} that tracks the health of each node. Requests to a node
+     * whose circuit is open fail fast with {@link WearableStatusCodes#TARGET_NODE_NOT_CONNECTED};
+     * state changes are reported to {@link DataConsumer#onCircuitStateChanged(String, int, int)}.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Returns the circuit breaker metrics of every node that has been contacted, by node id.
+     */
+    public Map<String, CircuitMetrics> getCircuitMetrics() {
+        return mCircuitBreaker.getMetrics();
+    }
+
+    /**
+     * Returns the {@link CapabilityRouter} used by {@code sendToCapability()} and
+     * {@code transferToCapability()} to spread requests and count the requests in flight. Use
+     * {@link CapabilityRouter#setStrategy(BalancingStrategy)} to switch to
+     * {@link LeastOutstandingStrategy} or {@link LatencyWeightedStrategy}.
+     */
+    public CapabilityRouter getCapabilityRouter() {
+        return mCapabilityRouter;
     }
 
     /**
@@ -279,27 +673,8 @@ public class GmsWear {
      * @see #putDataItem(PutDataRequest)
      */
     public void putDataItem(PutDataRequest request,
-            @Nullable final ResultCallback<? super DataApi.DataItemResult> callback) {
-        assertApiConnectivity();
-        Wearable.DataApi.putDataItem(mGoogleApiClient, request).setResultCallback(
-                new ResultCallback<DataApi.DataItemResult>() {
-                    @Override
-                    public void onResult(DataApi.DataItemResult dataItemResult) {
-                        if (!dataItemResult.getStatus().isSuccess()) {
-                            Log.e(TAG, "Failed to send data, status code = " + dataItemResult
-                                    .getStatus()
-                                    .getStatusCode());
-                        }
-                        if (callback == null) {
-                            for (DataConsumer consumer : mDataConsumers) {
-                                consumer.onSendDataResult(dataItemResult.getStatus()
-                                        .getStatusCode());
-                            }
-                        } else {
-                            callback.onResult(dataItemResult);
-                        }
-                    }
-                });
+            @Nullable ResultCallback<? super DataApi.DataItemResult> callback) {
+        mDataItems.put(request, callback);
     }
 
     /**
@@ -321,9 +696,7 @@ public class GmsWear {
     public int putDataItemSynchronous(PutDataRequest request, long timeoutInMillis) {
         assertApiConnectivity();
         WearUtil.assertNonUiThread();
-        DataApi.DataItemResult result = Wearable.DataApi.putDataItem(mGoogleApiClient, request)
-                .await(timeoutInMillis, TimeUnit.MILLISECONDS);
-        return result.getStatus().getStatusCode();
+        return mDataItems.putSynchronous(request, timeoutInMillis);
     }
 
     /**
@@ -366,31 +739,14 @@ public class GmsWear {
      * {@code null}; if a {@code null} is passed, a default {@link ResultCallback} will be used
      * that calls {@link DataConsumer#onGetDataItems(int, DataItemBuffer)}.
      *
+     * @throws UnsupportedOperationException if the {@link Transport} is not a
+     *                                       {@link WearableTransport}, see
+     *                                       {@link #getDataItemListAsync(Uri, int)}
      * @see DataConsumer#onGetDataItems(int, DataItemBuffer)
      */
     public void getDataItems(@Nullable final ResultCallback<? super DataItemBuffer> callback) {
         assertApiConnectivity();
-        Wearable.DataApi.getDataItems(mGoogleApiClient).setResultCallback(
-                new ResultCallback<DataItemBuffer>() {
-                    @Override
-                    public void onResult(DataItemBuffer dataItems) {
-                        try {
-                            int statusCode = dataItems.getStatus().getStatusCode();
-                            if (!dataItems.getStatus().isSuccess()) {
-                                Log.e(TAG, "Failed to get items, status code: " + statusCode);
-                            }
-                            if (callback == null) {
-                                for (DataConsumer consumer : mDataConsumers) {
-                                    consumer.onGetDataItems(statusCode, dataItems);
-                                }
-                            } else {
-                                callback.onResult(dataItems);
-                            }
-                        } finally {
-                            dataItems.release();
-                        }
-                    }
-                });
+        mDataItemReader.getDataItems(null, DataApi.FILTER_LITERAL, callback);
     }
 
     /**
@@ -399,29 +755,15 @@ public class GmsWear {
      * {@code null}; if a {@code null} is passed, a default {@link ResultCallback} will be used
      * that calls {@link DataConsumer#onGetDataItems(int, DataItemBuffer)}.
      *
+     * @throws UnsupportedOperationException if the {@link Transport} is not a
+     *                                       {@link WearableTransport}, see
+     *                                       {@link #getDataItemListAsync(Uri, int)}
      * @see DataApi#getDataItems(GoogleApiClient, Uri, int)
      */
     public void getDataItems(Uri uri, int filterType,
             @Nullable final ResultCallback<? super DataItemBuffer> callback) {
         assertApiConnectivity();
-        Wearable.DataApi.getDataItems(mGoogleApiClient, uri, filterType).setResultCallback(
-                new ResultCallback<DataItemBuffer>() {
-                    @Override
-                    public void onResult(DataItemBuffer dataItems) {
-                        int statusCode = dataItems.getStatus().getStatusCode();
-                        if (!dataItems.getStatus().isSuccess()) {
-                            Log.e(TAG, "Failed to get items, status code: " + statusCode);
-                        }
-                        if (callback == null) {
-                            for (DataConsumer consumer : mDataConsumers) {
-                                consumer.onGetDataItems(statusCode, dataItems);
-                            }
-                        } else {
-                            callback.onResult(dataItems);
-                        }
-                        dataItems.release();
-                    }
-                });
+        mDataItemReader.getDataItems(uri, filterType, callback);
     }
 
     /**
@@ -429,12 +771,16 @@ public class GmsWear {
      * is required to specify the maximum length of time, in milliseconds, that the thread should
      * be blocked. Caller needs to call {@code release()} on the returned {@link DataItemBuffer}
      * when done.
+     *
+     * @throws UnsupportedOperationException if the {@link Transport} is not a
+     *                                       {@link WearableTransport}, see
+     *                                       {@link #getDataItemListAsync(Uri, int)}
      */
     public DataItemBuffer getDataItemsSynchronous(long timeoutInMillis) {
         assertApiConnectivity();
         WearUtil.assertNonUiThread();
-        return Wearable.DataApi.getDataItems(mGoogleApiClient).await(
-                timeoutInMillis, TimeUnit.MILLISECONDS);
+        return mDataItemReader.getDataItemsSynchronous(null, DataApi.FILTER_LITERAL,
+                timeoutInMillis);
     }
 
     /**
@@ -443,12 +789,15 @@ public class GmsWear {
      * A {@code timeoutInMillis} is required to specify the
      * maximum length of time, in milliseconds, that the thread should be blocked. Note that caller
      * needs to call {@code release()} on the returned {@link DataItemBuffer} when done.
+     *
+     * @throws UnsupportedOperationException if the {@link Transport} is not a
+     *                                       {@link WearableTransport}, see
+     *                                       {@link #getDataItemListAsync(Uri, int)}
      */
     public DataItemBuffer getDataItemsSynchronous(Uri uri, int filterType, long timeoutInMillis) {
         assertApiConnectivity();
         WearUtil.assertNonUiThread();
-        return Wearable.DataApi.getDataItems(mGoogleApiClient, uri, filterType).await(
-                timeoutInMillis, TimeUnit.MILLISECONDS);
+        return mDataItemReader.getDataItemsSynchronous(uri, filterType, timeoutInMillis);
     }
 
     /**
@@ -462,23 +811,7 @@ public class GmsWear {
     public void getDataItem(Uri dataItemUri,
             @Nullable final ResultCallback<? super DataApi.DataItemResult> callback) {
         assertApiConnectivity();
-        Wearable.DataApi.getDataItem(mGoogleApiClient, dataItemUri).setResultCallback(
-                new ResultCallback<DataApi.DataItemResult>() {
-                    @Override
-                    public void onResult(DataApi.DataItemResult dataItemResult) {
-                        int statusCode = dataItemResult.getStatus().getStatusCode();
-                        if (!dataItemResult.getStatus().isSuccess()) {
-                            Log.e(TAG, "Failed to get the data item, status code: " + statusCode);
-                        }
-                        if (callback == null) {
-                            for (DataConsumer consumer : mDataConsumers) {
-                                consumer.onGetDataItem(statusCode, dataItemResult);
-                            }
-                        } else {
-                            callback.onResult(dataItemResult);
-                        }
-                    }
-                });
+        mDataItemReader.getDataItem(dataItemUri, callback);
     }
 
     /**
@@ -489,8 +822,7 @@ public class GmsWear {
     public DataApi.DataItemResult getDataItemSynchronous(Uri dataItemUri, long timeoutInMillis) {
         assertApiConnectivity();
         WearUtil.assertNonUiThread();
-        return Wearable.DataApi.getDataItem(mGoogleApiClient, dataItemUri).await(
-                timeoutInMillis, TimeUnit.MILLISECONDS);
+        return mDataItemReader.getDataItemSynchronous(dataItemUri, timeoutInMillis);
     }
 
     /**
@@ -501,25 +833,7 @@ public class GmsWear {
     public void deleteDataItems(final Uri dataItemUri,
             @Nullable final ResultCallback<? super DataApi.DeleteDataItemsResult> callback) {
         assertApiConnectivity();
-        Wearable.DataApi.deleteDataItems(mGoogleApiClient, dataItemUri).setResultCallback(
-                new ResultCallback<DataApi.DeleteDataItemsResult>() {
-                    @Override
-                    public void onResult(DataApi.DeleteDataItemsResult deleteDataItemsResult) {
-                        int statusCode = deleteDataItemsResult.getStatus().getStatusCode();
-                        if (!deleteDataItemsResult.getStatus().isSuccess()) {
-                            Log.e(TAG, String.format(
-                                    "Failed to delete data items (status code=%d): %s",
-                                    statusCode, dataItemUri));
-                        }
-                        if (callback == null) {
-                            for (DataConsumer consumer : mDataConsumers) {
-                                consumer.onDeleteDataItemsResult(statusCode);
-                            }
-                        } else {
-                            callback.onResult(deleteDataItemsResult);
-                        }
-                    }
-                });
+        mDataItemReader.deleteDataItems(dataItemUri, callback);
     }
 
     /**
@@ -531,8 +845,88 @@ public class GmsWear {
             long timeoutInMillis) {
         assertApiConnectivity();
         WearUtil.assertNonUiThread();
-        return Wearable.DataApi.deleteDataItems(mGoogleApiClient, dataItemUri)
-                .await(timeoutInMillis, TimeUnit.MILLISECONDS);
+        return mDataItemReader.deleteDataItemsSynchronous(dataItemUri, timeoutInMillis);
+    }
+
+    /**
+     * Sends a message to the node with the given {@code nodeId} through {@code path} and returns
+     * a {@link WearFuture} of the result. The future fails with a {@link StatusException} if the
+     * message could not be sent. Like
+     * {@link #sendMessage(String, String, byte[], ResultCallback)}, the message waits for the
+     * connection if needed and fails fast while the circuit to the node is open.
+     */
+    public WearFuture<MessageApi.SendMessageResult> sendMessageAsync(String nodeId, String path,
+            @Nullable byte[] bytes) {
+        return mAsyncApi.sendMessage(nodeId, path, bytes);
+    }
+
+    /**
+     * Sends a message to each of the nearby nodes through {@code path} and returns a
+     * {@link WearFuture} of the results, in the order of
+     * {@link NodeSnapshot#getNearbyNodes()}, with {@code null} for the nodes that the message
+     * could not be sent to. The nearby nodes are looked up once connected.
+     */
+    public WearFuture<List<MessageApi.SendMessageResult>> sendMessageAsync(String path,
+            @Nullable byte[] bytes) {
+        return mAsyncApi.sendMessage(path, bytes);
+    }
+
+    /**
+     * Adds a data item and returns a {@link WearFuture} of the result. The request waits for the
+     * connection if needed.
+     */
+    public WearFuture<DataApi.DataItemResult> putDataItemAsync(PutDataRequest request) {
+        return mAsyncApi.putDataItem(request);
+    }
+
+    /**
+     * Retrieves the data item with the given {@code dataItemUri} and returns a
+     * {@link WearFuture} of the result. Cancelling the future cancels the request.
+     */
+    public WearFuture<DataApi.DataItemResult> getDataItemAsync(Uri dataItemUri) {
+        return mAsyncApi.getDataItem(dataItemUri);
+    }
+
+    /**
+     * Retrieves the data items matching {@code uri} and {@code filterType} and returns a
+     * {@link WearFuture} of the buffer, which the caller must release. Cancelling the future
+     * cancels the request.
+     *
+     * @throws UnsupportedOperationException if the {@link Transport} is not a
+     *                                       {@link WearableTransport}, see
+     *                                       {@link #getDataItemListAsync(Uri, int)}
+     */
+    public WearFuture<DataItemBuffer> getDataItemsAsync(Uri uri, int filterType) {
+        return mAsyncApi.getDataItems(uri, filterType);
+    }
+
+    /**
+     * Retrieves the data items matching {@code uri} and {@code filterType} and returns a
+     * {@link WearFuture} of a list of them, which doesn't need to be released. Unlike
+     * {@link #getDataItemsAsync(Uri, int)}, this works over any {@link Transport}. Cancelling the
+     * future cancels the request.
+     */
+    public WearFuture<List<DataItem>> getDataItemListAsync(Uri uri, int filterType) {
+        return mAsyncApi.getDataItemList(uri, filterType);
+    }
+
+    /**
+     * Deletes the data items matching {@code dataItemUri} and returns a {@link WearFuture} of
+     * the result.
+     */
+    public WearFuture<DataApi.DeleteDataItemsResult> deleteDataItemsAsync(Uri dataItemUri) {
+        return mAsyncApi.deleteDataItems(dataItemUri);
+    }
+
+    /**
+     * Opens a channel to {@code node} through {@code path} and returns a {@link WearFuture} of
+     * the channel. The future fails with a {@link StatusException} if the node is not nearby or
+     * the channel could not be opened. If the future is cancelled before the channel opens, the
+     * channel is closed as soon as it does. The streams of the channel block, see
+     * {@link #runInBackground(Runnable)}.
+     */
+    public WearFuture<TransportChannel> openChannelAsync(Node node, String path) {
+        return mAsyncApi.openChannel(node, path);
     }
 
     public void syncAsset(String path, String key, byte[] bytes, boolean isUrgent) {
@@ -652,33 +1046,83 @@ public class GmsWear {
 
     //General method to sync data in the Data Layer
     private void syncData(PutDataMapRequest putDataMapRequest, boolean isUrgent) {
-        assertApiConnectivity();
-        if (isUrgent) {
-            putDataMapRequest = putDataMapRequest.setUrgent();
-        }
-        PutDataRequest request = putDataMapRequest.asPutDataRequest();
-
-        Wearable.DataApi.putDataItem(mGoogleApiClient, request)
-                .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                    @Override
-                    public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
-                        if (dataItemResult.getStatus().isSuccess()) {
-                            WearUtil.logD(TAG, "putDataItem success");
-                        } else {
-                            String errStr = dataItemResult.getStatus().getStatusMessage();
-                            Log.e(TAG, "ERROR: failed to putDataItem, status code: "
-                                    + dataItemResult.getStatus().getStatusCode()
-                                    + ",status message:"
-                                    + errStr);
-
-                        }
-                    }
-                });
+        mConflation.sync(putDataMapRequest, isUrgent);
+    }
+
+
+    /**
+     * Returns a Reactive Streams {@link Publisher} of the messages received on paths starting
+     * with {@code pathPrefix}, buffering up to {@link EventHub#DEFAULT_BUFFER_CAPACITY} of them
+     * per subscriber. This is an alternative to {@link DataConsumer#onMessageReceived} that lets
+     * subscribers control how fast they receive the messages.
+     *
+     * @see #messages(String, int, int)
+     */
+    public Publisher<MessageEvent> messages(String pathPrefix) {
+        return messages(pathPrefix, EventHub.STRATEGY_BUFFER, EventHub.DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Returns a Reactive Streams {@link Publisher} of the messages received on paths starting
+     * with {@code pathPrefix}. Messages are only delivered as the subscriber requests them;
+     * {@code strategy} decides what happens to the ones that arrive in the meantime.
+     *
+     * @param strategy One of {@link EventHub#STRATEGY_DROP}, {@link EventHub#STRATEGY_LATEST} or
+     *                 {@link EventHub#STRATEGY_BUFFER}.
+     * @param capacity The number of messages buffered per subscriber with
+     *                 {@link EventHub#STRATEGY_BUFFER}.
+     */
+    public Publisher<MessageEvent> messages(String pathPrefix, int strategy, int capacity) {
+        WearUtil.assertNotNull(pathPrefix, "pathPrefix");
+        return mStreams.messages(pathPrefix, strategy, capacity);
+    }
+
+    /**
+     * Returns a Reactive Streams {@link Publisher} of the changes of the data items under
+     * {@code uri}: the items whose path starts with the path of {@code uri} and, unless the
+     * host of {@code uri} is empty or {@code *}, that were written by the node with that id.
+     * The events are frozen, so subscribers may keep them.
+     *
+     * @see #dataChanges(Uri, int, int)
+     */
+    public Publisher<DataEvent> dataChanges(Uri uri) {
+        return dataChanges(uri, EventHub.STRATEGY_BUFFER, EventHub.DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Like {@link #dataChanges(Uri)}, with the given backpressure {@code strategy}; see
+     * {@link #messages(String, int, int)}.
+     */
+    public Publisher<DataEvent> dataChanges(Uri uri, int strategy, int capacity) {
+        WearUtil.assertNotNull(uri, "uri");
+        return mStreams.dataChanges(uri, strategy, capacity);
+    }
+
+    /**
+     * Returns a Reactive Streams {@link Publisher} of the peers that connect and disconnect.
+     */
+    public Publisher<NodeEvent> nodeChanges() {
+        return mStreams.nodeChanges();
+    }
+
+    /**
+     * Returns a Reactive Streams {@link Publisher} of the channels opened by other nodes and of
+     * the closing of channels. Channels opened for the file, stream, delta and dedup transfers
+     * of this library are handled internally and not emitted.
+     */
+    public Publisher<ChannelEvent> channelEvents() {
+        return mStreams.channelEvents();
     }
 
     /**
      * Adds one or more capabilities to the client at runtime. Make sure you balance this with a
      * similar call to {@link #removeCapabilities(String...)}
+     * <p>
+     * Capabilities are reference counted and applied in batches by the
+     * {@link CapabilityManager}: a capability added twice needs to be removed twice, and a
+     * capability that is removed and added again within
+     * {@link CapabilityManager#DEFAULT_BATCH_DELAY_MILLIS} is not touched at all.
+     * {@link DataConsumer#onAddCapabilityResult(int)} is called once per batch.
      *
      * @see #removeCapabilities(String...)
      */
@@ -686,32 +1130,12 @@ public class GmsWear {
         if (capabilities == null || capabilities.length == 0) {
             return;
         }
-        assertApiConnectivity();
-        for (final String capability : capabilities) {
-            Wearable.CapabilityApi.addLocalCapability(mGoogleApiClient, capability)
-                    .setResultCallback(
-                            new ResultCallback<CapabilityApi.AddLocalCapabilityResult>() {
-                                @Override
-                                public void onResult(
-                                        @NonNull CapabilityApi.AddLocalCapabilityResult
-                                                addLocalCapabilityResult) {
-                                    if (!addLocalCapabilityResult.getStatus().isSuccess()) {
-                                        Log.e(TAG, "Failed to add the capability " + capability);
-                                    } else {
-                                        mWatchedCapabilities.add(capability);
-                                    }
-                                    for (DataConsumer consumer : mDataConsumers) {
-                                        consumer.onAddCapabilityResult(
-                                                addLocalCapabilityResult.getStatus()
-                                                        .getStatusCode());
-                                    }
-                                }
-                            });
-        }
+        mCapabilities.getCapabilityManager().acquire(capabilities);
     }
 
     /**
      * Removes one or more capabilities from the client at runtime.
+     * {@link DataConsumer#onRemoveCapabilityResult(int)} is called once per batch.
      *
      * @see #addCapabilities(String...)
      */
@@ -719,28 +1143,30 @@ public class GmsWear {
         if (capabilities == null || capabilities.length == 0) {
             return;
         }
-        assertApiConnectivity();
-        for (final String capability : capabilities) {
-            Wearable.CapabilityApi.removeLocalCapability(mGoogleApiClient, capability)
-                    .setResultCallback(
-                            new ResultCallback<CapabilityApi.RemoveLocalCapabilityResult>() {
-                                @Override
-                                public void onResult(
-                                        CapabilityApi.RemoveLocalCapabilityResult
-                                                removeLocalCapabilityResult) {
-                                    if (!removeLocalCapabilityResult.getStatus().isSuccess()) {
-                                        Log.e(TAG, "Failed to remove the capability " + capability);
-                                    } else {
-                                        mWatchedCapabilities.remove(capability);
-                                    }
-                                    for (DataConsumer consumer : mDataConsumers) {
-                                        consumer.onRemoveCapabilityResult(
-                                                removeLocalCapabilityResult.getStatus()
-                                                        .getStatusCode());
-                                    }
-                                }
-                            });
-        }
+        mCapabilities.getCapabilityManager().release(capabilities);
+    }
+
+    /**
+     * Returns the {@link CapabilityManager} that batches the changes of the local capabilities
+     * and debounces the capability changes reported for the other nodes.
+     */
+    public CapabilityManager getCapabilityManager() {
+        return mCapabilities.getCapabilityManager();
+    }
+
+    /**
+     * Returns the {@link ConnectionSupervisor} that reconnects to the Google Api Client and
+     * queues the messages, data items and channels requested while disconnected.
+     */
+    public ConnectionSupervisor getConnectionSupervisor() {
+        return mConnectionSupervisor;
+    }
+
+    /**
+     * Returns the reconnection and queue statistics of the {@link ConnectionSupervisor}.
+     */
+    public ConnectionSupervisor.Stats getConnectionStats() {
+        return mConnectionSupervisor.getStats();
     }
 
     /**
@@ -748,8 +1174,9 @@ public class GmsWear {
      * APIs.
      */
     public void assertApiConnectivity() {
+        mConnection.start(ConnectionLifecycle.TRIGGER_API_USE);
         if (!isConnected()) {
-            Log.e(TAG, "Google API Client is not connected");
+            WearLog.e(TAG, "Google API Client is not connected");
 //            throw new IllegalStateException(); // maybe connected later
         }
     }
@@ -783,63 +1210,39 @@ public class GmsWear {
     }
 
     /**
-     * Clients can register to {@link DataConsumer#onGmsApiConnected()}.
+     * Returns the set of currently connected nodes. The returned set is an immutable snapshot; to
+     * observe nodes connecting and disconnecting from the Wear network, call this method again or
+     * use {@link #getNodeSnapshot()}. Note that this may contain cloud, as well as nodes that are
+     * not directly connected to this node.
      */
-    private void onConnected(Bundle bundle) {
-        WearUtil.logD(TAG, "Google Api Connected");
-        for (DataConsumer consumer : mDataConsumers) {
-            consumer.onGmsApiConnected();
-        }
-        addCapabilities(mCapabilitiesToBeAdded);
-        Wearable.CapabilityApi.getAllCapabilities(mGoogleApiClient,
-                CapabilityApi.FILTER_REACHABLE).setResultCallback(
-
-                new ResultCallback<CapabilityApi.GetAllCapabilitiesResult>() {
-                    @Override
-                    public void onResult(
-                            CapabilityApi.GetAllCapabilitiesResult getAllCapabilitiesResult) {
-                        if (getAllCapabilitiesResult.getStatus().isSuccess()) {
-                            Map<String, CapabilityInfo> capabilities = getAllCapabilitiesResult
-                                    .getAllCapabilities();
-                            if (capabilities != null) {
-                                for (String capability : capabilities.keySet()) {
-                                    CapabilityInfo info = capabilities.get(capability);
-                                    mCapabilityToNodesMapping.put(capability, info.getNodes());
-                                }
-                            }
-                            onConnectedInitialCapabilitiesReceived();
-                        } else {
-                            Log.e(TAG, "getAllCapabilities(): Failed to get all the capabilities");
-                        }
-                    }
-                });
-        Wearable.NodeApi.getConnectedNodes(mGoogleApiClient).setResultCallback(
-                new ResultCallback<NodeApi.GetConnectedNodesResult>() {
-                    @Override
-                    public void onResult(NodeApi.GetConnectedNodesResult getConnectedNodesResult) {
-                        if (getConnectedNodesResult.getStatus().isSuccess()) {
-                            mConnectedNodes.clear();
-                            mConnectedNodes.addAll(getConnectedNodesResult.getNodes());
-                            onConnectedInitialNodesReceived();
-                        }
-                    }
-                });
+    public Set<Node> getConnectedNodes() {
+        return mNodeRegistry.getSnapshot().getNodes();
     }
 
     /**
-     * Returns a view of the set of currently connected nodes. The returned set will change as
-     * nodes connect and disconnect from the Wear network. The set is safe to access from multiple
-     * threads. Note that this may contain cloud, as well as nodes that are not directly connected
-     * to this node.
+     * Returns the current {@link NodeSnapshot} of the connected nodes, which also provides an
+     * index by node id and the nearby and cloud subsets.
      */
-    public Set<Node> getConnectedNodes() {
-        return Collections.unmodifiableSet(mConnectedNodes);
+    public NodeSnapshot getNodeSnapshot() {
+        return mNodeRegistry.getSnapshot();
+    }
+
+    /**
+     * Returns the {@link NodeRegistry} that tracks the connected nodes, e.g. to listen to the
+     * snapshots it publishes.
+     */
+    public NodeRegistry getNodeRegistry() {
+        return mNodeRegistry;
     }
 
     /**
      * Returns {@code true} if and only of the Google Api Client for Wearable APIs is connected.
      */
     public boolean isConnected() {
+        if (mGoogleApiClient == null) {
+            // an injected transport is always connected
+            return mTransport != null;
+        }
         return mGoogleApiClient.isConnected();
     }
 
@@ -850,9 +1253,9 @@ public class GmsWear {
      */
     public Set<Node> getNodesForCapability(String capability) {
         if (TextUtils.isEmpty(capability)) {
-            Log.e(TAG, "getNodesForCapability(): Capability cannot be null or empty");
+            WearLog.e(TAG, "getNodesForCapability(): Capability cannot be null or empty");
         }
-        return mCapabilityToNodesMapping.get(capability);
+        return mCapabilities.getNodes(capability);
     }
 
     /**
@@ -864,13 +1267,13 @@ public class GmsWear {
      */
     public Set<Node> getNodesForCapability(String capability, NodeSelectionFilter filter) {
         if (TextUtils.isEmpty(capability)) {
-            Log.e(TAG, "getNodesForCapability(): Capability cannot be null or empty");
+            WearLog.e(TAG, "getNodesForCapability(): Capability cannot be null or empty");
         }
         if (filter == null) {
-            Log.e(TAG, "getNodesForCapability(): filter cannot be null");
+            WearLog.e(TAG, "getNodesForCapability(): filter cannot be null");
             return Collections.emptySet();
         }
-        Set<Node> nodes = mCapabilityToNodesMapping.get(capability);
+        Set<Node> nodes = mCapabilities.getNodes(capability);
         if (nodes == null) {
             return Collections.emptySet();
         }
@@ -883,33 +1286,19 @@ public class GmsWear {
      */
     @Nullable
     public final Node getNodeById(String nodeId) {
-        nodeId = WearUtil.assertNotNull(nodeId, "nodeId");
-        for (Node node : mConnectedNodes) {
-            if (nodeId.equals(node.getId())) {
-                return node;
-            }
-        }
-        return null;
+        return mNodeRegistry.getNode(WearUtil.assertNotNull(nodeId, "nodeId"));
     }
 
-    public void sendFile(final String requestId, Channel channel, Uri file, long startOffset,
-            long length, ResultCallback<Status> callback) {
-
-        channel.addListener(mGoogleApiClient, new FileChannelListener());
-        PendingResult<Status> result
-                = channel.sendFile(mGoogleApiClient, file, startOffset, length);
-        if (callback == null) {
-            callback = new ResultCallback<Status>() {
-                @Override
-                public void onResult(Status status) {
-                    for (DataConsumer consumer : mDataConsumers) {
-                        consumer.onSendFileResult(status.getStatusCode(), requestId);
-                    }
-                }
-            };
-        }
-
-        result.setResultCallback(callback);
+    /**
+     * Sends {@code length} bytes of {@code file} from {@code startOffset}, or all of them if
+     * {@code length} is negative, over {@code channel} on a worker thread and closes the channel.
+     * The {@code callback} is called on that thread; if it is {@code null}, the
+     * {@link DataConsumer}s are notified through
+     * {@link DataConsumer#onSendFileResult(int, String)} instead.
+     */
+    public void sendFile(String requestId, TransportChannel channel, File file, long startOffset,
+            long length, @Nullable ResultCallback<Status> callback) {
+        mChannels.sendFile(requestId, channel, file, startOffset, length, callback);
     }
 
     /**
@@ -925,27 +1314,8 @@ public class GmsWear {
      * @param listener The listener that is called when this request is completed.
      */
     public void openChannel(Node node, String path,
-            final FileTransfer.OnChannelReadyListener listener) {
-        if (node.isNearby()) {
-            Wearable.ChannelApi.openChannel(
-                    mGoogleApiClient, node.getId(), path).setResultCallback(
-                    new ResultCallback<ChannelApi.OpenChannelResult>() {
-                        @Override
-                        public void onResult(ChannelApi.OpenChannelResult openChannelResult) {
-                            int statusCode = openChannelResult.getStatus().getStatusCode();
-                            Channel channel = null;
-                            if (openChannelResult.getStatus().isSuccess()) {
-                                channel = openChannelResult.getChannel();
-                            } else {
-                                Log.e(TAG, "openChannel(): Failed to get channel, status code: "
-                                        + statusCode);
-                            }
-                            listener.onChannelReady(statusCode, channel);
-                        }
-                    });
-        } else {
-            Log.e(TAG, "openChannel(): Node should be nearby, you have: " + node);
-        }
+            FileTransfer.OnChannelReadyListener listener) {
+        mChannels.openChannel(node, path, listener);
     }
 
     /**
@@ -971,56 +1341,42 @@ public class GmsWear {
      *                 was opened.
      */
     public void getOutputStreamViaChannel(Node node, String path,
-            final FileTransfer.OnChannelOutputStreamListener listener) {
-        if (!node.isNearby()) {
-            Log.e(TAG, "getOutputStreamViaChannel(): Node should be nearby, you have: " + node);
-        } else {
-            Wearable.ChannelApi.openChannel(
-                    mGoogleApiClient, node.getId(), path).setResultCallback(
-                    new ResultCallback<ChannelApi.OpenChannelResult>() {
-                        @Override
-                        public void onResult(ChannelApi.OpenChannelResult openChannelResult) {
-                            if (openChannelResult.getStatus().isSuccess()) {
-                                final Channel channel = openChannelResult.getChannel();
-                                channel.addListener(mGoogleApiClient, new FileChannelListener());
-                                channel.getOutputStream(mGoogleApiClient).setResultCallback(
-
-                                        new ResultCallback<Channel.GetOutputStreamResult>() {
-                                            @Override
-                                            public void onResult(
-                                                    Channel.GetOutputStreamResult
-                                                            getOutputStreamResult) {
-                                                if (getOutputStreamResult.getStatus().isSuccess()) {
-                                                    OutputStream outputStream
-                                                            =
-                                                            getOutputStreamResult.getOutputStream();
-                                                    listener.onOutputStreamForChannelReady(
-                                                            getOutputStreamResult.getStatus()
-                                                                    .getStatusCode(), channel,
-                                                            outputStream);
-                                                } else {
-                                                    closeChannel(channel);
-                                                    listener.onOutputStreamForChannelReady(
-                                                            getOutputStreamResult.getStatus()
-                                                                    .getStatusCode(), null, null);
-                                                }
-                                            }
-                                        });
-                            } else {
-                                listener.onOutputStreamForChannelReady(
-                                        openChannelResult.getStatus().getStatusCode(), null, null);
-                            }
-                        }
-                    });
-        }
+            FileTransfer.OnChannelOutputStreamListener listener) {
+        mChannels.getOutputStreamViaChannel(node, path, listener);
+    }
+
+    /**
+     * Opens both the {@link InputStream} and the {@link OutputStream} of an already opened
+     * {@code channel} on a worker thread and calls the {@code listener} on that thread when both
+     * are available. If either of them cannot be opened, the channel is closed and the listener
+     * receives the failing status code and {@code null} streams.
+     */
+    public void getChannelStreams(TransportChannel channel,
+            FileTransfer.OnChannelStreamsReadyListener listener) {
+        mChannels.getChannelStreams(channel, listener);
+    }
+
+    /**
+     * Runs {@code task} on a worker thread owned by this library. This is used for blocking work,
+     * such as reading from and writing to channel streams, that should not run on the UI thread.
+     */
+    public void runInBackground(Runnable task) {
+        mWorkerExecutor.execute(WearUtil.assertNotNull(task, "task"));
     }
 
     /**
      * Closes the {@code channel} if it is not {@code null}.
      */
-    public void closeChannel(Channel channel) {
-        if (channel != null) {
-            channel.close(mGoogleApiClient);
+    public void closeChannel(@Nullable TransportChannel channel) {
+        mChannels.close(channel);
+    }
+
+    /**
+     * Closes the {@code channel} of the Wearable APIs if it is not {@code null}.
+     */
+    public void closeChannel(@Nullable Channel channel) {
+        if (channel != null && mWearableTransport != null) {
+            mChannels.close(mWearableTransport.toTransportChannel(channel));
         }
     }
 
@@ -1033,14 +1389,14 @@ public class GmsWear {
         assertApiConnectivity();
         WearUtil.assertNonUiThread();
         if (asset == null) {
-            Log.e(TAG, "Asset must be non-null");
+            WearLog.e(TAG, "Asset must be non-null");
         }
 
         InputStream assetInputStream = Wearable.DataApi.getFdForAsset(
-                mGoogleApiClient, asset).await().getInputStream();
+                getGoogleApiClient(), asset).await().getInputStream();
 
         if (assetInputStream == null) {
-            Log.w(TAG, "Requested an unknown Asset.");
+            WearLog.w(TAG, "Requested an unknown Asset.");
             return null;
         }
         return BitmapFactory.decodeStream(assetInputStream);
@@ -1060,10 +1416,10 @@ public class GmsWear {
         }
 
         InputStream assetInputStream = Wearable.DataApi.getFdForAsset(
-                mGoogleApiClient, asset).await().getInputStream();
+                getGoogleApiClient(), asset).await().getInputStream();
 
         if (assetInputStream == null) {
-            Log.w(TAG, "Requested an unknown Asset.");
+            WearLog.w(TAG, "Requested an unknown Asset.");
             return null;
         }
 
@@ -1079,48 +1435,116 @@ public class GmsWear {
     }
 
     /**
-     * Clients can register to {@link DataConsumer#onGmsConnectionSuspended()}.
+     * Clients can register to {@link DataConsumer#onMessageReceived(MessageEvent)}.
      */
-    private void onConnectionSuspended(int i) {
-        for (DataConsumer consumer : mDataConsumers) {
-            consumer.onGmsConnectionSuspended();
+    void onMessageReceived(MessageEvent messageEvent) {
+        WearLog.d(TAG, "Received a message with path: {}", messageEvent.getPath());
+        long receivedMicros = ClockSync.nowMicros();
+        if (Constants.PATH_TIME_SYNC.equals(messageEvent.getPath())) {
+            byte[] response = ClockSync.answer(messageEvent.getData(), receivedMicros);
+            if (response != null) {
+                sendMessage(messageEvent.getSourceNodeId(), Constants.PATH_TIME_SYNC_REPLY,
+                        response, mIgnoreMessageResultCallback);
+            }
+            return;
+        }
+        if (Constants.PATH_TIME_SYNC_REPLY.equals(messageEvent.getPath())) {
+            getClockSync().onResponse(messageEvent.getSourceNodeId(), messageEvent.getData(),
+                    receivedMicros);
+            return;
+        }
+        if (mLatencyProbing.onMessageReceived(messageEvent.getSourceNodeId(),
+                messageEvent.getPath(), messageEvent.getData())) {
+            return;
+        }
+        long receivedNanos = MetricsRegistry.now();
+        MessageHeader header = null;
+        String sentPath = MessageHeaders.fromHeaderPath(messageEvent.getPath());
+        if (sentPath != null) {
+            header = MessageHeader.parse(messageEvent.getData());
+            if (header == null) {
+                WearLog.e(TAG, "Dropping a message from {} on {}, its header is malformed",
+                        messageEvent.getSourceNodeId(), messageEvent.getPath());
+                return;
+            }
+            // consumers only see the path and the data that were sent
+            messageEvent = new ReceivedMessageEvent(messageEvent, sentPath,
+                    header.stripFrom(messageEvent.getData()));
+        }
+        if (header != null && header.hasDeadline() && isExpired(messageEvent.getSourceNodeId(),
+                header.getDeadlineMicros(), receivedMicros)) {
+            WearLog.d(TAG, "Dropping a message from {} on {}, its deadline passed",
+                    messageEvent.getSourceNodeId(), messageEvent.getPath());
+            mMetrics.recordExpiredOnReceive(messageEvent.getPath(),
+                    messageEvent.getSourceNodeId());
+            return;
+        }
+        Span span;
+        if (header != null && header.hasTraceId()) {
+            span = mTracer.begin("onMessageReceived", header.getTraceId(), messageEvent.getPath(),
+                    Tracer.FLOW_IN);
+        } else {
+            span = mTracer.begin("onMessageReceived", mTraceIds.newTraceId(),
+                    messageEvent.getPath(), Tracer.FLOW_NONE);
+        }
+        mStreams.publishMessage(messageEvent);
+        if (mWearableTransport != null) {
+            mWearableTransport.dispatchMessageReceived(messageEvent);
         }
-    }
-
-    /**
-     * Clients can register to {@link DataConsumer#onGmsConnectionFailed()}.
-     */
-    private void onConnectionFailed(ConnectionResult connectionResult) {
         for (DataConsumer consumer : mDataConsumers) {
-            consumer.onGmsConnectionFailed();
+            consumer.onMessageReceived(messageEvent);
+        }
+        mMetrics.recordMessageReceived(messageEvent.getPath(), messageEvent.getSourceNodeId(),
+                messageEvent.getData() == null ? 0 : messageEvent.getData().length,
+                receivedNanos);
+        span.end();
+        if (header != null && header.hasSendTime()) {
+            mTrafficMetrics.recordOneWayLatency(messageEvent.getPath(),
+                    messageEvent.getSourceNodeId(), header.getSendTimeMicros(), receivedMicros);
         }
     }
 
     /**
-     * Clients can register to {@link DataConsumer#onMessageReceived(MessageEvent)}.
+     * Returns {@code true} if {@code deadlineMicros}, on the clock of {@code nodeId}, is before
+     * {@code nowMicros}. The wall clocks of two devices can be far apart, so nothing is taken to
+     * be expired until the {@link ClockSync} has sampled the clock of that node.
      */
-    void onMessageReceived(MessageEvent messageEvent) {
-        WearUtil.logD(TAG, "Received a message with path: " + messageEvent.getPath());
-        for (DataConsumer consumer : mDataConsumers) {
-            consumer.onMessageReceived(messageEvent);
+    private boolean isExpired(String nodeId, long deadlineMicros, long nowMicros) {
+        ClockSync clockSync = peekClockSync();
+        if (clockSync == null) {
+            return false;
         }
+        long localDeadlineMicros = clockSync.toLocalMicros(nodeId, deadlineMicros);
+        return localDeadlineMicros >= 0 && localDeadlineMicros < nowMicros;
     }
 
     /**
-     * Clients can register to {@link DataConsumer#onPeerConnected(Node)}.
+     * Clients can register to {@link DataConsumer#onPeerConnected(Node)}. The peer is added to the
+     * {@link NodeSnapshot} before anyone is notified.
      */
     void onPeerConnected(Node peer) {
-        WearUtil.logD(TAG, "onPeerConnected: " + peer);
+        WearLog.d(TAG, "onPeerConnected: {}", peer);
+        mNodeRegistry.add(peer);
+        mStreams.publishNodeEvent(NodeEvent.TYPE_CONNECTED, peer);
+        if (mWearableTransport != null) {
+            mWearableTransport.dispatchPeerConnected(peer);
+        }
         for (DataConsumer consumer : mDataConsumers) {
             consumer.onPeerConnected(peer);
         }
     }
 
     /**
-     * Clients can register to {@link DataConsumer#onPeerDisconnected(Node)}.
+     * Clients can register to {@link DataConsumer#onPeerDisconnected(Node)}. The peer is removed
+     * from the {@link NodeSnapshot} before anyone is notified.
      */
     void onPeerDisconnected(Node peer) {
-        WearUtil.logD(TAG, "onPeerDisconnected: " + peer);
+        WearLog.d(TAG, "onPeerDisconnected: {}", peer);
+        mNodeRegistry.remove(peer.getId());
+        mStreams.publishNodeEvent(NodeEvent.TYPE_DISCONNECTED, peer);
+        if (mWearableTransport != null) {
+            mWearableTransport.dispatchPeerDisconnected(peer);
+        }
         for (DataConsumer consumer : mDataConsumers) {
             consumer.onPeerDisconnected(peer);
         }
@@ -1130,138 +1554,257 @@ public class GmsWear {
      * Clients can register to {@link DataConsumer#onConnectedNodes(List)}.
      */
     void onConnectedNodes(List<Node> connectedNodes) {
-        WearUtil.logD(TAG, "onConnectedNodes: " + connectedNodes);
-        mConnectedNodes.clear();
-        mConnectedNodes.addAll(connectedNodes);
+        WearLog.d(TAG, "onConnectedNodes: {}", connectedNodes);
+        mNodeRegistry.publish(connectedNodes);
         for (DataConsumer consumer : mDataConsumers) {
             consumer.onConnectedNodes(connectedNodes);
         }
     }
 
     /**
-     * Clients can register to {@link DataConsumer#onInitialConnectedNodesReceived()}.
+     * Clients can register to {@link DataConsumer#onCapabilityChanged(String, Set)} and
+     * {@link DataConsumer#onCapabilityNodesChanged(String, Set, Set)}. The mapping used by
+     * {@link #getNodesForCapability(String)} is updated right away, while the consumers are
+     * called once the changes of the capability settle down.
      */
-    void onConnectedInitialNodesReceived() {
-        WearUtil.logD(TAG, "onConnectedInitialNodesReceived");
-        for (DataConsumer consumer : mDataConsumers) {
-            consumer.onInitialConnectedNodesReceived();
+    void onCapabilityChanged(CapabilityInfo capabilityInfo) {
+        mCapabilities.onCapabilityChanged(capabilityInfo.getName(), capabilityInfo.getNodes());
+        if (mWearableTransport != null) {
+            mWearableTransport.dispatchCapabilityChanged(capabilityInfo);
         }
     }
 
     /**
-     * Clients can register to {@link DataConsumer#onCapabilityChanged(String, Set)}.
+     * Clients can register to
+     * {@link DataConsumer#onInputStreamForChannelOpened(int, String, Channel, InputStream)}.
      */
-    void onCapabilityChanged(CapabilityInfo capabilityInfo) {
-        String capability = capabilityInfo.getName();
-        Set<Node> nodes = capabilityInfo.getNodes();
-        mCapabilityToNodesMapping.put(capability, nodes);
-        for (DataConsumer consumer : mDataConsumers) {
-            consumer.onCapabilityChanged(capability, nodes);
-        }
+    void onChannelOpened(Channel channel) {
+        onChannelOpened(mWearableTransport.toTransportChannel(channel));
     }
 
     /**
-     * Clients can register to {@link DataConsumer#onInitialConnectedCapabilitiesReceived().
+     * Routes {@code channel} through the {@link ChannelRouter}. The channels that no handler
+     * takes are passed to {@link DataConsumer#onChannelOpened(Channel)} if they went through the
+     * Wearable APIs, and closed otherwise.
      */
-    void onConnectedInitialCapabilitiesReceived() {
+    void onChannelOpened(TransportChannel channel) {
+        WearLog.d(TAG, "onChannelOpened(): Path ={}", channel.getPath());
+        mMetrics.recordChannelAccepted(TrafficMetrics.channelPath(channel.getPath()),
+                channel.getNodeId());
+        mDiagnostics.trackChannel(channel);
+        if (mChannelRouter.dispatch(channel)) {
+            return;
+        }
+        Channel wearableChannel = WearableTransport.getChannel(channel);
+        if (wearableChannel == null) {
+            WearLog.e(TAG, "onChannelOpened(): No handler for {}, closing it", channel.getPath());
+            mChannels.close(channel);
+            return;
+        }
+        mStreams.publishChannelEvent(ChannelEvent.TYPE_OPENED, wearableChannel, 0, 0);
+        if (mWearableTransport != null) {
+            mWearableTransport.dispatchChannelOpened(wearableChannel);
+        }
         for (DataConsumer consumer : mDataConsumers) {
-            consumer.onInitialConnectedCapabilitiesReceived();
+            consumer.onChannelOpened(wearableChannel);
         }
     }
 
     /**
-     * Clients can register to
-     * {@link DataConsumer#onInputStreamForChannelOpened(int, String, Channel, InputStream)}.
+     * Routes the channels opened with a path starting with {@code prefix} to {@code handler}
+     * instead of {@link DataConsumer#onChannelOpened(Channel)}. The path must follow the layout
+     * described in {@link TransferPath}. The transfer types of {@link FileTransfer} are registered
+     * this way, and a handler registered for a longer prefix takes precedence over them.
      */
-    void onChannelOpened(final Channel channel) {
-        String path = channel.getPath();
-        WearUtil.logD(TAG, "onChannelOpened(): Path =" + path);
-        if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_FILE)) {
-            // we are receiving a file sent by FileTransfer
-            final Map<String, String> paramsMap = getFileTransferParams(path);
-            final String name = paramsMap.get(FileTransfer.PARAM_NAME);
-            final String requestId = paramsMap.get(FileTransfer.PARAM_REQUEST_ID);
-            final long size = Long.valueOf(paramsMap.get(FileTransfer.PARAM_SIZE));
-            try {
-                final File outFile = prepareFile(name);
-                if (outFile == null || !outFile.exists()) {
-                    Log.e(TAG, "Failed to create the file: " + name);
-                    return;
-                }
-                channel.receiveFile(mGoogleApiClient, Uri.fromFile(outFile), false)
-                        .setResultCallback(
-                                new ReceivedFileResultCallback(requestId, outFile, size, channel));
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to create the file: " + name, e);
-            }
+    public void registerChannelHandler(String prefix, ChannelRouter.ChannelHandler handler) {
+        mChannelRouter.register(prefix, handler);
+    }
 
-        } else if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_STREAM)) {
-            // we are receiving data by low level InputStream, sent by FileTransfer
-            final Map<String, String> paramsMap = getStreamTransferParams(path);
-            final String requestId = paramsMap.get(FileTransfer.PARAM_REQUEST_ID);
-            channel.getInputStream(mGoogleApiClient).setResultCallback(
-                    new com.google.android.gms.common.api.ResultCallback<Channel
-                            .GetInputStreamResult>() {
-                        @Override
-                        public void onResult(
-                                @NonNull Channel.GetInputStreamResult getInputStreamResult) {
-                            int statusCode = getInputStreamResult.getStatus().getStatusCode();
-                            if (!getInputStreamResult.getStatus().isSuccess()) {
-                                Log.e(TAG, "Failed to open InputStream from channel, status code: "
-                                        + statusCode);
-                            }
-                            for (DataConsumer consumer : mDataConsumers) {
-                                consumer.onInputStreamForChannelOpened(statusCode,
-                                        requestId, channel, getInputStreamResult.getInputStream());
-                            }
-                        }
-                    });
-        } else {
-            for (DataConsumer consumer : mDataConsumers) {
-                consumer.onChannelOpened(channel);
+    /**
+     * Removes the handler registered through
+     * {@link #registerChannelHandler(String, ChannelRouter.ChannelHandler)} for {@code prefix}.
+     */
+    public void unregisterChannelHandler(String prefix) {
+        mChannelRouter.unregister(prefix);
+    }
+
+    /**
+     * Returns the {@link ContentStore} that keeps the content received through
+     * {@link FileTransfer#startDedupTransfer()}. Its size limit can be changed through
+     * {@link ContentStore#setMaxBytes(long)} and its hit rate is available through
+     * {@link ContentStore#getStats()}.
+     */
+    public synchronized ContentStore getContentStore() {
+        if (mContentStore == null) {
+            File filesDir = getFilesDir();
+            if (filesDir == null) {
+                throw new IllegalStateException("The content store needs a files directory, see "
+                        + "forTransport(Transport, File, ConnectivitySource, String...)");
             }
+            mContentStore = new ContentStore(new File(filesDir, CONTENT_STORE_DIRECTORY),
+                    ContentStore.DEFAULT_MAX_BYTES);
         }
+        return mContentStore;
     }
 
-    private Map<String, String> getFileTransferParams(String path) {
-        Map<String, String> result = new HashMap<>();
-        if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_FILE)) {
-            String[] pieces = path.replace(Constants.PATH_FILE_TRANSFER_TYPE_FILE, "").split("\\/");
-            try {
-                result.put(FileTransfer.PARAM_NAME, URLDecoder.decode(pieces[0], "utf-8"));
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "Failed to decode name", e);
+    /**
+     * Returns the directory where the received files are saved, or {@code null} if this instance
+     * was made by {@link #forTransport(Transport, String...)} without one.
+     */
+    @Nullable
+    File getFilesDir() {
+        if (mFilesDir != null) {
+            return mFilesDir;
+        }
+        return mContext != null ? mContext.getFilesDir() : null;
+    }
+
+    /**
+     * Returns the {@link TransferScheduler} used by {@link FileTransfer#scheduleTransfer(boolean)}
+     * and the other {@code schedule*()} methods of {@link FileTransfer}. It follows the Wi-Fi
+     * state of this device; its policy and thresholds can be tuned through its setters.
+     */
+    public synchronized TransferScheduler getTransferScheduler() {
+        if (mTransferScheduler == null) {
+            ConnectivitySource source = mConnectivitySource;
+            if (source == null && mContext == null) {
+                throw new IllegalStateException("The transfer scheduler needs a connectivity "
+                        + "source, see "
+                        + "forTransport(Transport, File, ConnectivitySource, String...)");
             }
-            result.put(FileTransfer.PARAM_SIZE, pieces[1]);
-            result.put(FileTransfer.PARAM_REQUEST_ID, pieces[2]);
-        } else {
-            Log.e(TAG, "Path doesn't start with " + Constants.PATH_FILE_TRANSFER_TYPE_FILE);
+            mTransferScheduler = new TransferScheduler(source != null ? source
+                    : new WifiConnectivitySource(mContext));
         }
+        return mTransferScheduler;
+    }
+
+    /**
+     * Returns the {@link SyncConflater} applied to the {@code sync*()} methods. No path is
+     * conflated until one is registered with {@link SyncConflater#setMinIntervalMillis(String,
+     * long)}; the writes held for the registered paths are put when the app goes to the
+     * background at the latest.
+     */
+    public SyncConflater<PutDataMapRequest> getSyncConflater() {
+        return mConflation.getSyncConflater();
+    }
 
-        return result;
+    /**
+     * Returns the {@link DataChangeCoalescer} applied to
+     * {@link DataConsumer#onDataChanged(DataEvent)}, the receiving side of
+     * {@link #getSyncConflater()}. No path is coalesced until one is registered with
+     * {@link DataChangeCoalescer#setWindowMillis(String, long)}. The {@link #dataChanges(Uri)}
+     * publishers are not affected; they can use {@link EventHub#STRATEGY_LATEST} instead.
+     */
+    public DataChangeCoalescer getDataChangeCoalescer() {
+        return mConflation.getDataChangeCoalescer();
     }
 
-    private Map<String, String> getStreamTransferParams(String path) {
-        Map<String, String> result = new HashMap<>();
-        if (path.startsWith(Constants.PATH_FILE_TRANSFER_TYPE_STREAM)) {
-            String[] pieces = path.replace(Constants.PATH_FILE_TRANSFER_TYPE_FILE, "").split("\\/");
-            result.put(FileTransfer.PARAM_REQUEST_ID, pieces[0]);
-        } else {
-            Log.e(TAG, "Path doesn't start with " + Constants.PATH_FILE_TRANSFER_TYPE_STREAM);
+    /**
+     * Returns the {@link LatencyProber} that measures the round trip time to the connected nodes.
+     * It only sends probes once {@link #startLatencyProbing()} has been called; its measurements
+     * are used by {@link LowestLatencyFilter}.
+     */
+    public LatencyProber getLatencyProber() {
+        return mLatencyProbing.getLatencyProber();
+    }
+
+    /**
+     * Starts measuring the latency to the connected nodes with small ping messages. Probing backs
+     * off while the app is in the background. The other nodes answer the probes as long as they
+     * run this library.
+     *
+     * @see #getLatencyProber()
+     */
+    public void startLatencyProbing() {
+        getLatencyProber().start();
+    }
+
+    /**
+     * Stops the latency probes started by {@link #startLatencyProbing()}.
+     */
+    public void stopLatencyProbing() {
+        LatencyProber latencyProber = mLatencyProbing.peekLatencyProber();
+        if (latencyProber != null) {
+            latencyProber.stop();
         }
+    }
 
-        return result;
+    /**
+     * Returns the {@link ClockSync} that estimates the offset between the clock of this node and
+     * the clocks of the connected nodes. It only sends requests once {@link #startClockSync()} has
+     * been called; its offsets are needed to drop the messages whose deadline passed on their way
+     * and to measure one way latencies.
+     */
+    public synchronized ClockSync getClockSync() {
+        if (mClockSync == null) {
+            mClockSync = new ClockSync(mNodeRegistry, new ClockSync.RequestSender() {
+                @Override
+                public void sendRequest(String nodeId, byte[] payload) {
+                    sendMessage(nodeId, Constants.PATH_TIME_SYNC, payload,
+                            mIgnoreMessageResultCallback);
+                }
+            });
+        }
+        return mClockSync;
     }
 
-    private File prepareFile(String name) throws IOException {
-        File file = new File(mContext.getFilesDir(), name);
-        if (!file.exists()) {
-            if (!file.createNewFile()) {
-                return null;
-            }
+    /**
+     * Returns the {@link ClockSync} if it was ever used, or {@code null} otherwise.
+     */
+    @Nullable
+    synchronized ClockSync peekClockSync() {
+        return mClockSync;
+    }
+
+    /**
+     * Starts estimating the clock offsets of the connected nodes. The other nodes answer the
+     * requests as long as they run this library.
+     *
+     * @see #getClockSync()
+     */
+    public void startClockSync() {
+        getClockSync().start();
+    }
+
+    /**
+     * Stops the clock synchronization started by {@link #startClockSync()}. The offsets estimated
+     * so far are kept.
+     */
+    public void stopClockSync() {
+        ClockSync clockSync = peekClockSync();
+        if (clockSync != null) {
+            clockSync.stop();
         }
+    }
 
-        return file;
+    /**
+     * Stamps the messages, synced data items and file transfers sent from now on with their send
+     * time, so that the receiving node can measure their one way latency once it has called
+     * {@link #startClockSync()}, see
+     * {@link com.cscao.libs.gmswear.metrics.TrafficMetrics#getOneWayLatency()}. Messages carry it
+     * in a {@link MessageHeader}, which is only sent to the nodes that advertise
+     * {@link Constants#CAPABILITY_MESSAGE_HEADER}. This is disabled by default, since it changes
+     * what is sent for the rest:
+     * <ul>
+     * <li>synced data maps get a {@link Constants#KEY_SEND_TIME} entry, so syncing the same value
+     * twice creates a new data item each time;</li>
+     * <li>file transfers use a newer {@link TransferPath} that older versions reject.</li>
+     * </ul>
+     * It should only be enabled when all the nodes run this version of the library.
+     */
+    public void setTimestampingEnabled(boolean enabled) {
+        mTimestampingEnabled = enabled;
+    }
+
+    public boolean isTimestampingEnabled() {
+        return mTimestampingEnabled;
+    }
+
+    /**
+     * Returns the send time to stamp a transfer with, or -1 if timestamping is disabled.
+     */
+    public long newSendTimestamp() {
+        return mTimestampingEnabled ? ClockSync.nowMicros() : -1;
     }
 
     /**
@@ -1269,6 +1812,9 @@ public class GmsWear {
      */
     void onChannelClosed(Channel channel, int closeReason,
             int appSpecificErrorCode) {
+        mDiagnostics.untrackChannel(mWearableTransport.toTransportChannel(channel));
+        mStreams.publishChannelEvent(ChannelEvent.TYPE_CLOSED, channel, closeReason,
+                appSpecificErrorCode);
         for (DataConsumer consumer : mDataConsumers) {
             consumer.onChannelClosed(channel, closeReason, appSpecificErrorCode);
         }
@@ -1278,6 +1824,8 @@ public class GmsWear {
      * Clients can register to {@link DataConsumer#onInputClosed(Channel, int, int)}.
      */
     void onInputClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
+        mStreams.publishChannelEvent(ChannelEvent.TYPE_INPUT_CLOSED, channel, closeReason,
+                appSpecificErrorCode);
         for (DataConsumer consumer : mDataConsumers) {
             consumer.onInputClosed(channel, closeReason, appSpecificErrorCode);
         }
@@ -1287,6 +1835,8 @@ public class GmsWear {
      * Clients can register to {@link DataConsumer#onOutputClosed(Channel, int, int)}.
      */
     void onOutputClosed(Channel channel, int closeReason, int appSpecificErrorCode) {
+        mStreams.publishChannelEvent(ChannelEvent.TYPE_OUTPUT_CLOSED, channel, closeReason,
+                appSpecificErrorCode);
         for (DataConsumer consumer : mDataConsumers) {
             consumer.onOutputClosed(channel, closeReason, appSpecificErrorCode);
         }
@@ -1295,12 +1845,35 @@ public class GmsWear {
     /**
      * Clients can register to {@link DataConsumer#onDataChanged(DataEvent)}.
      */
-    void onDataChanged(DataEventBuffer dataEvents) {
-        for (DataConsumer consumer : mDataConsumers) {
+    void onDataChanged(Iterable<DataEvent> dataEvents) {
+        long receivedNanos = MetricsRegistry.now();
+        long receivedMicros = ClockSync.nowMicros();
+        long traceId = mTraceIds.readTraceId(dataEvents);
+        Span span = traceId != 0
+                ? mTracer.begin("onDataChanged", traceId, null, Tracer.FLOW_IN)
+                : mTracer.begin("onDataChanged", mTraceIds.newTraceId(), null, Tracer.FLOW_NONE);
+        mStreams.publishDataChanged(dataEvents);
+        if (mWearableTransport != null) {
             for (DataEvent event : dataEvents) {
-                consumer.onDataChanged(event);
+                mWearableTransport.dispatchDataChanged(event);
             }
         }
+        mConflation.onDataChanged(dataEvents);
+        span.end();
+        mTrafficMetrics.recordDataChanged(dataEvents, receivedNanos, receivedMicros);
+    }
+
+    @Nullable
+    static DataMap readDataMap(DataItem dataItem) {
+        if (dataItem.getData() == null) {
+            return null;
+        }
+        try {
+            return DataMapItem.fromDataItem(dataItem).getDataMap();
+        } catch (RuntimeException e) {
+            // not a data map
+            return null;
+        }
     }
 
     /**
@@ -1308,13 +1881,10 @@ public class GmsWear {
      * certain we would not need the GmsWear any more.
      */
     public void cleanUp() {
-        WearUtil.logD(TAG, "cleanUp() ...");
-        mContext.stopService(new Intent(mContext, GmsWearService.class));
-        if (!mWatchedCapabilities.isEmpty()) {
-            String[] capabilities = mWatchedCapabilities
-                    .toArray(new String[mWatchedCapabilities.size()]);
-            removeCapabilities(capabilities);
-        }
+        WearLog.d(TAG, "cleanUp() ...");
+        mStreams.complete();
+        stopGmsWearService();
+        mCapabilities.getCapabilityManager().releaseAll();
         mDataConsumers.clear();
     }
 
@@ -1322,7 +1892,10 @@ public class GmsWear {
      * Stops the {@link GmsWearService}.
      */
     public void stopGmsWearService() {
-        WearUtil.logD(TAG, "stopGmsWearService()");
+        WearLog.d(TAG, "stopGmsWearService()");
+        if (mContext == null) {
+            return;
+        }
         mContext.stopService(new Intent(mContext, GmsWearService.class));
     }
 
@@ -1342,6 +1915,8 @@ public class GmsWear {
      */
     private void onAppEnterForeground() {
         mAppForeground = true;
+        mConnection.start(ConnectionLifecycle.TRIGGER_FOREGROUND);
+        mLatencyProbing.setForeground(true);
         mContext.startService(new Intent(mContext, GmsWearService.class));
     }
 
@@ -1350,127 +1925,12 @@ public class GmsWear {
      */
     private void onAppEnterBackground() {
         mAppForeground = false;
+        mLatencyProbing.setForeground(false);
+        // the service is about to stop, don't leave the latest writes behind
+        mConflation.flush();
         stopGmsWearService();
     }
 
-    private class ReceivedFileResultCallback implements ResultCallback<Status> {
-        String requestId;
-        long size;
-
-        File outFile;
-        Channel channel;
-
-        ReceivedFileResultCallback(String requestId, File outFile, long size, Channel channel) {
-            this.requestId = requestId;
-            this.outFile = outFile;
-            this.size = size;
-            this.channel = channel;
-        }
-
-        @Override
-        public void onResult(@NonNull Status status) {
-
-            int statusCode = status.getStatusCode();
-            if (!status.isSuccess()) {
-                Log.e(TAG, "receiveFile(): Failed to receive file with "
-                        + "status code = " + statusCode
-                        + ", and status: " + status.getStatus());
-
-                // Notify consumers of the failure
-                for (DataConsumer consumer : mDataConsumers) {
-                    consumer.onFileReceivedResult(statusCode,
-                            requestId, outFile, outFile.getName());
-                }
-            } else {
-                // Add a listener to be notified when the transfer is
-                // over
-                channel.addListener(mGoogleApiClient,
-                        new ChannelApi.ChannelListener() {
-                            @Override
-                            public void onChannelOpened(
-                                    Channel channel) {
-                            }
-
-                            @Override
-                            public void onChannelClosed(Channel channel,
-                                    int closeReason,
-                                    int appSpecificErrorCode) {
-                            }
-
-                            @Override
-                            public void onInputClosed(Channel channel,
-                                    int closeReason,
-                                    int appSpecificErrorCode) {
-                                // File transfer is finished
-                                int resultStatusCode;
-                                if (closeReason
-                                        != CLOSE_REASON_NORMAL) {
-                                    Log.e(TAG,
-                                            "receiveFile(): Failed to"
-                                                    + " receive file "
-                                                    + "with "
-                                                    + "status "
-                                                    + "closeReason = "
-                                                    + closeReason
-                                                    + ", and "
-                                                    +
-                                                    "appSpecificErrorCode: "
-                                                    +
-                                                    appSpecificErrorCode);
-                                    resultStatusCode = CommonStatusCodes.ERROR;
-                                } else if (size != outFile.length()) {
-                                    Log.e(TAG,
-                                            "receiveFile(): Size of "
-                                                    + "the transferred "
-                                                    + "file doesn't "
-                                                    + "match the "
-                                                    + "original size");
-                                    resultStatusCode =
-                                            CommonStatusCodes.ERROR;
-                                } else {
-                                    resultStatusCode =
-                                            CommonStatusCodes.SUCCESS;
-                                }
-                                // Notify consumers
-                                for (DataConsumer consumer : mDataConsumers) {
-                                    consumer.onFileReceivedResult(resultStatusCode,
-                                            requestId, outFile, outFile.getName());
-                                }
-                            }
-
-                            @Override
-                            public void onOutputClosed(Channel channel,
-                                    int closeReason,
-                                    int appSpecificErrorCode) {
-                            }
-                        });
-            }
-        }
-    }
-
-    private final class GmsConnectionCallbacksListener
-            implements GoogleApiClient.ConnectionCallbacks {
-
-        @Override
-        public void onConnected(Bundle bundle) {
-            GmsWear.this.onConnected(bundle);
-        }
-
-        @Override
-        public void onConnectionSuspended(int i) {
-            GmsWear.this.onConnectionSuspended(i);
-        }
-    }
-
-    private final class GmsConnectionFailedListener
-            implements GoogleApiClient.OnConnectionFailedListener {
-
-        @Override
-        public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-            GmsWear.this.onConnectionFailed(connectionResult);
-        }
-    }
-
     private final class WearAppVisibilityDetectorListener
             implements AppVisibilityDetector.Listener {
 
@@ -1485,27 +1945,39 @@ public class GmsWear {
         }
     }
 
-    private class FileChannelListener implements ChannelApi.ChannelListener {
+    /**
+     * A received message with the path and the data of its sender, once the
+     * {@link MessageHeader} has been stripped.
+     */
+    private static final class ReceivedMessageEvent implements MessageEvent {
+        private final MessageEvent mEvent;
+        private final String mPath;
+        private final byte[] mData;
+
+        ReceivedMessageEvent(MessageEvent event, String path, byte[] data) {
+            mEvent = event;
+            mPath = path;
+            mData = data;
+        }
+
         @Override
-        public void onChannelOpened(Channel channel) {
+        public int getRequestId() {
+            return mEvent.getRequestId();
         }
 
         @Override
-        public void onChannelClosed(Channel channel,
-                int closedReason, int appSpecificErrorCode) {
-            WearUtil.logD(TAG, "Channel Closed");
+        public String getPath() {
+            return mPath;
         }
 
         @Override
-        public void onInputClosed(Channel channel,
-                int closedReason, int appSpecificErrorCode) {
+        public byte[] getData() {
+            return mData;
         }
 
         @Override
-        public void onOutputClosed(Channel channel,
-                int closedReason, int appSpecificErrorCode) {
-            WearUtil.logD(TAG, "onOutputClosed(): Output closed so closing channel...");
-            closeChannel(channel);
+        public String getSourceNodeId() {
+            return mEvent.getSourceNodeId();
         }
     }
 }
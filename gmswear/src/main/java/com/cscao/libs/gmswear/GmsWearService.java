@@ -16,7 +16,7 @@
 
 package com.cscao.libs.gmswear;
 
-import com.cscao.libs.gmswear.util.WearUtil;
+import com.cscao.libs.gmswear.util.WearLog;
 import com.google.android.gms.wearable.CapabilityInfo;
 import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.DataEventBuffer;
@@ -24,6 +24,9 @@ import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.WearableListenerService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -42,16 +45,35 @@ public class GmsWearService extends WearableListenerService {
     @Override
     public void onCreate() {
         super.onCreate();
-        WearUtil.logD(TAG, "GmsWearService is being created");
+        WearLog.d(TAG, "GmsWearService is being created");
         mGmsWear = GmsWear.getInstance();
     }
 
     @Override
     public void onDestroy() {
-        WearUtil.logD(TAG, "GmsWearService is being destroyed");
+        WearLog.d(TAG, "GmsWearService is being destroyed");
         super.onDestroy();
     }
 
+    /**
+     * Writes the {@link GmsWear#diagnostics()} of this process, for
+     * {@code adb shell dumpsys activity service <package>/com.cscao.libs.gmswear.GmsWearService}.
+     * With the {@code --log} argument, the messages kept by
+     * {@link com.cscao.libs.gmswear.util.WearLog} are written as well.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (mGmsWear == null) {
+            writer.println("GmsWear is not initialized");
+            return;
+        }
+        mGmsWear.diagnostics().dump(writer);
+        if (args != null && Arrays.asList(args).contains("--log")) {
+            writer.println();
+            WearLog.dump(writer);
+        }
+    }
+
     @Override
     public void onDataChanged(DataEventBuffer dataEvents) {
         super.onDataChanged(dataEvents);
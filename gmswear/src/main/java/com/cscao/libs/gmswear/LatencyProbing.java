@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.node.LatencyProber;
+import com.cscao.libs.gmswear.node.NodeRegistry;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.WearLog;
+
+/**
+ * The latency probes of {@link GmsWear}: the {@link LatencyProber}, created on first use, and the
+ * ping and pong messages it exchanges with the library on the other nodes. These go straight to
+ * the {@link Transport}: the queue, the circuit breaker and the metrics of {@link MessageSender}
+ * would otherwise add their own delays to the round trip times and count the probes as traffic.
+ */
+final class LatencyProbing {
+
+    private static final String TAG = "LatencyProbing";
+
+    private final GmsWear mGmsWear;
+    private final NodeRegistry mNodeRegistry;
+    private final Transport.Callback<Integer> mLogFailure = new Transport.Callback<Integer>() {
+        @Override
+        public void onResult(int statusCode, Integer requestId) {
+            if (statusCode != Transport.STATUS_SUCCESS) {
+                WearLog.d(TAG, "Failed to send a probe, status code: {}", statusCode);
+            }
+        }
+    };
+    private LatencyProber mLatencyProber;
+    private boolean mForeground = true;
+
+    LatencyProbing(GmsWear gmsWear, NodeRegistry nodeRegistry) {
+        mGmsWear = gmsWear;
+        mNodeRegistry = nodeRegistry;
+    }
+
+    synchronized LatencyProber getLatencyProber() {
+        if (mLatencyProber == null) {
+            mLatencyProber = new LatencyProber(mNodeRegistry, new LatencyProber.PingSender() {
+                @Override
+                public void sendPing(String nodeId, byte[] payload) {
+                    send(nodeId, Constants.PATH_PING, payload);
+                }
+            });
+            mLatencyProber.setForeground(mForeground);
+        }
+        return mLatencyProber;
+    }
+
+    /**
+     * Returns the {@link LatencyProber} if it was ever used, or {@code null} otherwise.
+     */
+    @Nullable
+    synchronized LatencyProber peekLatencyProber() {
+        return mLatencyProber;
+    }
+
+    void setForeground(boolean foreground) {
+        LatencyProber latencyProber;
+        synchronized (this) {
+            mForeground = foreground;
+            latencyProber = mLatencyProber;
+        }
+        if (latencyProber != null) {
+            latencyProber.setForeground(foreground);
+        }
+    }
+
+    /**
+     * Answers a ping right away and passes a pong on to the {@link LatencyProber}, if there is
+     * one; a pong without a prober is a late answer to a prober of a previous run.
+     *
+     * @return {@code true} if the message was a probe and has been handled.
+     */
+    boolean onMessageReceived(String sourceNodeId, String path, byte[] data) {
+        if (Constants.PATH_PING.equals(path)) {
+            send(sourceNodeId, Constants.PATH_PONG, data);
+            return true;
+        }
+        if (Constants.PATH_PONG.equals(path)) {
+            LatencyProber latencyProber = peekLatencyProber();
+            if (latencyProber != null) {
+                latencyProber.onPong(sourceNodeId, data);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void send(String nodeId, String path, byte[] payload) {
+        mGmsWear.getTransport().sendMessage(nodeId, path, payload, mLogFailure);
+    }
+}
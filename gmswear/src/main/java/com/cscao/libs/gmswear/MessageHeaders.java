@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.connectivity.MessageHeader;
+import com.cscao.libs.gmswear.util.Constants;
+import com.google.android.gms.wearable.Node;
+
+import java.util.Set;
+
+/**
+ * Decides which messages carry a {@link MessageHeader}. A node only gets headers once it
+ * advertises {@link Constants#CAPABILITY_MESSAGE_HEADER}, and the messages that carry one are
+ * sent under {@link Constants#PATH_MESSAGE_HEADER_PREFIX}: nodes running an older version never
+ * find a header in the data of a message, and the receiving node only parses the data of the
+ * messages sent under that path.
+ */
+final class MessageHeaders {
+
+    private static final String PREFIX = Constants.PATH_MESSAGE_HEADER_PREFIX;
+
+    private final CapabilityWiring mCapabilities;
+
+    MessageHeaders(CapabilityWiring capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    /**
+     * Returns {@code true} if {@code nodeId} advertises that it understands the headers.
+     */
+    boolean isSupportedBy(String nodeId) {
+        Set<Node> nodes = mCapabilities.getNodes(Constants.CAPABILITY_MESSAGE_HEADER);
+        if (nodes == null) {
+            return false;
+        }
+        for (Node node : nodes) {
+            if (node.getId().equals(nodeId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the path to send a message to {@code path} on once a header is in front of its data.
+     */
+    static String toHeaderPath(String path) {
+        return PREFIX + path;
+    }
+
+    /**
+     * Returns the path a message received on {@code path} was sent to, or {@code null} if it
+     * doesn't carry a header.
+     */
+    @Nullable
+    static String fromHeaderPath(String path) {
+        if (path == null || !path.startsWith(PREFIX + "/")) {
+            return null;
+        }
+        return path.substring(PREFIX.length());
+    }
+}
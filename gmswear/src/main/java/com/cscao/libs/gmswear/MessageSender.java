@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.connectivity.ConnectionSupervisor;
+import com.cscao.libs.gmswear.connectivity.MessageHeader;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.metrics.MetricsRegistry;
+import com.cscao.libs.gmswear.node.CircuitBreaker;
+import com.cscao.libs.gmswear.node.ClockSync;
+import com.cscao.libs.gmswear.node.NodeRegistry;
+import com.cscao.libs.gmswear.trace.Span;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.WearableStatusCodes;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the messages of {@link GmsWear} through its {@link Transport}: it waits for the connection
+ * through the {@link ConnectionSupervisor}, drops the messages whose deadline passed, fails fast
+ * when the {@link CircuitBreaker} of the node is open, stamps the {@link MessageHeader} if the
+ * node understands it, see {@link MessageHeaders}, and reports the result to the callback or to
+ * the {@link DataConsumer}s.
+ */
+final class MessageSender {
+
+    static final long NO_DEADLINE = -1;
+
+    private static final String TAG = "MessageSender";
+
+    private final GmsWear mGmsWear;
+    private final Set<DataConsumer> mDataConsumers;
+    private final NodeRegistry mNodeRegistry;
+    private final ConnectionSupervisor mConnectionSupervisor;
+    private final CircuitBreaker mCircuitBreaker;
+    private final MetricsRegistry mMetrics;
+    private final Tracer mTracer;
+    private final TraceIds mTraceIds;
+    private final DiagnosticsCollector mDiagnostics;
+    private final MessageHeaders mMessageHeaders;
+
+    MessageSender(GmsWear gmsWear, Set<DataConsumer> dataConsumers, NodeRegistry nodeRegistry,
+            ConnectionSupervisor connectionSupervisor, CircuitBreaker circuitBreaker,
+            MetricsRegistry metrics, Tracer tracer, TraceIds traceIds,
+            DiagnosticsCollector diagnostics, MessageHeaders messageHeaders) {
+        mGmsWear = gmsWear;
+        mDataConsumers = dataConsumers;
+        mNodeRegistry = nodeRegistry;
+        mConnectionSupervisor = connectionSupervisor;
+        mCircuitBreaker = circuitBreaker;
+        mMetrics = metrics;
+        mTracer = tracer;
+        mTraceIds = traceIds;
+        mDiagnostics = diagnostics;
+        mMessageHeaders = messageHeaders;
+    }
+
+    /**
+     * Sends the message once connected, or fails it with
+     * {@link CommonStatusCodes#API_NOT_CONNECTED} if it is dropped instead.
+     */
+    void send(final String nodeId, final String path, @Nullable final byte[] bytes,
+            final long deadlineMicros,
+            @Nullable final ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        mConnectionSupervisor.execute(new ConnectionSupervisor.Operation() {
+            @Override
+            public void run() {
+                sendNow(nodeId, path, bytes, deadlineMicros, callback);
+            }
+
+            @Override
+            public void onDropped() {
+                mMetrics.recordFailure(path, nodeId);
+                failSendMessage(CommonStatusCodes.API_NOT_CONNECTED, callback);
+            }
+
+            @Override
+            public String toString() {
+                return "sendMessage(" + path + ")";
+            }
+        });
+    }
+
+    /**
+     * Sends the message to the nearby nodes known once connected, so that a message queued before
+     * the discovery of the nodes still finds its targets.
+     */
+    void sendToNearbyNodes(final String path, @Nullable final byte[] bytes,
+            final long deadlineMicros,
+            @Nullable final ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        mConnectionSupervisor.execute(new ConnectionSupervisor.Operation() {
+            @Override
+            public void run() {
+                List<Node> nearbyNodes = mNodeRegistry.getSnapshot().getNearbyNodes();
+                for (int i = 0; i < nearbyNodes.size(); i++) {
+                    sendNow(nearbyNodes.get(i).getId(), path, bytes, deadlineMicros,
+                            callback);
+                }
+            }
+
+            @Override
+            public void onDropped() {
+                mMetrics.recordFailure(path, null);
+                failSendMessage(CommonStatusCodes.API_NOT_CONNECTED, callback);
+            }
+
+            @Override
+            public String toString() {
+                return "sendMessage(" + path + ")";
+            }
+        });
+    }
+
+    /**
+     * Returns the deadline, on the clock of {@link ClockSync#nowMicros()}, of a message that
+     * expires {@code ttlMillis} from now.
+     */
+    static long deadlineAfter(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis should be positive");
+        }
+        return ClockSync.nowMicros() + TimeUnit.MILLISECONDS.toMicros(ttlMillis);
+    }
+
+    /**
+     * Sends the message right away; callers have already waited for the connection.
+     */
+    void sendNow(final String nodeId, final String path, @Nullable byte[] bytes,
+            long deadlineMicros,
+            @Nullable final ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        if (deadlineMicros != NO_DEADLINE && ClockSync.nowMicros() > deadlineMicros) {
+            WearLog.d(TAG, "sendMessage(): Dropping a message to {} on {}, its deadline passed",
+                    nodeId, path);
+            mMetrics.recordExpiredBeforeSend(path, nodeId);
+            failSendMessage(CommonStatusCodes.TIMEOUT, callback);
+            return;
+        }
+        if (!mCircuitBreaker.allowRequest(nodeId)) {
+            WearLog.e(TAG, "sendMessage(): Circuit to {} is open, failing fast", nodeId);
+            mMetrics.recordFailure(path, nodeId);
+            failSendMessage(WearableStatusCodes.TARGET_NODE_NOT_CONNECTED, callback);
+            return;
+        }
+        final int size = bytes == null ? 0 : bytes.length;
+        final long startNanos = MetricsRegistry.now();
+        final Span span = mTracer.begin("sendMessage", mTraceIds.newTraceId(), path,
+                Tracer.FLOW_OUT);
+        mDiagnostics.getInFlightMessages().incrementAndGet();
+        String sentPath = path;
+        if (!isInternalPath(path) && mMessageHeaders.isSupportedBy(nodeId)) {
+            MessageHeader header = MessageHeader.create(mGmsWear.newSendTimestamp(),
+                    span.getTraceId(), deadlineMicros);
+            if (header != null) {
+                bytes = header.prependTo(bytes);
+                sentPath = MessageHeaders.toHeaderPath(path);
+            }
+        }
+        Transport transport = mGmsWear.getTransport();
+        transport.sendMessage(nodeId, sentPath, bytes, new Transport.Callback<Integer>() {
+            @Override
+            public void onResult(int statusCode, Integer requestId) {
+                span.end();
+                mDiagnostics.getInFlightMessages().decrementAndGet();
+                boolean success = statusCode == Transport.STATUS_SUCCESS;
+                mCircuitBreaker.onResult(nodeId, success);
+                mMetrics.recordMessageSent(path, nodeId, size, success, startNanos);
+                if (!success) {
+                    WearLog.e(TAG, "Failed to send message, statusCode: {}", statusCode);
+                }
+                if (callback == null) {
+                    for (DataConsumer consumer : mDataConsumers) {
+                        consumer.onSendMessageResult(statusCode);
+                    }
+                } else {
+                    callback.onResult(newSendMessageResult(statusCode,
+                            requestId == null ? -1 : requestId));
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns {@code true} for the paths of the messages the library exchanges with itself on the
+     * other nodes, which are never stamped with a header.
+     */
+    private static boolean isInternalPath(String path) {
+        return Constants.PATH_TIME_SYNC.equals(path)
+                || Constants.PATH_TIME_SYNC_REPLY.equals(path);
+    }
+
+    /**
+     * Reports a message that could not be sent to {@code callback}, or to the consumers if it is
+     * {@code null}, with the given {@code statusCode}.
+     */
+    private void failSendMessage(final int statusCode,
+            @Nullable ResultCallback<? super MessageApi.SendMessageResult> callback) {
+        if (callback == null) {
+            for (DataConsumer consumer : mDataConsumers) {
+                consumer.onSendMessageResult(statusCode);
+            }
+            return;
+        }
+        callback.onResult(newSendMessageResult(statusCode, -1));
+    }
+
+    private static MessageApi.SendMessageResult newSendMessageResult(final int statusCode,
+            final int requestId) {
+        return new MessageApi.SendMessageResult() {
+            @Override
+            public int getRequestId() {
+                return requestId;
+            }
+
+            @Override
+            public Status getStatus() {
+                return new Status(statusCode);
+            }
+        };
+    }
+}
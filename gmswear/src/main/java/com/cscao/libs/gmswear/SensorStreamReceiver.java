@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import com.cscao.libs.gmswear.connectivity.sensor.SensorFrame;
+import com.cscao.libs.gmswear.connectivity.sensor.SensorStream;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.trace.Span;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.google.android.gms.common.api.CommonStatusCodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * The receiving end of the {@link SensorStream}s: decodes the frames of each stream on a worker
+ * thread of {@link GmsWear} and hands them to the {@link DataConsumer}s; the channel is closed
+ * once the sender ends the stream.
+ */
+final class SensorStreamReceiver {
+
+    private static final String TAG = "SensorStreamReceiver";
+
+    private final GmsWear mGmsWear;
+    private final Set<DataConsumer> mDataConsumers;
+    private final Tracer mTracer;
+    private final TraceIds mTraceIds;
+    private final SensorStream.Receiver mConsumerReceiver = new SensorStream.Receiver() {
+        @Override
+        public void onSensorFrame(SensorFrame frame) {
+            for (DataConsumer consumer : mDataConsumers) {
+                consumer.onSensorFrame(frame);
+            }
+        }
+
+        @Override
+        public void onSensorStreamClosed(String nodeId, String streamName, int statusCode) {
+            for (DataConsumer consumer : mDataConsumers) {
+                consumer.onSensorStreamClosed(nodeId, streamName, statusCode);
+            }
+        }
+    };
+
+    SensorStreamReceiver(GmsWear gmsWear, Set<DataConsumer> dataConsumers, Tracer tracer,
+            TraceIds traceIds) {
+        mGmsWear = gmsWear;
+        mDataConsumers = dataConsumers;
+        mTracer = tracer;
+        mTraceIds = traceIds;
+    }
+
+    void receive(final TransportChannel channel, String requestId) {
+        final Span span = mTracer.begin("receiveSensorStream",
+                mTraceIds.transferTraceId(requestId), null, Tracer.FLOW_IN);
+        mGmsWear.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream inputStream = channel.getInputStream();
+                    SensorStream.receive(inputStream, channel.getNodeId(), mConsumerReceiver);
+                } catch (IOException e) {
+                    WearLog.e(TAG, "Failed to open InputStream for sensor stream {}",
+                            channel.getPath(), e);
+                    mConsumerReceiver.onSensorStreamClosed(channel.getNodeId(), null,
+                            CommonStatusCodes.ERROR);
+                } finally {
+                    mGmsWear.closeChannel(channel);
+                    span.end();
+                }
+            }
+        });
+    }
+}
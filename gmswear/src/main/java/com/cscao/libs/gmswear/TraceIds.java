@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.cscao.libs.gmswear.connectivity.TransferPath;
+import com.cscao.libs.gmswear.node.ClockOffset;
+import com.cscao.libs.gmswear.node.ClockSync;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Hands out the trace ids of the spans that {@link GmsWear} records in its {@link Tracer}: new
+ * ones for what starts here, and the ones sent by the other node, or derived from a transfer,
+ * for what continues a trace. Every id is 0 while tracing is disabled.
+ */
+final class TraceIds {
+
+    private static final String TAG = "TraceIds";
+
+    private final Tracer mTracer;
+
+    TraceIds(Tracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Returns a new trace id.
+     */
+    long newTraceId() {
+        return mTracer.isEnabled() ? Tracer.newTraceId() : 0;
+    }
+
+    /**
+     * Returns the trace id of the transfer with {@code requestId}.
+     */
+    long transferTraceId(String requestId) {
+        return mTracer.isEnabled() && requestId != null ? Tracer.traceIdOf(requestId) : 0;
+    }
+
+    /**
+     * Returns the trace id of a channel: the one of the transfer if {@code path} is a
+     * {@link TransferPath}, so that both nodes agree on it, or a new one.
+     */
+    long channelTraceId(String path) {
+        if (!mTracer.isEnabled()) {
+            return 0;
+        }
+        for (String prefix : GmsWear.TRANSFER_PATH_PREFIXES) {
+            if (path.startsWith(prefix)) {
+                TransferPath transferPath = TransferPath.parse(prefix, path);
+                if (transferPath != null) {
+                    return Tracer.traceIdOf(transferPath.getRequestId());
+                }
+            }
+        }
+        return Tracer.newTraceId();
+    }
+
+    /**
+     * Returns the {@link Constants#KEY_TRACE_ID} of the first data item of {@code dataEvents} that
+     * has one. A batch is handled as a whole, so it continues a single trace.
+     */
+    long readTraceId(Iterable<DataEvent> dataEvents) {
+        if (!mTracer.isEnabled()) {
+            return 0;
+        }
+        for (DataEvent event : dataEvents) {
+            if (event.getType() != DataEvent.TYPE_CHANGED) {
+                continue;
+            }
+            DataMap dataMap = GmsWear.readDataMap(event.getDataItem());
+            long traceId = dataMap == null ? 0 : dataMap.getLong(Constants.KEY_TRACE_ID, 0);
+            if (traceId != 0) {
+                return traceId;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the spans as a Chrome trace, moved to the clock of {@code referenceNodeId} if
+     * {@code clockSync} has sampled it.
+     */
+    void writeTrace(Writer writer, ClockSync clockSync, @Nullable String referenceNodeId)
+            throws IOException {
+        long timeShiftMicros = 0;
+        if (referenceNodeId != null) {
+            ClockOffset offset = clockSync.getOffset(referenceNodeId);
+            if (offset != null) {
+                timeShiftMicros = offset.getOffsetMicros();
+            } else {
+                WearLog.e(TAG, "writeTrace(): The clock of {} hasn't been sampled, keeping the "
+                        + "local clock", referenceNodeId);
+            }
+        }
+        String model = Build.MODEL;
+        mTracer.writeChromeTrace(writer, TextUtils.isEmpty(model) ? "GmsWear" : model,
+                timeShiftMicros);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.connectivity.TransferPath;
+import com.cscao.libs.gmswear.metrics.MetricsRegistry;
+import com.cscao.libs.gmswear.node.ClockSync;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.util.Constants;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataMap;
+
+/**
+ * Records what {@link GmsWear} receives in its {@link MetricsRegistry}, along with the one way
+ * latencies of what was sent with timestamping enabled, which need the clocks of the sending
+ * nodes from the {@link ClockSync}.
+ */
+final class TrafficMetrics {
+
+    private final GmsWear mGmsWear;
+    private final MetricsRegistry mMetrics;
+
+    TrafficMetrics(GmsWear gmsWear, MetricsRegistry metrics) {
+        mGmsWear = gmsWear;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the transfer type of the channel paths built by {@link FileTransfer}, so that the
+     * metrics are not keyed by their names and request ids, or {@code path} itself.
+     */
+    static String channelPath(String path) {
+        for (String prefix : GmsWear.TRANSFER_PATH_PREFIXES) {
+            if (path.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Records the one way latency of something {@code nodeId} sent at {@code sendTimeMicros} on
+     * its clock. Nothing is recorded until the clock of the node has been sampled, which takes
+     * {@link GmsWear#startClockSync()}.
+     */
+    void recordOneWayLatency(String path, String nodeId, long sendTimeMicros,
+            long receivedMicros) {
+        if (sendTimeMicros < 0 || !mMetrics.isEnabled()) {
+            return;
+        }
+        ClockSync clockSync = mGmsWear.peekClockSync();
+        if (clockSync == null) {
+            return;
+        }
+        long localSendTimeMicros = clockSync.toLocalMicros(nodeId, sendTimeMicros);
+        if (localSendTimeMicros >= 0) {
+            mMetrics.recordOneWayLatency(path, nodeId, receivedMicros - localSendTimeMicros);
+        }
+    }
+
+    void recordTransferLatency(TransportChannel channel, TransferPath path) {
+        recordOneWayLatency(channelPath(channel.getPath()), channel.getNodeId(),
+                path.getSendTimeMicros(), ClockSync.nowMicros());
+    }
+
+    /**
+     * Records the data items of a batch received at {@code receivedNanos}, on the clock of
+     * {@link MetricsRegistry#now()}, and at {@code receivedMicros}, on the clock of
+     * {@link ClockSync#nowMicros()}.
+     */
+    void recordDataChanged(Iterable<DataEvent> dataEvents, long receivedNanos,
+            long receivedMicros) {
+        if (!mMetrics.isEnabled()) {
+            return;
+        }
+        // the events of a batch are handled together, they share the latency of the batch
+        for (DataEvent event : dataEvents) {
+            DataItem dataItem = event.getDataItem();
+            byte[] data = dataItem.getData();
+            mMetrics.recordDataItemReceived(dataItem.getUri().getPath(),
+                    dataItem.getUri().getHost(), data == null ? 0 : data.length, receivedNanos);
+            if (event.getType() == DataEvent.TYPE_CHANGED) {
+                recordOneWayLatency(dataItem.getUri().getPath(), dataItem.getUri().getHost(),
+                        readSendTime(dataItem), receivedMicros);
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link Constants#KEY_SEND_TIME} of a data item synced with timestamping enabled,
+     * or -1.
+     */
+    private static long readSendTime(DataItem dataItem) {
+        DataMap dataMap = GmsWear.readDataMap(dataItem);
+        return dataMap == null ? -1 : dataMap.getLong(Constants.KEY_SEND_TIME, -1);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.connectivity.ChannelRouter;
+import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.connectivity.TransferPath;
+import com.cscao.libs.gmswear.connectivity.dedup.ContentStore;
+import com.cscao.libs.gmswear.connectivity.dedup.DedupSync;
+import com.cscao.libs.gmswear.connectivity.delta.DeltaSync;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.trace.Span;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.transport.WearableTransport;
+import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.common.api.CommonStatusCodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * The receiving end of the transfers started through {@link FileTransfer}: registers a
+ * {@link ChannelRouter.ChannelHandler} for each kind of {@link TransferPath}, saves what is
+ * received in the files directory of {@link GmsWear} and reports the result to the
+ * {@link DataConsumer}s. The streams of the channels are read and written on the worker threads
+ * of {@link GmsWear}.
+ */
+final class TransferReceiver {
+
+    private static final String TAG = "TransferReceiver";
+
+    private final GmsWear mGmsWear;
+    private final Set<DataConsumer> mDataConsumers;
+    private final TrafficMetrics mTrafficMetrics;
+    private final SensorStreamReceiver mSensorStreamReceiver;
+    private final Tracer mTracer;
+    private final TraceIds mTraceIds;
+
+    TransferReceiver(GmsWear gmsWear, Set<DataConsumer> dataConsumers,
+            TrafficMetrics trafficMetrics, SensorStreamReceiver sensorStreamReceiver,
+            Tracer tracer, TraceIds traceIds) {
+        mGmsWear = gmsWear;
+        mDataConsumers = dataConsumers;
+        mTrafficMetrics = trafficMetrics;
+        mSensorStreamReceiver = sensorStreamReceiver;
+        mTracer = tracer;
+        mTraceIds = traceIds;
+    }
+
+    void registerHandlers(ChannelRouter channelRouter) {
+        channelRouter.register(Constants.PATH_FILE_TRANSFER_TYPE_FILE,
+                new ChannelRouter.ChannelHandler() {
+                    @Override
+                    public void onChannelOpened(TransportChannel channel, TransferPath path) {
+                        mTrafficMetrics.recordTransferLatency(channel, path);
+                        // we are receiving a file sent by FileTransfer
+                        File outFile = targetFileFor(channel, path);
+                        if (outFile != null) {
+                            receiveFile(channel, outFile, path.getRequestId(), path.getSize());
+                        }
+                    }
+                });
+        channelRouter.register(Constants.PATH_FILE_TRANSFER_TYPE_DELTA,
+                new ChannelRouter.ChannelHandler() {
+                    @Override
+                    public void onChannelOpened(TransportChannel channel, TransferPath path) {
+                        mTrafficMetrics.recordTransferLatency(channel, path);
+                        // we are receiving a delta of a file sent by
+                        // FileTransfer.startDeltaTransfer()
+                        File outFile = targetFileFor(channel, path);
+                        if (outFile != null) {
+                            receiveDeltaFile(channel, outFile, path.getRequestId());
+                        }
+                    }
+                });
+        channelRouter.register(Constants.PATH_FILE_TRANSFER_TYPE_DEDUP,
+                new ChannelRouter.ChannelHandler() {
+                    @Override
+                    public void onChannelOpened(TransportChannel channel, TransferPath path) {
+                        mTrafficMetrics.recordTransferLatency(channel, path);
+                        // we are receiving a file offered by FileTransfer.startDedupTransfer()
+                        File outFile = targetFileFor(channel, path);
+                        if (outFile != null) {
+                            receiveDedupFile(channel, outFile, path.getRequestId(),
+                                    path.getContentHash(), path.getSize());
+                        }
+                    }
+                });
+        channelRouter.register(Constants.PATH_FILE_TRANSFER_TYPE_STREAM,
+                new ChannelRouter.ChannelHandler() {
+                    @Override
+                    public void onChannelOpened(TransportChannel channel, TransferPath path) {
+                        mTrafficMetrics.recordTransferLatency(channel, path);
+                        // we are receiving data by low level InputStream, sent by FileTransfer
+                        receiveStream(channel, path.getRequestId());
+                    }
+                });
+        channelRouter.register(Constants.PATH_FILE_TRANSFER_TYPE_SENSOR,
+                new ChannelRouter.ChannelHandler() {
+                    @Override
+                    public void onChannelOpened(TransportChannel channel, TransferPath path) {
+                        mTrafficMetrics.recordTransferLatency(channel, path);
+                        // we are receiving the frames of a SensorStream
+                        mSensorStreamReceiver.receive(channel, path.getRequestId());
+                    }
+                });
+    }
+
+
+    /**
+     * Returns the file in the files directory of {@link GmsWear} that {@code path} names, or
+     * {@code null} if there is no such directory, {@code path} doesn't carry the parameters of a
+     * file or its name could point outside of the directory; the channel is then closed.
+     */
+    @Nullable
+    private File targetFileFor(TransportChannel channel, TransferPath path) {
+        File file = path.isFile() ? fileFor(path.getName()) : null;
+        if (file == null) {
+            WearLog.e(TAG, "Expected the path of a file transfer: {}", channel.getPath());
+            mGmsWear.closeChannel(channel);
+        }
+        return file;
+    }
+
+    /**
+     * Returns the file named {@code name} in the files directory, or {@code null} if the name,
+     * which is chosen by the sending node, is not a plain file name. Delta transfers send the
+     * signature of the existing file back, so this guards reads as well as writes.
+     */
+    @Nullable
+    private File fileFor(String name) {
+        if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0
+                || ".".equals(name) || "..".equals(name)) {
+            return null;
+        }
+        File directory = mGmsWear.getFilesDir();
+        if (directory == null) {
+            WearLog.e(TAG, "No files directory to save {} to", name);
+            return null;
+        }
+        File file = new File(directory, name);
+        try {
+            if (!directory.getCanonicalFile().equals(file.getCanonicalFile().getParentFile())) {
+                return null;
+            }
+        } catch (IOException e) {
+            WearLog.e(TAG, "Failed to resolve the file: {}", name, e);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Saves what is read from {@code channel} to {@code outFile} on a worker thread; the transfer
+     * only succeeds if the sender closes its stream after {@code size} bytes.
+     */
+    private void receiveFile(final TransportChannel channel, final File outFile,
+            final String requestId, final long size) {
+        final Span span = mTracer.begin("receiveFile", mTraceIds.transferTraceId(requestId),
+                outFile.getName(), Tracer.FLOW_IN);
+        mGmsWear.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                int statusCode = CommonStatusCodes.ERROR;
+                InputStream inputStream = null;
+                OutputStream outputStream = null;
+                try {
+                    inputStream = channel.getInputStream();
+                    outputStream = new FileOutputStream(outFile);
+                    long received = WearUtil.copy(inputStream, outputStream, -1);
+                    outputStream.close();
+                    outputStream = null;
+                    if (received == size) {
+                        statusCode = CommonStatusCodes.SUCCESS;
+                    } else {
+                        WearLog.e(TAG, "receiveFile(): Received {} bytes of {}", received, size);
+                    }
+                } catch (IOException e) {
+                    WearLog.e(TAG, "receiveFile(): IO Error while receiving {}", outFile, e);
+                } finally {
+                    WearUtil.closeQuietly(outputStream);
+                    WearUtil.closeQuietly(inputStream);
+                    mGmsWear.closeChannel(channel);
+                    span.end();
+                }
+                notifyFileReceived(statusCode, requestId, outFile);
+            }
+        });
+    }
+
+    /**
+     * Hands the input stream of {@code channel} to the {@link DataConsumer}s on a worker thread.
+     * They are given the {@link com.google.android.gms.wearable.Channel} behind it only if it went
+     * through the Wearable APIs.
+     */
+    private void receiveStream(final TransportChannel channel, final String requestId) {
+        final Span span = mTracer.begin("receiveStream", mTraceIds.transferTraceId(requestId), null,
+                Tracer.FLOW_IN);
+        mGmsWear.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                int statusCode = CommonStatusCodes.SUCCESS;
+                InputStream inputStream = null;
+                try {
+                    inputStream = channel.getInputStream();
+                } catch (IOException e) {
+                    WearLog.e(TAG, "Failed to open InputStream from channel {}",
+                            channel.getPath(), e);
+                    statusCode = CommonStatusCodes.ERROR;
+                    mGmsWear.closeChannel(channel);
+                }
+                for (DataConsumer consumer : mDataConsumers) {
+                    consumer.onInputStreamForChannelOpened(statusCode, requestId,
+                            WearableTransport.getChannel(channel), inputStream);
+                }
+                span.end();
+            }
+        });
+    }
+
+    /**
+     * Runs the receiving end of {@link DeltaSync} on a worker thread: the existing copy of the
+     * file in the private data storage is used as the basis and is only replaced once the new
+     * content has been verified.
+     */
+    private void receiveDeltaFile(TransportChannel channel, final File outFile,
+            String requestId) {
+        receiveTwoWay("receiveDeltaFile()", channel, requestId, outFile, new TwoWayReceiver() {
+            @Override
+            public boolean receive(InputStream inputStream, OutputStream outputStream)
+                    throws IOException {
+                return DeltaSync.receive(outFile, inputStream, outputStream);
+            }
+        });
+    }
+
+    /**
+     * Runs the receiving end of {@link DedupSync} on a worker thread: if the content with the
+     * offered {@code hash} is already in the {@link ContentStore}, the payload is skipped and the
+     * stored copy is copied to the target name.
+     */
+    private void receiveDedupFile(TransportChannel channel, final File outFile, String requestId,
+            final String hash, final long size) {
+        receiveTwoWay("receiveDedupFile()", channel, requestId, outFile, new TwoWayReceiver() {
+            @Override
+            public boolean receive(InputStream inputStream, OutputStream outputStream)
+                    throws IOException {
+                return DedupSync.receive(mGmsWear.getContentStore(), hash, size, outFile,
+                        inputStream, outputStream);
+            }
+        });
+    }
+
+    private void receiveTwoWay(final String operation, TransportChannel channel,
+            final String requestId, final File outFile, final TwoWayReceiver receiver) {
+        final Span span = mTracer.begin(operation, mTraceIds.transferTraceId(requestId),
+                outFile.getName(), Tracer.FLOW_IN);
+        mGmsWear.getChannelStreams(channel, new FileTransfer.OnChannelStreamsReadyListener() {
+            @Override
+            public void onChannelStreamsReady(int statusCode, TransportChannel channel,
+                    InputStream inputStream, OutputStream outputStream) {
+                if (statusCode != CommonStatusCodes.SUCCESS) {
+                    WearLog.e(TAG, "{}: Failed to open streams, status code: {}", operation,
+                            statusCode);
+                    span.end();
+                    notifyFileReceived(statusCode, requestId, outFile);
+                    return;
+                }
+                int resultStatusCode = CommonStatusCodes.ERROR;
+                try {
+                    if (receiver.receive(inputStream, outputStream)) {
+                        resultStatusCode = CommonStatusCodes.SUCCESS;
+                    } else {
+                        WearLog.e(TAG, "{}: Failed to save {}", operation, outFile);
+                    }
+                } catch (IOException e) {
+                    WearLog.e(TAG, "{}: IO Error while receiving {}", operation, outFile, e);
+                } finally {
+                    WearUtil.closeQuietly(inputStream);
+                    WearUtil.closeQuietly(outputStream);
+                    mGmsWear.closeChannel(channel);
+                    span.end();
+                }
+                notifyFileReceived(resultStatusCode, requestId, outFile);
+            }
+        });
+    }
+
+    private void notifyFileReceived(int statusCode, String requestId, File file) {
+        Span span = mTracer.begin("notifyFileReceived", mTraceIds.transferTraceId(requestId));
+        for (DataConsumer consumer : mDataConsumers) {
+            consumer.onFileReceivedResult(statusCode, requestId, file, file.getName());
+        }
+        span.end();
+    }
+
+    /**
+     * The receiver side of a protocol that runs over both streams of a channel. Returns
+     * {@code true} if the file was saved.
+     */
+    private interface TwoWayReceiver {
+        boolean receive(InputStream inputStream, OutputStream outputStream) throws IOException;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.async.WearFuture;
+import com.cscao.libs.gmswear.transport.Transport;
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.transport.TransportDataItem;
+import com.cscao.libs.gmswear.transport.TransportMessage;
+import com.cscao.libs.gmswear.transport.TransportNode;
+import com.google.android.gms.common.api.Result;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.CapabilityInfo;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemAsset;
+import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Passes the events of a {@link Transport} given to {@link GmsWear#forTransport(Transport,
+ * String...)} on to that instance, in the types of the Wearable APIs that its
+ * {@link com.cscao.libs.gmswear.consumer.DataConsumer}s and streams expect. Channels are passed
+ * on as they are, to be routed by {@link GmsWear#onChannelOpened(TransportChannel)}.
+ */
+final class TransportBridge implements Transport.Listener {
+
+    private final GmsWear mGmsWear;
+    private final Transport mTransport;
+
+    TransportBridge(GmsWear gmsWear, Transport transport) {
+        mGmsWear = gmsWear;
+        mTransport = transport;
+    }
+
+    /**
+     * Asks the transport for the connected nodes; {@code callback} runs even if that fails.
+     */
+    void getConnectedNodes(final Transport.Callback<List<Node>> callback) {
+        mTransport.getConnectedNodes(new Transport.Callback<List<TransportNode>>() {
+            @Override
+            public void onResult(int statusCode, List<TransportNode> nodes) {
+                callback.onResult(statusCode, nodes == null ? null : toNodes(nodes));
+            }
+        });
+    }
+
+    /**
+     * Asks the transport for the reachable nodes that advertise {@code capability};
+     * {@code callback} runs even if that fails.
+     */
+    void getCapabilityNodes(String capability, final Transport.Callback<Set<Node>> callback) {
+        mTransport.getCapability(capability, new Transport.Callback<Set<TransportNode>>() {
+            @Override
+            public void onResult(int statusCode, Set<TransportNode> nodes) {
+                callback.onResult(statusCode,
+                        nodes == null ? null : new HashSet<>(toNodes(nodes)));
+            }
+        });
+    }
+
+    @Override
+    public void onMessageReceived(TransportMessage message) {
+        mGmsWear.onMessageReceived(new BridgedMessageEvent(message));
+    }
+
+    @Override
+    public void onDataChanged(TransportDataItem dataItem, boolean deleted) {
+        mGmsWear.onDataChanged(Collections.<DataEvent>singletonList(new BridgedDataEvent(
+                deleted ? DataEvent.TYPE_DELETED : DataEvent.TYPE_CHANGED,
+                new BridgedDataItem(dataItem))));
+    }
+
+    @Override
+    public void onPeerConnected(TransportNode node) {
+        mGmsWear.onPeerConnected(new BridgedNode(node));
+    }
+
+    @Override
+    public void onPeerDisconnected(TransportNode node) {
+        mGmsWear.onPeerDisconnected(new BridgedNode(node));
+    }
+
+    @Override
+    public void onCapabilityChanged(final String capability, Set<TransportNode> nodes) {
+        final Set<Node> capabilityNodes = new HashSet<>(toNodes(nodes));
+        mGmsWear.onCapabilityChanged(new CapabilityInfo() {
+            @Override
+            public String getName() {
+                return capability;
+            }
+
+            @Override
+            public Set<Node> getNodes() {
+                return capabilityNodes;
+            }
+        });
+    }
+
+    @Override
+    public void onChannelOpened(TransportChannel channel) {
+        mGmsWear.onChannelOpened(channel);
+    }
+
+    /**
+     * Returns a data item that went through a transport as one of the Data API.
+     */
+    static DataItem newDataItem(TransportDataItem dataItem) {
+        return new BridgedDataItem(dataItem);
+    }
+
+    /**
+     * Returns the result of putting or getting a data item through a transport as that of the
+     * Data API.
+     */
+    static DataApi.DataItemResult newDataItemResult(final int statusCode,
+            final TransportDataItem dataItem) {
+        return new DataApi.DataItemResult() {
+            @Override
+            public DataItem getDataItem() {
+                return dataItem == null ? null : new BridgedDataItem(dataItem);
+            }
+
+            @Override
+            public Status getStatus() {
+                return new Status(statusCode);
+            }
+        };
+    }
+
+    /**
+     * Returns the result of deleting data items through a transport as that of the Data API.
+     */
+    static DataApi.DeleteDataItemsResult newDeleteDataItemsResult(final int statusCode,
+            final int numDeleted) {
+        return new DataApi.DeleteDataItemsResult() {
+            @Override
+            public int getNumDeleted() {
+                return numDeleted;
+            }
+
+            @Override
+            public Status getStatus() {
+                return new Status(statusCode);
+            }
+        };
+    }
+
+    /**
+     * Blocks for up to {@code timeoutMillis} until {@code future} is completed with the result of
+     * a call that went through the transport, the way {@code PendingResult.await()} does for the
+     * Wearable APIs. Returns {@code null} if it timed out, or if the thread was interrupted, in
+     * which case the interrupt is restored.
+     */
+    @Nullable
+    static <R extends Result> R await(WearFuture<R> future, long timeoutMillis) {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    private static List<Node> toNodes(Collection<TransportNode> transportNodes) {
+        List<Node> nodes = new ArrayList<>(transportNodes.size());
+        for (TransportNode transportNode : transportNodes) {
+            nodes.add(new BridgedNode(transportNode));
+        }
+        return nodes;
+    }
+
+    private static final class BridgedNode implements Node {
+        private final TransportNode mNode;
+
+        BridgedNode(TransportNode node) {
+            mNode = node;
+        }
+
+        @Override
+        public String getId() {
+            return mNode.getId();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return mNode.getDisplayName();
+        }
+
+        @Override
+        public boolean isNearby() {
+            return mNode.isNearby();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Node && mNode.getId().equals(((Node) o).getId());
+        }
+
+        @Override
+        public int hashCode() {
+            return mNode.getId().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mNode.toString();
+        }
+    }
+
+    private static final class BridgedMessageEvent implements MessageEvent {
+        private final TransportMessage mMessage;
+
+        BridgedMessageEvent(TransportMessage message) {
+            mMessage = message;
+        }
+
+        @Override
+        public int getRequestId() {
+            return mMessage.getRequestId();
+        }
+
+        @Override
+        public String getPath() {
+            return mMessage.getPath();
+        }
+
+        @Override
+        public byte[] getData() {
+            return mMessage.getData();
+        }
+
+        @Override
+        public String getSourceNodeId() {
+            return mMessage.getSourceNodeId();
+        }
+    }
+
+    /**
+     * A data item of a transport, which has no assets. It is immutable, so it is its own frozen
+     * copy.
+     */
+    private static final class BridgedDataItem implements DataItem {
+        private final TransportDataItem mDataItem;
+        private Uri mUri;
+
+        BridgedDataItem(TransportDataItem dataItem) {
+            mDataItem = dataItem;
+        }
+
+        @Override
+        public synchronized Uri getUri() {
+            if (mUri == null) {
+                mUri = Uri.parse("wear://" + mDataItem.getNodeId() + mDataItem.getPath());
+            }
+            return mUri;
+        }
+
+        @Override
+        public byte[] getData() {
+            return mDataItem.getData();
+        }
+
+        @Override
+        public Map<String, DataItemAsset> getAssets() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public DataItem setData(byte[] data) {
+            throw new UnsupportedOperationException("A received data item cannot be changed");
+        }
+
+        @Override
+        public DataItem freeze() {
+            return this;
+        }
+
+        @Override
+        public boolean isDataValid() {
+            return true;
+        }
+    }
+
+    private static final class BridgedDataEvent implements DataEvent {
+        private final int mType;
+        private final DataItem mDataItem;
+
+        BridgedDataEvent(int type, DataItem dataItem) {
+            mType = type;
+            mDataItem = dataItem;
+        }
+
+        @Override
+        public int getType() {
+            return mType;
+        }
+
+        @Override
+        public DataItem getDataItem() {
+            return mDataItem;
+        }
+
+        @Override
+        public DataEvent freeze() {
+            return this;
+        }
+
+        @Override
+        public boolean isDataValid() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.async;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+
+/**
+ * The failure of a {@link WearFuture} whose call completed with a status other than
+ * {@link CommonStatusCodes#SUCCESS}.
+ */
+public class StatusException extends Exception {
+
+    private final int mStatusCode;
+
+    public StatusException(int statusCode) {
+        super("Status code " + statusCode + " (" + CommonStatusCodes.getStatusCodeString(statusCode)
+                + ")");
+        mStatusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+}
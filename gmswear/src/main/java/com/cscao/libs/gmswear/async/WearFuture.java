@@ -0,0 +1,532 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.async;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.Releasable;
+import com.google.android.gms.common.api.Result;
+import com.google.android.gms.common.api.ResultCallback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of an asynchronous call that completes later, either with a value or with a failure.
+ * <p>
+ * Unlike a {@link PendingResult}, a future can be composed with other futures through
+ * {@link #thenApply(Function)}, {@link #thenCompose(AsyncFunction)}, {@link #allOf(List)} and
+ * {@link #successfulAsList(List)}, can time out through {@link #withTimeout(long, TimeUnit)} and
+ * can be cancelled; cancellation and timeouts are passed on to the call that the future waits
+ * for, e.g. the {@link PendingResult} it wraps. Results with a status other than success complete
+ * the future with a {@link StatusException}.
+ * <p>
+ * {@link Callback}s run on the thread that completes the future, which for calls to the Wearable
+ * APIs is the main thread, or right away on the calling thread if the future is already done.
+ * They should not block; use {@link #get()} on a worker thread to wait for a future.
+ */
+public class WearFuture<T> implements Future<T> {
+
+    private static final String TAG = "WearFuture";
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private int mState = STATE_PENDING;
+    private T mValue;
+    private Throwable mFailure;
+    private List<Callback<? super T>> mCallbacks = new ArrayList<>(2);
+    private List<Runnable> mCancelHooks;
+
+    /**
+     * Returns a future that already succeeded with {@code value}.
+     */
+    public static <T> WearFuture<T> succeeded(T value) {
+        WearFuture<T> future = new WearFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * Returns a future that already failed with {@code failure}.
+     */
+    public static <T> WearFuture<T> failed(Throwable failure) {
+        WearFuture<T> future = new WearFuture<>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Returns a future that completes with the result of {@code pendingResult}, or fails with a
+     * {@link StatusException} if its status is not successful. Cancelling the future cancels
+     * {@code pendingResult}.
+     */
+    public static <R extends Result> WearFuture<R> from(final PendingResult<R> pendingResult) {
+        WearFuture<R> future = new WearFuture<>();
+        future.whenCancelled(new Runnable() {
+            @Override
+            public void run() {
+                pendingResult.cancel();
+            }
+        });
+        pendingResult.setResultCallback(completing(future));
+        return future;
+    }
+
+    /**
+     * Returns a {@link ResultCallback} that completes {@code future} with the result it
+     * receives, or fails it with a {@link StatusException} if the status is not successful.
+     */
+    public static <R extends Result> ResultCallback<R> completing(final WearFuture<R> future) {
+        return new ResultCallback<R>() {
+            @Override
+            public void onResult(R result) {
+                if (result.getStatus().isSuccess()) {
+                    future.complete(result);
+                } else {
+                    future.fail(new StatusException(result.getStatus().getStatusCode()));
+                }
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #completing(WearFuture)}, for results that hold resources, such as a
+     * {@link com.google.android.gms.wearable.DataItemBuffer}: the result is released unless it
+     * completes {@code future}, i.e. if its status is not successful or if {@code future} has
+     * already failed or been cancelled.
+     */
+    public static <R extends Result & Releasable> ResultCallback<R> completingOrReleasing(
+            final WearFuture<R> future) {
+        return new ResultCallback<R>() {
+            @Override
+            public void onResult(R result) {
+                if (result.getStatus().isSuccess()) {
+                    if (!future.complete(result)) {
+                        // nobody will get to release it
+                        result.release();
+                    }
+                } else {
+                    future.fail(new StatusException(result.getStatus().getStatusCode()));
+                    result.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a future that succeeds with the values of all {@code futures}, in the same order,
+     * once they all succeed. It fails as soon as one of them fails; cancelling it cancels all of
+     * them.
+     */
+    public static <T> WearFuture<List<T>> allOf(List<? extends WearFuture<? extends T>> futures) {
+        return join(futures, true);
+    }
+
+    /**
+     * Returns a future that succeeds once all {@code futures} are done, with their values in the
+     * same order and {@code null} in place of the ones that failed. It never fails; cancelling
+     * it cancels all of {@code futures}.
+     */
+    public static <T> WearFuture<List<T>> successfulAsList(
+            List<? extends WearFuture<? extends T>> futures) {
+        return join(futures, false);
+    }
+
+    private static <T> WearFuture<List<T>> join(
+            final List<? extends WearFuture<? extends T>> futures, final boolean failFast) {
+        final WearFuture<List<T>> result = new WearFuture<>();
+        final int size = futures.size();
+        if (size == 0) {
+            result.complete(Collections.<T>emptyList());
+            return result;
+        }
+        final List<T> values = new ArrayList<>(Collections.<T>nCopies(size, null));
+        final AtomicInteger remaining = new AtomicInteger(size);
+        result.whenCancelled(new Runnable() {
+            @Override
+            public void run() {
+                for (WearFuture<? extends T> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        });
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            futures.get(i).addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    synchronized (values) {
+                        values.set(index, value);
+                    }
+                    onDone();
+                }
+
+                @Override
+                public void onFailure(Throwable failure) {
+                    if (failFast) {
+                        result.fail(failure);
+                    } else {
+                        onDone();
+                    }
+                }
+
+                private void onDone() {
+                    if (remaining.decrementAndGet() == 0) {
+                        synchronized (values) {
+                            result.complete(Collections.unmodifiableList(values));
+                        }
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Completes this future with {@code value}. Returns {@code false} if it was already done.
+     */
+    public boolean complete(T value) {
+        return finish(STATE_SUCCEEDED, value, null);
+    }
+
+    /**
+     * Fails this future with {@code failure}. Returns {@code false} if it was already done.
+     */
+    public boolean fail(Throwable failure) {
+        return finish(STATE_FAILED, null, WearUtil.assertNotNull(failure, "failure"));
+    }
+
+    /**
+     * Cancels this future and the call it waits for. Callbacks receive a
+     * {@link CancellationException}.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(STATE_CANCELLED, null, new CancellationException());
+    }
+
+    /**
+     * Fails this future with a {@link TimeoutException} if it is not done within
+     * {@code timeout}, and cancels the call it waits for. Returns this future.
+     */
+    public WearFuture<T> withTimeout(final long timeout, final TimeUnit unit) {
+        final ScheduledFuture<?> timer = Timer.EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                finish(STATE_FAILED, null, new TimeoutException(
+                        "Timed out after " + unit.toMillis(timeout) + "ms"));
+            }
+        }, timeout, unit);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                timer.cancel(false);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                timer.cancel(false);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Registers {@code hook} to run if this future is cancelled or times out, e.g. to cancel the
+     * underlying call. Runs it right away if that already happened.
+     */
+    public WearFuture<T> whenCancelled(Runnable hook) {
+        WearUtil.assertNotNull(hook, "hook");
+        synchronized (this) {
+            if (mState == STATE_PENDING) {
+                if (mCancelHooks == null) {
+                    mCancelHooks = new ArrayList<>(1);
+                }
+                mCancelHooks.add(hook);
+                return this;
+            }
+            if (mState != STATE_CANCELLED && !(mFailure instanceof TimeoutException)) {
+                return this;
+            }
+        }
+        hook.run();
+        return this;
+    }
+
+    /**
+     * Registers {@code callback} to be called once this future is done; see the class
+     * documentation for the thread it runs on.
+     */
+    public WearFuture<T> addCallback(Callback<? super T> callback) {
+        WearUtil.assertNotNull(callback, "callback");
+        synchronized (this) {
+            if (mState == STATE_PENDING) {
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        dispatch(callback);
+        return this;
+    }
+
+    /**
+     * Returns a future that succeeds with {@code function} applied to the value of this one.
+     * Failures are passed on; cancelling the returned future cancels this one.
+     */
+    public <R> WearFuture<R> thenApply(final Function<? super T, ? extends R> function) {
+        WearUtil.assertNotNull(function, "function");
+        final WearFuture<R> result = dependent();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                R mapped;
+                try {
+                    mapped = function.apply(value);
+                } catch (RuntimeException e) {
+                    result.fail(e);
+                    return;
+                }
+                result.complete(mapped);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                result.failOrCancel(failure);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns a future that completes like the future that {@code function} returns for the value
+     * of this one, e.g. to chain two calls. Failures are passed on; cancelling the returned future
+     * cancels this one or the chained one.
+     */
+    public <R> WearFuture<R> thenCompose(final AsyncFunction<? super T, R> function) {
+        WearUtil.assertNotNull(function, "function");
+        final WearFuture<R> result = dependent();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                final WearFuture<R> next;
+                try {
+                    next = WearUtil.assertNotNull(function.apply(value), "next future");
+                } catch (RuntimeException e) {
+                    result.fail(e);
+                    return;
+                }
+                result.whenCancelled(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.cancel(false);
+                    }
+                });
+                next.addCallback(new Callback<R>() {
+                    @Override
+                    public void onSuccess(R nextValue) {
+                        result.complete(nextValue);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable failure) {
+                        result.failOrCancel(failure);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                result.failOrCancel(failure);
+            }
+        });
+        return result;
+    }
+
+    private <R> WearFuture<R> dependent() {
+        WearFuture<R> result = new WearFuture<>();
+        result.whenCancelled(new Runnable() {
+            @Override
+            public void run() {
+                cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private void failOrCancel(Throwable failure) {
+        if (failure instanceof CancellationException) {
+            cancel(false);
+        } else {
+            fail(failure);
+        }
+    }
+
+    private boolean finish(int state, T value, Throwable failure) {
+        List<Callback<? super T>> callbacks;
+        List<Runnable> cancelHooks;
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mState = state;
+            mValue = value;
+            mFailure = failure;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            cancelHooks = mCancelHooks;
+            mCancelHooks = null;
+            notifyAll();
+        }
+        // cancel the underlying call before anyone is told about the cancellation or timeout
+        if (cancelHooks != null
+                && (state == STATE_CANCELLED || failure instanceof TimeoutException)) {
+            for (Runnable hook : cancelHooks) {
+                hook.run();
+            }
+        }
+        for (Callback<? super T> callback : callbacks) {
+            dispatch(callback);
+        }
+        return true;
+    }
+
+    private void dispatch(Callback<? super T> callback) {
+        try {
+            if (mState == STATE_SUCCEEDED) {
+                callback.onSuccess(mValue);
+            } else {
+                callback.onFailure(mFailure);
+            }
+        } catch (RuntimeException e) {
+            WearLog.e(TAG, "Callback {} threw", callback, e);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != STATE_PENDING;
+    }
+
+    /**
+     * Blocks until this future is done; must not be called on the main thread.
+     */
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            while (mState == STATE_PENDING) {
+                wait();
+            }
+            return getDoneLocked();
+        }
+    }
+
+    /**
+     * Blocks until this future is done or {@code timeout} elapses; must not be called on the
+     * main thread. Timing out here does not cancel the future.
+     */
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (mState == STATE_PENDING) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return getDoneLocked();
+        }
+    }
+
+    private T getDoneLocked() throws ExecutionException {
+        if (mState == STATE_SUCCEEDED) {
+            return mValue;
+        }
+        if (mState == STATE_CANCELLED) {
+            throw (CancellationException) mFailure;
+        }
+        throw new ExecutionException(mFailure);
+    }
+
+    /**
+     * Receives the outcome of a {@link WearFuture}.
+     */
+    public interface Callback<T> {
+
+        void onSuccess(T value);
+
+        /**
+         * Called with the failure; a {@link CancellationException} if the future was cancelled,
+         * a {@link TimeoutException} if it timed out or a {@link StatusException} if the call
+         * returned an unsuccessful status.
+         */
+        void onFailure(Throwable failure);
+    }
+
+    /**
+     * Transforms the value of a future; see {@link #thenApply(Function)}.
+     */
+    public interface Function<I, O> {
+
+        O apply(I input);
+    }
+
+    /**
+     * Starts a call that depends on the value of a future; see
+     * {@link #thenCompose(AsyncFunction)}.
+     */
+    public interface AsyncFunction<I, O> {
+
+        WearFuture<O> apply(I input);
+    }
+
+    /**
+     * Holds the thread that times out the futures, which is only started when needed.
+     */
+    private static final class Timer {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+}
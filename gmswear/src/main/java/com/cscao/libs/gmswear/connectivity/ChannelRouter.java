@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import com.cscao.libs.gmswear.transport.TransportChannel;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A registry that routes channels opened by a remote node to a {@link ChannelHandler} based on
+ * the prefix of the channel path. When several prefixes match a path, the longest one wins. The
+ * path is parsed into a {@link TransferPath} before the handler is called; a path that cannot be
+ * parsed is logged and its channel is left to the caller.
+ * <p>
+ * Registration copies the routing table, so routing itself takes no lock and doesn't allocate
+ * beyond the parsed {@link TransferPath}.
+ */
+public final class ChannelRouter {
+
+    private static final String TAG = "ChannelRouter";
+    private static final Comparator<Route> LONGEST_PREFIX_FIRST = new Comparator<Route>() {
+        @Override
+        public int compare(Route lhs, Route rhs) {
+            return rhs.mPrefix.length() - lhs.mPrefix.length();
+        }
+    };
+
+    private volatile Route[] mRoutes = new Route[0];
+
+    /**
+     * Routes channels whose path starts with {@code prefix} to {@code handler}, replacing any
+     * handler previously registered for the same prefix.
+     */
+    public synchronized void register(String prefix, ChannelHandler handler) {
+        WearUtil.assertNotEmpty(prefix, "prefix");
+        WearUtil.assertNotNull(handler, "handler");
+        Route[] routes = mRoutes;
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i].mPrefix.equals(prefix)) {
+                Route[] updated = routes.clone();
+                updated[i] = new Route(prefix, handler);
+                mRoutes = updated;
+                return;
+            }
+        }
+        Route[] updated = Arrays.copyOf(routes, routes.length + 1);
+        updated[routes.length] = new Route(prefix, handler);
+        Arrays.sort(updated, LONGEST_PREFIX_FIRST);
+        mRoutes = updated;
+    }
+
+    /**
+     * Removes the handler registered for {@code prefix}, if any.
+     */
+    public synchronized void unregister(String prefix) {
+        Route[] routes = mRoutes;
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i].mPrefix.equals(prefix)) {
+                Route[] updated = new Route[routes.length - 1];
+                System.arraycopy(routes, 0, updated, 0, i);
+                System.arraycopy(routes, i + 1, updated, i, routes.length - i - 1);
+                mRoutes = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Dispatches {@code channel} to the handler registered for the longest matching prefix.
+     *
+     * @return {@code true} if a handler was found and the path could be parsed, {@code false}
+     * otherwise.
+     */
+    public boolean dispatch(TransportChannel channel) {
+        String path = channel.getPath();
+        for (Route route : mRoutes) {
+            if (path.startsWith(route.mPrefix)) {
+                TransferPath transferPath = TransferPath.parse(route.mPrefix, path);
+                if (transferPath == null) {
+                    WearLog.e(TAG, "dispatch(): Malformed or unsupported transfer path: {}", path);
+                    return false;
+                }
+                route.mHandler.onChannelOpened(channel, transferPath);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handles the channels routed to it by a {@link ChannelRouter}.
+     */
+    public interface ChannelHandler {
+
+        /**
+         * Called when a remote node opens {@code channel}; {@code path} holds the parameters
+         * parsed from its path. The streams of the channel block, so they should be read and
+         * written on a worker thread.
+         */
+        void onChannelOpened(TransportChannel channel, TransferPath path);
+    }
+
+    private static final class Route {
+        private final String mPrefix;
+        private final ChannelHandler mHandler;
+
+        Route(String prefix, ChannelHandler handler) {
+            mPrefix = prefix;
+            mHandler = handler;
+        }
+    }
+}
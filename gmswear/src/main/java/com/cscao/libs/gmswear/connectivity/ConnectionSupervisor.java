@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.common.ConnectionResult;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the connection to the Wearable APIs alive and holds on to the operations that are
+ * requested while it is down.
+ * <p>
+ * Whenever the connection is suspended or fails, the supervisor asks its {@link Connector} to
+ * connect again, waiting between attempts with an exponential backoff from
+ * {@link #DEFAULT_INITIAL_BACKOFF_MILLIS} up to {@link #DEFAULT_MAX_BACKOFF_MILLIS}. Every delay
+ * is picked at random between half and all of the current backoff, so that the nodes don't retry
+ * in lock step. Errors that retrying can't fix, such as Google Play services missing from the
+ * device, end the retries instead, see {@link #onConnectionFailed(int)}.
+ * <p>
+ * Operations passed to {@link #execute(Operation)} run right away while connected. Otherwise they
+ * wait in a queue of at most {@link #DEFAULT_QUEUE_CAPACITY} operations, in the order they were
+ * submitted, and run once the connection is back; when the queue is full the oldest operation is
+ * dropped to make room. {@link #getStats()} reports how the reconnections and the queue fared.
+ * <p>
+ * Nothing happens until {@link #start()} is called. Submitting an operation before that starts
+ * the supervisor, so the first connection can be deferred until something needs it.
+ */
+public final class ConnectionSupervisor {
+
+    private static final String TAG = "ConnectionSupervisor";
+
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final Connector mConnector;
+    private final ScheduledExecutorService mExecutor;
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<>();
+    private final Random mRandom = new Random();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private int mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private boolean mStarted;
+    private boolean mConnected;
+    private boolean mDraining;
+    private boolean mEverConnected;
+    private int mAttempt;
+    private long mDisconnectedAtMillis = now();
+    private ScheduledFuture<?> mReconnect;
+    private int mGiveUpErrorCode = ConnectionResult.SUCCESS;
+
+    private int mReconnectCount;
+    private int mAttemptCount;
+    private long mLastReconnectMillis = -1;
+    private long mMaxReconnectMillis;
+    private long mTotalReconnectMillis;
+    private long mQueuedCount;
+    private long mDroppedCount;
+    private long mDrainedCount;
+
+    public ConnectionSupervisor(Connector connector) {
+        this(connector, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * Creates a supervisor that uses {@code timer} to wait between the reconnection attempts.
+     */
+    public ConnectionSupervisor(Connector connector, ScheduledExecutorService timer) {
+        mConnector = WearUtil.assertNotNull(connector, "connector");
+        mExecutor = WearUtil.assertNotNull(timer, "timer");
+    }
+
+    public synchronized void setBackoffMillis(long initialBackoffMillis, long maxBackoffMillis) {
+        if (initialBackoffMillis <= 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("Invalid backoff: " + initialBackoffMillis + ", "
+                    + maxBackoffMillis);
+        }
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Sets the maximum number of operations that wait for the connection; the oldest ones are
+     * dropped if the queue already holds more.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + queueCapacity);
+        }
+        Operation[] dropped;
+        synchronized (this) {
+            mQueueCapacity = queueCapacity;
+            dropped = trimQueueLocked(0);
+        }
+        drop(dropped);
+    }
+
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Returns {@code true} if the supervisor stopped reconnecting after an unrecoverable error,
+     * see {@link #onConnectionFailed(int)}.
+     */
+    public synchronized boolean hasGivenUp() {
+        return mGiveUpErrorCode != ConnectionResult.SUCCESS;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(WearUtil.assertNotNull(listener, "listener"));
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(WearUtil.assertNotNull(listener, "listener"));
+    }
+
+    /**
+     * Connects for the first time. Calling this again has no effect; the supervisor takes care
+     * of the reconnections from then on.
+     */
+    public void start() {
+        synchronized (this) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+        }
+        mConnector.connect();
+    }
+
+    /**
+     * Runs {@code operation} on the calling thread if connected and nothing is waiting ahead of
+     * it, otherwise queues it until the connection is back. Starts the supervisor if needed. Once
+     * the supervisor has given up, the operation is dropped right away.
+     */
+    public void execute(Operation operation) {
+        WearUtil.assertNotNull(operation, "operation");
+        Operation[] dropped;
+        boolean start;
+        synchronized (this) {
+            start = !mStarted;
+            if (mConnected && !mDraining && mQueue.isEmpty()) {
+                dropped = null;
+            } else if (mGiveUpErrorCode != ConnectionResult.SUCCESS) {
+                dropped = new Operation[]{operation};
+                mDroppedCount++;
+            } else {
+                dropped = trimQueueLocked(1);
+                if (mQueueCapacity == 0) {
+                    dropped = new Operation[]{operation};
+                    mDroppedCount++;
+                } else {
+                    mQueue.addLast(operation);
+                    mQueuedCount++;
+                    WearLog.d(TAG, "Not connected, queued {} ({} waiting)", operation,
+                            mQueue.size());
+                }
+            }
+        }
+        if (dropped == null) {
+            operation.run();
+        } else {
+            drop(dropped);
+        }
+        if (start) {
+            start();
+        }
+    }
+
+    /**
+     * Removes the oldest operations until {@code room} more fit in the queue.
+     */
+    private Operation[] trimQueueLocked(int room) {
+        int excess = Math.max(0, mQueue.size() + room - Math.max(mQueueCapacity, room));
+        Operation[] dropped = new Operation[excess];
+        for (int i = 0; i < excess; i++) {
+            dropped[i] = mQueue.pollFirst();
+        }
+        mDroppedCount += excess;
+        return dropped;
+    }
+
+    private static void drop(Operation[] operations) {
+        for (Operation operation : operations) {
+            WearLog.e(TAG, "Dropped {}, it can't wait for the connection", operation);
+            operation.onDropped();
+        }
+    }
+
+    /**
+     * Should be called when the connection is established. Cancels any pending reconnection and
+     * runs the queued operations, in order, on the calling thread.
+     */
+    public void onConnected() {
+        synchronized (this) {
+            if (mReconnect != null) {
+                mReconnect.cancel(false);
+                mReconnect = null;
+            }
+            if (mConnected) {
+                return;
+            }
+            mConnected = true;
+            mAttempt = 0;
+            mGiveUpErrorCode = ConnectionResult.SUCCESS;
+            if (mEverConnected) {
+                long latency = now() - mDisconnectedAtMillis;
+                mReconnectCount++;
+                mLastReconnectMillis = latency;
+                mMaxReconnectMillis = Math.max(mMaxReconnectMillis, latency);
+                mTotalReconnectMillis += latency;
+                WearLog.d(TAG, "Reconnected after {}ms", latency);
+            }
+            mEverConnected = true;
+            if (mDraining) {
+                // a drain is already running on another thread
+                return;
+            }
+            mDraining = true;
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            Operation operation;
+            synchronized (this) {
+                if (!mConnected || mQueue.isEmpty()) {
+                    mDraining = false;
+                    return;
+                }
+                operation = mQueue.pollFirst();
+                mDrainedCount++;
+            }
+            try {
+                operation.run();
+            } catch (RuntimeException e) {
+                WearLog.e(TAG, "Queued operation {} failed", operation, e);
+            }
+        }
+    }
+
+    /**
+     * Should be called when the connection is suspended or fails; schedules the next attempt to
+     * connect again.
+     */
+    public synchronized void onDisconnected() {
+        if (mConnected) {
+            mConnected = false;
+            mDisconnectedAtMillis = now();
+        }
+        if (mReconnect != null || mGiveUpErrorCode != ConnectionResult.SUCCESS) {
+            return;
+        }
+        long delay = nextDelayMillisLocked();
+        WearLog.d(TAG, "Reconnecting in {}ms (attempt {})", delay, mAttempt + 1);
+        mReconnect = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Should be called when connecting fails with {@code errorCode}, one of the
+     * {@link ConnectionResult} error codes. Recoverable errors are retried like in
+     * {@link #onDisconnected()}. If {@link #isUnrecoverable(int)}, the supervisor gives up
+     * instead: the queued operations and the ones submitted later are dropped, and the listeners
+     * are told through {@link Listener#onGaveUp(int)}. {@link #retry()} starts over.
+     */
+    public void onConnectionFailed(int errorCode) {
+        if (!isUnrecoverable(errorCode)) {
+            onDisconnected();
+            return;
+        }
+        Operation[] dropped;
+        synchronized (this) {
+            if (mConnected) {
+                mConnected = false;
+                mDisconnectedAtMillis = now();
+            }
+            if (mGiveUpErrorCode != ConnectionResult.SUCCESS) {
+                return;
+            }
+            mGiveUpErrorCode = errorCode;
+            if (mReconnect != null) {
+                mReconnect.cancel(false);
+                mReconnect = null;
+            }
+            dropped = mQueue.toArray(new Operation[mQueue.size()]);
+            mQueue.clear();
+            mDroppedCount += dropped.length;
+        }
+        WearLog.e(TAG, "Giving up on the connection, error code: {}", errorCode);
+        drop(dropped);
+        for (Listener listener : mListeners) {
+            listener.onGaveUp(errorCode);
+        }
+    }
+
+    /**
+     * Connects again after the supervisor gave up, e.g. once the user has installed or updated
+     * Google Play services. Has no effect otherwise.
+     */
+    public void retry() {
+        synchronized (this) {
+            if (mGiveUpErrorCode == ConnectionResult.SUCCESS) {
+                return;
+            }
+            mGiveUpErrorCode = ConnectionResult.SUCCESS;
+            mAttempt = 0;
+        }
+        mConnector.connect();
+    }
+
+    /**
+     * Returns {@code true} if connecting again can't fix {@code errorCode}: Google Play services
+     * are missing or not genuine, or the Wearable API is not available on this device.
+     */
+    public static boolean isUnrecoverable(int errorCode) {
+        switch (errorCode) {
+            case ConnectionResult.SERVICE_MISSING:
+            case ConnectionResult.SERVICE_INVALID:
+            case ConnectionResult.API_UNAVAILABLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            mReconnect = null;
+            if (mConnected || mGiveUpErrorCode != ConnectionResult.SUCCESS) {
+                return;
+            }
+            mAttempt++;
+            mAttemptCount++;
+        }
+        mConnector.connect();
+    }
+
+    private long nextDelayMillisLocked() {
+        long backoff = mInitialBackoffMillis << Math.min(mAttempt, 30);
+        if (backoff <= 0 || backoff > mMaxBackoffMillis) {
+            backoff = mMaxBackoffMillis;
+        }
+        long half = backoff / 2;
+        return half + (long) (mRandom.nextDouble() * (backoff - half));
+    }
+
+    /**
+     * Returns a snapshot of the reconnection and queue statistics.
+     */
+    public synchronized Stats getStats() {
+        return new Stats(mConnected, mReconnectCount, mAttemptCount, mLastReconnectMillis,
+                mMaxReconnectMillis,
+                mReconnectCount == 0 ? -1 : mTotalReconnectMillis / mReconnectCount,
+                mQueue.size(), mQueuedCount, mDroppedCount, mDrainedCount, mGiveUpErrorCode);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Establishes the connection, e.g. by calling
+     * {@link com.google.android.gms.common.api.GoogleApiClient#connect()}. The outcome is
+     * reported back through {@link #onConnected()} or {@link #onDisconnected()}.
+     */
+    public interface Connector {
+
+        void connect();
+    }
+
+    /**
+     * An interface to be notified when a {@link ConnectionSupervisor} stops reconnecting.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the supervisor gave up after the unrecoverable {@code errorCode}.
+         */
+        void onGaveUp(int errorCode);
+    }
+
+    /**
+     * An operation that needs the connection.
+     */
+    public interface Operation {
+
+        /**
+         * Performs the operation; called once connected.
+         */
+        void run();
+
+        /**
+         * Called instead of {@link #run()} if the operation was dropped from a full queue, or
+         * because the supervisor gave up, so that its caller can be notified of the failure.
+         */
+        void onDropped();
+    }
+
+    /**
+     * The statistics of a {@link ConnectionSupervisor}.
+     */
+    public static final class Stats {
+        private final boolean mConnected;
+        private final int mReconnectCount;
+        private final int mAttemptCount;
+        private final long mLastReconnectMillis;
+        private final long mMaxReconnectMillis;
+        private final long mAverageReconnectMillis;
+        private final int mQueueSize;
+        private final long mQueuedCount;
+        private final long mDroppedCount;
+        private final long mDrainedCount;
+        private final int mGiveUpErrorCode;
+
+        Stats(boolean connected, int reconnectCount, int attemptCount, long lastReconnectMillis,
+                long maxReconnectMillis, long averageReconnectMillis, int queueSize,
+                long queuedCount, long droppedCount, long drainedCount, int giveUpErrorCode) {
+            mConnected = connected;
+            mReconnectCount = reconnectCount;
+            mAttemptCount = attemptCount;
+            mLastReconnectMillis = lastReconnectMillis;
+            mMaxReconnectMillis = maxReconnectMillis;
+            mAverageReconnectMillis = averageReconnectMillis;
+            mQueueSize = queueSize;
+            mQueuedCount = queuedCount;
+            mDroppedCount = droppedCount;
+            mDrainedCount = drainedCount;
+            mGiveUpErrorCode = giveUpErrorCode;
+        }
+
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        /**
+         * Returns how many times the connection came back after being lost.
+         */
+        public int getReconnectCount() {
+            return mReconnectCount;
+        }
+
+        /**
+         * Returns how many times the supervisor tried to connect again.
+         */
+        public int getAttemptCount() {
+            return mAttemptCount;
+        }
+
+        /**
+         * Returns the time between losing the connection and getting it back, the last time
+         * that happened, or -1.
+         */
+        public long getLastReconnectMillis() {
+            return mLastReconnectMillis;
+        }
+
+        public long getMaxReconnectMillis() {
+            return mMaxReconnectMillis;
+        }
+
+        /**
+         * Returns the average time it took to get the connection back, or -1.
+         */
+        public long getAverageReconnectMillis() {
+            return mAverageReconnectMillis;
+        }
+
+        /**
+         * Returns the number of operations currently waiting for the connection.
+         */
+        public int getQueueSize() {
+            return mQueueSize;
+        }
+
+        /**
+         * Returns the number of operations that had to wait for the connection.
+         */
+        public long getQueuedCount() {
+            return mQueuedCount;
+        }
+
+        /**
+         * Returns the number of operations dropped from a full queue.
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * Returns the number of queued operations that ran once connected.
+         */
+        public long getDrainedCount() {
+            return mDrainedCount;
+        }
+
+        /**
+         * Returns the error code the supervisor gave up on, or {@link ConnectionResult#SUCCESS}
+         * while it is still reconnecting.
+         */
+        public int getGiveUpErrorCode() {
+            return mGiveUpErrorCode;
+        }
+
+        @Override
+        public String toString() {
+            return "ConnectionSupervisor.Stats{connected=" + mConnected
+                    + ", reconnects=" + mReconnectCount + ", attempts=" + mAttemptCount
+                    + ", lastReconnectMillis=" + mLastReconnectMillis
+                    + ", maxReconnectMillis=" + mMaxReconnectMillis
+                    + ", averageReconnectMillis=" + mAverageReconnectMillis
+                    + ", queueSize=" + mQueueSize + ", queued=" + mQueuedCount
+                    + ", dropped=" + mDroppedCount + ", drained=" + mDrainedCount
+                    + ", giveUpErrorCode=" + mGiveUpErrorCode + "}";
+        }
+    }
+}
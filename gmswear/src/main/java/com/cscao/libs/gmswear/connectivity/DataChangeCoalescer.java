@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.DataEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receiving side of {@link SyncConflater}: collapses bursts of changes to the same data item
+ * into a single delivery of its latest value.
+ * <p>
+ * For a path registered with {@link #setWindowMillis(String, long)}, a change is delivered right
+ * away if the previous delivery for the same data item, i.e. the same path written by the same
+ * node, is at least the window old. Otherwise it is held, and every newer change to that item
+ * replaces the held one, until the window has passed; then the latest change is delivered. The
+ * last change of a burst is never lost, it is only delayed by up to the window.
+ */
+public final class DataChangeCoalescer {
+
+    private static final String TAG = "DataChangeCoalescer";
+
+    private final Listener mListener;
+    private final ScheduledExecutorService mExecutor;
+    private final Map<String, Long> mWindowNanos = new HashMap<>();
+    private final Map<String, Item> mItems = new HashMap<>();
+    private long mCoalescedCount;
+
+    public DataChangeCoalescer(Listener listener) {
+        this(listener, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * @param listener Receives the changes, on the thread that offered them or, for the held
+     *                 ones, on a thread of {@code executor}.
+     * @param executor Runs the trailing deliveries of the held changes.
+     */
+    public DataChangeCoalescer(Listener listener, ScheduledExecutorService executor) {
+        mListener = WearUtil.assertNotNull(listener, "listener");
+        mExecutor = WearUtil.assertNotNull(executor, "executor");
+    }
+
+    /**
+     * Coalesces the changes to the data items at {@code path} so that each of them is delivered
+     * at most once every {@code windowMillis}. Calling this again for the same path changes its
+     * window.
+     */
+    public synchronized void setWindowMillis(String path, long windowMillis) {
+        WearUtil.assertNotEmpty(path, "path");
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis should not be negative");
+        }
+        mWindowNanos.put(path, TimeUnit.MILLISECONDS.toNanos(windowMillis));
+    }
+
+    /**
+     * Stops coalescing the changes to the data items at {@code path}; held changes are delivered
+     * right away.
+     */
+    public void remove(String path) {
+        List<Item> items = new ArrayList<>();
+        synchronized (this) {
+            mWindowNanos.remove(path);
+            Iterator<Item> iterator = mItems.values().iterator();
+            while (iterator.hasNext()) {
+                Item item = iterator.next();
+                if (item.mPath.equals(path)) {
+                    iterator.remove();
+                    items.add(item);
+                }
+            }
+        }
+        for (Item item : items) {
+            deliver(item);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the changes to the data items at {@code path} are coalesced.
+     */
+    public synchronized boolean isCoalesced(String path) {
+        return mWindowNanos.containsKey(path);
+    }
+
+    /**
+     * Delivers {@code event} now, or holds it until the window of its path has passed. Returns
+     * {@code false}, without doing anything, if the changes to its path are not coalesced. Held
+     * events outlive the {@link com.google.android.gms.wearable.DataEventBuffer} they came in, so
+     * {@code event} should be frozen.
+     */
+    public boolean offer(DataEvent event) {
+        String path = event.getDataItem().getUri().getPath();
+        String key = event.getDataItem().getUri().toString();
+        final Item item;
+        synchronized (this) {
+            Long windowNanos = mWindowNanos.get(path);
+            if (windowNanos == null) {
+                return false;
+            }
+            long now = System.nanoTime();
+            pruneItems(now);
+            Item existing = mItems.get(key);
+            if (existing != null && existing.mPending != null) {
+                existing.mPending = event;
+                mCoalescedCount++;
+                return true;
+            }
+            if (existing != null && existing.mLastDeliveryNanos + windowNanos - now > 0) {
+                item = existing;
+                item.mPending = event;
+                item.mDelivery = mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(item);
+                    }
+                }, item.mLastDeliveryNanos + windowNanos - now, TimeUnit.NANOSECONDS);
+                return true;
+            }
+            if (existing == null) {
+                existing = new Item(path);
+                mItems.put(key, existing);
+            }
+            existing.mLastDeliveryNanos = now;
+        }
+        mListener.onDataChanged(event);
+        return true;
+    }
+
+    /**
+     * Delivers the held changes of every data item right away.
+     */
+    public void flush() {
+        List<Item> items;
+        synchronized (this) {
+            items = new ArrayList<>(mItems.values());
+        }
+        for (Item item : items) {
+            deliver(item);
+        }
+    }
+
+    /**
+     * Returns the number of changes that were replaced by a newer change to the same data item
+     * before they were delivered.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Forgets the data items whose last delivery is older than their window and that hold no
+     * change, so that paths written by many nodes or with ever changing hosts don't pile up.
+     */
+    private void pruneItems(long now) {
+        Iterator<Item> iterator = mItems.values().iterator();
+        while (iterator.hasNext()) {
+            Item item = iterator.next();
+            Long windowNanos = mWindowNanos.get(item.mPath);
+            if (item.mPending == null && (windowNanos == null
+                    || now - item.mLastDeliveryNanos >= windowNanos)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void deliver(Item item) {
+        DataEvent event;
+        synchronized (this) {
+            if (item.mDelivery != null) {
+                item.mDelivery.cancel(false);
+                item.mDelivery = null;
+            }
+            event = item.mPending;
+            if (event == null) {
+                return;
+            }
+            item.mPending = null;
+            item.mLastDeliveryNanos = System.nanoTime();
+        }
+        mListener.onDataChanged(event);
+    }
+
+    /**
+     * Receives the latest change of each data item.
+     */
+    public interface Listener {
+        void onDataChanged(DataEvent event);
+    }
+
+    private static final class Item {
+        final String mPath;
+        long mLastDeliveryNanos;
+        DataEvent mPending;
+        ScheduledFuture<?> mDelivery;
+
+        Item(String path) {
+            mPath = path;
+        }
+    }
+}
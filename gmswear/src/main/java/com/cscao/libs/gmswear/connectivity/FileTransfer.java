@@ -18,15 +18,21 @@ package com.cscao.libs.gmswear.connectivity;
 
 import static com.cscao.libs.gmswear.GmsWear.getInstance;
 
-import android.net.Uri;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.cscao.libs.gmswear.GmsWear;
+import com.cscao.libs.gmswear.connectivity.dedup.ContentStore;
+import com.cscao.libs.gmswear.connectivity.dedup.DedupSync;
+import com.cscao.libs.gmswear.connectivity.delta.DeltaSync;
+import com.cscao.libs.gmswear.connectivity.policy.ScheduledTransfer;
+import com.cscao.libs.gmswear.connectivity.policy.TransferScheduler;
 import com.cscao.libs.gmswear.consumer.DataConsumer;
-import com.cscao.libs.gmswear.filter.NearbyFilter;
+import com.cscao.libs.gmswear.trace.Span;
+import com.cscao.libs.gmswear.trace.Tracer;
+import com.cscao.libs.gmswear.transport.TransportChannel;
 import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.WearLog;
 import com.cscao.libs.gmswear.util.WearUtil;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
@@ -35,10 +41,10 @@ import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.WearableStatusCodes;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.util.Set;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -71,8 +77,8 @@ import java.util.UUID;
  *     }
  * }
  * </pre>
- * It is also possible to use low-level apis based on
- * {@link com.google.android.gms.wearable.ChannelApi} to open a channel and create an
+ * It is also possible to use low-level apis based on the channels of the
+ * {@link com.cscao.libs.gmswear.transport.Transport} to open a channel and create an
  * {@link OutputStream} on the sender side and and {@link java.io.InputStream} on the other side to
  * transfer data. This can be done by following a pattern similar to this:
  * <p>
@@ -104,13 +110,13 @@ public class FileTransfer {
     public static final String PARAM_SIZE = "size";
     public static final String PARAM_REQUEST_ID = "request-id";
     private static final String TAG = "FileTransfer";
-    private static final String PATH_SEPARATOR = "/";
     private final File mFile;
     private final String mTargetName;
     private final Node mNode;
     private final String mRequestId;
     private final OnFileTransferRequestListener mFileTransferResultListener;
     private final OnChannelOutputStreamListener mOnChannelOutputStreamListener;
+    private volatile ScheduledTransfer.Completion mScheduledCompletion;
 
     private FileTransfer(Builder builder) {
         mFile = builder.mFile;
@@ -131,8 +137,8 @@ public class FileTransfer {
      */
     public void startTransfer() {
         assertFileTransferParams();
-        final Uri uri = Uri.fromFile(mFile);
-        String path = buildPath(mTargetName, mRequestId, mFile.length());
+        String path = TransferPath.encode(Constants.PATH_FILE_TRANSFER_TYPE_FILE, mTargetName,
+                mFile.length(), mRequestId, null, getInstance().newSendTimestamp());
         final GmsWear gmsWear = getInstance();
         if (mNode == null) {
             return;
@@ -140,32 +146,240 @@ public class FileTransfer {
 
         gmsWear.openChannel(mNode, path, new OnChannelReadyListener() {
             @Override
-            public void onChannelReady(int statusCode, Channel channel) {
+            public void onChannelReady(int statusCode, TransportChannel channel) {
                 if (statusCode != WearableStatusCodes.SUCCESS) {
-                    Log.e(TAG, "transfer(): Failed to open channel; status code= " + statusCode);
-                    if (mFileTransferResultListener != null) {
-                        mFileTransferResultListener.onFileTransferStatusResult(statusCode);
-                    }
+                    WearLog.e(TAG, "transfer(): Failed to open channel; status code= {}",
+                            statusCode);
+                    notifyFileTransferResult(statusCode);
                     return;
                 }
 
-                gmsWear.sendFile(mRequestId, channel, uri, 0, -1, new ResultCallback<Status>() {
+                gmsWear.sendFile(mRequestId, channel, mFile, 0, -1, new ResultCallback<Status>() {
                     @Override
                     public void onResult(Status status) {
                         if (status.getStatusCode() != WearableStatusCodes.SUCCESS) {
-                            Log.e(TAG, "transfer(): Failed to send file; status code= " + status
-                                    .getStatusCode());
+                            WearLog.e(TAG, "transfer(): Failed to send file; status code= {}",
+                                    status.getStatusCode());
                         }
-                        if (mFileTransferResultListener != null) {
-                            mFileTransferResultListener
-                                    .onFileTransferStatusResult(status.getStatusCode());
+                        notifyFileTransferResult(status.getStatusCode());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Submits this transfer to the {@link TransferScheduler} of {@link GmsWear}, which runs it
+     * through {@link #startTransfer()} when the transfer policy allows it: large files wait for
+     * Wi-Fi or are throttled while only Bluetooth is available. An {@code urgent} transfer is
+     * started right away regardless of its size. A {@link FileTransfer} should be scheduled at most
+     * once.
+     *
+     * @return A {@link TransferScheduler.Ticket} to follow the transfer, estimate its remaining
+     * time or cancel it before it starts.
+     */
+    public TransferScheduler.Ticket scheduleTransfer(boolean urgent) {
+        return schedule(urgent, new Runnable() {
+            @Override
+            public void run() {
+                startTransfer();
+            }
+        });
+    }
+
+    /**
+     * Submits this transfer to the {@link TransferScheduler} like
+     * {@link #scheduleTransfer(boolean)} does, to be run through {@link #startDeltaTransfer()}.
+     * The whole size of the file is accounted for, since the size of the delta is only known
+     * once the transfer runs.
+     */
+    public TransferScheduler.Ticket scheduleDeltaTransfer(boolean urgent) {
+        return schedule(urgent, new Runnable() {
+            @Override
+            public void run() {
+                startDeltaTransfer();
+            }
+        });
+    }
+
+    /**
+     * Submits this transfer to the {@link TransferScheduler} like
+     * {@link #scheduleTransfer(boolean)} does, to be run through {@link #startDedupTransfer()}.
+     * The whole size of the file is accounted for, since whether the receiver already has the
+     * content is only known once the transfer runs.
+     */
+    public TransferScheduler.Ticket scheduleDedupTransfer(boolean urgent) {
+        return schedule(urgent, new Runnable() {
+            @Override
+            public void run() {
+                startDedupTransfer();
+            }
+        });
+    }
+
+    private TransferScheduler.Ticket schedule(boolean urgent, final Runnable start) {
+        assertFileTransferParams();
+        final long size = mFile.length();
+        return getInstance().getTransferScheduler().submit(new ScheduledTransfer() {
+            @Override
+            public long getSizeBytes() {
+                return size;
+            }
+
+            @Override
+            public void start(Completion completion) {
+                if (mNode == null) {
+                    completion.onTransferFinished(false);
+                    return;
+                }
+                mScheduledCompletion = completion;
+                start.run();
+            }
+        }, urgent);
+    }
+
+    /**
+     * Initiates a delta transfer of a file to the target node. This is useful when the target node
+     * is likely to have an older copy of the same file under the target name: the receiver sends
+     * block signatures of its copy and only the blocks that changed are sent over the channel
+     * (see {@link DeltaSync}). If the receiver has no copy or the delta would not be smaller than
+     * the file itself, the whole file is sent over the same channel instead. As with
+     * {@link #startTransfer()}, the receiver is notified through
+     * {@link DataConsumer#onFileReceivedResult(int, String, File, String)}. The
+     * {@link OnFileTransferRequestListener}, if set, is called on a worker thread once the
+     * receiver has acknowledged the file.
+     */
+    public void startDeltaTransfer() {
+        assertFileTransferParams();
+        String path = TransferPath.encode(Constants.PATH_FILE_TRANSFER_TYPE_DELTA, mTargetName,
+                mFile.length(), mRequestId, null, getInstance().newSendTimestamp());
+        startTwoWayTransfer("startDeltaTransfer()", path, new TwoWayProtocol() {
+            @Override
+            public boolean run(InputStream inputStream, OutputStream outputStream)
+                    throws IOException {
+                DeltaSync.Result result = DeltaSync.send(mFile, inputStream, outputStream);
+                WearLog.d(TAG, "startDeltaTransfer(): {}", result);
+                return result.isAcknowledged();
+            }
+        });
+    }
+
+    /**
+     * Initiates a deduplicated transfer of a file to the target node. The SHA-256 of the file is
+     * offered to the receiver first and the content is only sent if the receiver doesn't already
+     * have it in its {@link ContentStore}; either way, the receiver saves the content under the
+     * target name. This is useful for content that is sent repeatedly, such as images. As with
+     * {@link #startTransfer()}, the receiver is notified through
+     * {@link DataConsumer#onFileReceivedResult(int, String, File, String)}. The
+     * {@link OnFileTransferRequestListener}, if set, is called on a worker thread once the
+     * receiver has acknowledged the file.
+     */
+    public void startDedupTransfer() {
+        assertFileTransferParams();
+        final GmsWear gmsWear = getInstance();
+        if (mNode == null) {
+            return;
+        }
+        // hashing a large file takes a while, so keep it off the caller's thread
+        gmsWear.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                String hash;
+                Span span = gmsWear.getTracer().begin("hashFile", Tracer.traceIdOf(mRequestId));
+                try {
+                    hash = ContentStore.hashOf(mFile);
+                } catch (IOException e) {
+                    WearLog.e(TAG, "startDedupTransfer(): Failed to hash {}", mFile, e);
+                    notifyFileTransferResult(WearableStatusCodes.ERROR);
+                    return;
+                } finally {
+                    span.end();
+                }
+                String path = TransferPath.encode(Constants.PATH_FILE_TRANSFER_TYPE_DEDUP,
+                        mTargetName, mFile.length(), mRequestId, hash,
+                        getInstance().newSendTimestamp());
+                startTwoWayTransfer("startDedupTransfer()", path, new TwoWayProtocol() {
+                    @Override
+                    public boolean run(InputStream inputStream, OutputStream outputStream)
+                            throws IOException {
+                        DedupSync.Result result = DedupSync.send(mFile, inputStream,
+                                outputStream);
+                        WearLog.d(TAG, "startDedupTransfer(): {}", result);
+                        return result.isAcknowledged();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Opens a channel on {@code path} and both of its streams, then runs {@code protocol} on the
+     * worker thread that opened the streams and reports its outcome to the
+     * {@link OnFileTransferRequestListener}.
+     */
+    private void startTwoWayTransfer(final String operation, String path,
+            final TwoWayProtocol protocol) {
+        final GmsWear gmsWear = getInstance();
+        if (mNode == null) {
+            return;
+        }
+
+        gmsWear.openChannel(mNode, path, new OnChannelReadyListener() {
+            @Override
+            public void onChannelReady(int statusCode, TransportChannel channel) {
+                if (statusCode != WearableStatusCodes.SUCCESS) {
+                    WearLog.e(TAG, "{}: Failed to open channel; status code= {}", operation,
+                            statusCode);
+                    notifyFileTransferResult(statusCode);
+                    return;
+                }
+                gmsWear.getChannelStreams(channel, new OnChannelStreamsReadyListener() {
+                    @Override
+                    public void onChannelStreamsReady(int statusCode, TransportChannel channel,
+                            InputStream inputStream, OutputStream outputStream) {
+                        if (statusCode != WearableStatusCodes.SUCCESS) {
+                            WearLog.e(TAG, "{}: Failed to open streams; status code= {}", operation,
+                                    statusCode);
+                            notifyFileTransferResult(statusCode);
+                            return;
+                        }
+                        int resultStatusCode = WearableStatusCodes.ERROR;
+                        Span span = gmsWear.getTracer().begin(operation,
+                                Tracer.traceIdOf(mRequestId));
+                        try {
+                            if (protocol.run(inputStream, outputStream)) {
+                                resultStatusCode = WearableStatusCodes.SUCCESS;
+                            } else {
+                                WearLog.e(TAG, "{}: Receiver failed to save {}", operation,
+                                        mTargetName);
+                            }
+                        } catch (IOException e) {
+                            WearLog.e(TAG, "{}: IO Error while sending {}", operation, mTargetName,
+                                    e);
+                        } finally {
+                            WearUtil.closeQuietly(outputStream);
+                            WearUtil.closeQuietly(inputStream);
+                            gmsWear.closeChannel(channel);
+                            span.end();
                         }
+                        notifyFileTransferResult(resultStatusCode);
                     }
                 });
             }
         });
     }
 
+    private void notifyFileTransferResult(int statusCode) {
+        if (mFileTransferResultListener != null) {
+            mFileTransferResultListener.onFileTransferStatusResult(statusCode);
+        }
+        ScheduledTransfer.Completion completion = mScheduledCompletion;
+        if (completion != null) {
+            mScheduledCompletion = null;
+            completion.onTransferFinished(statusCode == WearableStatusCodes.SUCCESS);
+        }
+    }
+
     /**
      * Opens a channel and an {@link OutputStream} to transfer data. If the
      * intention is to transfer a file, it is recommended to use {@link #startTransfer()} method
@@ -177,26 +391,16 @@ public class FileTransfer {
      */
     public void requestOutputStream() {
         assertStreamParams();
-        String path = Constants.PATH_FILE_TRANSFER_TYPE_STREAM + mRequestId;
+        String path = TransferPath.encodeStream(Constants.PATH_FILE_TRANSFER_TYPE_STREAM,
+                mRequestId, getInstance().newSendTimestamp());
         if (mNode == null) {
-            Log.e(TAG, "target node can't be null ");
+            WearLog.e(TAG, "target node can't be null ");
             return;
         }
         GmsWear.getInstance().getOutputStreamViaChannel(mNode, path,
                 mOnChannelOutputStreamListener);
     }
 
-    private String buildPath(String name, String requestId, long size) {
-        String encodedName = null;
-        try {
-            encodedName = URLEncoder.encode(name, "utf-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "buildPath(): Failed to encode name " + name, e);
-        }
-        return Constants.PATH_FILE_TRANSFER_TYPE_FILE + encodedName + PATH_SEPARATOR + size
-                + PATH_SEPARATOR + requestId;
-    }
-
     private void assertStreamParams() {
         if (mOnChannelOutputStreamListener == null) {
             throw new IllegalArgumentException("An OnChannelOutputStreamListener should be set");
@@ -217,11 +421,12 @@ public class FileTransfer {
     public interface OnChannelOutputStreamListener {
 
         /**
-         * Is called when the request for opening an {@link OutputStream} is fulfilled.
-         * {@code statusCode} shows the status code of the result and if successful, the fields
-         * {@code channel} and {@code outputSteam} will, respectively, provide access to the
-         * underlying {@link Channel} and the {@link OutputStream} that clients can use to write
-         * data to. If the request fails, these two field will be {@code null}
+         * Is called on a worker thread when the request for opening an {@link OutputStream} is
+         * fulfilled. {@code statusCode} shows the status code of the result and if successful,
+         * {@code outputSteam} is the {@link OutputStream} that clients can use to write data to;
+         * closing it closes the channel. {@code channel} is the underlying {@link Channel} when
+         * the channel goes through the Wearable APIs, and {@code null} over other transports. If
+         * the request fails, these two field will be {@code null}
          */
         void onOutputStreamForChannelReady(int statusCode, Channel channel,
                 OutputStream outputStream);
@@ -239,7 +444,31 @@ public class FileTransfer {
          * successful, the {@code channel} will be the resulting channel, otherwise it will be
          * {@code null}.
          */
-        void onChannelReady(int statusCode, Channel channel);
+        void onChannelReady(int statusCode, TransportChannel channel);
+    }
+
+    /**
+     * The sender side of a protocol that runs over both streams of a channel. Returns {@code true}
+     * if the receiver acknowledged the transfer.
+     */
+    private interface TwoWayProtocol {
+        boolean run(InputStream inputStream, OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * Internal only. An interface to provide feedback when both the {@link InputStream} and the
+     * {@link OutputStream} of a channel are available, for protocols that need to talk in both
+     * directions over the same channel.
+     */
+    public interface OnChannelStreamsReadyListener {
+
+        /**
+         * Is called on a worker thread when the streams of {@code channel} have been opened. If
+         * {@code statusCode} is not a success, both streams will be {@code null} and the channel
+         * is closed.
+         */
+        void onChannelStreamsReady(int statusCode, TransportChannel channel,
+                InputStream inputStream, OutputStream outputStream);
     }
 
     public interface OnFileTransferRequestListener {
@@ -280,16 +509,16 @@ public class FileTransfer {
         }
 
         /**
-         * Builder for nearest node
+         * Builder for the nearby node with the lowest measured latency; see
+         * {@link GmsWear#startLatencyProbing()}. Without measurements, any nearby node is picked.
          */
         public Builder() {
             mGmsWear = getInstance();
-            Set<Node> nodes = new NearbyFilter().
-                    filterNodes(mGmsWear.getConnectedNodes());
+            List<Node> nodes = mGmsWear.getNodeSnapshot().getNearbyNodes();
             if (!nodes.isEmpty()) {
-                mNode = nodes.iterator().next();
+                mNode = mGmsWear.getLatencyProber().pickLowestLatency(nodes);
             } else {
-                Log.e(TAG, "no available nodes to send");
+                WearLog.e(TAG, "no available nodes to send");
             }
         }
 
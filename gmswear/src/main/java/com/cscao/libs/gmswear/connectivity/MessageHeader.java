@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A small header that the library puts in front of the data of a message to carry metadata the
+ * MessageApi has no room for. It is laid out as:
+ * <pre>
+ * magic (4 bytes) | version (1 byte) | flags (1 byte) | fields
+ * </pre>
+ * where each flag that is set adds a field, in the order of the flags:
+ * <ul>
+ * <li>{@link #FLAG_SEND_TIME}: the time the message was sent, in the microseconds of the sender
+ * (8 bytes).</li>
+ * <li>{@link #FLAG_TRACE_ID}: the id of the trace the message belongs to, see
+ * {@link com.cscao.libs.gmswear.trace.Tracer} (8 bytes).</li>
+ * <li>{@link #FLAG_DEADLINE}: the time after which the message is stale and should be dropped,
+ * in the microseconds of the sender (8 bytes).</li>
+ * </ul>
+ * Headers without a deadline keep version 1. The library only sends headers to the nodes that
+ * advertise {@link com.cscao.libs.gmswear.util.Constants#CAPABILITY_MESSAGE_HEADER}, on a path
+ * under {@link com.cscao.libs.gmswear.util.Constants#PATH_MESSAGE_HEADER_PREFIX}, and only
+ * parses the data of the messages it receives on such a path.
+ */
+public final class MessageHeader {
+
+    static final int MAGIC = 0x474d5748; // "GMWH"
+    static final int VERSION = 1;
+    static final int VERSION_DEADLINE = 2;
+    public static final int FLAG_SEND_TIME = 1;
+    public static final int FLAG_TRACE_ID = 2;
+    public static final int FLAG_DEADLINE = 4;
+    private static final int FIXED_SIZE = 4 + 1 + 1;
+    private static final int TIME_SIZE = 8;
+    private static final int ID_SIZE = 8;
+
+    private final int mFlags;
+    private final long mSendTimeMicros;
+    private final long mTraceId;
+    private final long mDeadlineMicros;
+
+    private MessageHeader(int flags, long sendTimeMicros, long traceId, long deadlineMicros) {
+        mFlags = flags;
+        mSendTimeMicros = sendTimeMicros;
+        mTraceId = traceId;
+        mDeadlineMicros = deadlineMicros;
+    }
+
+    /**
+     * Returns a header carrying {@code sendTimeMicros} unless it is negative, and {@code traceId}
+     * unless it is 0, or {@code null} if it would carry neither.
+     */
+    @Nullable
+    public static MessageHeader create(long sendTimeMicros, long traceId) {
+        return create(sendTimeMicros, traceId, -1);
+    }
+
+    /**
+     * Returns a header carrying {@code sendTimeMicros} unless it is negative, {@code traceId}
+     * unless it is 0, and {@code deadlineMicros} unless it is negative, or {@code null} if it
+     * would carry none of them.
+     */
+    @Nullable
+    public static MessageHeader create(long sendTimeMicros, long traceId, long deadlineMicros) {
+        int flags = (sendTimeMicros >= 0 ? FLAG_SEND_TIME : 0) | (traceId != 0 ? FLAG_TRACE_ID : 0)
+                | (deadlineMicros >= 0 ? FLAG_DEADLINE : 0);
+        return flags == 0 ? null
+                : new MessageHeader(flags, sendTimeMicros, traceId, deadlineMicros);
+    }
+
+    /**
+     * Parses the header at the start of {@code data}, or returns {@code null} if it doesn't start
+     * with one.
+     */
+    @Nullable
+    public static MessageHeader parse(@Nullable byte[] data) {
+        if (data == null || data.length < FIXED_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        int version = buffer.get();
+        if (version != VERSION && version != VERSION_DEADLINE) {
+            return null;
+        }
+        int flags = buffer.get() & 0xff;
+        if (version == VERSION) {
+            flags &= ~FLAG_DEADLINE;
+        }
+        if (data.length < sizeOf(flags)) {
+            return null;
+        }
+        long sendTimeMicros = (flags & FLAG_SEND_TIME) != 0 ? buffer.getLong() : -1;
+        long traceId = (flags & FLAG_TRACE_ID) != 0 ? buffer.getLong() : 0;
+        long deadlineMicros = (flags & FLAG_DEADLINE) != 0 ? buffer.getLong() : -1;
+        return new MessageHeader(flags, sendTimeMicros, traceId, deadlineMicros);
+    }
+
+    private static int sizeOf(int flags) {
+        return FIXED_SIZE + ((flags & FLAG_SEND_TIME) != 0 ? TIME_SIZE : 0)
+                + ((flags & FLAG_TRACE_ID) != 0 ? ID_SIZE : 0)
+                + ((flags & FLAG_DEADLINE) != 0 ? TIME_SIZE : 0);
+    }
+
+    /**
+     * Returns the number of bytes this header takes in front of the data.
+     */
+    public int getSize() {
+        return sizeOf(mFlags);
+    }
+
+    public boolean hasSendTime() {
+        return (mFlags & FLAG_SEND_TIME) != 0;
+    }
+
+    /**
+     * Returns the time the message was sent, on the clock of the sender, or -1 if it isn't known.
+     */
+    public long getSendTimeMicros() {
+        return mSendTimeMicros;
+    }
+
+    public boolean hasTraceId() {
+        return (mFlags & FLAG_TRACE_ID) != 0;
+    }
+
+    /**
+     * Returns the id of the trace the message belongs to, or 0 if it has none.
+     */
+    public long getTraceId() {
+        return mTraceId;
+    }
+
+    public boolean hasDeadline() {
+        return (mFlags & FLAG_DEADLINE) != 0;
+    }
+
+    /**
+     * Returns the time after which the message is stale, on the clock of the sender, or -1 if it
+     * has no deadline.
+     */
+    public long getDeadlineMicros() {
+        return mDeadlineMicros;
+    }
+
+    /**
+     * Returns {@code payload} with this header in front of it.
+     */
+    public byte[] prependTo(@Nullable byte[] payload) {
+        int length = payload == null ? 0 : payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate(getSize() + length);
+        buffer.putInt(MAGIC).put((byte) (hasDeadline() ? VERSION_DEADLINE : VERSION))
+                .put((byte) mFlags);
+        if (hasSendTime()) {
+            buffer.putLong(mSendTimeMicros);
+        }
+        if (hasTraceId()) {
+            buffer.putLong(mTraceId);
+        }
+        if (hasDeadline()) {
+            buffer.putLong(mDeadlineMicros);
+        }
+        if (payload != null) {
+            buffer.put(payload);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns the payload of {@code data}, which must start with this header.
+     */
+    public byte[] stripFrom(byte[] data) {
+        byte[] payload = new byte[data.length - getSize()];
+        System.arraycopy(data, getSize(), payload, 0, payload.length);
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageHeader{flags=" + mFlags + ", sendTime=" + mSendTimeMicros + ", traceId="
+                + Long.toHexString(mTraceId) + ", deadline=" + mDeadlineMicros + "}";
+    }
+}
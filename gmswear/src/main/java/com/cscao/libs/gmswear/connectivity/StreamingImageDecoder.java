@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+import android.util.DisplayMetrics;
+import android.widget.ImageView;
+
+import com.cscao.libs.gmswear.GmsWear;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Channel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes an image straight from the {@link InputStream} of a channel, e.g. one received through
+ * {@link DataConsumer#onInputStreamForChannelOpened(int, String, Channel, InputStream)}, into a
+ * {@link Bitmap} sampled down to the size it will be displayed at.
+ * <p>
+ * Decoding takes two passes: the first one only reads the image header to learn its dimensions.
+ * The bytes read during that pass are kept in memory and replayed to the second pass, which
+ * continues reading from the channel, so the encoded image is never written to a temporary file.
+ * If a cache file is given, every byte read from the channel is also copied to it; the cache file
+ * only appears once the whole image has been received.
+ */
+public final class StreamingImageDecoder {
+
+    private static final String TAG = "StreamingImageDecoder";
+    private static final String TEMP_SUFFIX = ".part";
+    private static final int MAX_HEADER_BYTES = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private StreamingImageDecoder() {
+    }
+
+    /**
+     * Decodes the image read from {@code inputStream}, sampled so that it is not much larger than
+     * {@code reqWidth} x {@code reqHeight}. This method blocks and should be called on a worker
+     * thread; it does not close {@code inputStream}.
+     *
+     * @param cacheFile An optional file to save the encoded image to, or {@code null}.
+     * @return The decoded bitmap, or {@code null} if the stream doesn't contain an image.
+     */
+    @Nullable
+    public static Bitmap decode(InputStream inputStream, int reqWidth, int reqHeight,
+            @Nullable File cacheFile) throws IOException {
+        WearUtil.assertNotNull(inputStream, "inputStream");
+        File tempFile = cacheFile != null
+                ? new File(cacheFile.getParentFile(), cacheFile.getName() + TEMP_SUFFIX) : null;
+        OutputStream tee = tempFile != null ? new FileOutputStream(tempFile) : null;
+        boolean cached = false;
+        try {
+            ReplayInputStream replayStream = new ReplayInputStream(inputStream, tee);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(replayStream, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                WearLog.e(TAG, "decode(): The stream doesn't contain a supported image");
+                return null;
+            }
+            replayStream.rewind();
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                    reqWidth, reqHeight);
+            Bitmap bitmap = BitmapFactory.decodeStream(replayStream, null, options);
+            if (bitmap != null && tee != null) {
+                // the decoder may stop before the end of the stream; the cache needs all of it
+                replayStream.drain();
+                tee.close();
+                tee = null;
+                cached = tempFile.renameTo(cacheFile);
+            }
+            WearLog.d(TAG, "decode(): {}x{} sampled by {}", options.outWidth, options.outHeight,
+                    options.inSampleSize);
+            return bitmap;
+        } finally {
+            WearUtil.closeQuietly(tee);
+            if (tempFile != null && !cached) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Decodes the image read from {@code inputStream} on a worker thread, sized for
+     * {@code imageView}, and sets it on the view. The stream and the channel are closed once the
+     * image has been read, whether decoding succeeds or not.
+     *
+     * @param channel   The channel of {@code inputStream}, or {@code null} if it didn't go through
+     *                  the Wearable APIs.
+     * @param cacheFile An optional file to save the encoded image to, or {@code null}.
+     */
+    public static void decodeInto(@Nullable final Channel channel, final InputStream inputStream,
+            final ImageView imageView, @Nullable final File cacheFile) {
+        WearUtil.assertNotNull(inputStream, "inputStream");
+        WearUtil.assertNotNull(imageView, "imageView");
+        final int reqWidth = targetSize(imageView.getWidth(), imageView, true);
+        final int reqHeight = targetSize(imageView.getHeight(), imageView, false);
+        final GmsWear gmsWear = GmsWear.getInstance();
+        gmsWear.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = decode(inputStream, reqWidth, reqHeight, cacheFile);
+                } catch (IOException e) {
+                    WearLog.e(TAG, "decodeInto(): IO Error while reading the image", e);
+                } finally {
+                    WearUtil.closeQuietly(inputStream);
+                    gmsWear.closeChannel(channel);
+                }
+                if (bitmap == null) {
+                    return;
+                }
+                final Bitmap result = bitmap;
+                imageView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        imageView.setImageBitmap(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the largest power of two sample size that keeps both dimensions of the decoded
+     * image at or above the requested ones.
+     */
+    static int computeSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Falls back to the size of the screen when the view hasn't been laid out yet.
+     */
+    private static int targetSize(int viewSize, ImageView imageView, boolean width) {
+        if (viewSize > 0) {
+            return viewSize;
+        }
+        DisplayMetrics metrics = imageView.getResources().getDisplayMetrics();
+        return width ? metrics.widthPixels : metrics.heightPixels;
+    }
+
+    /**
+     * Records the bytes read from the source until {@link #rewind()} is called, then replays them
+     * before reading on from the source. Every byte read from the source is also copied to the
+     * optional tee exactly once.
+     */
+    private static final class ReplayInputStream extends InputStream {
+        private final InputStream mSource;
+        private final OutputStream mTee;
+        private byte[] mRecorded = new byte[BUFFER_SIZE];
+        private int mRecordedCount;
+        private int mReplayPosition;
+        private boolean mRecording = true;
+
+        ReplayInputStream(InputStream source, @Nullable OutputStream tee) {
+            mSource = source;
+            mTee = tee;
+        }
+
+        void rewind() {
+            mRecording = false;
+            mReplayPosition = 0;
+        }
+
+        /**
+         * Reads the rest of the source so that the tee receives all of it.
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // keep reading
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mRecording && mRecorded != null) {
+                if (mReplayPosition < mRecordedCount) {
+                    int count = Math.min(length, mRecordedCount - mReplayPosition);
+                    System.arraycopy(mRecorded, mReplayPosition, buffer, offset, count);
+                    mReplayPosition += count;
+                    return count;
+                }
+                mRecorded = null;
+            }
+            int read = mSource.read(buffer, offset, length);
+            if (read <= 0) {
+                return read;
+            }
+            if (mTee != null) {
+                mTee.write(buffer, offset, read);
+            }
+            if (mRecording) {
+                record(buffer, offset, read);
+            }
+            return read;
+        }
+
+        private void record(byte[] buffer, int offset, int length) throws IOException {
+            int required = mRecordedCount + length;
+            if (required > MAX_HEADER_BYTES) {
+                throw new IOException("Image header is larger than " + MAX_HEADER_BYTES);
+            }
+            if (required > mRecorded.length) {
+                mRecorded = Arrays.copyOf(mRecorded,
+                        Math.min(MAX_HEADER_BYTES, Math.max(required, mRecorded.length * 2)));
+            }
+            System.arraycopy(buffer, offset, mRecorded, mRecordedCount, length);
+            mRecordedCount = required;
+        }
+
+        @Override
+        public int available() throws IOException {
+            int replayable = !mRecording && mRecorded != null ? mRecordedCount - mReplayPosition
+                    : 0;
+            return replayable > 0 ? replayable : mSource.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSource.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conflates the writes to data item paths where only the latest value matters, such as UI state.
+ * <p>
+ * For a path registered with {@link #setMinIntervalMillis(String, long)}, a write is put right
+ * away if the previous put to that path is at least the minimum interval old. Otherwise it is
+ * held, and every newer write to the same path replaces the held one, until the interval has
+ * passed; then the latest write is put. The last write of a burst is therefore never lost, it is
+ * only delayed by up to the minimum interval.
+ * <p>
+ * A put replaces the whole data map of its path, so replacing a held write by a newer one ends
+ * with the same data item as putting both in turn, without the intermediate put.
+ *
+ * @param <R> The type of the writes, which are only handed to the {@link Sink}, e.g.
+ *            {@link com.google.android.gms.wearable.PutDataMapRequest}.
+ */
+public final class SyncConflater<R> {
+
+    private static final String TAG = "SyncConflater";
+
+    private final Sink<R> mSink;
+    private final ScheduledExecutorService mExecutor;
+    private final Map<String, Lane<R>> mLanes = new HashMap<>();
+
+    public SyncConflater(Sink<R> sink) {
+        this(sink, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * @param sink     Puts the writes; see {@link Sink}.
+     * @param executor Runs the trailing puts of the held writes.
+     */
+    public SyncConflater(Sink<R> sink, ScheduledExecutorService executor) {
+        mSink = WearUtil.assertNotNull(sink, "sink");
+        mExecutor = WearUtil.assertNotNull(executor, "executor");
+    }
+
+    /**
+     * Conflates the writes to {@code path} so that it is put at most once every
+     * {@code minIntervalMillis}. Calling this again for the same path changes its interval.
+     */
+    public synchronized void setMinIntervalMillis(String path, long minIntervalMillis) {
+        WearUtil.assertNotEmpty(path, "path");
+        if (minIntervalMillis < 0) {
+            throw new IllegalArgumentException("minIntervalMillis should not be negative");
+        }
+        Lane<R> lane = mLanes.get(path);
+        if (lane == null) {
+            mLanes.put(path, new Lane<R>(path, TimeUnit.MILLISECONDS.toNanos(minIntervalMillis)));
+        } else {
+            lane.mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        }
+    }
+
+    /**
+     * Stops conflating the writes to {@code path}; a held write is put right away.
+     */
+    public void remove(String path) {
+        Lane<R> lane;
+        synchronized (this) {
+            lane = mLanes.remove(path);
+        }
+        if (lane != null) {
+            flush(lane);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the writes to {@code path} are conflated.
+     */
+    public synchronized boolean isConflated(String path) {
+        return mLanes.containsKey(path);
+    }
+
+    /**
+     * Puts {@code request} now, or holds it until the minimum interval of {@code path} has
+     * passed. Returns {@code false}, without doing anything, if the writes to {@code path} are not
+     * conflated. A held write is put as urgent if any of the writes it replaced was.
+     */
+    public boolean offer(String path, R request, boolean isUrgent) {
+        final Lane<R> lane;
+        synchronized (this) {
+            lane = mLanes.get(path);
+            if (lane == null) {
+                return false;
+            }
+            if (lane.mPending != null) {
+                lane.mPending = request;
+                lane.mPendingUrgent |= isUrgent;
+                lane.mConflatedCount++;
+                return true;
+            }
+            long now = System.nanoTime();
+            long waitNanos = lane.mLastPutNanos + lane.mMinIntervalNanos - now;
+            if (lane.mPutCount > 0 && waitNanos > 0) {
+                lane.mPending = request;
+                lane.mPendingUrgent = isUrgent;
+                lane.mFlush = mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(lane);
+                    }
+                }, waitNanos, TimeUnit.NANOSECONDS);
+                return true;
+            }
+            lane.mLastPutNanos = now;
+            lane.mPutCount++;
+        }
+        mSink.put(request, isUrgent);
+        return true;
+    }
+
+    /**
+     * Puts the held writes of every path right away, e.g. before the app goes to the background.
+     */
+    public void flush() {
+        List<Lane<R>> lanes;
+        synchronized (this) {
+            lanes = new ArrayList<>(mLanes.values());
+        }
+        for (Lane<R> lane : lanes) {
+            flush(lane);
+        }
+    }
+
+    /**
+     * Returns the number of puts made for {@code path}.
+     */
+    public synchronized long getPutCount(String path) {
+        Lane<R> lane = mLanes.get(path);
+        return lane == null ? 0 : lane.mPutCount;
+    }
+
+    /**
+     * Returns the number of writes to {@code path} that were replaced by a newer one before they
+     * were put.
+     */
+    public synchronized long getConflatedCount(String path) {
+        Lane<R> lane = mLanes.get(path);
+        return lane == null ? 0 : lane.mConflatedCount;
+    }
+
+    private void flush(Lane<R> lane) {
+        R request;
+        boolean isUrgent;
+        long conflatedCount;
+        synchronized (this) {
+            if (lane.mFlush != null) {
+                lane.mFlush.cancel(false);
+                lane.mFlush = null;
+            }
+            request = lane.mPending;
+            if (request == null) {
+                return;
+            }
+            isUrgent = lane.mPendingUrgent;
+            conflatedCount = lane.mConflatedCount;
+            lane.mPending = null;
+            lane.mPendingUrgent = false;
+            lane.mLastPutNanos = System.nanoTime();
+            lane.mPutCount++;
+        }
+        WearLog.d(TAG, "Putting the latest write held for {}, {} conflated so far", lane.mPath,
+                conflatedCount);
+        mSink.put(request, isUrgent);
+    }
+
+    /**
+     * Puts the data items, e.g. through the {@link com.google.android.gms.wearable.DataApi}.
+     */
+    public interface Sink<R> {
+        void put(R request, boolean isUrgent);
+    }
+
+    private static final class Lane<R> {
+        final String mPath;
+        long mMinIntervalNanos;
+        long mLastPutNanos;
+        long mPutCount;
+        long mConflatedCount;
+        R mPending;
+        boolean mPendingUrgent;
+        ScheduledFuture<?> mFlush;
+
+        Lane(String path, long minIntervalNanos) {
+            mPath = path;
+            mMinIntervalNanos = minIntervalNanos;
+        }
+    }
+}
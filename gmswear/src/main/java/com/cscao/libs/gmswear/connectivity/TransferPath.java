@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.util.Constants;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * The parameters encoded in the path of a channel opened by {@link FileTransfer}. A path is made
+ * of a type prefix, e.g. {@link Constants#PATH_FILE_TRANSFER_TYPE_FILE}, followed by slash
+ * separated segments:
+ * <pre>
+ * &lt;prefix&gt;[~&lt;version&gt;/][&lt;time&gt;/]&lt;name&gt;/&lt;size&gt;/&lt;request-id&gt;
+ *     [/&lt;hash&gt;]
+ * &lt;prefix&gt;[~&lt;version&gt;/][&lt;time&gt;/]&lt;request-id&gt;
+ * </pre>
+ * The second form is used for stream transfers. The name is URL encoded. Version 1 is the original
+ * layout and is written without a version segment so that older peers can still read it; since
+ * {@link java.net.URLEncoder} always escapes {@code '~'}, a version segment can never be confused
+ * with a name. Version 2 adds the time the transfer was started, {@code <time>}, in the
+ * microseconds of {@link com.cscao.libs.gmswear.node.ClockSync#nowMicros()}, and is only written
+ * when a send time is given. Paths with a version newer than {@link #VERSION} are rejected.
+ * <p>
+ * {@link #parse(String, String)} makes a single pass over the path and only allocates the strings
+ * it returns.
+ */
+public final class TransferPath {
+
+    public static final int VERSION = 2;
+    private static final int VERSION_ORIGINAL = 1;
+    private static final int VERSION_SEND_TIME = 2;
+    private static final char SEPARATOR = '/';
+    private static final char VERSION_MARKER = '~';
+    private static final String CHARSET = "utf-8";
+
+    private final String mPrefix;
+    private final int mVersion;
+    private final String mName;
+    private final long mSize;
+    private final String mRequestId;
+    private final String mContentHash;
+    private final long mSendTimeMicros;
+
+    private TransferPath(String prefix, int version, String name, long size, String requestId,
+            String contentHash, long sendTimeMicros) {
+        mPrefix = prefix;
+        mVersion = version;
+        mName = name;
+        mSize = size;
+        mRequestId = requestId;
+        mContentHash = contentHash;
+        mSendTimeMicros = sendTimeMicros;
+    }
+
+    /**
+     * Builds the path of a file transfer.
+     *
+     * @param contentHash An optional hash of the content, or {@code null}.
+     */
+    public static String encode(String prefix, String name, long size, String requestId,
+            @Nullable String contentHash) {
+        return encode(prefix, name, size, requestId, contentHash, -1);
+    }
+
+    /**
+     * Builds the path of a file transfer started at {@code sendTimeMicros}, or without a send
+     * time if it is negative.
+     *
+     * @param contentHash An optional hash of the content, or {@code null}.
+     */
+    public static String encode(String prefix, String name, long size, String requestId,
+            @Nullable String contentHash, long sendTimeMicros) {
+        String encodedName;
+        try {
+            encodedName = URLEncoder.encode(name, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(CHARSET + " is not supported", e);
+        }
+        StringBuilder builder = new StringBuilder(prefix.length() + encodedName.length() + 96);
+        appendPrefix(builder, prefix, sendTimeMicros)
+                .append(encodedName)
+                .append(SEPARATOR).append(size)
+                .append(SEPARATOR).append(requestId);
+        if (contentHash != null) {
+            builder.append(SEPARATOR).append(contentHash);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Builds the path of a stream transfer.
+     */
+    public static String encodeStream(String prefix, String requestId) {
+        return prefix + requestId;
+    }
+
+    /**
+     * Builds the path of a stream transfer started at {@code sendTimeMicros}, or without a send
+     * time if it is negative.
+     */
+    public static String encodeStream(String prefix, String requestId, long sendTimeMicros) {
+        return appendPrefix(new StringBuilder(prefix.length() + requestId.length() + 32), prefix,
+                sendTimeMicros).append(requestId).toString();
+    }
+
+    private static StringBuilder appendPrefix(StringBuilder builder, String prefix,
+            long sendTimeMicros) {
+        builder.append(prefix);
+        if (sendTimeMicros >= 0) {
+            builder.append(VERSION_MARKER).append(VERSION_SEND_TIME).append(SEPARATOR)
+                    .append(sendTimeMicros).append(SEPARATOR);
+        }
+        return builder;
+    }
+
+    /**
+     * Parses {@code path}, which should start with {@code prefix}. Returns {@code null} if the
+     * path doesn't start with the prefix, is malformed or uses an unsupported version.
+     */
+    @Nullable
+    public static TransferPath parse(String prefix, String path) {
+        if (path == null || !path.startsWith(prefix)) {
+            return null;
+        }
+        int start = prefix.length();
+        int length = path.length();
+        int version = VERSION_ORIGINAL;
+        if (start < length && path.charAt(start) == VERSION_MARKER) {
+            int end = indexOfSeparator(path, start + 1);
+            version = (int) parseNumber(path, start + 1, end);
+            if (version < VERSION_ORIGINAL || version > VERSION || end == length) {
+                return null;
+            }
+            start = end + 1;
+        }
+        long sendTimeMicros = -1;
+        if (version >= VERSION_SEND_TIME) {
+            int end = indexOfSeparator(path, start);
+            sendTimeMicros = parseNumber(path, start, end);
+            if (sendTimeMicros < 0 || end == length) {
+                return null;
+            }
+            start = end + 1;
+        }
+
+        int first = indexOfSeparator(path, start);
+        if (first == length) {
+            // a single segment: the request id of a stream transfer
+            return first > start ? new TransferPath(prefix, version, null, -1,
+                    path.substring(start, first), null, sendTimeMicros) : null;
+        }
+        int second = indexOfSeparator(path, first + 1);
+        if (second == length) {
+            return null;
+        }
+        int third = indexOfSeparator(path, second + 1);
+        long size = parseNumber(path, first + 1, second);
+        if (size < 0 || third == second + 1) {
+            return null;
+        }
+        String contentHash = null;
+        if (third < length) {
+            if (indexOfSeparator(path, third + 1) != length || third + 1 == length) {
+                return null;
+            }
+            contentHash = path.substring(third + 1);
+        }
+        String name = decode(path, start, first);
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        return new TransferPath(prefix, version, name, size, path.substring(second + 1, third),
+                contentHash, sendTimeMicros);
+    }
+
+    private static int indexOfSeparator(String path, int from) {
+        int index = path.indexOf(SEPARATOR, from);
+        return index < 0 ? path.length() : index;
+    }
+
+    /**
+     * Parses the non-negative decimal number between {@code start} and {@code end}, or returns -1.
+     */
+    private static long parseNumber(String path, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * URL decodes the segment between {@code start} and {@code end}; the segment is only copied
+     * once, and only decoded through a byte buffer if it contains escapes.
+     */
+    @Nullable
+    private static String decode(String path, int start, int end) {
+        boolean escaped = false;
+        for (int i = start; i < end && !escaped; i++) {
+            char c = path.charAt(i);
+            escaped = c == '%' || c == '+';
+        }
+        if (!escaped) {
+            return path.substring(start, end);
+        }
+        byte[] bytes = new byte[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (c == '+') {
+                bytes[count++] = ' ';
+            } else if (c == '%') {
+                if (i + 2 >= end) {
+                    return null;
+                }
+                int high = Character.digit(path.charAt(i + 1), 16);
+                int low = Character.digit(path.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                bytes[count++] = (byte) ((high << 4) | low);
+                i += 2;
+            } else if (c < 0x80) {
+                bytes[count++] = (byte) c;
+            } else {
+                return null;
+            }
+        }
+        try {
+            return new String(bytes, 0, count, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(CHARSET + " is not supported", e);
+        }
+    }
+
+    /**
+     * Returns the type prefix this path was parsed with.
+     */
+    public String getPrefix() {
+        return mPrefix;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns {@code true} if this is the path of a file transfer, i.e. it has a name and a size,
+     * rather than that of a stream transfer.
+     */
+    public boolean isFile() {
+        return mName != null;
+    }
+
+    /**
+     * Returns the decoded target name of the file, or {@code null} for a stream transfer.
+     */
+    @Nullable
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the size of the file in bytes, or -1 for a stream transfer.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    public String getRequestId() {
+        return mRequestId;
+    }
+
+    /**
+     * Returns the hash of the content, or {@code null} if the path doesn't carry one.
+     */
+    @Nullable
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+    /**
+     * Returns when the sender started the transfer, in the microseconds of its
+     * {@link com.cscao.libs.gmswear.node.ClockSync#nowMicros()}, or -1 if the path doesn't carry
+     * it.
+     */
+    public long getSendTimeMicros() {
+        return mSendTimeMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferPath{prefix=" + mPrefix + ", version=" + mVersion + ", name=" + mName
+                + ", size=" + mSize + ", requestId=" + mRequestId + ", contentHash="
+                + mContentHash + ", sendTime=" + mSendTimeMicros + "}";
+    }
+}
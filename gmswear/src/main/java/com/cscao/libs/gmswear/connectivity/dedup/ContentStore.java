@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.dedup;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A content-addressed store of received files, keyed by the SHA-256 of their content. Files are
+ * kept in a private directory under their hex encoded hash; the store is bounded by a total size
+ * and evicts the least recently used entries when it grows past it. The recency of entries is
+ * persisted through the last modified time of the files so it survives restarts.
+ * <p>
+ * Entries are materialized under their target names as copies, so that the received files can be
+ * written to, or received again, without touching the store. A hit is only reported once the
+ * content of the entry has been hashed again, so an entry damaged on disk is dropped rather than
+ * handed out.
+ */
+public class ContentStore {
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    private static final String TAG = "ContentStore";
+    private static final String TEMP_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HASH_CACHE_SIZE = 32;
+    private static final int HASH_HEX_LENGTH = 64;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Map<String, String> sHashCache = new LinkedHashMap<String, String>(
+            HASH_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > HASH_CACHE_SIZE;
+        }
+    };
+
+    private final File mDirectory;
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMaxBytes;
+    private long mTotalBytes;
+    private boolean mLoaded;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mBytesSaved;
+
+    /**
+     * Creates a store backed by {@code directory}, which is created on first use.
+     *
+     * @param maxBytes The maximum total size of the stored files.
+     */
+    public ContentStore(File directory, long maxBytes) {
+        mDirectory = WearUtil.assertNotNull(directory, "directory");
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Sets the maximum total size of the stored files, evicting entries if needed.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes should be positive");
+        }
+        mMaxBytes = maxBytes;
+        if (mLoaded) {
+            trimToSize();
+        }
+    }
+
+    /**
+     * Returns {@code true} if a file of {@code size} bytes fits in this store at all.
+     */
+    public synchronized boolean accepts(long size) {
+        return size <= mMaxBytes;
+    }
+
+    /**
+     * Returns {@code true} if {@code hash} is a well formed, hex encoded SHA-256. Hashes received
+     * from other nodes are used as file names, so they must be checked with this first.
+     */
+    public static boolean isValidHash(String hash) {
+        if (hash == null || hash.length() != HASH_HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HASH_HEX_LENGTH; i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up {@code hash} and records the lookup as a hit or a miss. The content of the entry
+     * is hashed again before it counts as a hit; if there is a hit, the entry becomes the most
+     * recently used one. This blocks and should be called on a worker thread.
+     */
+    public boolean contains(String hash) {
+        File file;
+        Long size;
+        synchronized (this) {
+            ensureLoaded();
+            size = mEntries.get(hash);
+            file = fileFor(hash);
+        }
+        boolean intact = size != null && file.length() == size && isIntact(hash, file);
+        synchronized (this) {
+            if (intact && size.equals(mEntries.get(hash))) {
+                mHits++;
+                file.setLastModified(System.currentTimeMillis());
+                return true;
+            }
+            if (size != null && size.equals(mEntries.get(hash))) {
+                // the file was removed or modified behind our back
+                WearLog.w(TAG, "contains(): Dropping the damaged entry {}", hash);
+                remove(hash);
+            }
+            mMisses++;
+            return false;
+        }
+    }
+
+    /**
+     * Reads {@code size} bytes from {@code inputStream} and adds them to the store under
+     * {@code hash}. Returns {@code false}, without adding anything, if the content does not match
+     * the hash. This blocks and should be called on a worker thread.
+     */
+    public boolean put(String hash, InputStream inputStream, long size) throws IOException {
+        assertValidHash(hash);
+        synchronized (this) {
+            ensureLoaded();
+        }
+        // concurrent puts of the same content each write their own file, the last rename wins
+        File temp = File.createTempFile(hash + '.', TEMP_SUFFIX, mDirectory);
+        boolean success = false;
+        try {
+            MessageDigest digest = newDigest();
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(temp),
+                    BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = size;
+                while (remaining > 0) {
+                    int read = inputStream.read(buffer, 0,
+                            (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new IOException("Stream ended " + remaining + " bytes early");
+                    }
+                    digest.update(buffer, 0, read);
+                    outputStream.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            } finally {
+                outputStream.close();
+            }
+            if (!hash.equals(toHex(digest.digest()))) {
+                WearLog.e(TAG, "put(): Content doesn't match the hash {}", hash);
+                return false;
+            }
+            synchronized (this) {
+                success = temp.renameTo(fileFor(hash));
+                if (success) {
+                    Long previous = mEntries.put(hash, size);
+                    mTotalBytes += size - (previous != null ? previous : 0);
+                    trimToSize();
+                }
+            }
+            return success;
+        } finally {
+            if (!success) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies the content stored under {@code hash} to {@code target}, replacing any existing
+     * file. Returns {@code false} if there is no such entry or it could not be copied. This blocks
+     * and should be called on a worker thread.
+     *
+     * @param hit {@code true} if the content was found by {@link #contains(String)} rather than
+     *            just received, in which case its size is added to the bytes saved once it has
+     *            been copied.
+     */
+    public boolean materialize(String hash, File target, boolean hit) throws IOException {
+        assertValidHash(hash);
+        File source;
+        Long size;
+        synchronized (this) {
+            ensureLoaded();
+            size = mEntries.get(hash);
+            if (size == null) {
+                return false;
+            }
+            source = fileFor(hash);
+        }
+        File temp = File.createTempFile('.' + target.getName() + '.', TEMP_SUFFIX,
+                target.getParentFile());
+        boolean success = false;
+        try {
+            copy(source, temp);
+            success = temp.renameTo(target);
+            if (success && hit) {
+                synchronized (this) {
+                    mBytesSaved += size;
+                }
+            }
+            return success;
+        } finally {
+            if (!success) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the size and hit rate of this store.
+     */
+    public synchronized Stats getStats() {
+        ensureLoaded();
+        return new Stats(mEntries.size(), mTotalBytes, mMaxBytes, mHits, mMisses, mEvictions,
+                mBytesSaved);
+    }
+
+    /**
+     * Removes all entries from this store. Files that were materialized from it are not affected.
+     */
+    public synchronized void clear() {
+        ensureLoaded();
+        for (String hash : mEntries.keySet()) {
+            fileFor(hash).delete();
+        }
+        mEntries.clear();
+        mTotalBytes = 0;
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 of the content of {@code file}. Recently computed hashes are
+     * cached by path, length and modification time so that sending the same file repeatedly does
+     * not hash it every time. This blocks and should be called on a worker thread.
+     */
+    public static String hashOf(File file) throws IOException {
+        String key = file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+        synchronized (sHashCache) {
+            String hash = sHashCache.get(key);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        String hash = digestOf(file);
+        synchronized (sHashCache) {
+            sHashCache.put(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns {@code true} if the content of {@code file} still matches {@code hash}.
+     */
+    private static boolean isIntact(String hash, File file) {
+        try {
+            return hash.equals(digestOf(file));
+        } catch (IOException e) {
+            WearLog.e(TAG, "Failed to read {}", file, e);
+            return false;
+        }
+    }
+
+    private static String digestOf(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void assertValidHash(String hash) {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Not a valid SHA-256: " + hash);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            WearLog.e(TAG, "Failed to create the content store at {}", mDirectory);
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // left over from an interrupted transfer
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            mTotalBytes += file.length();
+        }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            fileFor(eldest.getKey()).delete();
+            mTotalBytes -= eldest.getValue();
+            mEvictions++;
+        }
+    }
+
+    private void remove(String hash) {
+        Long size = mEntries.remove(hash);
+        if (size != null) {
+            mTotalBytes -= size;
+            fileFor(hash).delete();
+        }
+    }
+
+    private File fileFor(String hash) {
+        return new File(mDirectory, hash);
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        InputStream inputStream = new FileInputStream(source);
+        try {
+            OutputStream outputStream = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) > 0) {
+                    outputStream.write(buffer, 0, read);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A snapshot of the state of a {@link ContentStore}.
+     */
+    public static final class Stats {
+        private final int mEntryCount;
+        private final long mTotalBytes;
+        private final long mMaxBytes;
+        private final long mHits;
+        private final long mMisses;
+        private final long mEvictions;
+        private final long mBytesSaved;
+
+        Stats(int entryCount, long totalBytes, long maxBytes, long hits, long misses,
+                long evictions, long bytesSaved) {
+            mEntryCount = entryCount;
+            mTotalBytes = totalBytes;
+            mMaxBytes = maxBytes;
+            mHits = hits;
+            mMisses = misses;
+            mEvictions = evictions;
+            mBytesSaved = bytesSaved;
+        }
+
+        public int getEntryCount() {
+            return mEntryCount;
+        }
+
+        public long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        public long getMaxBytes() {
+            return mMaxBytes;
+        }
+
+        public long getHits() {
+            return mHits;
+        }
+
+        public long getMisses() {
+            return mMisses;
+        }
+
+        public long getEvictions() {
+            return mEvictions;
+        }
+
+        /**
+         * Returns the total size of the payloads that did not have to be transferred because they
+         * were already in the store.
+         */
+        public long getBytesSaved() {
+            return mBytesSaved;
+        }
+
+        /**
+         * Returns the fraction of lookups that were hits, or 0 if there were no lookups.
+         */
+        public double getHitRate() {
+            long lookups = mHits + mMisses;
+            return lookups == 0 ? 0 : (double) mHits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "ContentStore.Stats{entries=" + mEntryCount + ", bytes=" + mTotalBytes + "/"
+                    + mMaxBytes + ", hits=" + mHits + ", misses=" + mMisses + ", evictions="
+                    + mEvictions + ", bytesSaved=" + mBytesSaved + "}";
+        }
+    }
+}
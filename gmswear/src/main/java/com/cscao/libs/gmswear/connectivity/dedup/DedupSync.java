@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.dedup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A protocol to send a file only if the receiver doesn't already have its content. It runs over
+ * the two streams of a channel whose path carries the SHA-256 of the file:
+ * <ol>
+ * <li>The receiver looks the hash up in its {@link ContentStore} and answers with a single byte,
+ * either "have" or "need".</li>
+ * <li>Only if the receiver needs it, the sender streams the content of the file.</li>
+ * <li>The receiver stores the content, verifying it against the hash, materializes it under the
+ * target name and acknowledges with a single byte.</li>
+ * </ol>
+ * All methods here block and should be called on a worker thread.
+ */
+public final class DedupSync {
+
+    private static final int OFFER_HAVE = 1;
+    private static final int OFFER_NEED = 2;
+    private static final int ACK_SUCCESS = 1;
+    private static final int ACK_FAILURE = 0;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".dedup-part";
+
+    private DedupSync() {
+    }
+
+    /**
+     * Runs the sender side of the protocol for {@code source}. Returns a {@link Result} describing
+     * whether the payload had to be sent and whether the receiver acknowledged the file.
+     */
+    public static Result send(File source, InputStream inputStream, OutputStream outputStream)
+            throws IOException {
+        int offer = inputStream.read();
+        boolean payloadSent = false;
+        if (offer == OFFER_NEED) {
+            InputStream fileIn = new FileInputStream(source);
+            try {
+                copy(fileIn, outputStream, source.length());
+            } finally {
+                fileIn.close();
+            }
+            outputStream.flush();
+            payloadSent = true;
+        } else if (offer != OFFER_HAVE) {
+            throw new IOException("Unexpected offer response: " + offer);
+        }
+        boolean acknowledged = inputStream.read() == ACK_SUCCESS;
+        return new Result(payloadSent, source.length(), acknowledged);
+    }
+
+    /**
+     * Runs the receiver side of the protocol, saving the content with the given {@code hash} and
+     * {@code size} as {@code target}. Content that is larger than the store can hold is written
+     * to the target directly. Returns {@code true} if the file was received successfully.
+     */
+    public static boolean receive(ContentStore store, String hash, long size, File target,
+            InputStream inputStream, OutputStream outputStream) throws IOException {
+        if (!ContentStore.isValidHash(hash)) {
+            throw new IOException("Invalid content hash: " + hash);
+        }
+        boolean have = store.contains(hash);
+        outputStream.write(have ? OFFER_HAVE : OFFER_NEED);
+        outputStream.flush();
+        boolean success;
+        if (have) {
+            success = store.materialize(hash, target, true);
+        } else if (store.accepts(size)) {
+            success = store.put(hash, inputStream, size)
+                    && store.materialize(hash, target, false);
+        } else {
+            success = receiveDirectly(inputStream, size, target);
+        }
+        outputStream.write(success ? ACK_SUCCESS : ACK_FAILURE);
+        outputStream.flush();
+        return success;
+    }
+
+    private static boolean receiveDirectly(InputStream inputStream, long size, File target)
+            throws IOException {
+        File temp = new File(target.getParentFile(), target.getName() + TEMP_SUFFIX);
+        boolean success = false;
+        try {
+            OutputStream fileOut = new FileOutputStream(temp);
+            try {
+                copy(inputStream, fileOut, size);
+            } finally {
+                fileOut.close();
+            }
+            success = temp.renameTo(target);
+            return success;
+        } finally {
+            if (!success) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Stream ended " + remaining + " bytes early");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * The outcome of {@link #send(File, InputStream, OutputStream)}.
+     */
+    public static final class Result {
+        private final boolean mPayloadSent;
+        private final long mFileLength;
+        private final boolean mAcknowledged;
+
+        Result(boolean payloadSent, long fileLength, boolean acknowledged) {
+            mPayloadSent = payloadSent;
+            mFileLength = fileLength;
+            mAcknowledged = acknowledged;
+        }
+
+        /**
+         * Returns {@code false} if the receiver already had the content and the payload was
+         * skipped.
+         */
+        public boolean isPayloadSent() {
+            return mPayloadSent;
+        }
+
+        public long getFileLength() {
+            return mFileLength;
+        }
+
+        /**
+         * Returns {@code true} if the receiver saved the file under its target name.
+         */
+        public boolean isAcknowledged() {
+            return mAcknowledged;
+        }
+
+        @Override
+        public String toString() {
+            return "DedupSync.Result{payloadSent=" + mPayloadSent + ", fileLength=" + mFileLength
+                    + ", acknowledged=" + mAcknowledged + "}";
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.delta;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The difference between a source file and the file described by a {@link FileSignature},
+ * expressed as a list of operations: copy a run of blocks from the receiver's existing copy, or
+ * insert literal bytes from the source. Literal operations only record an offset into the source
+ * file, so a delta can be sized before anything is sent and the literal bytes are read again only
+ * when the delta is written out.
+ */
+final class Delta {
+
+    static final byte OP_END = 0;
+    static final byte OP_COPY = 1;
+    static final byte OP_LITERAL = 2;
+
+    private static final int COPY_OP_SIZE = 1 + 4 + 4;
+    private static final int LITERAL_OP_HEADER_SIZE = 1 + 4;
+    private static final int MAX_LITERAL_LENGTH = 1 << 20;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final long mSourceLength;
+    private byte[] mTypes = new byte[16];
+    private long[] mArgs = new long[16];
+    private int[] mLengths = new int[16];
+    private int mCount;
+    private long mLiteralBytes;
+    private byte[] mDigest;
+
+    private Delta(long sourceLength) {
+        mSourceLength = sourceLength;
+    }
+
+    /**
+     * Computes the delta of {@code source} against {@code signature} in a single pass over the
+     * source, using the rolling checksum to test every offset for a matching block.
+     */
+    static Delta compute(File source, FileSignature signature) throws IOException {
+        Delta delta = new Delta(source.length());
+        SourceReader reader = new SourceReader(source);
+        try {
+            delta.match(reader, signature);
+        } finally {
+            reader.close();
+        }
+        delta.mDigest = reader.mDigest.digest();
+        return delta;
+    }
+
+    private void match(SourceReader reader, FileSignature signature) throws IOException {
+        int blockSize = signature.getBlockSize();
+        int lastBlock = signature.getBlockCount() - 1;
+        MessageDigest strong = FileSignature.newDigest();
+        RollingChecksum checksum = new RollingChecksum();
+        byte[] window = new byte[blockSize];
+        int windowLength = reader.read(window, blockSize);
+        int head = 0;
+        long position = 0;
+        long literalStart = 0;
+        if (windowLength == blockSize) {
+            checksum.reset(window, 0, blockSize);
+        }
+        while (windowLength == blockSize && lastBlock >= 0) {
+            int block = findBlock(signature, checksum.value(), window, head, blockSize,
+                    preferredBlock(), strong);
+            if (block >= 0) {
+                addLiteral(literalStart, position - literalStart);
+                addCopy(block);
+                position += blockSize;
+                literalStart = position;
+                head = 0;
+                windowLength = reader.read(window, blockSize);
+                if (windowLength == blockSize) {
+                    checksum.reset(window, 0, blockSize);
+                }
+                continue;
+            }
+            int next = reader.read();
+            if (next < 0) {
+                break;
+            }
+            byte out = window[head];
+            window[head] = (byte) next;
+            head = head + 1 == blockSize ? 0 : head + 1;
+            position++;
+            checksum.roll(out, (byte) next);
+        }
+        if (windowLength > 0 && windowLength < blockSize && lastBlock >= 0
+                && signature.getBlockLength(lastBlock) == windowLength) {
+            // the source ends with a short block; it can only match the receiver's last block
+            int weak = RollingChecksum.of(window, 0, windowLength);
+            int block = findBlock(signature, weak, window, 0, windowLength, lastBlock, strong);
+            if (block == lastBlock) {
+                addLiteral(literalStart, position - literalStart);
+                addCopy(block);
+                return;
+            }
+        }
+        // drain whatever is left of the source as literal data
+        while (reader.read() >= 0) {
+            windowLength++;
+        }
+        addLiteral(literalStart, position + windowLength - literalStart);
+    }
+
+    private static int findBlock(FileSignature signature, int weak, byte[] window, int head,
+            int length, int preferred, MessageDigest strong) {
+        int candidate = signature.firstWithHash(weak);
+        byte[] strongHash = null;
+        int match = -1;
+        while (candidate >= 0) {
+            if (signature.getBlockLength(candidate) == length) {
+                if (strongHash == null) {
+                    strong.update(window, head, length - head);
+                    strong.update(window, 0, head);
+                    strongHash = strong.digest();
+                }
+                if (signature.strongHashEquals(candidate, strongHash)) {
+                    if (candidate == preferred) {
+                        return candidate;
+                    }
+                    if (match < 0) {
+                        match = candidate;
+                    }
+                }
+            }
+            candidate = signature.nextWithSameHash(candidate);
+        }
+        return match;
+    }
+
+    /**
+     * Returns the block that would extend the last copy operation, so that runs of unchanged
+     * blocks collapse into a single operation.
+     */
+    private int preferredBlock() {
+        if (mCount > 0 && mTypes[mCount - 1] == OP_COPY) {
+            return (int) (mArgs[mCount - 1] + mLengths[mCount - 1]);
+        }
+        return -1;
+    }
+
+    private void addCopy(int block) {
+        if (mCount > 0 && mTypes[mCount - 1] == OP_COPY
+                && mArgs[mCount - 1] + mLengths[mCount - 1] == block) {
+            mLengths[mCount - 1]++;
+            return;
+        }
+        add(OP_COPY, block, 1);
+    }
+
+    private void addLiteral(long offset, long length) {
+        mLiteralBytes += length;
+        while (length > 0) {
+            int chunk = (int) Math.min(length, MAX_LITERAL_LENGTH);
+            add(OP_LITERAL, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void add(byte type, long arg, int length) {
+        if (mCount == mTypes.length) {
+            int capacity = mCount * 2;
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mArgs = Arrays.copyOf(mArgs, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+        }
+        mTypes[mCount] = type;
+        mArgs[mCount] = arg;
+        mLengths[mCount] = length;
+        mCount++;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeTo(DataOutputStream, File)} will write, excluding
+     * the trailing digest.
+     */
+    long getEncodedSize() {
+        long size = 1;
+        for (int i = 0; i < mCount; i++) {
+            size += mTypes[i] == OP_COPY ? COPY_OP_SIZE : LITERAL_OP_HEADER_SIZE + mLengths[i];
+        }
+        return size;
+    }
+
+    long getSourceLength() {
+        return mSourceLength;
+    }
+
+    long getLiteralBytes() {
+        return mLiteralBytes;
+    }
+
+    /**
+     * Returns the MD5 digest of the whole source file.
+     */
+    byte[] getDigest() {
+        return mDigest;
+    }
+
+    /**
+     * Writes the operations to {@code outputStream}, reading literal data back from
+     * {@code source}.
+     */
+    void writeTo(DataOutputStream outputStream, File source) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+        try {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            for (int i = 0; i < mCount; i++) {
+                outputStream.writeByte(mTypes[i]);
+                if (mTypes[i] == OP_COPY) {
+                    outputStream.writeInt((int) mArgs[i]);
+                    outputStream.writeInt(mLengths[i]);
+                    continue;
+                }
+                int remaining = mLengths[i];
+                outputStream.writeInt(remaining);
+                file.seek(mArgs[i]);
+                while (remaining > 0) {
+                    int read = file.read(buffer, 0, Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new IOException("Source file was truncated: " + source);
+                    }
+                    outputStream.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            outputStream.writeByte(OP_END);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * A minimal buffered reader over the source file that also computes the digest of every byte
+     * it reads, so the source is only read once while computing the delta.
+     */
+    private static final class SourceReader {
+        private final InputStream mInputStream;
+        private final MessageDigest mDigest = FileSignature.newDigest();
+        private final byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+        private int mPosition;
+        private int mLimit;
+
+        SourceReader(File file) throws IOException {
+            mInputStream = new FileInputStream(file);
+        }
+
+        int read() throws IOException {
+            if (mPosition == mLimit && !fill()) {
+                return -1;
+            }
+            return mBuffer[mPosition++] & 0xff;
+        }
+
+        int read(byte[] target, int length) throws IOException {
+            int total = 0;
+            while (total < length) {
+                if (mPosition == mLimit && !fill()) {
+                    break;
+                }
+                int count = Math.min(length - total, mLimit - mPosition);
+                System.arraycopy(mBuffer, mPosition, target, total, count);
+                mPosition += count;
+                total += count;
+            }
+            return total;
+        }
+
+        private boolean fill() throws IOException {
+            int read = mInputStream.read(mBuffer);
+            if (read <= 0) {
+                return false;
+            }
+            mDigest.update(mBuffer, 0, read);
+            mPosition = 0;
+            mLimit = read;
+            return true;
+        }
+
+        void close() throws IOException {
+            mInputStream.close();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * An rsync-style protocol to update a file on a remote node by sending only the parts that
+ * changed. It runs over the two streams of a single channel:
+ * <ol>
+ * <li>The receiver sends the {@link FileSignature} of its existing copy (empty if it has none).
+ * </li>
+ * <li>The sender computes a {@link Delta} against that signature and sends either the delta or,
+ * if the delta would not be smaller, the whole file. Both are followed by the MD5 digest of the
+ * source.</li>
+ * <li>The receiver rebuilds the file into a temporary file next to the target, verifies its length
+ * and digest, moves it over the target and acknowledges with a single byte.</li>
+ * </ol>
+ * All methods here block and should be called on a worker thread.
+ */
+public final class DeltaSync {
+
+    public static final int MODE_DELTA = 1;
+    public static final int MODE_FULL = 2;
+    private static final String TEMP_SUFFIX = ".delta-part";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ACK_SUCCESS = 1;
+    private static final int ACK_FAILURE = 0;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * Runs the sender side of the protocol for {@code source}. Returns a {@link Result} describing
+     * what was sent and whether the receiver acknowledged the file.
+     */
+    public static Result send(File source, InputStream inputStream, OutputStream outputStream)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(outputStream, BUFFER_SIZE));
+        FileSignature signature = FileSignature.readFrom(in);
+        long sourceLength = source.length();
+        Delta delta = null;
+        if (signature.getBlockCount() > 0) {
+            delta = Delta.compute(source, signature);
+            if (delta.getEncodedSize() >= sourceLength) {
+                delta = null;
+            }
+        }
+
+        byte[] digest;
+        long payloadBytes;
+        if (delta != null) {
+            out.writeByte(MODE_DELTA);
+            out.writeLong(sourceLength);
+            delta.writeTo(out, source);
+            digest = delta.getDigest();
+            payloadBytes = delta.getEncodedSize();
+        } else {
+            out.writeByte(MODE_FULL);
+            out.writeLong(sourceLength);
+            digest = copyWithDigest(source, out, sourceLength);
+            payloadBytes = sourceLength;
+        }
+        out.write(digest);
+        out.flush();
+        boolean acknowledged = in.read() == ACK_SUCCESS;
+        return new Result(delta != null ? MODE_DELTA : MODE_FULL, sourceLength, payloadBytes,
+                acknowledged);
+    }
+
+    /**
+     * Runs the receiver side of the protocol, updating {@code target} in place. The target is only
+     * replaced once the rebuilt file has been verified, so a failed transfer leaves the existing
+     * copy untouched. Returns {@code true} if the file was received successfully.
+     */
+    public static boolean receive(File target, InputStream inputStream, OutputStream outputStream)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        FileSignature signature = target.exists() ? FileSignature.compute(target)
+                : FileSignature.empty();
+        signature.writeTo(out);
+        out.flush();
+
+        // concurrent transfers of the same file each rebuild their own copy, the last rename wins
+        File temp = File.createTempFile('.' + target.getName() + '.', TEMP_SUFFIX,
+                target.getParentFile());
+        boolean success = false;
+        try {
+            int mode = in.readByte();
+            long length = in.readLong();
+            MessageDigest digest = FileSignature.newDigest();
+            OutputStream fileOut = new DigestOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp), BUFFER_SIZE), digest);
+            try {
+                if (mode == MODE_FULL) {
+                    copy(in, fileOut, length);
+                } else if (mode == MODE_DELTA) {
+                    applyDelta(in, fileOut, target, signature);
+                } else {
+                    throw new IOException("Unknown transfer mode: " + mode);
+                }
+            } finally {
+                fileOut.close();
+            }
+            byte[] expected = new byte[FileSignature.STRONG_HASH_LENGTH];
+            in.readFully(expected);
+            success = temp.length() == length && MessageDigest.isEqual(digest.digest(), expected)
+                    && temp.renameTo(target);
+        } finally {
+            if (!success) {
+                temp.delete();
+            }
+        }
+        out.writeByte(success ? ACK_SUCCESS : ACK_FAILURE);
+        out.flush();
+        return success;
+    }
+
+    private static void applyDelta(DataInputStream in, OutputStream fileOut, File basis,
+            FileSignature signature) throws IOException {
+        RandomAccessFile basisFile = signature.getBlockCount() > 0
+                ? new RandomAccessFile(basis, "r") : null;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                int op = in.readByte();
+                if (op == Delta.OP_END) {
+                    return;
+                } else if (op == Delta.OP_LITERAL) {
+                    copy(in, fileOut, in.readInt());
+                } else if (op == Delta.OP_COPY && basisFile != null) {
+                    int block = in.readInt();
+                    int count = in.readInt();
+                    if (block < 0 || count <= 0 || block + count > signature.getBlockCount()) {
+                        throw new IOException("Block reference out of range: " + block);
+                    }
+                    long remaining = 0;
+                    for (int i = block; i < block + count; i++) {
+                        remaining += signature.getBlockLength(i);
+                    }
+                    basisFile.seek((long) block * signature.getBlockSize());
+                    while (remaining > 0) {
+                        int read = basisFile.read(buffer, 0,
+                                (int) Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            throw new IOException("Basis file was truncated: " + basis);
+                        }
+                        fileOut.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                } else {
+                    throw new IOException("Unexpected delta operation: " + op);
+                }
+            }
+        } finally {
+            if (basisFile != null) {
+                basisFile.close();
+            }
+        }
+    }
+
+    private static byte[] copyWithDigest(File source, OutputStream out, long length)
+            throws IOException {
+        MessageDigest digest = FileSignature.newDigest();
+        InputStream fileIn = new FileInputStream(source);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Source file was truncated: " + source);
+                }
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            fileIn.close();
+        }
+        return digest.digest();
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Stream ended " + remaining + " bytes early");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * The outcome of {@link #send(File, InputStream, OutputStream)}.
+     */
+    public static final class Result {
+        private final int mMode;
+        private final long mFileLength;
+        private final long mPayloadBytes;
+        private final boolean mAcknowledged;
+
+        Result(int mode, long fileLength, long payloadBytes, boolean acknowledged) {
+            mMode = mode;
+            mFileLength = fileLength;
+            mPayloadBytes = payloadBytes;
+            mAcknowledged = acknowledged;
+        }
+
+        /**
+         * Returns {@link #MODE_DELTA} or {@link #MODE_FULL}.
+         */
+        public int getMode() {
+            return mMode;
+        }
+
+        public long getFileLength() {
+            return mFileLength;
+        }
+
+        /**
+         * Returns the number of bytes of file content or delta operations that were sent,
+         * excluding the fixed size header and digest.
+         */
+        public long getPayloadBytes() {
+            return mPayloadBytes;
+        }
+
+        /**
+         * Returns {@code true} if the receiver verified and saved the file.
+         */
+        public boolean isAcknowledged() {
+            return mAcknowledged;
+        }
+
+        @Override
+        public String toString() {
+            return "DeltaSync.Result{mode=" + (mMode == MODE_DELTA ? "delta" : "full")
+                    + ", fileLength=" + mFileLength + ", payloadBytes=" + mPayloadBytes
+                    + ", acknowledged=" + mAcknowledged + "}";
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.delta;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The block signatures of a file: the file is split into fixed size blocks (the last one may be
+ * shorter) and for each block we keep a weak {@link RollingChecksum} and a strong MD5 hash. The
+ * receiver of a delta transfer sends the signature of its existing copy to the sender, which uses
+ * it to find the blocks that it does not need to send again.
+ */
+final class FileSignature {
+
+    static final int MIN_BLOCK_SIZE = 1024;
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+    static final int STRONG_HASH_LENGTH = 16;
+    private static final int PROTOCOL_VERSION = 1;
+    private static final int MAX_BLOCK_COUNT = 1 << 20;
+
+    private final int mBlockSize;
+    private final long mFileLength;
+    private final int[] mWeakHashes;
+    private final byte[][] mStrongHashes;
+    private Map<Integer, Integer> mWeakIndex;
+    private int[] mNextWithSameHash;
+
+    private FileSignature(int blockSize, long fileLength, int[] weakHashes,
+            byte[][] strongHashes) {
+        mBlockSize = blockSize;
+        mFileLength = fileLength;
+        mWeakHashes = weakHashes;
+        mStrongHashes = strongHashes;
+    }
+
+    /**
+     * Returns the signature of a missing file; a delta against it consists of literal data only.
+     */
+    static FileSignature empty() {
+        return new FileSignature(MIN_BLOCK_SIZE, 0, new int[0], new byte[0][]);
+    }
+
+    /**
+     * Computes the signature of {@code file}, using a block size appropriate for its length.
+     */
+    static FileSignature compute(File file) throws IOException {
+        long length = file.length();
+        int blockSize = blockSizeFor(length);
+        int blockCount = (int) ((length + blockSize - 1) / blockSize);
+        int[] weakHashes = new int[blockCount];
+        byte[][] strongHashes = new byte[blockCount][];
+        MessageDigest digest = newDigest();
+        byte[] block = new byte[blockSize];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                int read = readFully(inputStream, block, blockSize);
+                if (read <= 0) {
+                    throw new IOException("File changed while computing its signature: " + file);
+                }
+                weakHashes[i] = RollingChecksum.of(block, 0, read);
+                digest.update(block, 0, read);
+                strongHashes[i] = digest.digest();
+            }
+        } finally {
+            inputStream.close();
+        }
+        return new FileSignature(blockSize, length, weakHashes, strongHashes);
+    }
+
+    /**
+     * Picks a block size close to the square root of the file length, similar to rsync, so that
+     * both the signature and the per-block overhead of the delta stay small.
+     */
+    static int blockSizeFor(long fileLength) {
+        int blockSize = (int) Math.sqrt(fileLength) & ~7;
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    static int readFully(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = inputStream.read(buffer, total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    void writeTo(DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(PROTOCOL_VERSION);
+        outputStream.writeInt(mBlockSize);
+        outputStream.writeLong(mFileLength);
+        outputStream.writeInt(mWeakHashes.length);
+        for (int i = 0; i < mWeakHashes.length; i++) {
+            outputStream.writeInt(mWeakHashes[i]);
+            outputStream.write(mStrongHashes[i]);
+        }
+    }
+
+    static FileSignature readFrom(DataInputStream inputStream) throws IOException {
+        int version = inputStream.readInt();
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("Unsupported signature version: " + version);
+        }
+        int blockSize = inputStream.readInt();
+        long fileLength = inputStream.readLong();
+        int blockCount = inputStream.readInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blockCount < 0
+                || blockCount > MAX_BLOCK_COUNT
+                || (long) blockCount * blockSize < fileLength) {
+            throw new IOException("Malformed signature");
+        }
+        int[] weakHashes = new int[blockCount];
+        byte[][] strongHashes = new byte[blockCount][];
+        for (int i = 0; i < blockCount; i++) {
+            weakHashes[i] = inputStream.readInt();
+            strongHashes[i] = new byte[STRONG_HASH_LENGTH];
+            inputStream.readFully(strongHashes[i]);
+        }
+        return new FileSignature(blockSize, fileLength, weakHashes, strongHashes);
+    }
+
+    int getBlockSize() {
+        return mBlockSize;
+    }
+
+    int getBlockCount() {
+        return mWeakHashes.length;
+    }
+
+    long getFileLength() {
+        return mFileLength;
+    }
+
+    /**
+     * Returns the length of the block at {@code index}; only the last block can be shorter than
+     * the block size.
+     */
+    int getBlockLength(int index) {
+        return (int) Math.min(mBlockSize, mFileLength - (long) index * mBlockSize);
+    }
+
+    /**
+     * Returns the index of the first block with the given weak hash, or -1 if there is none.
+     * Further candidates can be obtained through {@link #nextWithSameHash(int)}.
+     */
+    int firstWithHash(int weakHash) {
+        if (mWeakIndex == null) {
+            buildIndex();
+        }
+        Integer index = mWeakIndex.get(weakHash);
+        return index == null ? -1 : index;
+    }
+
+    int nextWithSameHash(int index) {
+        return mNextWithSameHash[index];
+    }
+
+    boolean strongHashEquals(int index, byte[] strongHash) {
+        return Arrays.equals(mStrongHashes[index], strongHash);
+    }
+
+    private void buildIndex() {
+        int blockCount = mWeakHashes.length;
+        mWeakIndex = new HashMap<>(blockCount * 2);
+        mNextWithSameHash = new int[blockCount];
+        // walk backwards so that each chain is ordered by ascending block index
+        for (int i = blockCount - 1; i >= 0; i--) {
+            Integer previous = mWeakIndex.put(mWeakHashes[i], i);
+            mNextWithSameHash[i] = previous == null ? -1 : previous;
+        }
+    }
+}
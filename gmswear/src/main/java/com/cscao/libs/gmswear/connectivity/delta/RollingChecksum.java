@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.delta;
+
+/**
+ * The weak, rolling checksum used by rsync. The checksum of a window of bytes can be updated in
+ * constant time when the window slides forward by one byte, which makes it cheap to look for
+ * matching blocks at every offset of a file.
+ */
+final class RollingChecksum {
+
+    private static final int MASK = 0xffff;
+
+    private int mA;
+    private int mB;
+    private int mLength;
+
+    /**
+     * Computes the checksum of {@code length} bytes of {@code buffer} starting at {@code offset}
+     * and resets the rolling state to that window.
+     */
+    void reset(byte[] buffer, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = buffer[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        mA = a & MASK;
+        mB = b & MASK;
+        mLength = length;
+    }
+
+    /**
+     * Slides the window forward by one byte; {@code out} is the byte leaving the window and
+     * {@code in} is the byte entering it.
+     */
+    void roll(byte out, byte in) {
+        int outValue = out & 0xff;
+        mA = (mA - outValue + (in & 0xff)) & MASK;
+        mB = (mB - mLength * outValue + mA) & MASK;
+    }
+
+    /**
+     * Returns the checksum of the current window.
+     */
+    int value() {
+        return (mB << 16) | mA;
+    }
+
+    /**
+     * Returns the checksum of {@code length} bytes of {@code buffer} starting at {@code offset}.
+     */
+    static int of(byte[] buffer, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(buffer, offset, length);
+        return checksum.value();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.policy;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+
+/**
+ * A source of the Wi-Fi connectivity state that {@link TransferScheduler} uses to decide when
+ * large transfers should run. {@link WifiConnectivitySource} reads the state of the device while
+ * {@link FakeConnectivitySource} can be driven by hand, e.g. in tests running on a JVM.
+ */
+public interface ConnectivitySource {
+
+    /**
+     * Returns the current Wi-Fi status, one of {@link WearUtil#WIFI_DISABLED},
+     * {@link WearUtil#WIFI_NO_CONNECTION} or {@link WearUtil#WIFI_CONNECTED}.
+     */
+    int getWifiStatus();
+
+    /**
+     * Registers a {@link Listener} to be notified when the Wi-Fi status changes.
+     */
+    void addListener(Listener listener);
+
+    /**
+     * Unregisters a {@link Listener} that was added by {@link #addListener(Listener)}.
+     */
+    void removeListener(Listener listener);
+
+    /**
+     * An interface to be notified of changes of the Wi-Fi status.
+     */
+    interface Listener {
+
+        /**
+         * Called when the Wi-Fi status changes; {@code wifiStatus} is the new status.
+         */
+        void onWifiStatusChanged(int wifiStatus);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.policy;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link ConnectivitySource} whose state is set by hand through {@link #setWifiStatus(int)}.
+ * This has no dependency on the Android framework, so a {@link TransferScheduler} built on it can
+ * be exercised on a plain JVM.
+ */
+public class FakeConnectivitySource implements ConnectivitySource {
+
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile int mWifiStatus;
+
+    /**
+     * Creates a source that starts with {@link WearUtil#WIFI_NO_CONNECTION}.
+     */
+    public FakeConnectivitySource() {
+        this(WearUtil.WIFI_NO_CONNECTION);
+    }
+
+    public FakeConnectivitySource(int wifiStatus) {
+        mWifiStatus = wifiStatus;
+    }
+
+    /**
+     * Changes the Wi-Fi status and, if it is different from the current one, notifies the
+     * listeners on the calling thread.
+     */
+    public void setWifiStatus(int wifiStatus) {
+        if (mWifiStatus == wifiStatus) {
+            return;
+        }
+        mWifiStatus = wifiStatus;
+        for (Listener listener : mListeners) {
+            listener.onWifiStatusChanged(wifiStatus);
+        }
+    }
+
+    @Override
+    public int getWifiStatus() {
+        return mWifiStatus;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        mListeners.add(WearUtil.assertNotNull(listener, "listener"));
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        mListeners.remove(WearUtil.assertNotNull(listener, "listener"));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.policy;
+
+/**
+ * A unit of work that can be run by a {@link TransferScheduler}.
+ * {@link com.cscao.libs.gmswear.connectivity.FileTransfer#scheduleTransfer(boolean)} wraps a
+ * file transfer in one of these.
+ */
+public interface ScheduledTransfer {
+
+    /**
+     * Returns the number of bytes this transfer will send, used to tell large transfers from
+     * small ones and to estimate how long it will take.
+     */
+    long getSizeBytes();
+
+    /**
+     * Starts the transfer. Implementations must call {@link Completion#onTransferFinished(boolean)}
+     * exactly once when the transfer succeeds or fails.
+     */
+    void start(Completion completion);
+
+    /**
+     * Reports the end of a {@link ScheduledTransfer} to its scheduler.
+     */
+    interface Completion {
+
+        /**
+         * Called when the transfer finishes; {@code success} is {@code false} if it failed.
+         */
+        void onTransferFinished(boolean success);
+    }
+}
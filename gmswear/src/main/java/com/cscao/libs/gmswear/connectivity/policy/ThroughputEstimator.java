@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.policy;
+
+/**
+ * Keeps an exponentially weighted moving average of the throughput of a link, fed by the size and
+ * duration of completed transfers. Until the first sample arrives, a default estimate is used.
+ */
+public class ThroughputEstimator {
+
+    /**
+     * Transfers smaller than this are dominated by latency rather than bandwidth, so they are not
+     * used as samples.
+     */
+    static final long MIN_SAMPLE_BYTES = 16 * 1024;
+    private static final double ALPHA = 0.3;
+
+    private double mBytesPerSecond;
+    private int mSampleCount;
+
+    /**
+     * @param defaultBytesPerSecond The estimate to use until a transfer has been measured.
+     */
+    public ThroughputEstimator(double defaultBytesPerSecond) {
+        if (defaultBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("defaultBytesPerSecond should be positive");
+        }
+        mBytesPerSecond = defaultBytesPerSecond;
+    }
+
+    /**
+     * Records a completed transfer of {@code bytes} that took {@code durationMillis}.
+     */
+    public synchronized void record(long bytes, long durationMillis) {
+        if (bytes < MIN_SAMPLE_BYTES || durationMillis <= 0) {
+            return;
+        }
+        double sample = bytes * 1000.0 / durationMillis;
+        mBytesPerSecond = mSampleCount == 0 ? sample
+                : ALPHA * sample + (1 - ALPHA) * mBytesPerSecond;
+        mSampleCount++;
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Returns the number of transfers that have been measured so far.
+     */
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the estimated time, in milliseconds, to transfer {@code bytes} over this link.
+     */
+    public long estimateMillis(long bytes) {
+        return (long) Math.ceil(bytes * 1000.0 / getBytesPerSecond());
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.policy;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when {@link ScheduledTransfer}s may run based on their size and the Wi-Fi state
+ * reported by a {@link ConnectivitySource}:
+ * <ul>
+ * <li>Small and urgent transfers always run right away.</li>
+ * <li>Large transfers run right away when Wi-Fi is connected, up to
+ * {@link #setMaxConcurrentOverWifi(int)} at a time.</li>
+ * <li>Otherwise, in {@link #POLICY_DEFER} large transfers wait for Wi-Fi for at most
+ * {@link #setMaxDeferralMillis(long)}, after which they are throttled. In
+ * {@link #POLICY_THROTTLE} they run right away but only
+ * {@link #setMaxConcurrentOverBluetooth(int)} at a time.</li>
+ * </ul>
+ * Waiting transfers are reconsidered whenever the Wi-Fi status changes or a transfer finishes.
+ * The duration of completed transfers is fed into a {@link ThroughputEstimator} per link, which is
+ * used to estimate how long a transfer will take.
+ */
+public class TransferScheduler implements ConnectivitySource.Listener {
+
+    private static final String TAG = "TransferScheduler";
+
+    public static final int POLICY_DEFER = 1;
+    public static final int POLICY_THROTTLE = 2;
+    public static final int LINK_BLUETOOTH = 1;
+    public static final int LINK_WIFI = 2;
+    public static final long DEFAULT_LARGE_TRANSFER_BYTES = 512 * 1024;
+    public static final long DEFAULT_MAX_DEFERRAL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final double DEFAULT_BLUETOOTH_BYTES_PER_SECOND = 100 * 1024;
+    private static final double DEFAULT_WIFI_BYTES_PER_SECOND = 1024 * 1024;
+
+    private final ConnectivitySource mConnectivitySource;
+    private final ScheduledExecutorService mTimer;
+    private final ThroughputEstimator mBluetoothThroughput =
+            new ThroughputEstimator(DEFAULT_BLUETOOTH_BYTES_PER_SECOND);
+    private final ThroughputEstimator mWifiThroughput =
+            new ThroughputEstimator(DEFAULT_WIFI_BYTES_PER_SECOND);
+    private final List<Ticket> mWaiting = new LinkedList<>();
+    private int mRunningLargeOverBluetooth;
+    private int mRunningLargeOverWifi;
+    private int mPolicy = POLICY_DEFER;
+    private long mLargeTransferBytes = DEFAULT_LARGE_TRANSFER_BYTES;
+    private long mMaxDeferralMillis = DEFAULT_MAX_DEFERRAL_MILLIS;
+    private int mMaxConcurrentOverBluetooth = 1;
+    private int mMaxConcurrentOverWifi = 2;
+
+    public TransferScheduler(ConnectivitySource connectivitySource) {
+        this(connectivitySource, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * Creates a scheduler that uses {@code timer} to expire deferrals; passing a controllable
+     * executor together with a {@link FakeConnectivitySource} makes the policy fully
+     * deterministic.
+     */
+    public TransferScheduler(ConnectivitySource connectivitySource,
+            ScheduledExecutorService timer) {
+        mConnectivitySource = WearUtil.assertNotNull(connectivitySource, "connectivitySource");
+        mTimer = WearUtil.assertNotNull(timer, "timer");
+        mConnectivitySource.addListener(this);
+    }
+
+    /**
+     * Sets how large transfers are handled while Wi-Fi is not connected; either
+     * {@link #POLICY_DEFER} (the default) or {@link #POLICY_THROTTLE}.
+     */
+    public synchronized void setPolicy(int policy) {
+        if (policy != POLICY_DEFER && policy != POLICY_THROTTLE) {
+            throw new IllegalArgumentException("Unknown policy: " + policy);
+        }
+        mPolicy = policy;
+    }
+
+    /**
+     * Sets the size, in bytes, from which a transfer counts as large. The default is
+     * {@link #DEFAULT_LARGE_TRANSFER_BYTES}.
+     */
+    public synchronized void setLargeTransferBytes(long largeTransferBytes) {
+        mLargeTransferBytes = largeTransferBytes;
+    }
+
+    /**
+     * Sets the longest time a large transfer waits for Wi-Fi before it runs anyway. The default is
+     * {@link #DEFAULT_MAX_DEFERRAL_MILLIS}.
+     */
+    public synchronized void setMaxDeferralMillis(long maxDeferralMillis) {
+        mMaxDeferralMillis = maxDeferralMillis;
+    }
+
+    public synchronized void setMaxConcurrentOverBluetooth(int maxConcurrent) {
+        mMaxConcurrentOverBluetooth = Math.max(1, maxConcurrent);
+    }
+
+    public synchronized void setMaxConcurrentOverWifi(int maxConcurrent) {
+        mMaxConcurrentOverWifi = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Returns the throughput estimator of {@link #LINK_BLUETOOTH} or {@link #LINK_WIFI}.
+     */
+    public ThroughputEstimator getThroughputEstimator(int link) {
+        return link == LINK_WIFI ? mWifiThroughput : mBluetoothThroughput;
+    }
+
+    /**
+     * Returns the link transfers would currently use.
+     */
+    public int getCurrentLink() {
+        return mConnectivitySource.getWifiStatus() == WearUtil.WIFI_CONNECTED
+                ? LINK_WIFI : LINK_BLUETOOTH;
+    }
+
+    /**
+     * Returns the estimated time, in milliseconds, to send {@code bytes} over {@code link}.
+     */
+    public long estimateMillis(long bytes, int link) {
+        return getThroughputEstimator(link).estimateMillis(bytes);
+    }
+
+    /**
+     * Submits a transfer. It is started right away, possibly on the calling thread, if the policy
+     * allows it; otherwise it waits. An {@code urgent} transfer bypasses the policy.
+     *
+     * @return A {@link Ticket} to follow or cancel the transfer.
+     */
+    public Ticket submit(ScheduledTransfer transfer, boolean urgent) {
+        WearUtil.assertNotNull(transfer, "transfer");
+        Ticket ticket = new Ticket(transfer, urgent, now());
+        synchronized (this) {
+            mWaiting.add(ticket);
+        }
+        drain();
+        synchronized (this) {
+            if (ticket.mState == Ticket.STATE_WAITING && !ticket.mUrgent
+                    && mPolicy == POLICY_DEFER && getCurrentLink() != LINK_WIFI) {
+                WearLog.d(TAG, "Deferring transfer of {} bytes", ticket.mSizeBytes);
+                mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                }, mMaxDeferralMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return ticket;
+    }
+
+    /**
+     * Returns the number of transfers that have not been started yet.
+     */
+    public synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    /**
+     * Stops listening to the {@link ConnectivitySource} and drops the waiting transfers; running
+     * transfers are not affected.
+     */
+    public void shutdown() {
+        mConnectivitySource.removeListener(this);
+        mTimer.shutdownNow();
+        synchronized (this) {
+            for (Ticket ticket : mWaiting) {
+                ticket.mState = Ticket.STATE_CANCELLED;
+            }
+            mWaiting.clear();
+        }
+    }
+
+    @Override
+    public void onWifiStatusChanged(int wifiStatus) {
+        WearLog.d(TAG, "Wi-Fi status changed to {}", wifiStatus);
+        drain();
+    }
+
+    /**
+     * Starts every waiting transfer the policy allows. Transfers are started outside of the lock
+     * since they may call back into the scheduler synchronously.
+     */
+    private void drain() {
+        List<Ticket> startable = new ArrayList<>();
+        int link = getCurrentLink();
+        synchronized (this) {
+            long now = now();
+            Iterator<Ticket> iterator = mWaiting.iterator();
+            while (iterator.hasNext()) {
+                Ticket ticket = iterator.next();
+                if (canStart(ticket, link, now)) {
+                    iterator.remove();
+                    ticket.mState = Ticket.STATE_RUNNING;
+                    ticket.mLink = link;
+                    ticket.mStartMillis = now;
+                    if (isLarge(ticket)) {
+                        ticket.mHoldsSlot = true;
+                        if (link == LINK_WIFI) {
+                            mRunningLargeOverWifi++;
+                        } else {
+                            mRunningLargeOverBluetooth++;
+                        }
+                    }
+                    startable.add(ticket);
+                }
+            }
+        }
+        for (Ticket ticket : startable) {
+            start(ticket);
+        }
+    }
+
+    private boolean isLarge(Ticket ticket) {
+        return !ticket.mUrgent && ticket.mSizeBytes >= mLargeTransferBytes;
+    }
+
+    private boolean canStart(Ticket ticket, int link, long now) {
+        if (!isLarge(ticket)) {
+            return true;
+        }
+        if (link == LINK_WIFI) {
+            return mRunningLargeOverWifi < mMaxConcurrentOverWifi;
+        }
+        if (mPolicy == POLICY_DEFER && now - ticket.mSubmitMillis < mMaxDeferralMillis) {
+            return false;
+        }
+        return mRunningLargeOverBluetooth < mMaxConcurrentOverBluetooth;
+    }
+
+    private void start(final Ticket ticket) {
+        try {
+            ticket.mTransfer.start(new ScheduledTransfer.Completion() {
+                @Override
+                public void onTransferFinished(boolean success) {
+                    finish(ticket, success);
+                }
+            });
+        } catch (RuntimeException e) {
+            WearLog.e(TAG, "Failed to start transfer", e);
+            finish(ticket, false);
+        }
+    }
+
+    private void finish(Ticket ticket, boolean success) {
+        synchronized (this) {
+            if (ticket.mState != Ticket.STATE_RUNNING) {
+                return;
+            }
+            ticket.mState = success ? Ticket.STATE_SUCCEEDED : Ticket.STATE_FAILED;
+            if (ticket.mHoldsSlot) {
+                if (ticket.mLink == LINK_WIFI) {
+                    mRunningLargeOverWifi--;
+                } else {
+                    mRunningLargeOverBluetooth--;
+                }
+            }
+        }
+        if (success) {
+            getThroughputEstimator(ticket.mLink).record(ticket.mSizeBytes,
+                    now() - ticket.mStartMillis);
+        }
+        drain();
+    }
+
+    private synchronized boolean cancel(Ticket ticket) {
+        if (ticket.mState != Ticket.STATE_WAITING) {
+            return false;
+        }
+        mWaiting.remove(ticket);
+        ticket.mState = Ticket.STATE_CANCELLED;
+        return true;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * A handle to a transfer submitted to a {@link TransferScheduler}.
+     */
+    public final class Ticket {
+
+        public static final int STATE_WAITING = 1;
+        public static final int STATE_RUNNING = 2;
+        public static final int STATE_SUCCEEDED = 3;
+        public static final int STATE_FAILED = 4;
+        public static final int STATE_CANCELLED = 5;
+
+        private final ScheduledTransfer mTransfer;
+        private final boolean mUrgent;
+        private final long mSizeBytes;
+        private final long mSubmitMillis;
+        private int mState = STATE_WAITING;
+        private int mLink;
+        private long mStartMillis;
+        private boolean mHoldsSlot;
+
+        Ticket(ScheduledTransfer transfer, boolean urgent, long submitMillis) {
+            mTransfer = transfer;
+            mUrgent = urgent;
+            mSizeBytes = transfer.getSizeBytes();
+            mSubmitMillis = submitMillis;
+        }
+
+        public int getState() {
+            synchronized (TransferScheduler.this) {
+                return mState;
+            }
+        }
+
+        public long getSizeBytes() {
+            return mSizeBytes;
+        }
+
+        public boolean isUrgent() {
+            return mUrgent;
+        }
+
+        /**
+         * Returns the estimated time, in milliseconds, until the transfer completes. For a waiting
+         * transfer this is the duration of the transfer over the link it is expected to use, not
+         * counting the time spent waiting. Returns 0 once the transfer is finished.
+         */
+        public long getEstimatedRemainingMillis() {
+            synchronized (TransferScheduler.this) {
+                switch (mState) {
+                    case STATE_WAITING:
+                        int link = isLarge(this) && mPolicy == POLICY_DEFER
+                                ? LINK_WIFI : getCurrentLink();
+                        return estimateMillis(mSizeBytes, link);
+                    case STATE_RUNNING:
+                        long elapsed = now() - mStartMillis;
+                        return Math.max(0, estimateMillis(mSizeBytes, mLink) - elapsed);
+                    default:
+                        return 0;
+                }
+            }
+        }
+
+        /**
+         * Cancels the transfer if it has not started yet. Returns {@code true} if it was
+         * cancelled.
+         */
+        public boolean cancel() {
+            return TransferScheduler.this.cancel(this);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.policy;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link ConnectivitySource} backed by {@link WearUtil#getWifiConnectivityStatus(Context)}. A
+ * broadcast receiver for connectivity changes is registered only while there are listeners.
+ */
+public class WifiConnectivitySource implements ConnectivitySource {
+
+    private final Context mContext;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int wifiStatus = getWifiStatus();
+            synchronized (WifiConnectivitySource.this) {
+                if (wifiStatus == mLastWifiStatus) {
+                    return;
+                }
+                mLastWifiStatus = wifiStatus;
+            }
+            for (Listener listener : mListeners) {
+                listener.onWifiStatusChanged(wifiStatus);
+            }
+        }
+    };
+    private int mLastWifiStatus;
+    private boolean mRegistered;
+
+    public WifiConnectivitySource(Context context) {
+        mContext = WearUtil.assertNotNull(context, "context").getApplicationContext();
+    }
+
+    @Override
+    public int getWifiStatus() {
+        return WearUtil.getWifiConnectivityStatus(mContext);
+    }
+
+    @Override
+    public synchronized void addListener(Listener listener) {
+        mListeners.add(WearUtil.assertNotNull(listener, "listener"));
+        if (!mRegistered) {
+            mLastWifiStatus = getWifiStatus();
+            IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+            filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
+            mContext.registerReceiver(mReceiver, filter);
+            mRegistered = true;
+        }
+    }
+
+    @Override
+    public synchronized void removeListener(Listener listener) {
+        mListeners.remove(WearUtil.assertNotNull(listener, "listener"));
+        if (mRegistered && mListeners.isEmpty()) {
+            mContext.unregisterReceiver(mReceiver);
+            mRegistered = false;
+        }
+    }
+}
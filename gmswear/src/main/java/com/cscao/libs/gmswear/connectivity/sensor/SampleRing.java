@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.sensor;
+
+/**
+ * A bounded ring of samples kept in primitive arrays: one array of timestamps and one array of
+ * values, with the columns of a sample stored next to each other. Producers add samples from any
+ * thread and a single writer drains them in batches; when the ring is full the oldest sample is
+ * overwritten and counted as dropped, so that a slow channel never blocks a sensor callback.
+ */
+final class SampleRing {
+
+    private final int mColumnCount;
+    private final int mCapacity;
+    private final long[] mTimestamps;
+    private final float[] mValues;
+    private int mHead;
+    private int mSize;
+    private long mFirstAddNanos;
+    private int mNotifyThreshold = Integer.MAX_VALUE;
+    private long mAddedCount;
+    private long mDroppedCount;
+    private boolean mClosed;
+
+    SampleRing(int columnCount, int capacity) {
+        mColumnCount = columnCount;
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mValues = new float[capacity * columnCount];
+    }
+
+    /**
+     * Adds a sample of up to three columns; the columns beyond {@link #mColumnCount} are ignored.
+     * Returns {@code false} if the ring is closed.
+     */
+    synchronized boolean add(long timestamp, float value0, float value1, float value2) {
+        int slot = nextSlot(timestamp);
+        if (slot < 0) {
+            return false;
+        }
+        int offset = slot * mColumnCount;
+        mValues[offset] = value0;
+        if (mColumnCount > 1) {
+            mValues[offset + 1] = value1;
+            if (mColumnCount > 2) {
+                mValues[offset + 2] = value2;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a sample whose columns are read from {@code values}; missing columns are 0.
+     * Returns {@code false} if the ring is closed.
+     */
+    synchronized boolean add(long timestamp, float[] values) {
+        int slot = nextSlot(timestamp);
+        if (slot < 0) {
+            return false;
+        }
+        int offset = slot * mColumnCount;
+        int count = Math.min(values.length, mColumnCount);
+        System.arraycopy(values, 0, mValues, offset, count);
+        for (int i = count; i < mColumnCount; i++) {
+            mValues[offset + i] = 0;
+        }
+        return true;
+    }
+
+    private int nextSlot(long timestamp) {
+        if (mClosed) {
+            return -1;
+        }
+        if (mSize == 0) {
+            mFirstAddNanos = System.nanoTime();
+        }
+        int slot;
+        if (mSize == mCapacity) {
+            // overwrite the oldest sample
+            slot = mHead;
+            mHead = mHead + 1 == mCapacity ? 0 : mHead + 1;
+            mDroppedCount++;
+        } else {
+            slot = mHead + mSize;
+            if (slot >= mCapacity) {
+                slot -= mCapacity;
+            }
+            mSize++;
+        }
+        mTimestamps[slot] = timestamp;
+        mAddedCount++;
+        if (mSize == 1 || mSize == mNotifyThreshold) {
+            // wake the writer up to start the delay of a new frame, or to send a full one
+            notifyAll();
+        }
+        return slot;
+    }
+
+    /**
+     * Blocks until there are at least {@code threshold} samples, the oldest sample waited for
+     * {@code maxDelayNanos}, or the ring is closed. Returns the number of samples, or -1 once the
+     * ring is closed and empty.
+     */
+    synchronized int await(int threshold, long maxDelayNanos) throws InterruptedException {
+        mNotifyThreshold = threshold;
+        while (!mClosed && mSize < threshold) {
+            if (mSize == 0) {
+                wait();
+                continue;
+            }
+            long waitNanos = mFirstAddNanos + maxDelayNanos - System.nanoTime();
+            if (waitNanos <= 0) {
+                break;
+            }
+            wait(Math.max(1, waitNanos / 1000000L));
+        }
+        return mClosed && mSize == 0 ? -1 : mSize;
+    }
+
+    /**
+     * Moves up to {@code max} of the oldest samples to {@code timestamps} and to one array per
+     * column in {@code values}, and returns how many were moved.
+     */
+    synchronized int drainTo(long[] timestamps, float[][] values, int max) {
+        int count = Math.min(max, mSize);
+        for (int i = 0; i < count; i++) {
+            int slot = mHead + i;
+            if (slot >= mCapacity) {
+                slot -= mCapacity;
+            }
+            timestamps[i] = mTimestamps[slot];
+            int offset = slot * mColumnCount;
+            for (int column = 0; column < mColumnCount; column++) {
+                values[column][i] = mValues[offset + column];
+            }
+        }
+        mHead = (mHead + count) % mCapacity;
+        mSize -= count;
+        if (mSize > 0) {
+            // the remaining samples were added later; restart the delay from now
+            mFirstAddNanos = System.nanoTime();
+        }
+        return count;
+    }
+
+    /**
+     * Stops accepting samples and wakes the writer up; the samples already added can still be
+     * drained.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Drops the samples that were not drained yet, e.g. because the channel could not be opened.
+     */
+    synchronized void discard() {
+        mDroppedCount += mSize;
+        mSize = 0;
+    }
+
+    synchronized long getAddedCount() {
+        return mAddedCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
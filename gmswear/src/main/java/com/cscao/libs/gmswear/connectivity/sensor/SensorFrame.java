@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.sensor;
+
+/**
+ * A batch of samples received from a {@link SensorStream}, held in primitive arrays: one array of
+ * timestamps and one array of values per column, e.g. the x, y and z axes of an accelerometer.
+ * Only the first {@link #getSampleCount()} entries of each array are part of the frame.
+ * <p>
+ * The receiver decodes every frame of a stream into the same instance, so a frame and its arrays
+ * are only valid during the callback that delivers them; copy what needs to be kept.
+ */
+public final class SensorFrame {
+
+    private final String mNodeId;
+    private String mStreamName;
+    private int mColumnCount;
+    private float mResolution;
+    private long mFrameIndex = -1;
+    private int mSampleCount;
+    private long[] mTimestamps = new long[0];
+    private float[][] mValues = new float[0][];
+
+    SensorFrame(String nodeId) {
+        mNodeId = nodeId;
+    }
+
+    void setHeader(String streamName, int columnCount, float resolution) {
+        mStreamName = streamName;
+        mColumnCount = columnCount;
+        mResolution = resolution;
+        mValues = new float[columnCount][0];
+    }
+
+    /**
+     * Prepares the arrays for a frame of {@code sampleCount} samples; they only grow, so a stream
+     * of frames of the same size allocates once.
+     */
+    void startFrame(int sampleCount) {
+        if (mTimestamps.length < sampleCount) {
+            mTimestamps = new long[sampleCount];
+            for (int column = 0; column < mColumnCount; column++) {
+                mValues[column] = new float[sampleCount];
+            }
+        }
+        mSampleCount = sampleCount;
+        mFrameIndex++;
+    }
+
+    /**
+     * Returns the id of the node that sent the stream.
+     */
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Returns the name given to the stream by the sender.
+     */
+    public String getStreamName() {
+        return mStreamName;
+    }
+
+    public int getColumnCount() {
+        return mColumnCount;
+    }
+
+    /**
+     * Returns the step the values were quantized to by the sender.
+     */
+    public float getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * Returns the position of this frame in the stream, starting at 0.
+     */
+    public long getFrameIndex() {
+        return mFrameIndex;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the timestamps of the samples, in the unit the sender used, e.g. the nanoseconds of
+     * {@link android.hardware.SensorEvent#timestamp}.
+     */
+    public long[] getTimestamps() {
+        return mTimestamps;
+    }
+
+    /**
+     * Returns the values of {@code column} for every sample.
+     */
+    public float[] getValues(int column) {
+        return mValues[column];
+    }
+
+    @Override
+    public String toString() {
+        return "SensorFrame{node=" + mNodeId + ", stream=" + mStreamName + ", index="
+                + mFrameIndex + ", samples=" + mSampleCount + ", columns=" + mColumnCount + "}";
+    }
+}
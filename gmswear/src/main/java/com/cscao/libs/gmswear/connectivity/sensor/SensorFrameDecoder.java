@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.sensor;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the stream written by {@link SensorFrameEncoder}, decoding each frame into a reused
+ * {@link SensorFrame}.
+ */
+final class SensorFrameDecoder {
+
+    // bounds the memory a corrupt or hostile length can make the receiver allocate
+    static final int MAX_FRAME_BYTES = 4 * 1024 * 1024;
+    static final int MAX_FRAME_SAMPLES = 64 * 1024;
+
+    private final DataInputStream mIn;
+    private byte[] mBuffer = new byte[1024];
+    private int mPosition;
+    private int mLimit;
+
+    SensorFrameDecoder(InputStream in) {
+        mIn = new DataInputStream(in);
+    }
+
+    /**
+     * Reads the stream header into {@code frame}.
+     */
+    void readHeader(SensorFrame frame) throws IOException {
+        if (mIn.readInt() != SensorFrameEncoder.MAGIC) {
+            throw new IOException("Not a sensor stream");
+        }
+        int version = mIn.readUnsignedByte();
+        if (version != SensorFrameEncoder.VERSION) {
+            throw new IOException("Unsupported sensor stream version: " + version);
+        }
+        int columnCount = mIn.readUnsignedByte();
+        float resolution = mIn.readFloat();
+        if (columnCount == 0 || !(resolution > 0)) {
+            throw new IOException("Invalid sensor stream header");
+        }
+        frame.setHeader(mIn.readUTF(), columnCount, resolution);
+    }
+
+    /**
+     * Reads the next frame into {@code frame}. Returns {@code false} at the end of the stream.
+     */
+    boolean readFrame(SensorFrame frame) throws IOException {
+        long length = readStreamVarLong();
+        if (length == 0) {
+            return false;
+        }
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (mBuffer.length < length) {
+            mBuffer = new byte[(int) Math.max(length, mBuffer.length * 2L)];
+        }
+        mIn.readFully(mBuffer, 0, (int) length);
+        mPosition = 0;
+        mLimit = (int) length;
+
+        long count = readVarLong();
+        if (count <= 0 || count > MAX_FRAME_SAMPLES) {
+            throw new IOException("Invalid sample count: " + count);
+        }
+        int sampleCount = (int) count;
+        frame.startFrame(sampleCount);
+        long[] timestamps = frame.getTimestamps();
+        long previous = 0;
+        long previousDelta = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            if (i == 0) {
+                previous = readSigned();
+            } else {
+                previousDelta += readSigned();
+                previous += previousDelta;
+            }
+            timestamps[i] = previous;
+        }
+        double resolution = frame.getResolution();
+        for (int column = 0; column < frame.getColumnCount(); column++) {
+            float[] values = frame.getValues(column);
+            previous = 0;
+            previousDelta = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                if (i == 0) {
+                    previous = readSigned();
+                } else {
+                    previousDelta += readSigned();
+                    previous += previousDelta;
+                }
+                values[i] = (float) (previous * resolution);
+            }
+        }
+        if (mPosition != mLimit) {
+            throw new IOException("Frame has " + (mLimit - mPosition) + " trailing bytes");
+        }
+        return true;
+    }
+
+    private long readSigned() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mPosition == mLimit) {
+                throw new IOException("Truncated frame");
+            }
+            byte b = mBuffer[mPosition++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private long readStreamVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException("Sensor stream ended without its end marker");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
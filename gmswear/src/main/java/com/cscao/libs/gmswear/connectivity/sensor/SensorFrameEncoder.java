@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.sensor;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the stream header and the frames described in {@link SensorStream}. The frame is built in
+ * a buffer that is reused from one frame to the next, so encoding doesn't allocate once the buffer
+ * has grown to the size of the largest frame.
+ */
+final class SensorFrameEncoder {
+
+    static final int MAGIC = 0x474d5353;
+    static final int VERSION = 1;
+    static final int MAX_COLUMNS = 255;
+
+    private final int mColumnCount;
+    private final double mScale;
+    private byte[] mBuffer = new byte[1024];
+    private int mLength;
+    private final byte[] mLengthBuffer = new byte[5];
+
+    SensorFrameEncoder(int columnCount, float resolution) {
+        mColumnCount = columnCount;
+        mScale = 1.0 / resolution;
+    }
+
+    /**
+     * Returns the largest frame, without its length prefix, that {@link #encode} can produce for
+     * {@code sampleCount} samples of {@code columnCount} values: a varint takes up to 10 bytes.
+     */
+    static long maxFrameLength(int columnCount, int sampleCount) {
+        return 10L + 10L * (columnCount + 1) * sampleCount;
+    }
+
+    static void writeHeader(DataOutputStream out, String name, int columnCount, float resolution)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(columnCount);
+        out.writeFloat(resolution);
+        out.writeUTF(name);
+    }
+
+    /**
+     * Encodes the first {@code count} samples of {@code timestamps} and {@code values}, one array
+     * per column, into the buffer.
+     */
+    void encode(long[] timestamps, float[][] values, int count) {
+        mLength = 0;
+        writeVarLong(count);
+        long previous = 0;
+        long previousDelta = 0;
+        for (int i = 0; i < count; i++) {
+            long timestamp = timestamps[i];
+            if (i == 0) {
+                writeSigned(timestamp);
+            } else {
+                long delta = timestamp - previous;
+                writeSigned(delta - previousDelta);
+                previousDelta = delta;
+            }
+            previous = timestamp;
+        }
+        for (int column = 0; column < mColumnCount; column++) {
+            float[] columnValues = values[column];
+            previous = 0;
+            previousDelta = 0;
+            for (int i = 0; i < count; i++) {
+                long quantized = Math.round(columnValues[i] * mScale);
+                if (i == 0) {
+                    writeSigned(quantized);
+                } else {
+                    long delta = quantized - previous;
+                    writeSigned(delta - previousDelta);
+                    previousDelta = delta;
+                }
+                previous = quantized;
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the last encoded frame, without its length prefix.
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Writes the last encoded frame, prefixed with its length, to {@code out}.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(mLengthBuffer, 0, putVarLong(mLengthBuffer, 0, mLength));
+        out.write(mBuffer, 0, mLength);
+    }
+
+    /**
+     * Writes the empty frame that marks the end of the stream.
+     */
+    static void writeEnd(OutputStream out) throws IOException {
+        out.write(0);
+    }
+
+    private void writeSigned(long value) {
+        // zigzag encoding, so that small negative numbers take few bytes as well
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarLong(long value) {
+        if (mLength + 10 > mBuffer.length) {
+            byte[] buffer = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+        mLength = putVarLong(mBuffer, mLength, value);
+    }
+
+    private static int putVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+}
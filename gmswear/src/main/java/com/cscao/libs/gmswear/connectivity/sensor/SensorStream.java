@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.sensor;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.GmsWear;
+import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.connectivity.TransferPath;
+import com.cscao.libs.gmswear.util.Constants;
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.WearableStatusCodes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a time series, such as accelerometer or heart rate samples, to a nearby node over a
+ * single channel instead of one message or data item per sample. Samples are appended from any
+ * thread, e.g. a {@link android.hardware.SensorEventListener}, into a ring of primitive arrays;
+ * a worker thread sends them in frames once {@link Builder#setFrameSamples(int)} samples are
+ * waiting or the oldest of them waited {@link Builder#setMaxFrameDelayMillis(long)}. On the
+ * receiving node, the frames are delivered to
+ * {@link com.cscao.libs.gmswear.consumer.DataConsumer#onSensorFrame(SensorFrame)} as primitive
+ * arrays, without an object per sample.
+ * <p>
+ * Frames are columnar: the timestamps of all the samples come first, then the values of each
+ * column in turn. Timestamps and values are written as the zigzag varint of their delta of delta,
+ * which is close to 0 for a sensor sampled at a steady rate and a signal that changes smoothly,
+ * so most samples take a byte or two per column. Values are quantized to multiples of
+ * {@link Builder#setResolution(float)}, typically {@link android.hardware.Sensor#getResolution()}.
+ * The stream is laid out as:
+ * <pre>
+ * header: int magic, byte version, byte column count, float resolution, UTF name
+ * frame:  varint length, varint sample count, timestamps, values of column 0, column 1, ...
+ * end:    a frame length of 0
+ * </pre>
+ * Appending never blocks: if the channel falls behind and the ring fills up, the oldest samples
+ * are overwritten and counted by {@link #getDroppedCount()}.
+ */
+public final class SensorStream {
+
+    private static final String TAG = "SensorStream";
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String mName;
+    private final Node mNode;
+    private final int mColumnCount;
+    private final float mResolution;
+    private final int mFrameSamples;
+    private final long mMaxFrameDelayNanos;
+    private final String mRequestId;
+    private final OnStreamClosedListener mOnStreamClosedListener;
+    private final SampleRing mRing;
+    private volatile long mFrameCount;
+    private volatile long mBytesSent;
+    private boolean mOpened;
+
+    private SensorStream(Builder builder) {
+        mName = builder.mName;
+        mNode = builder.mNode;
+        mColumnCount = builder.mColumnCount;
+        mResolution = builder.mResolution;
+        mFrameSamples = builder.mFrameSamples;
+        mMaxFrameDelayNanos = TimeUnit.MILLISECONDS.toNanos(builder.mMaxFrameDelayMillis);
+        mRequestId = builder.mRequestId;
+        mOnStreamClosedListener = builder.mOnStreamClosedListener;
+        mRing = new SampleRing(mColumnCount, builder.mCapacity);
+    }
+
+    /**
+     * Opens the channel to the target node. Samples can be appended before the channel is ready;
+     * they are kept in the ring until then.
+     */
+    public synchronized void open() {
+        if (mOpened) {
+            throw new IllegalStateException("The stream was already opened");
+        }
+        mOpened = true;
+        if (mNode == null) {
+            WearLog.e(TAG, "open(): no node to stream {} to", mName);
+            fail(WearableStatusCodes.TARGET_NODE_NOT_CONNECTED);
+            return;
+        }
+        GmsWear gmsWear = GmsWear.getInstance();
+        String path = TransferPath.encodeStream(Constants.PATH_FILE_TRANSFER_TYPE_SENSOR,
+                mRequestId, gmsWear.newSendTimestamp());
+        gmsWear.getOutputStreamViaChannel(mNode, path,
+                new FileTransfer.OnChannelOutputStreamListener() {
+                    @Override
+                    public void onOutputStreamForChannelReady(int statusCode, Channel channel,
+                            OutputStream outputStream) {
+                        if (statusCode != WearableStatusCodes.SUCCESS) {
+                            WearLog.e(TAG, "open(): Failed to open a channel for {}, status: {}",
+                                    mName, statusCode);
+                            fail(statusCode);
+                            return;
+                        }
+                        // already on a worker thread, which the stream keeps until it is closed
+                        write(outputStream);
+                    }
+                });
+    }
+
+    /**
+     * Appends a sample with a single value, e.g. a heart rate. Returns {@code false} if the stream
+     * is closed.
+     */
+    public boolean append(long timestamp, float value) {
+        return mRing.add(timestamp, value, 0, 0);
+    }
+
+    /**
+     * Appends a sample with three values, e.g. the axes of an accelerometer. Returns
+     * {@code false} if the stream is closed.
+     */
+    public boolean append(long timestamp, float x, float y, float z) {
+        return mRing.add(timestamp, x, y, z);
+    }
+
+    /**
+     * Appends a sample whose values are the first columns of {@code values}, e.g.
+     * {@link android.hardware.SensorEvent#values}. Returns {@code false} if the stream is closed.
+     */
+    public boolean append(long timestamp, float[] values) {
+        return mRing.add(timestamp, values);
+    }
+
+    /**
+     * Stops accepting samples. The samples already appended are sent, followed by the end of the
+     * stream, and the channel is closed.
+     */
+    public void close() {
+        mRing.close();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the number of samples appended so far, including the dropped ones.
+     */
+    public long getSampleCount() {
+        return mRing.getAddedCount();
+    }
+
+    /**
+     * Returns the number of samples that were overwritten before they could be sent, or that were
+     * discarded because the channel could not be opened or failed.
+     */
+    public long getDroppedCount() {
+        return mRing.getDroppedCount();
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of bytes of frames written to the channel so far.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Writes the frames to {@code outputStream} until the stream is closed; closing
+     * {@code outputStream} closes the channel.
+     */
+    private void write(OutputStream outputStream) {
+        long[] timestamps = new long[mFrameSamples];
+        float[][] values = new float[mColumnCount][mFrameSamples];
+        SensorFrameEncoder encoder = new SensorFrameEncoder(mColumnCount, mResolution);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(outputStream, BUFFER_SIZE));
+        int statusCode = WearableStatusCodes.SUCCESS;
+        try {
+            SensorFrameEncoder.writeHeader(out, mName, mColumnCount, mResolution);
+            out.flush();
+            while (mRing.await(mFrameSamples, mMaxFrameDelayNanos) >= 0) {
+                int count = mRing.drainTo(timestamps, values, mFrameSamples);
+                if (count == 0) {
+                    continue;
+                }
+                encoder.encode(timestamps, values, count);
+                encoder.writeTo(out);
+                out.flush();
+                mFrameCount++;
+                mBytesSent += encoder.getLength();
+            }
+            SensorFrameEncoder.writeEnd(out);
+            out.flush();
+        } catch (IOException e) {
+            WearLog.e(TAG, "Failed to write to sensor stream {}", mName, e);
+            statusCode = WearableStatusCodes.ERROR;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            statusCode = WearableStatusCodes.ERROR;
+        } finally {
+            WearUtil.closeQuietly(out);
+        }
+        if (statusCode != WearableStatusCodes.SUCCESS) {
+            mRing.close();
+            mRing.discard();
+        }
+        notifyClosed(statusCode);
+    }
+
+    private void fail(int statusCode) {
+        mRing.close();
+        mRing.discard();
+        notifyClosed(statusCode);
+    }
+
+    private void notifyClosed(int statusCode) {
+        WearLog.d(TAG, "Sensor stream {} closed after {} frames, status: {}", mName, mFrameCount,
+                statusCode);
+        if (mOnStreamClosedListener != null) {
+            mOnStreamClosedListener.onStreamClosed(statusCode);
+        }
+    }
+
+    /**
+     * Runs the receiving end of a stream on the calling thread, which should be a worker thread:
+     * every frame is decoded into the same {@link SensorFrame} and passed to {@code receiver},
+     * and {@link Receiver#onSensorStreamClosed(String, String, int)} is called once at the end,
+     * with {@link WearableStatusCodes#SUCCESS} if the stream ended normally. The input stream is
+     * closed on return.
+     */
+    public static void receive(InputStream inputStream, String nodeId, Receiver receiver) {
+        SensorFrame frame = new SensorFrame(nodeId);
+        SensorFrameDecoder decoder = new SensorFrameDecoder(
+                new BufferedInputStream(inputStream, BUFFER_SIZE));
+        int statusCode = WearableStatusCodes.SUCCESS;
+        try {
+            decoder.readHeader(frame);
+            while (decoder.readFrame(frame)) {
+                receiver.onSensorFrame(frame);
+            }
+        } catch (IOException e) {
+            WearLog.e(TAG, "Failed to read sensor stream {} from {}", frame.getStreamName(), nodeId,
+                    e);
+            statusCode = WearableStatusCodes.ERROR;
+        } finally {
+            WearUtil.closeQuietly(inputStream);
+        }
+        receiver.onSensorStreamClosed(nodeId, frame.getStreamName(), statusCode);
+    }
+
+    /**
+     * Is notified when the sending side of a stream is done, with
+     * {@link WearableStatusCodes#SUCCESS} if every sample that was not dropped was written.
+     */
+    public interface OnStreamClosedListener {
+        void onStreamClosed(int statusCode);
+    }
+
+    /**
+     * Receives the frames of a stream, see {@link #receive(InputStream, String, Receiver)}.
+     */
+    public interface Receiver {
+
+        /**
+         * Is called for every frame. {@code frame} is reused for the next frame, so it is only
+         * valid during this call.
+         */
+        void onSensorFrame(SensorFrame frame);
+
+        /**
+         * Is called once the stream ended. {@code streamName} is {@code null} if the stream
+         * failed before its header was read.
+         */
+        void onSensorStreamClosed(String nodeId, @Nullable String streamName, int statusCode);
+    }
+
+    /**
+     * Builder for {@link SensorStream}.
+     */
+    public static final class Builder {
+        public static final int DEFAULT_CAPACITY = 4096;
+        public static final int DEFAULT_FRAME_SAMPLES = 256;
+        public static final long DEFAULT_MAX_FRAME_DELAY_MILLIS = 1000;
+
+        private final String mName;
+        private final int mColumnCount;
+        private Node mNode;
+        private float mResolution;
+        private int mCapacity = DEFAULT_CAPACITY;
+        private int mFrameSamples = DEFAULT_FRAME_SAMPLES;
+        private long mMaxFrameDelayMillis = DEFAULT_MAX_FRAME_DELAY_MILLIS;
+        private String mRequestId;
+        private OnStreamClosedListener mOnStreamClosedListener;
+
+        /**
+         * Builder for a stream of samples of {@code columnCount} values to {@code targetNode}.
+         *
+         * @param name       A name the receiver can tell the stream by, e.g. "accelerometer".
+         * @param resolution The step the values are quantized to; it should not be larger than
+         *                   the resolution of the sensor.
+         */
+        public Builder(Node targetNode, String name, int columnCount, float resolution) {
+            this(name, columnCount, resolution);
+            mNode = WearUtil.assertNotNull(targetNode, "targetNode");
+        }
+
+        /**
+         * Builder for a stream to the nearby node with the lowest measured latency; see
+         * {@link GmsWear#startLatencyProbing()}. Without measurements, any nearby node is picked.
+         */
+        public Builder(String name, int columnCount, float resolution) {
+            mName = WearUtil.assertNotNull(name, "name");
+            if (columnCount < 1 || columnCount > SensorFrameEncoder.MAX_COLUMNS) {
+                throw new IllegalArgumentException("columnCount should be between 1 and "
+                        + SensorFrameEncoder.MAX_COLUMNS);
+            }
+            if (!(resolution > 0)) {
+                throw new IllegalArgumentException("resolution should be positive");
+            }
+            mColumnCount = columnCount;
+            mResolution = resolution;
+            GmsWear gmsWear = GmsWear.getInstance();
+            List<Node> nodes = gmsWear.getNodeSnapshot().getNearbyNodes();
+            if (!nodes.isEmpty()) {
+                mNode = gmsWear.getLatencyProber().pickLowestLatency(nodes);
+            }
+        }
+
+        /**
+         * Sets the number of samples the ring holds before the oldest are dropped. The default is
+         * {@link #DEFAULT_CAPACITY}.
+         */
+        public Builder setCapacity(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity should be positive");
+            }
+            mCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets the number of samples that makes a frame be sent right away. The default is
+         * {@link #DEFAULT_FRAME_SAMPLES}. With many columns, {@link #build()} rejects a value
+         * for which a frame could exceed the 4 MB the receiver accepts.
+         */
+        public Builder setFrameSamples(int frameSamples) {
+            if (frameSamples < 1 || frameSamples > SensorFrameDecoder.MAX_FRAME_SAMPLES) {
+                throw new IllegalArgumentException("frameSamples should be between 1 and "
+                        + SensorFrameDecoder.MAX_FRAME_SAMPLES);
+            }
+            mFrameSamples = frameSamples;
+            return this;
+        }
+
+        /**
+         * Sets how long a sample may wait for its frame to fill up before the frame is sent
+         * anyway. The default is {@link #DEFAULT_MAX_FRAME_DELAY_MILLIS}.
+         */
+        public Builder setMaxFrameDelayMillis(long maxFrameDelayMillis) {
+            if (maxFrameDelayMillis < 1) {
+                throw new IllegalArgumentException("maxFrameDelayMillis should be positive");
+            }
+            mMaxFrameDelayMillis = maxFrameDelayMillis;
+            return this;
+        }
+
+        /**
+         * Sets the (optional) requestId that identifies the channel of the stream. If not
+         * provided, a unique requestId is created.
+         */
+        public Builder setRequestId(@Nullable String requestId) {
+            mRequestId = requestId;
+            return this;
+        }
+
+        public Builder setOnStreamClosedListener(OnStreamClosedListener listener) {
+            mOnStreamClosedListener = WearUtil.assertNotNull(listener, "listener");
+            return this;
+        }
+
+        /**
+         * Builds the {@link SensorStream}; call {@link SensorStream#open()} to start streaming.
+         */
+        public SensorStream build() {
+            if (mFrameSamples > mCapacity) {
+                throw new IllegalArgumentException("frameSamples should not exceed capacity");
+            }
+            if (SensorFrameEncoder.maxFrameLength(mColumnCount, mFrameSamples)
+                    > SensorFrameDecoder.MAX_FRAME_BYTES) {
+                // the receiver would reject such a frame and close the stream
+                throw new IllegalArgumentException("frameSamples should be at most "
+                        + maxFrameSamples(mColumnCount) + " for " + mColumnCount + " columns");
+            }
+            if (mRequestId == null || mRequestId.isEmpty()) {
+                mRequestId = UUID.randomUUID().toString();
+            }
+            return new SensorStream(this);
+        }
+
+        private static int maxFrameSamples(int columnCount) {
+            return (int) ((SensorFrameDecoder.MAX_FRAME_BYTES - 10L) / (10L * (columnCount + 1)));
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.cscao.libs.gmswear.consumer;
 
 import com.cscao.libs.gmswear.GmsWear;
+import com.cscao.libs.gmswear.connectivity.sensor.SensorFrame;
 import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.DataApi;
 import com.google.android.gms.wearable.DataEvent;
@@ -64,6 +65,12 @@ public abstract class AbstractDataConsumer implements DataConsumer {
         //no-op
     }
 
+    @Override
+    public void onCapabilityNodesChanged(String capability, Set<Node> addedNodes,
+            Set<Node> removedNodes) {
+        //no-op
+    }
+
     @Override
     public void onSendMessageResult(int statusCode) {
         //no-op
@@ -89,6 +96,11 @@ public abstract class AbstractDataConsumer implements DataConsumer {
         //no-op
     }
 
+    @Override
+    public void onGmsConnectionAbandoned(int errorCode) {
+        //no-op
+    }
+
     @Override
     public void onChannelOpened(Channel channel) {
         //no-op
@@ -172,4 +184,19 @@ public abstract class AbstractDataConsumer implements DataConsumer {
             OutputStream outputStream) {
         //no-op
     }
+
+    @Override
+    public void onCircuitStateChanged(String nodeId, int previousState, int newState) {
+        //no-op
+    }
+
+    @Override
+    public void onSensorFrame(SensorFrame frame) {
+        //no-op
+    }
+
+    @Override
+    public void onSensorStreamClosed(String nodeId, String streamName, int statusCode) {
+        //no-op
+    }
 }
@@ -20,6 +20,8 @@ import android.net.Uri;
 
 import com.cscao.libs.gmswear.GmsWear;
 import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.connectivity.sensor.SensorFrame;
+import com.cscao.libs.gmswear.node.CircuitBreaker;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.DataApi;
@@ -71,7 +73,21 @@ public interface DataConsumer extends FileTransfer.OnChannelOutputStreamListener
     void onCapabilityChanged(String capability, Set<Node> nodes);
 
     /**
-     * Called when initial capabilities are received after google api connection.
+     * Called along with {@link #onCapabilityChanged(String, Set)} with the nodes that were added
+     * to and removed from the given capability since the previous call. Changes reported by the
+     * framework in quick succession are merged, so this is only called once they settle down,
+     * and not at all if they cancel each other out.
+     *
+     * @param capability   The capability that has changed.
+     * @param addedNodes   The nodes that now provide the capability.
+     * @param removedNodes The nodes that no longer provide the capability.
+     */
+    void onCapabilityNodesChanged(String capability, Set<Node> addedNodes,
+            Set<Node> removedNodes);
+
+    /**
+     * Called when initial capabilities are received after google api connection. This is called
+     * on a background thread.
      */
     void onInitialConnectedCapabilitiesReceived();
 
@@ -105,6 +121,17 @@ public interface DataConsumer extends FileTransfer.OnChannelOutputStreamListener
      */
     void onGmsConnectionFailed();
 
+    /**
+     * Called when the connection failed with an error that retrying can't fix, such as Google
+     * Play services missing from the device. The library stops reconnecting and fails the
+     * pending and later requests until
+     * {@link com.cscao.libs.gmswear.connectivity.ConnectionSupervisor#retry()} is called.
+     *
+     * @param errorCode One of the {@link com.google.android.gms.common.ConnectionResult} error
+     *                  codes.
+     */
+    void onGmsConnectionAbandoned(int errorCode);
+
     /**
      * Called when a channel is closed.
      */
@@ -132,7 +159,7 @@ public interface DataConsumer extends FileTransfer.OnChannelOutputStreamListener
 
     /**
      * Called when initial list of connected nodes is received - so that you can send messages to
-     * it.
+     * it. This is called on a background thread.
      */
     void onInitialConnectedNodesReceived();
 
@@ -199,7 +226,8 @@ public interface DataConsumer extends FileTransfer.OnChannelOutputStreamListener
      *                    id is provided here for bookkeeping purposes and being able to correlate
      *                    different requests
      *                    from the client to the streams that open on the receiver ends.
-     * @param channel     The instance of {@link Channel}
+     * @param channel     The instance of {@link Channel}, or {@code null} if the channel didn't
+     *                    go through the Wearable APIs; closing the stream is enough then
      * @param inputStream The {@link InputStream} that is opened if successful
      */
     void onInputStreamForChannelOpened(int statusCode, String requestId, Channel channel,
@@ -240,4 +268,40 @@ public interface DataConsumer extends FileTransfer.OnChannelOutputStreamListener
     void onFileReceivedResult(int statusCode, String requestId, File savedFile,
             String originalName);
 
+    /**
+     * Called when the circuit breaker of a node changes state. While the circuit of a node is
+     * open, requests to that node fail fast with
+     * {@link com.google.android.gms.wearable.WearableStatusCodes#TARGET_NODE_NOT_CONNECTED}.
+     *
+     * @param nodeId        The id of the node.
+     * @param previousState The previous state, one of {@link CircuitBreaker#STATE_CLOSED},
+     *                      {@link CircuitBreaker#STATE_OPEN} or
+     *                      {@link CircuitBreaker#STATE_HALF_OPEN}.
+     * @param newState      The new state.
+     */
+    void onCircuitStateChanged(String nodeId, int previousState, int newState);
+
+    /**
+     * Called for every frame of a {@link com.cscao.libs.gmswear.connectivity.sensor.SensorStream}
+     * received from another node, on a worker thread. The same {@link SensorFrame} instance and
+     * its arrays are reused for the next frame of the stream, so copy what is needed beyond this
+     * call.
+     *
+     * @param frame The samples of the frame, see {@link SensorFrame#getTimestamps()} and
+     *              {@link SensorFrame#getValues(int)}.
+     */
+    void onSensorFrame(SensorFrame frame);
+
+    /**
+     * Called once a {@link com.cscao.libs.gmswear.connectivity.sensor.SensorStream} received from
+     * another node ended, after its last frame.
+     *
+     * @param nodeId     The id of the sending node.
+     * @param streamName The name of the stream, or {@code null} if the stream failed before its
+     *                   header was read.
+     * @param statusCode {@link com.google.android.gms.wearable.WearableStatusCodes#SUCCESS} if the
+     *                   sender closed the stream normally.
+     */
+    void onSensorStreamClosed(String nodeId, String streamName, int statusCode);
+
 }
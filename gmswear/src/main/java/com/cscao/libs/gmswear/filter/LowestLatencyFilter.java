@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.filter;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.GmsWear;
+import com.cscao.libs.gmswear.node.LatencyProber;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Node;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link NodeSelectionFilter} that selects the single node with the lowest expected latency, as
+ * measured by a {@link LatencyProber}. Nodes that have not been measured yet are only picked if
+ * no other node has been, nearby nodes first. Latency probing has to be started for this filter
+ * to be useful; see {@link GmsWear#startLatencyProbing()}.
+ */
+public class LowestLatencyFilter implements NodeSelectionFilter {
+
+    private final LatencyProber mLatencyProber;
+    private final NodeSelectionFilter mDelegate;
+
+    /**
+     * @param latencyProber The source of the latency measurements.
+     * @param delegate a filter to apply before picking the node,
+     *                 or {@code null} if all nodes should be considered.
+     */
+    public LowestLatencyFilter(LatencyProber latencyProber,
+            @Nullable NodeSelectionFilter delegate) {
+        mLatencyProber = WearUtil.assertNotNull(latencyProber, "latencyProber");
+        mDelegate = delegate;
+    }
+
+    /**
+     * A filter that uses the {@link LatencyProber} of {@link GmsWear} and considers all nodes.
+     */
+    public LowestLatencyFilter() {
+        this(GmsWear.getInstance().getLatencyProber(), null);
+    }
+
+    @Override
+    public Set<Node> filterNodes(Set<Node> nodes) {
+        WearUtil.assertNotNull(nodes, "nodes");
+        if (mDelegate != null) {
+            nodes = mDelegate.filterNodes(nodes);
+        }
+        Set<Node> result = new HashSet<>();
+        Node best = mLatencyProber.pickLowestLatency(nodes);
+        if (best != null) {
+            result.add(best);
+        }
+        return result;
+    }
+
+    @Override
+    public String describe() {
+        return "LowestLatencyFilter: Selects the node with the lowest measured latency";
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.metrics;
+
+/**
+ * An immutable copy of a {@link LatencyHistogram}.
+ */
+public final class HistogramSnapshot {
+
+    static final HistogramSnapshot EMPTY = new HistogramSnapshot(
+            new long[LatencyHistogram.BUCKET_COUNT], 0, 0, 0);
+
+    private final long[] mCounts;
+    private final long mCount;
+    private final long mSum;
+    private final long mMax;
+
+    HistogramSnapshot(long[] counts, long count, long sum, long max) {
+        mCounts = counts;
+        mCount = count;
+        mSum = sum;
+        mMax = max;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSum() {
+        return mSum;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * Returns the value below which {@code percent} percent of the values fall, or 0 if nothing
+     * was recorded. The result is the upper bound of the bucket it falls in, capped by the largest
+     * value recorded.
+     */
+    public long getPercentile(double percent) {
+        long total = 0;
+        for (long count : mCounts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percent) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.upperBoundOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Returns what was recorded since {@code previous}, an earlier snapshot of the same
+     * histogram, e.g. to report the latencies of the last period only. The maximum can't be
+     * computed for a period, so the maximum of this snapshot is kept.
+     */
+    public HistogramSnapshot minus(HistogramSnapshot previous) {
+        long[] counts = new long[mCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = Math.max(0, mCounts[i] - previous.mCounts[i]);
+        }
+        return new HistogramSnapshot(counts, mCount - previous.mCount, mSum - previous.mSum,
+                mMax);
+    }
+
+    @Override
+    public String toString() {
+        return "{count=" + mCount + ", mean=" + Math.round(getMean()) + ", p50="
+                + getPercentile(50) + ", p90=" + getPercentile(90) + ", p99="
+                + getPercentile(99) + ", max=" + mMax + "}";
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.metrics;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the messages, bytes, data items, channels and failures of the library per path and per
+ * node, along with the latencies from sending to the result and from receiving to the consumers
+ * being done. {@link com.cscao.libs.gmswear.GmsWear} records into its registry as the traffic
+ * goes; apps can read it through {@link #snapshot()} or have it pushed periodically to a
+ * {@link Reporter}, e.g. to forward it to their telemetry.
+ * <p>
+ * Recording doesn't take locks, and only allocates the first time a path or node is seen. To
+ * bound the memory used, at most {@link #DEFAULT_MAX_KEYS} paths and as many nodes are tracked;
+ * the traffic of the others is counted under {@link #KEY_OTHER}.
+ */
+public class MetricsRegistry {
+
+    private static final String TAG = "MetricsRegistry";
+
+    public static final String KEY_TOTAL = "(total)";
+    public static final String KEY_OTHER = "(other)";
+    public static final int DEFAULT_MAX_KEYS = 64;
+
+    private final ScheduledExecutorService mTimer;
+    private final ConcurrentMap<String, TrafficStats> mPaths = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TrafficStats> mNodes = new ConcurrentHashMap<>();
+    private final TrafficStats mTotal = new TrafficStats();
+    private final Map<Reporter, ScheduledFuture<?>> mReporters = new ConcurrentHashMap<>();
+    private volatile int mMaxKeys = DEFAULT_MAX_KEYS;
+    private volatile boolean mEnabled = true;
+
+    public MetricsRegistry() {
+        this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * Creates a registry that calls its reporters on {@code timer}.
+     */
+    public MetricsRegistry(ScheduledExecutorService timer) {
+        mTimer = WearUtil.assertNotNull(timer, "timer");
+    }
+
+    /**
+     * Turns recording on or off; it is on by default. Turning it off keeps what was recorded.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Sets how many paths, and how many nodes, are tracked individually.
+     */
+    public void setMaxKeys(int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Invalid maximum: " + maxKeys);
+        }
+        mMaxKeys = maxKeys;
+    }
+
+    /**
+     * Returns the current time in the clock of the latencies, to pass as the start of an
+     * operation to the {@code record*()} methods.
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the result of sending a message of {@code bytes} bytes, sent at
+     * {@code startNanos}.
+     */
+    public void recordMessageSent(String path, String nodeId, int bytes, boolean success,
+            long startNanos) {
+        if (!mEnabled) {
+            return;
+        }
+        long latencyMicros = elapsedMicros(startNanos);
+        recordMessageSent(mTotal, bytes, success, latencyMicros);
+        recordMessageSent(stats(mPaths, path), bytes, success, latencyMicros);
+        recordMessageSent(stats(mNodes, nodeId), bytes, success, latencyMicros);
+    }
+
+    private static void recordMessageSent(TrafficStats stats, int bytes, boolean success,
+            long latencyMicros) {
+        if (success) {
+            stats.mMessagesSent.incrementAndGet();
+            stats.mBytesSent.addAndGet(bytes);
+        } else {
+            stats.mFailures.incrementAndGet();
+        }
+        stats.sendLatency().record(latencyMicros);
+    }
+
+    /**
+     * Records the result of putting a data item of {@code bytes} bytes, put at
+     * {@code startNanos}. Data items are not sent to a particular node.
+     */
+    public void recordDataItemPut(String path, int bytes, boolean success, long startNanos) {
+        if (!mEnabled) {
+            return;
+        }
+        long latencyMicros = elapsedMicros(startNanos);
+        recordDataItemPut(mTotal, bytes, success, latencyMicros);
+        recordDataItemPut(stats(mPaths, path), bytes, success, latencyMicros);
+    }
+
+    private static void recordDataItemPut(TrafficStats stats, int bytes, boolean success,
+            long latencyMicros) {
+        if (success) {
+            stats.mDataItemsPut.incrementAndGet();
+            stats.mBytesSent.addAndGet(bytes);
+        } else {
+            stats.mFailures.incrementAndGet();
+        }
+        stats.sendLatency().record(latencyMicros);
+    }
+
+    /**
+     * Records the result of opening a channel to {@code nodeId}, requested at
+     * {@code startNanos}.
+     */
+    public void recordChannelOpened(String path, String nodeId, boolean success,
+            long startNanos) {
+        if (!mEnabled) {
+            return;
+        }
+        long latencyMicros = elapsedMicros(startNanos);
+        recordChannelOpened(mTotal, success, latencyMicros);
+        recordChannelOpened(stats(mPaths, path), success, latencyMicros);
+        recordChannelOpened(stats(mNodes, nodeId), success, latencyMicros);
+    }
+
+    private static void recordChannelOpened(TrafficStats stats, boolean success,
+            long latencyMicros) {
+        if (success) {
+            stats.mChannelsOpened.incrementAndGet();
+        } else {
+            stats.mFailures.incrementAndGet();
+        }
+        stats.sendLatency().record(latencyMicros);
+    }
+
+    /**
+     * Records a channel that {@code nodeId} opened to this node.
+     */
+    public void recordChannelAccepted(String path, String nodeId) {
+        if (!mEnabled) {
+            return;
+        }
+        mTotal.mChannelsOpened.incrementAndGet();
+        stats(mPaths, path).mChannelsOpened.incrementAndGet();
+        stats(mNodes, nodeId).mChannelsOpened.incrementAndGet();
+    }
+
+    /**
+     * Records a request that failed before reaching the Wearable APIs, e.g. because the circuit
+     * to the node was open or the request was dropped while disconnected. {@code nodeId} may be
+     * {@code null}.
+     */
+    public void recordFailure(String path, String nodeId) {
+        if (!mEnabled) {
+            return;
+        }
+        mTotal.mFailures.incrementAndGet();
+        stats(mPaths, path).mFailures.incrementAndGet();
+        if (nodeId != null) {
+            stats(mNodes, nodeId).mFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a message to {@code nodeId} that was dropped instead of sent because its deadline
+     * had passed. {@code nodeId} may be {@code null}.
+     */
+    public void recordExpiredBeforeSend(String path, String nodeId) {
+        if (!mEnabled) {
+            return;
+        }
+        mTotal.mExpiredBeforeSend.incrementAndGet();
+        stats(mPaths, path).mExpiredBeforeSend.incrementAndGet();
+        if (nodeId != null) {
+            stats(mNodes, nodeId).mExpiredBeforeSend.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a message from {@code nodeId} that arrived after its deadline and was dropped.
+     */
+    public void recordExpiredOnReceive(String path, String nodeId) {
+        if (!mEnabled) {
+            return;
+        }
+        mTotal.mExpiredOnReceive.incrementAndGet();
+        stats(mPaths, path).mExpiredOnReceive.incrementAndGet();
+        stats(mNodes, nodeId).mExpiredOnReceive.incrementAndGet();
+    }
+
+    /**
+     * Records a message of {@code bytes} bytes from {@code nodeId}, received at
+     * {@code receivedNanos}, once the consumers have handled it.
+     */
+    public void recordMessageReceived(String path, String nodeId, int bytes,
+            long receivedNanos) {
+        if (!mEnabled) {
+            return;
+        }
+        long latencyMicros = elapsedMicros(receivedNanos);
+        recordReceived(mTotal, bytes, latencyMicros).mMessagesReceived.incrementAndGet();
+        recordReceived(stats(mPaths, path), bytes, latencyMicros).mMessagesReceived
+                .incrementAndGet();
+        recordReceived(stats(mNodes, nodeId), bytes, latencyMicros).mMessagesReceived
+                .incrementAndGet();
+    }
+
+    /**
+     * Records a data item of {@code bytes} bytes from {@code nodeId} that changed or was deleted,
+     * received at {@code receivedNanos}, once the consumers have handled it.
+     */
+    public void recordDataItemReceived(String path, String nodeId, int bytes,
+            long receivedNanos) {
+        if (!mEnabled) {
+            return;
+        }
+        long latencyMicros = elapsedMicros(receivedNanos);
+        recordReceived(mTotal, bytes, latencyMicros).mDataItemsReceived.incrementAndGet();
+        recordReceived(stats(mPaths, path), bytes, latencyMicros).mDataItemsReceived
+                .incrementAndGet();
+        recordReceived(stats(mNodes, nodeId), bytes, latencyMicros).mDataItemsReceived
+                .incrementAndGet();
+    }
+
+    /**
+     * Records the one way latency of something {@code nodeId} sent on {@code path}, from its send
+     * time to it being received here, both on the local clock. Negative latencies, which can only
+     * come from an inaccurate clock offset, are recorded as zero.
+     */
+    public void recordOneWayLatency(String path, String nodeId, long latencyMicros) {
+        if (!mEnabled) {
+            return;
+        }
+        long latency = Math.max(0, latencyMicros);
+        mTotal.oneWayLatency().record(latency);
+        stats(mPaths, path).oneWayLatency().record(latency);
+        stats(mNodes, nodeId).oneWayLatency().record(latency);
+    }
+
+    private static TrafficStats recordReceived(TrafficStats stats, int bytes,
+            long latencyMicros) {
+        stats.mBytesReceived.addAndGet(bytes);
+        stats.receiveLatency().record(latencyMicros);
+        return stats;
+    }
+
+    /**
+     * Returns the metrics recorded so far.
+     */
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(System.currentTimeMillis(), mTotal.snapshot(KEY_TOTAL),
+                snapshot(mPaths), snapshot(mNodes));
+    }
+
+    private static Map<String, TrafficMetrics> snapshot(Map<String, TrafficStats> stats) {
+        Map<String, TrafficMetrics> metrics = new TreeMap<>();
+        for (Map.Entry<String, TrafficStats> entry : stats.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return metrics;
+    }
+
+    /**
+     * Calls {@code reporter} with a {@link #snapshot()} every {@code period}, on a background
+     * thread, until it is removed. The snapshots hold totals; reporters that need the traffic of
+     * each period can subtract the previous snapshot, see {@link HistogramSnapshot#minus}.
+     */
+    public void addReporter(final Reporter reporter, long period, TimeUnit unit) {
+        WearUtil.assertNotNull(reporter, "reporter");
+        if (period <= 0) {
+            throw new IllegalArgumentException("Invalid period: " + period);
+        }
+        ScheduledFuture<?> future = mTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reporter.report(snapshot());
+                } catch (RuntimeException e) {
+                    WearLog.e(TAG, "Reporter {} failed", reporter, e);
+                }
+            }
+        }, period, period, unit);
+        ScheduledFuture<?> previous = mReporters.put(reporter, future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    public void removeReporter(Reporter reporter) {
+        ScheduledFuture<?> future = mReporters.remove(reporter);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private TrafficStats stats(ConcurrentMap<String, TrafficStats> map, String key) {
+        if (key == null) {
+            key = KEY_OTHER;
+        }
+        TrafficStats stats = map.get(key);
+        if (stats != null) {
+            return stats;
+        }
+        if (map.size() >= mMaxKeys) {
+            key = KEY_OTHER;
+            stats = map.get(key);
+            if (stats != null) {
+                return stats;
+            }
+        }
+        stats = new TrafficStats();
+        TrafficStats existing = map.putIfAbsent(key, stats);
+        return existing != null ? existing : stats;
+    }
+
+    private static long elapsedMicros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * Receives the snapshots of a {@link MetricsRegistry} periodically.
+     */
+    public interface Reporter {
+
+        void report(MetricsSnapshot snapshot);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of a {@link MetricsRegistry}: the metrics of every path and every node
+ * that saw traffic, and their totals.
+ */
+public final class MetricsSnapshot {
+
+    private final long mTimestampMillis;
+    private final TrafficMetrics mTotal;
+    private final Map<String, TrafficMetrics> mPaths;
+    private final Map<String, TrafficMetrics> mNodes;
+
+    MetricsSnapshot(long timestampMillis, TrafficMetrics total, Map<String, TrafficMetrics> paths,
+            Map<String, TrafficMetrics> nodes) {
+        mTimestampMillis = timestampMillis;
+        mTotal = total;
+        mPaths = Collections.unmodifiableMap(paths);
+        mNodes = Collections.unmodifiableMap(nodes);
+    }
+
+    /**
+     * Returns when the snapshot was taken, as returned by {@link System#currentTimeMillis()}.
+     */
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    public TrafficMetrics getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the metrics of each path, sorted by path.
+     */
+    public Map<String, TrafficMetrics> getPaths() {
+        return mPaths;
+    }
+
+    /**
+     * Returns the metrics of each node, sorted by node id.
+     */
+    public Map<String, TrafficMetrics> getNodes() {
+        return mNodes;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{timestamp=" + mTimestampMillis + ", total=" + mTotal + ", paths="
+                + mPaths.values() + ", nodes=" + mNodes.values() + "}";
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.metrics;
+
+/**
+ * An immutable snapshot of the traffic of one path or node, or of all of them, as counted by a
+ * {@link MetricsRegistry}. The counts are totals since the registry was created; latencies are in
+ * microseconds.
+ */
+public final class TrafficMetrics {
+
+    private final String mKey;
+    private final long mMessagesSent;
+    private final long mMessagesReceived;
+    private final long mBytesSent;
+    private final long mBytesReceived;
+    private final long mDataItemsPut;
+    private final long mDataItemsReceived;
+    private final long mChannelsOpened;
+    private final long mFailures;
+    private final long mExpiredBeforeSend;
+    private final long mExpiredOnReceive;
+    private final HistogramSnapshot mSendLatency;
+    private final HistogramSnapshot mReceiveLatency;
+    private final HistogramSnapshot mOneWayLatency;
+
+    TrafficMetrics(String key, long messagesSent, long messagesReceived, long bytesSent,
+            long bytesReceived, long dataItemsPut, long dataItemsReceived, long channelsOpened,
+            long failures, long expiredBeforeSend, long expiredOnReceive,
+            HistogramSnapshot sendLatency, HistogramSnapshot receiveLatency,
+            HistogramSnapshot oneWayLatency) {
+        mKey = key;
+        mMessagesSent = messagesSent;
+        mMessagesReceived = messagesReceived;
+        mBytesSent = bytesSent;
+        mBytesReceived = bytesReceived;
+        mDataItemsPut = dataItemsPut;
+        mDataItemsReceived = dataItemsReceived;
+        mChannelsOpened = channelsOpened;
+        mFailures = failures;
+        mExpiredBeforeSend = expiredBeforeSend;
+        mExpiredOnReceive = expiredOnReceive;
+        mSendLatency = sendLatency;
+        mReceiveLatency = receiveLatency;
+        mOneWayLatency = oneWayLatency;
+    }
+
+    /**
+     * Returns the path or the node id these metrics are about, {@link MetricsRegistry#KEY_TOTAL}
+     * or {@link MetricsRegistry#KEY_OTHER}.
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * Returns the number of messages sent successfully.
+     */
+    public long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    public long getMessagesReceived() {
+        return mMessagesReceived;
+    }
+
+    /**
+     * Returns the number of bytes of the messages and data items sent successfully.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public long getDataItemsPut() {
+        return mDataItemsPut;
+    }
+
+    public long getDataItemsReceived() {
+        return mDataItemsReceived;
+    }
+
+    /**
+     * Returns the number of channels opened, by either side.
+     */
+    public long getChannelsOpened() {
+        return mChannelsOpened;
+    }
+
+    /**
+     * Returns the number of messages, data items and channels that failed.
+     */
+    public long getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * Returns the number of messages that were dropped instead of sent because their deadline
+     * had passed, e.g. while they waited for the connection to come back.
+     */
+    public long getExpiredBeforeSend() {
+        return mExpiredBeforeSend;
+    }
+
+    /**
+     * Returns the number of messages that were received after their deadline and dropped before
+     * reaching the consumers.
+     */
+    public long getExpiredOnReceive() {
+        return mExpiredOnReceive;
+    }
+
+    /**
+     * Returns the latencies from sending a message, putting a data item or opening a channel to
+     * its result, successful or not.
+     */
+    public HistogramSnapshot getSendLatency() {
+        return mSendLatency;
+    }
+
+    /**
+     * Returns the latencies from receiving a message or a data item to all the consumers having
+     * handled it.
+     */
+    public HistogramSnapshot getReceiveLatency() {
+        return mReceiveLatency;
+    }
+
+    /**
+     * Returns the latencies from a remote node sending a message, data item or file to it being
+     * received here, corrected for the offset between the clocks of the two nodes. Only traffic
+     * stamped with its send time is measured, see {@code GmsWear#setTimestampingEnabled}.
+     */
+    public HistogramSnapshot getOneWayLatency() {
+        return mOneWayLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "TrafficMetrics{key=" + mKey + ", messagesSent=" + mMessagesSent
+                + ", messagesReceived=" + mMessagesReceived + ", bytesSent=" + mBytesSent
+                + ", bytesReceived=" + mBytesReceived + ", dataItemsPut=" + mDataItemsPut
+                + ", dataItemsReceived=" + mDataItemsReceived + ", channelsOpened="
+                + mChannelsOpened + ", failures=" + mFailures + ", expiredBeforeSend="
+                + mExpiredBeforeSend + ", expiredOnReceive=" + mExpiredOnReceive
+                + ", sendLatencyUs=" + mSendLatency
+                + ", receiveLatencyUs=" + mReceiveLatency + ", oneWayLatencyUs=" + mOneWayLatency
+                + "}";
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The live counters of one path or node in a {@link MetricsRegistry}. The histograms are only
+ * allocated once something is recorded in them, since most paths are either sent or received.
+ */
+final class TrafficStats {
+
+    final AtomicLong mMessagesSent = new AtomicLong();
+    final AtomicLong mMessagesReceived = new AtomicLong();
+    final AtomicLong mBytesSent = new AtomicLong();
+    final AtomicLong mBytesReceived = new AtomicLong();
+    final AtomicLong mDataItemsPut = new AtomicLong();
+    final AtomicLong mDataItemsReceived = new AtomicLong();
+    final AtomicLong mChannelsOpened = new AtomicLong();
+    final AtomicLong mFailures = new AtomicLong();
+    final AtomicLong mExpiredBeforeSend = new AtomicLong();
+    final AtomicLong mExpiredOnReceive = new AtomicLong();
+    private volatile LatencyHistogram mSendLatency;
+    private volatile LatencyHistogram mReceiveLatency;
+    private volatile LatencyHistogram mOneWayLatency;
+
+    LatencyHistogram sendLatency() {
+        LatencyHistogram histogram = mSendLatency;
+        if (histogram == null) {
+            synchronized (this) {
+                if (mSendLatency == null) {
+                    mSendLatency = new LatencyHistogram();
+                }
+                histogram = mSendLatency;
+            }
+        }
+        return histogram;
+    }
+
+    LatencyHistogram receiveLatency() {
+        LatencyHistogram histogram = mReceiveLatency;
+        if (histogram == null) {
+            synchronized (this) {
+                if (mReceiveLatency == null) {
+                    mReceiveLatency = new LatencyHistogram();
+                }
+                histogram = mReceiveLatency;
+            }
+        }
+        return histogram;
+    }
+
+    LatencyHistogram oneWayLatency() {
+        LatencyHistogram histogram = mOneWayLatency;
+        if (histogram == null) {
+            synchronized (this) {
+                if (mOneWayLatency == null) {
+                    mOneWayLatency = new LatencyHistogram();
+                }
+                histogram = mOneWayLatency;
+            }
+        }
+        return histogram;
+    }
+
+    TrafficMetrics snapshot(String key) {
+        LatencyHistogram sendLatency = mSendLatency;
+        LatencyHistogram receiveLatency = mReceiveLatency;
+        LatencyHistogram oneWayLatency = mOneWayLatency;
+        return new TrafficMetrics(key, mMessagesSent.get(), mMessagesReceived.get(),
+                mBytesSent.get(), mBytesReceived.get(), mDataItemsPut.get(),
+                mDataItemsReceived.get(), mChannelsOpened.get(), mFailures.get(),
+                mExpiredBeforeSend.get(), mExpiredOnReceive.get(),
+                sendLatency == null ? HistogramSnapshot.EMPTY : sendLatency.snapshot(),
+                receiveLatency == null ? HistogramSnapshot.EMPTY : receiveLatency.snapshot(),
+                oneWayLatency == null ? HistogramSnapshot.EMPTY : oneWayLatency.snapshot());
+    }
+}
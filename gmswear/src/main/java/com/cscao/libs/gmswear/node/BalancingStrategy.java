@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.Node;
+
+import java.util.List;
+
+/**
+ * Picks which of the nodes advertising a capability should receive the next request sent through
+ * a {@link CapabilityRouter}.
+ *
+ * @see RoundRobinStrategy
+ * @see LeastOutstandingStrategy
+ * @see LatencyWeightedStrategy
+ */
+public interface BalancingStrategy {
+
+    /**
+     * Returns one of {@code candidates}, or {@code null} to send nothing. {@code candidates} is
+     * never empty, is sorted by node id and must not be modified; {@code router} provides the
+     * number of requests in flight to each node.
+     */
+    @Nullable
+    Node choose(String capability, List<Node> candidates, CapabilityRouter router);
+
+    /**
+     * Returns a short description of this strategy.
+     */
+    String describe();
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.WearableStatusCodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages the capabilities of this node and smooths out the capability changes of other nodes.
+ * <p>
+ * Local capabilities are reference counted: {@link #acquire(String...)} and
+ * {@link #release(String...)} calls from different components can overlap, and a capability is
+ * only advertised while at least one reference is held. Changes are applied in batches after
+ * {@link #DEFAULT_BATCH_DELAY_MILLIS}, so a capability that is released and acquired again within
+ * that delay, e.g. across an activity's {@code onPause()}/{@code onResume()}, causes no call to
+ * the Wearable API at all, and the peers see no change.
+ * <p>
+ * Capability changes reported by other nodes are debounced per capability: a change is only
+ * delivered once no other change arrived for {@link #DEFAULT_DEBOUNCE_MILLIS}, or
+ * {@link #MAX_DEBOUNCE_MILLIS} after the first one at the latest. It is delivered as the final set
+ * of nodes along with the nodes added and removed since the last delivery; changes that cancel
+ * each other out are not delivered.
+ */
+public final class CapabilityManager {
+
+    private static final String TAG = "CapabilityManager";
+
+    public static final long DEFAULT_BATCH_DELAY_MILLIS = 500;
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 1000;
+    public static final long MAX_DEBOUNCE_MILLIS = 5000;
+
+    private final Registrar mRegistrar;
+    private final Listener mListener;
+    private final ScheduledExecutorService mExecutor;
+    private final Map<String, Integer> mRefCounts = new HashMap<>();
+    private final Set<String> mRegistered = new HashSet<>();
+    private final Set<String> mInFlight = new HashSet<>();
+    private final Map<String, Set<Node>> mDeliveredNodes = new HashMap<>();
+    private final Map<String, PendingChange> mPendingChanges = new HashMap<>();
+    private ScheduledFuture<?> mScheduledFlush;
+    private long mBatchDelayMillis = DEFAULT_BATCH_DELAY_MILLIS;
+    private long mDebounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+
+    public CapabilityManager(Registrar registrar, Listener listener) {
+        this(registrar, listener, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * @param registrar Adds and removes the local capabilities; see {@link Registrar}.
+     * @param listener Receives the batched results and the debounced changes, on a thread of
+     *                 {@code executor}.
+     * @param executor Runs the delayed batches and debounced deliveries.
+     */
+    public CapabilityManager(Registrar registrar, Listener listener,
+            ScheduledExecutorService executor) {
+        mRegistrar = WearUtil.assertNotNull(registrar, "registrar");
+        mListener = WearUtil.assertNotNull(listener, "listener");
+        mExecutor = WearUtil.assertNotNull(executor, "executor");
+    }
+
+    public synchronized void setBatchDelayMillis(long batchDelayMillis) {
+        mBatchDelayMillis = Math.max(0, batchDelayMillis);
+    }
+
+    public synchronized void setDebounceMillis(long debounceMillis) {
+        mDebounceMillis = Math.max(0, debounceMillis);
+    }
+
+    /**
+     * Takes a reference on each of {@code capabilities}; the ones that had none are advertised
+     * with the next batch.
+     */
+    public synchronized void acquire(String... capabilities) {
+        for (String capability : capabilities) {
+            WearUtil.assertNotEmpty(capability, "capability");
+            Integer count = mRefCounts.get(capability);
+            mRefCounts.put(capability, count == null ? 1 : count + 1);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Releases a reference on each of {@code capabilities}; the ones left with none are removed
+     * with the next batch. Releasing a capability that holds no reference has no effect.
+     */
+    public synchronized void release(String... capabilities) {
+        for (String capability : capabilities) {
+            Integer count = mRefCounts.get(capability);
+            if (count == null) {
+                continue;
+            }
+            if (count <= 1) {
+                mRefCounts.remove(capability);
+            } else {
+                mRefCounts.put(capability, count - 1);
+            }
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Drops every reference and removes all the local capabilities right away.
+     */
+    public void releaseAll() {
+        synchronized (this) {
+            mRefCounts.clear();
+        }
+        flush();
+    }
+
+    /**
+     * Returns the number of references held on {@code capability}.
+     */
+    public synchronized int getRefCount(String capability) {
+        Integer count = mRefCounts.get(capability);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the local capabilities that are currently advertised.
+     */
+    public synchronized Set<String> getRegisteredCapabilities() {
+        return new HashSet<>(mRegistered);
+    }
+
+    /**
+     * Should be called when the connection to the Wearable API is (re)established: local
+     * capabilities don't survive a lost connection, so all of them are advertised again.
+     */
+    public void onApiConnected() {
+        synchronized (this) {
+            mRegistered.clear();
+            mInFlight.clear();
+        }
+        flush();
+    }
+
+    private void scheduleFlush() {
+        if (mScheduledFlush != null) {
+            return;
+        }
+        mScheduledFlush = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, mBatchDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the difference between the referenced and the advertised capabilities.
+     */
+    public void flush() {
+        final List<String> toAdd = new ArrayList<>();
+        final List<String> toRemove = new ArrayList<>();
+        synchronized (this) {
+            if (mScheduledFlush != null) {
+                mScheduledFlush.cancel(false);
+                mScheduledFlush = null;
+            }
+            if (!mRegistrar.isConnected()) {
+                // onApiConnected() will flush
+                return;
+            }
+            for (String capability : mRefCounts.keySet()) {
+                if (!mRegistered.contains(capability) && !mInFlight.contains(capability)) {
+                    toAdd.add(capability);
+                }
+            }
+            for (String capability : mRegistered) {
+                if (!mRefCounts.containsKey(capability) && !mInFlight.contains(capability)) {
+                    toRemove.add(capability);
+                }
+            }
+            mInFlight.addAll(toAdd);
+            mInFlight.addAll(toRemove);
+        }
+        if (!toAdd.isEmpty()) {
+            WearLog.d(TAG, "Adding local capabilities {}", toAdd);
+            final Batch batch = new Batch(toAdd.size());
+            for (final String capability : toAdd) {
+                mRegistrar.addLocalCapability(capability, new OnResultListener() {
+                    @Override
+                    public void onResult(int statusCode) {
+                        onOperationDone(capability, true, statusCode);
+                        if (batch.onResult(statusCode)) {
+                            mListener.onLocalCapabilitiesAdded(toAdd, batch.getStatusCode());
+                        }
+                    }
+                });
+            }
+        }
+        if (!toRemove.isEmpty()) {
+            WearLog.d(TAG, "Removing local capabilities {}", toRemove);
+            final Batch batch = new Batch(toRemove.size());
+            for (final String capability : toRemove) {
+                mRegistrar.removeLocalCapability(capability, new OnResultListener() {
+                    @Override
+                    public void onResult(int statusCode) {
+                        onOperationDone(capability, false, statusCode);
+                        if (batch.onResult(statusCode)) {
+                            mListener.onLocalCapabilitiesRemoved(toRemove, batch.getStatusCode());
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private synchronized void onOperationDone(String capability, boolean add, int statusCode) {
+        mInFlight.remove(capability);
+        if (statusCode == WearableStatusCodes.SUCCESS) {
+            if (add) {
+                mRegistered.add(capability);
+            } else {
+                mRegistered.remove(capability);
+            }
+        }
+        // the references may have changed while the call was in flight
+        if (statusCode == WearableStatusCodes.SUCCESS
+                && mRefCounts.containsKey(capability) != mRegistered.contains(capability)) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Sets the nodes of {@code capability} that the debounced changes are compared against,
+     * without delivering a change, e.g. with the initial capabilities after connecting.
+     */
+    public synchronized void setInitialNodes(String capability, Set<Node> nodes) {
+        mDeliveredNodes.put(capability, copyOf(nodes));
+    }
+
+    /**
+     * Records a change of the nodes advertising {@code capability}, to be delivered once the
+     * changes settle down.
+     */
+    public synchronized void onCapabilityChanged(final String capability, Set<Node> nodes) {
+        long now = now();
+        PendingChange pending = mPendingChanges.get(capability);
+        if (pending == null) {
+            pending = new PendingChange(now);
+            mPendingChanges.put(capability, pending);
+        } else {
+            pending.mFuture.cancel(false);
+        }
+        pending.mNodes = copyOf(nodes);
+        long delay = Math.min(mDebounceMillis,
+                Math.max(0, pending.mFirstChangeMillis + MAX_DEBOUNCE_MILLIS - now));
+        pending.mFuture = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deliverChange(capability);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliverChange(String capability) {
+        Set<Node> nodes;
+        Set<Node> added = new HashSet<>();
+        Set<Node> removed = new HashSet<>();
+        synchronized (this) {
+            PendingChange pending = mPendingChanges.remove(capability);
+            if (pending == null) {
+                return;
+            }
+            nodes = pending.mNodes;
+            Set<Node> previous = mDeliveredNodes.get(capability);
+            if (previous == null) {
+                previous = Collections.emptySet();
+            }
+            Set<String> previousIds = idsOf(previous);
+            Set<String> currentIds = idsOf(nodes);
+            for (Node node : nodes) {
+                if (!previousIds.contains(node.getId())) {
+                    added.add(node);
+                }
+            }
+            for (Node node : previous) {
+                if (!currentIds.contains(node.getId())) {
+                    removed.add(node);
+                }
+            }
+            mDeliveredNodes.put(capability, nodes);
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            WearLog.d(TAG, "Changes of {} cancelled each other out", capability);
+            return;
+        }
+        mListener.onCapabilityChanged(capability, nodes, added, removed);
+    }
+
+    private static Set<Node> copyOf(Set<Node> nodes) {
+        return nodes == null ? Collections.<Node>emptySet()
+                : Collections.unmodifiableSet(new HashSet<>(nodes));
+    }
+
+    private static Set<String> idsOf(Set<Node> nodes) {
+        Set<String> ids = new HashSet<>();
+        for (Node node : nodes) {
+            ids.add(node.getId());
+        }
+        return ids;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Adds and removes local capabilities, e.g. through the
+     * {@link com.google.android.gms.wearable.CapabilityApi}.
+     */
+    public interface Registrar {
+
+        boolean isConnected();
+
+        void addLocalCapability(String capability, OnResultListener listener);
+
+        void removeLocalCapability(String capability, OnResultListener listener);
+    }
+
+    /**
+     * Receives the status code of a call made by a {@link Registrar}.
+     */
+    public interface OnResultListener {
+
+        void onResult(int statusCode);
+    }
+
+    /**
+     * Receives the results of the batches and the debounced capability changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called once all the capabilities of a batch have been added; {@code statusCode} is
+         * {@link WearableStatusCodes#SUCCESS} or the status of the first failure.
+         */
+        void onLocalCapabilitiesAdded(List<String> capabilities, int statusCode);
+
+        /**
+         * Called once all the capabilities of a batch have been removed; {@code statusCode} is
+         * {@link WearableStatusCodes#SUCCESS} or the status of the first failure.
+         */
+        void onLocalCapabilitiesRemoved(List<String> capabilities, int statusCode);
+
+        /**
+         * Called with the settled set of nodes advertising {@code capability} and the nodes
+         * added and removed since the previous call for that capability.
+         */
+        void onCapabilityChanged(String capability, Set<Node> nodes, Set<Node> addedNodes,
+                Set<Node> removedNodes);
+    }
+
+    private static final class PendingChange {
+        private final long mFirstChangeMillis;
+        private Set<Node> mNodes;
+        private ScheduledFuture<?> mFuture;
+
+        PendingChange(long firstChangeMillis) {
+            mFirstChangeMillis = firstChangeMillis;
+        }
+    }
+
+    private static final class Batch {
+        private int mRemaining;
+        private int mStatusCode = WearableStatusCodes.SUCCESS;
+
+        Batch(int size) {
+            mRemaining = size;
+        }
+
+        /**
+         * Returns {@code true} when the last result of the batch arrives.
+         */
+        synchronized boolean onResult(int statusCode) {
+            if (statusCode != WearableStatusCodes.SUCCESS
+                    && mStatusCode == WearableStatusCodes.SUCCESS) {
+                mStatusCode = statusCode;
+            }
+            return --mRemaining == 0;
+        }
+
+        synchronized int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads requests across the nodes that advertise a capability according to a
+ * {@link BalancingStrategy}, and tracks how many requests are in flight to each node. The nodes of
+ * each capability are kept as a sorted list that is replaced as soon as the capability changes,
+ * so a node that stops advertising a capability stops receiving requests right away.
+ * <p>
+ * Every successful {@link #acquire(String)} must be paired with a {@link #release(String)} once
+ * the request completes.
+ */
+public final class CapabilityRouter {
+
+    private static final Comparator<Node> BY_ID = new Comparator<Node>() {
+        @Override
+        public int compare(Node lhs, Node rhs) {
+            return lhs.getId().compareTo(rhs.getId());
+        }
+    };
+
+    private final ConcurrentHashMap<String, List<Node>> mCandidates = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> mInFlight = new ConcurrentHashMap<>();
+    private volatile BalancingStrategy mStrategy;
+
+    public CapabilityRouter(BalancingStrategy strategy) {
+        mStrategy = WearUtil.assertNotNull(strategy, "strategy");
+    }
+
+    public void setStrategy(BalancingStrategy strategy) {
+        mStrategy = WearUtil.assertNotNull(strategy, "strategy");
+    }
+
+    public BalancingStrategy getStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * Replaces the nodes that advertise {@code capability}; an empty or {@code null} collection
+     * removes the capability.
+     */
+    public void onCapabilityChanged(String capability, @Nullable Collection<Node> nodes) {
+        if (nodes == null || nodes.isEmpty()) {
+            mCandidates.remove(capability);
+            return;
+        }
+        List<Node> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted, BY_ID);
+        mCandidates.put(capability, Collections.unmodifiableList(sorted));
+    }
+
+    /**
+     * Returns the nodes currently advertising {@code capability}, sorted by node id.
+     */
+    public List<Node> getNodes(String capability) {
+        List<Node> nodes = mCandidates.get(capability);
+        return nodes != null ? nodes : Collections.<Node>emptyList();
+    }
+
+    /**
+     * Picks a node for a new request to {@code capability} and counts the request as in flight.
+     * Returns {@code null} if no node advertises the capability.
+     */
+    @Nullable
+    public Node acquire(String capability) {
+        List<Node> candidates = mCandidates.get(capability);
+        if (candidates == null) {
+            return null;
+        }
+        Node node = mStrategy.choose(capability, candidates, this);
+        if (node != null) {
+            counterFor(node.getId()).incrementAndGet();
+        }
+        return node;
+    }
+
+    /**
+     * Marks a request acquired for the node with the given {@code nodeId} as completed.
+     */
+    public void release(String nodeId) {
+        AtomicInteger counter = mInFlight.get(nodeId);
+        if (counter == null) {
+            return;
+        }
+        while (true) {
+            int current = counter.get();
+            if (current <= 0 || counter.compareAndSet(current, current - 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests in flight to the node with the given {@code nodeId}.
+     */
+    public int getInFlightCount(String nodeId) {
+        AtomicInteger counter = mInFlight.get(nodeId);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Returns the number of requests in flight by node id, for the nodes that had any.
+     */
+    public Map<String, Integer> getInFlightCounts() {
+        Map<String, Integer> result = new HashMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : mInFlight.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    private AtomicInteger counterFor(String nodeId) {
+        AtomicInteger counter = mInFlight.get(nodeId);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            AtomicInteger existing = mInFlight.putIfAbsent(nodeId, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A circuit breaker per node, fed by the status codes of the requests sent to that node:
+ * <ul>
+ * <li>{@link #STATE_CLOSED}: requests go through. After {@link #setFailureThreshold(int)}
+ * consecutive failures, the circuit opens.</li>
+ * <li>{@link #STATE_OPEN}: requests fail fast without reaching the node, for an open interval
+ * that starts at {@link #DEFAULT_OPEN_MILLIS}.</li>
+ * <li>{@link #STATE_HALF_OPEN}: once the open interval has elapsed, a single probe request is let
+ * through. If it succeeds, the circuit closes; if it fails, the circuit opens again for twice as
+ * long, up to {@link #MAX_OPEN_MILLIS}. If the result of the probe doesn't arrive within the
+ * open interval, the probe is given up on and the next request becomes the probe.</li>
+ * </ul>
+ * Every {@link #allowRequest(String)} that returns {@code true} must be followed by a call to
+ * {@link #onResult(String, boolean)}.
+ */
+public final class CircuitBreaker {
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    public static final long MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ConcurrentHashMap<String, Circuit> mCircuits = new ConcurrentHashMap<>();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long mOpenMillis = DEFAULT_OPEN_MILLIS;
+
+    /**
+     * Sets the number of consecutive failures after which a circuit opens.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold should be at least 1");
+        }
+        mFailureThreshold = failureThreshold;
+    }
+
+    /**
+     * Sets how long a circuit first stays open before a probe is let through.
+     */
+    public void setOpenMillis(long openMillis) {
+        if (openMillis <= 0) {
+            throw new IllegalArgumentException("openMillis should be positive");
+        }
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * Returns {@code true} if a request to the node with the given {@code nodeId} may be sent,
+     * {@code false} if it should fail fast.
+     */
+    public boolean allowRequest(String nodeId) {
+        Circuit circuit = circuitFor(nodeId);
+        int previous;
+        int current;
+        boolean allowed;
+        synchronized (circuit) {
+            previous = circuit.mState;
+            allowed = circuit.allow(now());
+            current = circuit.mState;
+        }
+        notifyIfChanged(nodeId, previous, current);
+        return allowed;
+    }
+
+    /**
+     * Records the outcome of a request that was allowed by {@link #allowRequest(String)}.
+     */
+    public void onResult(String nodeId, boolean success) {
+        Circuit circuit = circuitFor(nodeId);
+        int previous;
+        int current;
+        synchronized (circuit) {
+            previous = circuit.mState;
+            if (success) {
+                circuit.onSuccess();
+            } else {
+                circuit.onFailure(now(), mFailureThreshold, mOpenMillis);
+            }
+            current = circuit.mState;
+        }
+        notifyIfChanged(nodeId, previous, current);
+    }
+
+    /**
+     * Returns the state of the circuit of the node with the given {@code nodeId}.
+     */
+    public int getState(String nodeId) {
+        Circuit circuit = mCircuits.get(nodeId);
+        if (circuit == null) {
+            return STATE_CLOSED;
+        }
+        synchronized (circuit) {
+            return circuit.mState;
+        }
+    }
+
+    /**
+     * Returns the metrics of the circuit of every node that has been contacted, by node id.
+     */
+    public Map<String, CircuitMetrics> getMetrics() {
+        long now = now();
+        Map<String, CircuitMetrics> result = new HashMap<>();
+        for (Map.Entry<String, Circuit> entry : mCircuits.entrySet()) {
+            Circuit circuit = entry.getValue();
+            synchronized (circuit) {
+                result.put(entry.getKey(), circuit.metrics(entry.getKey(), now));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes the circuit of the node with the given {@code nodeId} and forgets its history.
+     */
+    public void reset(String nodeId) {
+        Circuit circuit = mCircuits.remove(nodeId);
+        if (circuit != null) {
+            int previous;
+            synchronized (circuit) {
+                previous = circuit.mState;
+            }
+            notifyIfChanged(nodeId, previous, STATE_CLOSED);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(WearUtil.assertNotNull(listener, "listener"));
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(WearUtil.assertNotNull(listener, "listener"));
+    }
+
+    /**
+     * Returns a readable name for one of the {@code STATE_*} constants.
+     */
+    public static String stateToString(int state) {
+        switch (state) {
+            case STATE_CLOSED:
+                return "closed";
+            case STATE_OPEN:
+                return "open";
+            case STATE_HALF_OPEN:
+                return "half-open";
+            default:
+                return "unknown(" + state + ")";
+        }
+    }
+
+    private Circuit circuitFor(String nodeId) {
+        Circuit circuit = mCircuits.get(nodeId);
+        if (circuit == null) {
+            circuit = new Circuit();
+            Circuit existing = mCircuits.putIfAbsent(nodeId, circuit);
+            if (existing != null) {
+                circuit = existing;
+            }
+        }
+        return circuit;
+    }
+
+    private void notifyIfChanged(String nodeId, int previous, int current) {
+        if (previous == current) {
+            return;
+        }
+        WearLog.d("CircuitBreaker", "Circuit of {} is now {}", nodeId, stateToString(current));
+        for (Listener listener : mListeners) {
+            listener.onCircuitStateChanged(nodeId, previous, current);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * An interface to be notified when the circuit of a node changes state.
+     */
+    public interface Listener {
+
+        void onCircuitStateChanged(String nodeId, int previousState, int newState);
+    }
+
+    /**
+     * The state of one node; all access is synchronized on the instance.
+     */
+    private static final class Circuit {
+        private int mState = STATE_CLOSED;
+        private int mConsecutiveFailures;
+        private long mOpenUntilMillis;
+        private long mCurrentOpenMillis;
+        private boolean mProbeInFlight;
+        private long mProbeExpiresMillis;
+        private long mSuccessCount;
+        private long mFailureCount;
+        private long mRejectedCount;
+        private long mOpenCount;
+
+        boolean allow(long now) {
+            if (mState == STATE_OPEN && now >= mOpenUntilMillis) {
+                mState = STATE_HALF_OPEN;
+                mProbeInFlight = false;
+            }
+            if (mState == STATE_CLOSED) {
+                return true;
+            }
+            if (mState == STATE_HALF_OPEN && mProbeInFlight && now >= mProbeExpiresMillis) {
+                // the result of the probe was lost, don't wait for it forever
+                mProbeInFlight = false;
+            }
+            if (mState == STATE_HALF_OPEN && !mProbeInFlight) {
+                mProbeInFlight = true;
+                mProbeExpiresMillis = now + mCurrentOpenMillis;
+                return true;
+            }
+            mRejectedCount++;
+            return false;
+        }
+
+        void onSuccess() {
+            mSuccessCount++;
+            mConsecutiveFailures = 0;
+            if (mState != STATE_CLOSED) {
+                mState = STATE_CLOSED;
+                mCurrentOpenMillis = 0;
+                mProbeInFlight = false;
+            }
+        }
+
+        void onFailure(long now, int failureThreshold, long openMillis) {
+            mFailureCount++;
+            mConsecutiveFailures++;
+            if (mState == STATE_HALF_OPEN) {
+                open(now, Math.min(MAX_OPEN_MILLIS, Math.max(openMillis, mCurrentOpenMillis * 2)));
+            } else if (mState == STATE_CLOSED && mConsecutiveFailures >= failureThreshold) {
+                open(now, openMillis);
+            }
+        }
+
+        private void open(long now, long openMillis) {
+            mState = STATE_OPEN;
+            mCurrentOpenMillis = openMillis;
+            mOpenUntilMillis = now + openMillis;
+            mProbeInFlight = false;
+            mOpenCount++;
+        }
+
+        CircuitMetrics metrics(String nodeId, long now) {
+            long remaining = mState == STATE_OPEN ? Math.max(0, mOpenUntilMillis - now) : 0;
+            return new CircuitMetrics(nodeId, mState, mSuccessCount, mFailureCount,
+                    mRejectedCount, mOpenCount, mConsecutiveFailures, remaining);
+        }
+    }
+}
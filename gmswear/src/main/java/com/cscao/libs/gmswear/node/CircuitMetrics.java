@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+/**
+ * An immutable snapshot of the circuit of one node, as tracked by a {@link CircuitBreaker}.
+ */
+public final class CircuitMetrics {
+
+    private final String mNodeId;
+    private final int mState;
+    private final long mSuccessCount;
+    private final long mFailureCount;
+    private final long mRejectedCount;
+    private final long mOpenCount;
+    private final int mConsecutiveFailures;
+    private final long mOpenRemainingMillis;
+
+    CircuitMetrics(String nodeId, int state, long successCount, long failureCount,
+            long rejectedCount, long openCount, int consecutiveFailures,
+            long openRemainingMillis) {
+        mNodeId = nodeId;
+        mState = state;
+        mSuccessCount = successCount;
+        mFailureCount = failureCount;
+        mRejectedCount = rejectedCount;
+        mOpenCount = openCount;
+        mConsecutiveFailures = consecutiveFailures;
+        mOpenRemainingMillis = openRemainingMillis;
+    }
+
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Returns {@link CircuitBreaker#STATE_CLOSED}, {@link CircuitBreaker#STATE_OPEN} or
+     * {@link CircuitBreaker#STATE_HALF_OPEN}.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    public long getSuccessCount() {
+        return mSuccessCount;
+    }
+
+    public long getFailureCount() {
+        return mFailureCount;
+    }
+
+    /**
+     * Returns the number of requests that failed fast because the circuit was open.
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Returns the number of times the circuit has opened.
+     */
+    public long getOpenCount() {
+        return mOpenCount;
+    }
+
+    public int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    /**
+     * Returns how long the circuit stays open before a probe is let through, or 0 if it is not
+     * open.
+     */
+    public long getOpenRemainingMillis() {
+        return mOpenRemainingMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitMetrics{nodeId=" + mNodeId + ", state="
+                + CircuitBreaker.stateToString(mState) + ", successes=" + mSuccessCount
+                + ", failures=" + mFailureCount + ", rejected=" + mRejectedCount + ", opened="
+                + mOpenCount + ", consecutiveFailures=" + mConsecutiveFailures
+                + ", openRemaining=" + mOpenRemainingMillis + "ms}";
+    }
+}
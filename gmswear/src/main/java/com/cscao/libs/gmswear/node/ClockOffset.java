@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+/**
+ * An immutable estimate of the clock of a node, as computed by a {@link ClockSync}.
+ */
+public final class ClockOffset {
+
+    private final String mNodeId;
+    private final long mOffsetMicros;
+    private final double mDriftPpm;
+    private final long mErrorBoundMicros;
+    private final int mSampleCount;
+    private final long mAgeMicros;
+
+    ClockOffset(String nodeId, long offsetMicros, double driftPpm, long errorBoundMicros,
+            int sampleCount, long ageMicros) {
+        mNodeId = nodeId;
+        mOffsetMicros = offsetMicros;
+        mDriftPpm = driftPpm;
+        mErrorBoundMicros = errorBoundMicros;
+        mSampleCount = sampleCount;
+        mAgeMicros = ageMicros;
+    }
+
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Returns how far ahead the clock of the node is from the local clock, in microseconds;
+     * negative if it is behind.
+     */
+    public long getOffsetMicros() {
+        return mOffsetMicros;
+    }
+
+    /**
+     * Returns how fast the offset changes, in microseconds per second, or 0 until the samples
+     * span a couple of minutes.
+     */
+    public double getDriftPpm() {
+        return mDriftPpm;
+    }
+
+    /**
+     * Returns the bound on the error of the offset when it was sampled: half of the round trip
+     * delay of the sample it is based on.
+     */
+    public long getErrorBoundMicros() {
+        return mErrorBoundMicros;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns how long ago the sample the offset is based on was taken.
+     */
+    public long getAgeMicros() {
+        return mAgeMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "ClockOffset{nodeId=" + mNodeId + ", offset=" + mOffsetMicros + "us, drift="
+                + mDriftPpm + "ppm, errorBound=" + mErrorBoundMicros + "us, samples="
+                + mSampleCount + ", age=" + mAgeMicros / 1000 + "ms}";
+    }
+}
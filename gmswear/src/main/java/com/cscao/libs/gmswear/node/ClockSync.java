@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Node;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how far the clock of each connected node is from the local clock, so that times
+ * stamped by one node can be compared with times measured on another. It uses the exchange of
+ * NTP: a request carries its send time {@code t1}, the other node answers with {@code t1}, the
+ * time it received the request {@code t2} and the time it sent the answer {@code t3}, and the
+ * answer is received at {@code t4}. The offset of the remote clock is then
+ * {@code ((t2 - t1) + (t3 - t4)) / 2}, with an error of at most half the round trip delay
+ * {@code (t4 - t1) - (t3 - t2)}.
+ * <p>
+ * As with NTP, the sample with the lowest delay among the last {@code 8} is trusted the most,
+ * since it was the least disturbed by queueing. The drift of the remote clock is the slope of a
+ * least squares fit of those samples over time, and is used to extrapolate the offset between
+ * exchanges. A few exchanges are made in quick succession with a new node, then one every
+ * {@link #DEFAULT_INTERVAL_MILLIS}.
+ * <p>
+ * All times are in the microseconds of {@link #nowMicros()}, on both nodes.
+ */
+public final class ClockSync {
+
+    private static final String TAG = "ClockSync";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final long BURST_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    static final int MIN_SAMPLES = 4;
+    static final int REQUEST_SIZE = 8;
+    static final int RESPONSE_SIZE = 24;
+    private static final long WALL_CLOCK_ANCHOR_MICROS = System.currentTimeMillis() * 1000;
+    private static final long NANO_CLOCK_ANCHOR = System.nanoTime();
+
+    private final NodeRegistry mNodeRegistry;
+    private final RequestSender mRequestSender;
+    private final ConcurrentHashMap<String, Estimator> mEstimators = new ConcurrentHashMap<>();
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mNextRound;
+    private long mIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+    /**
+     * @param nodeRegistry The registry that provides the nodes to synchronize with.
+     * @param requestSender Sends the requests; see {@link RequestSender}.
+     */
+    public ClockSync(NodeRegistry nodeRegistry, RequestSender requestSender) {
+        this(nodeRegistry, requestSender, null);
+    }
+
+    /**
+     * Same as {@link #ClockSync(NodeRegistry, RequestSender)} but runs the rounds on
+     * {@code executor}, which is useful to control time in tests.
+     */
+    public ClockSync(NodeRegistry nodeRegistry, RequestSender requestSender,
+            @Nullable ScheduledExecutorService executor) {
+        mNodeRegistry = WearUtil.assertNotNull(nodeRegistry, "nodeRegistry");
+        mRequestSender = WearUtil.assertNotNull(requestSender, "requestSender");
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the current time in microseconds. It follows the wall clock as it was when the
+     * library was loaded, but doesn't jump when the wall clock is set, so the drift between two
+     * nodes stays steady.
+     */
+    public static long nowMicros() {
+        return WALL_CLOCK_ANCHOR_MICROS + (System.nanoTime() - NANO_CLOCK_ANCHOR) / 1000;
+    }
+
+    /**
+     * Sets the interval between rounds once the nodes have been sampled a few times.
+     */
+    public synchronized void setIntervalMillis(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis should be positive");
+        }
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts synchronizing; the first round runs right away. Calling this while already started
+     * has no effect.
+     */
+    public synchronized void start() {
+        if (mNextRound != null) {
+            return;
+        }
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        scheduleRound(0);
+    }
+
+    /**
+     * Stops synchronizing. The estimates are kept, and keep being extrapolated with the drift.
+     */
+    public synchronized void stop() {
+        if (mNextRound != null) {
+            mNextRound.cancel(false);
+            mNextRound = null;
+        }
+    }
+
+    public synchronized boolean isStarted() {
+        return mNextRound != null;
+    }
+
+    private void scheduleRound(long delayMillis) {
+        mNextRound = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                syncRound();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void syncRound() {
+        boolean burst;
+        try {
+            burst = syncNow();
+        } catch (RuntimeException e) {
+            WearLog.e(TAG, "syncRound(): Failed to synchronize with the nodes", e);
+            burst = false;
+        }
+        synchronized (this) {
+            if (mNextRound != null) {
+                scheduleRound(burst ? BURST_INTERVAL_MILLIS : mIntervalMillis);
+            }
+        }
+    }
+
+    /**
+     * Sends a request to every connected node now. Returns {@code true} if some of them have
+     * fewer than {@link #MIN_SAMPLES} samples yet. This may be called whether or not the
+     * synchronization is started.
+     */
+    public boolean syncNow() {
+        boolean burst = false;
+        for (Node node : mNodeRegistry.getSnapshot().getNodes()) {
+            burst |= estimatorFor(node.getId()).getSampleCount() < MIN_SAMPLES;
+            mRequestSender.sendRequest(node.getId(), ByteBuffer.allocate(REQUEST_SIZE)
+                    .putLong(nowMicros()).array());
+        }
+        return burst;
+    }
+
+    /**
+     * Builds the answer to a {@code request} received at {@code receivedMicros}, to send back to
+     * the node that sent it, or returns {@code null} if the request is malformed.
+     */
+    @Nullable
+    public static byte[] answer(byte[] request, long receivedMicros) {
+        if (request == null || request.length != REQUEST_SIZE) {
+            return null;
+        }
+        long sentMicros = ByteBuffer.wrap(request).getLong();
+        return ByteBuffer.allocate(RESPONSE_SIZE).putLong(sentMicros).putLong(receivedMicros)
+                .putLong(nowMicros()).array();
+    }
+
+    /**
+     * Called when {@code nodeId} answers a request with {@code response}, received at
+     * {@code receivedMicros}.
+     */
+    public void onResponse(String nodeId, byte[] response, long receivedMicros) {
+        if (response == null || response.length != RESPONSE_SIZE) {
+            WearLog.e(TAG, "onResponse(): Malformed response from {}", nodeId);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(response);
+        long t1 = buffer.getLong();
+        long t2 = buffer.getLong();
+        long t3 = buffer.getLong();
+        long t4 = receivedMicros;
+        long delay = (t4 - t1) - (t3 - t2);
+        if (delay < 0 || t1 > t4) {
+            // not one of our requests, or the answer is inconsistent
+            return;
+        }
+        long offset = ((t2 - t1) + (t3 - t4)) / 2;
+        estimatorFor(nodeId).addSample(t4, offset, delay);
+    }
+
+    /**
+     * Converts {@code remoteMicros}, a time read from the clock of {@code nodeId}, to the local
+     * clock. Returns -1 if the clock of that node hasn't been sampled yet.
+     */
+    public long toLocalMicros(String nodeId, long remoteMicros) {
+        Estimator estimator = mEstimators.get(nodeId);
+        if (estimator == null) {
+            return -1;
+        }
+        return estimator.toLocalMicros(remoteMicros);
+    }
+
+    /**
+     * Returns the current estimate for the clock of {@code nodeId}, or {@code null} if it hasn't
+     * been sampled yet.
+     */
+    @Nullable
+    public ClockOffset getOffset(String nodeId) {
+        Estimator estimator = mEstimators.get(nodeId);
+        return estimator == null ? null : estimator.snapshot(nodeId, nowMicros());
+    }
+
+    /**
+     * Returns the current estimates of every node that has been sampled, by node id.
+     */
+    public Map<String, ClockOffset> getOffsets() {
+        long now = nowMicros();
+        Map<String, ClockOffset> result = new HashMap<>();
+        for (Map.Entry<String, Estimator> entry : mEstimators.entrySet()) {
+            ClockOffset offset = entry.getValue().snapshot(entry.getKey(), now);
+            if (offset != null) {
+                result.put(entry.getKey(), offset);
+            }
+        }
+        return result;
+    }
+
+    private Estimator estimatorFor(String nodeId) {
+        Estimator estimator = mEstimators.get(nodeId);
+        if (estimator == null) {
+            estimator = new Estimator();
+            Estimator existing = mEstimators.putIfAbsent(nodeId, estimator);
+            if (existing != null) {
+                estimator = existing;
+            }
+        }
+        return estimator;
+    }
+
+    /**
+     * Sends the requests of a {@link ClockSync}. The receiving node is expected to send back the
+     * result of {@link ClockSync#answer(byte[], long)}, which is then passed to
+     * {@link ClockSync#onResponse(String, byte[], long)}.
+     */
+    public interface RequestSender {
+
+        void sendRequest(String nodeId, byte[] payload);
+    }
+
+    /**
+     * The samples of one node, and the offset and drift estimated from them.
+     */
+    static final class Estimator {
+        private static final int FILTER_WINDOW = 8;
+        private static final int HISTORY_SIZE = 32;
+        private static final long MIN_DRIFT_SPAN_MICROS = TimeUnit.MINUTES.toMicros(2);
+        private static final double MAX_DRIFT = 500e-6;
+
+        private final long[] mTimes = new long[FILTER_WINDOW];
+        private final long[] mOffsets = new long[FILTER_WINDOW];
+        private final long[] mDelays = new long[FILTER_WINDOW];
+        private final long[] mHistoryTimes = new long[HISTORY_SIZE];
+        private final long[] mHistoryOffsets = new long[HISTORY_SIZE];
+        private int mSampleCount;
+        private int mHistoryCount;
+        private long mBestTime;
+        private long mBestOffset;
+        private long mBestDelay;
+        private double mDrift;
+
+        synchronized void addSample(long time, long offset, long delay) {
+            int slot = mSampleCount % FILTER_WINDOW;
+            mTimes[slot] = time;
+            mOffsets[slot] = offset;
+            mDelays[slot] = delay;
+            mSampleCount++;
+            int best = slot;
+            for (int i = 0; i < Math.min(mSampleCount, FILTER_WINDOW); i++) {
+                if (mDelays[i] < mDelays[best]) {
+                    best = i;
+                }
+            }
+            if (mHistoryCount > 0 && mTimes[best] == mBestTime) {
+                return;
+            }
+            mBestTime = mTimes[best];
+            mBestOffset = mOffsets[best];
+            mBestDelay = mDelays[best];
+            int historySlot = mHistoryCount % HISTORY_SIZE;
+            mHistoryTimes[historySlot] = mBestTime;
+            mHistoryOffsets[historySlot] = mBestOffset;
+            mHistoryCount++;
+            mDrift = fitDrift();
+        }
+
+        /**
+         * Returns the slope of the least squares line through the filtered offsets, or 0 if they
+         * don't span long enough to tell drift from noise.
+         */
+        private double fitDrift() {
+            int count = Math.min(mHistoryCount, HISTORY_SIZE);
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                first = Math.min(first, mHistoryTimes[i]);
+                last = Math.max(last, mHistoryTimes[i]);
+            }
+            if (count < 2 || last - first < MIN_DRIFT_SPAN_MICROS) {
+                return 0;
+            }
+            // center the values to keep the sums small
+            double meanTime = 0;
+            double meanOffset = 0;
+            for (int i = 0; i < count; i++) {
+                meanTime += (double) (mHistoryTimes[i] - first) / count;
+                meanOffset += (double) (mHistoryOffsets[i] - mBestOffset) / count;
+            }
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < count; i++) {
+                double time = mHistoryTimes[i] - first - meanTime;
+                covariance += time * (mHistoryOffsets[i] - mBestOffset - meanOffset);
+                variance += time * time;
+            }
+            double drift = variance == 0 ? 0 : covariance / variance;
+            // real crystals are within a few hundred ppm; anything more is noise
+            return Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, drift));
+        }
+
+        synchronized int getSampleCount() {
+            return mSampleCount;
+        }
+
+        synchronized long offsetAt(long localMicros) {
+            return mBestOffset + (long) (mDrift * (localMicros - mBestTime));
+        }
+
+        synchronized long toLocalMicros(long remoteMicros) {
+            if (mSampleCount == 0) {
+                return -1;
+            }
+            // the offset is a function of the local time, which is close enough to the remote one
+            return remoteMicros - offsetAt(remoteMicros - mBestOffset);
+        }
+
+        @Nullable
+        synchronized ClockOffset snapshot(String nodeId, long nowMicros) {
+            if (mSampleCount == 0) {
+                return null;
+            }
+            return new ClockOffset(nodeId, offsetAt(nowMicros), mDrift * 1e6, mBestDelay / 2,
+                    mSampleCount, nowMicros - mBestTime);
+        }
+    }
+}
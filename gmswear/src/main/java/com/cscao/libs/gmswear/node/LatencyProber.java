@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.util.WearLog;
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Node;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the round trip time and loss rate to each connected node by periodically sending a
+ * small ping message that the library on the other node answers right away. For each node, it
+ * keeps an exponentially weighted moving average of the round trip time, percentiles over the
+ * most recent samples and a loss rate, which {@link #pickLowestLatency(Collection)} and
+ * {@link com.cscao.libs.gmswear.filter.LowestLatencyFilter} use to pick the best node.
+ * <p>
+ * While the app is in the foreground, a probe round runs every
+ * {@link #DEFAULT_INTERVAL_MILLIS}. In the background, the interval doubles after every round, up
+ * to {@link #MAX_BACKGROUND_INTERVAL_MILLIS}, and goes back to normal once the app returns to the
+ * foreground.
+ */
+public final class LatencyProber {
+
+    private static final String TAG = "LatencyProber";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    public static final long MAX_BACKGROUND_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final long PROBE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static final int PAYLOAD_SIZE = 8;
+    private static final int SAMPLE_WINDOW = 128;
+    private static final double RTT_ALPHA = 0.2;
+    private static final double LOSS_ALPHA = 0.1;
+    private static final double MIN_DELIVERY_RATE = 0.05;
+
+    private final NodeRegistry mNodeRegistry;
+    private final PingSender mPingSender;
+    private final ConcurrentHashMap<String, Stats> mStats = new ConcurrentHashMap<>();
+    private final Map<Long, Pending> mPending = new ConcurrentHashMap<>();
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mNextRound;
+    private boolean mForeground = true;
+    private long mIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private long mCurrentIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+    /**
+     * @param nodeRegistry The registry that provides the nodes to probe.
+     * @param pingSender Sends the ping messages; see {@link PingSender}.
+     */
+    public LatencyProber(NodeRegistry nodeRegistry, PingSender pingSender) {
+        this(nodeRegistry, pingSender, null);
+    }
+
+    /**
+     * Same as {@link #LatencyProber(NodeRegistry, PingSender)} but runs the probe rounds on
+     * {@code executor}, which is useful to control time in tests.
+     */
+    public LatencyProber(NodeRegistry nodeRegistry, PingSender pingSender,
+            @Nullable ScheduledExecutorService executor) {
+        mNodeRegistry = WearUtil.assertNotNull(nodeRegistry, "nodeRegistry");
+        mPingSender = WearUtil.assertNotNull(pingSender, "pingSender");
+        mExecutor = executor;
+    }
+
+    /**
+     * Sets the interval between probe rounds while the app is in the foreground.
+     */
+    public synchronized void setIntervalMillis(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis should be positive");
+        }
+        mIntervalMillis = intervalMillis;
+        if (mForeground) {
+            mCurrentIntervalMillis = intervalMillis;
+        }
+    }
+
+    /**
+     * Starts probing; the first round runs right away. Calling this while already started has
+     * no effect.
+     */
+    public synchronized void start() {
+        if (mNextRound != null) {
+            return;
+        }
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        scheduleRound(0);
+    }
+
+    /**
+     * Stops probing. The statistics gathered so far are kept.
+     */
+    public synchronized void stop() {
+        if (mNextRound != null) {
+            mNextRound.cancel(false);
+            mNextRound = null;
+        }
+        mPending.clear();
+    }
+
+    public synchronized boolean isStarted() {
+        return mNextRound != null;
+    }
+
+    /**
+     * Tells the prober whether the app is in the foreground, to back off while it isn't. Coming
+     * back to the foreground triggers a probe round right away.
+     */
+    public synchronized void setForeground(boolean foreground) {
+        if (mForeground == foreground) {
+            return;
+        }
+        mForeground = foreground;
+        mCurrentIntervalMillis = mIntervalMillis;
+        if (foreground && mNextRound != null) {
+            mNextRound.cancel(false);
+            scheduleRound(0);
+        }
+    }
+
+    private void scheduleRound(long delayMillis) {
+        mNextRound = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                probeRound();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void probeRound() {
+        try {
+            probeNow();
+        } catch (RuntimeException e) {
+            WearLog.e(TAG, "probeRound(): Failed to probe the nodes", e);
+        }
+        synchronized (this) {
+            if (mNextRound == null) {
+                return;
+            }
+            long delay = mCurrentIntervalMillis;
+            if (!mForeground) {
+                mCurrentIntervalMillis = Math.min(MAX_BACKGROUND_INTERVAL_MILLIS,
+                        mCurrentIntervalMillis * 2);
+            }
+            scheduleRound(delay);
+        }
+    }
+
+    /**
+     * Sends a ping to every connected node now, after expiring the probes that were not
+     * answered in time. This may be called whether or not the prober is started.
+     */
+    public void probeNow() {
+        long now = System.nanoTime();
+        expirePending(now);
+        for (Node node : mNodeRegistry.getSnapshot().getNodes()) {
+            long sequence = mNextSequence.incrementAndGet();
+            String nodeId = node.getId();
+            mPending.put(sequence, new Pending(nodeId, now));
+            statsFor(nodeId);
+            mPingSender.sendPing(nodeId, encodePayload(sequence));
+        }
+    }
+
+    /**
+     * Called when a node answers a ping with the {@code payload} it was sent.
+     */
+    public void onPong(String nodeId, byte[] payload) {
+        long now = System.nanoTime();
+        if (payload == null || payload.length != PAYLOAD_SIZE) {
+            WearLog.e(TAG, "onPong(): Malformed payload from {}", nodeId);
+            return;
+        }
+        long sequence = ByteBuffer.wrap(payload).getLong();
+        Pending pending = mPending.remove(sequence);
+        if (pending == null || !pending.mNodeId.equals(nodeId)) {
+            // either late, already counted as lost, or not ours
+            return;
+        }
+        long rttNanos = now - pending.mSentNanos;
+        statsFor(nodeId).recordRtt(rttNanos / 1e6);
+    }
+
+    /**
+     * Returns the latency statistics of the node with the given {@code nodeId}, or {@code null}
+     * if it has never been probed.
+     */
+    @Nullable
+    public NodeLatency getLatency(String nodeId) {
+        Stats stats = mStats.get(nodeId);
+        return stats == null ? null : stats.snapshot(nodeId);
+    }
+
+    /**
+     * Returns the expected round trip time to the node with the given {@code nodeId}, as in
+     * {@link NodeLatency#getExpectedRttMillis()}, or -1 if no probe to it has been answered yet.
+     * Unlike {@link #getLatency(String)}, this neither locks nor allocates, so it can be called on
+     * every request.
+     */
+    public double getExpectedRttMillis(String nodeId) {
+        Stats stats = mStats.get(nodeId);
+        return stats == null ? -1 : stats.mExpectedRttMillis;
+    }
+
+    /**
+     * Returns the latency statistics of every node that has been probed, by node id.
+     */
+    public Map<String, NodeLatency> getLatencies() {
+        Map<String, NodeLatency> result = new HashMap<>();
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the node of {@code nodes} with the lowest expected latency, which is the average
+     * round trip time inflated by the loss rate. Nodes that have not been measured yet come after
+     * the measured ones, nearby nodes first. Returns {@code null} if {@code nodes} is empty.
+     */
+    @Nullable
+    public Node pickLowestLatency(Collection<Node> nodes) {
+        Node best = null;
+        double bestScore = Double.MAX_VALUE;
+        boolean bestNearby = false;
+        for (Node node : nodes) {
+            double score = getExpectedRttMillis(node.getId());
+            if (score < 0) {
+                score = Double.MAX_VALUE;
+            }
+            if (best == null || score < bestScore
+                    || (score == bestScore && node.isNearby() && !bestNearby)) {
+                best = node;
+                bestScore = score;
+                bestNearby = node.isNearby();
+            }
+        }
+        return best;
+    }
+
+    private Stats statsFor(String nodeId) {
+        Stats stats = mStats.get(nodeId);
+        if (stats == null) {
+            stats = new Stats();
+            Stats existing = mStats.putIfAbsent(nodeId, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    private void expirePending(long now) {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+        Iterator<Pending> iterator = mPending.values().iterator();
+        while (iterator.hasNext()) {
+            Pending pending = iterator.next();
+            if (now - pending.mSentNanos >= timeoutNanos) {
+                iterator.remove();
+                statsFor(pending.mNodeId).recordLoss();
+            }
+        }
+    }
+
+    static double expectedRttMillis(double ewmaRttMillis, double lossRate) {
+        return ewmaRttMillis / Math.max(MIN_DELIVERY_RATE, 1 - lossRate);
+    }
+
+    static byte[] encodePayload(long sequence) {
+        return ByteBuffer.allocate(PAYLOAD_SIZE).putLong(sequence).array();
+    }
+
+    /**
+     * Sends the ping messages of a {@link LatencyProber}. The receiving node is expected to send
+     * the payload back, which is then passed to {@link LatencyProber#onPong(String, byte[])}.
+     */
+    public interface PingSender {
+
+        void sendPing(String nodeId, byte[] payload);
+    }
+
+    private static final class Pending {
+        private final String mNodeId;
+        private final long mSentNanos;
+
+        Pending(String nodeId, long sentNanos) {
+            mNodeId = nodeId;
+            mSentNanos = sentNanos;
+        }
+    }
+
+    private static final class Stats {
+        private final double[] mSamples = new double[SAMPLE_WINDOW];
+        private long mSampleCount;
+        private long mLostCount;
+        private double mEwmaRttMillis;
+        private double mLossRate;
+        private volatile double mExpectedRttMillis = -1;
+
+        synchronized void recordRtt(double rttMillis) {
+            mEwmaRttMillis = mSampleCount == 0 ? rttMillis
+                    : RTT_ALPHA * rttMillis + (1 - RTT_ALPHA) * mEwmaRttMillis;
+            mSamples[(int) (mSampleCount % SAMPLE_WINDOW)] = rttMillis;
+            mSampleCount++;
+            mLossRate = (1 - LOSS_ALPHA) * mLossRate;
+            mExpectedRttMillis = expectedRttMillis(mEwmaRttMillis, mLossRate);
+        }
+
+        synchronized void recordLoss() {
+            mLostCount++;
+            mLossRate = LOSS_ALPHA + (1 - LOSS_ALPHA) * mLossRate;
+            if (mSampleCount > 0) {
+                mExpectedRttMillis = expectedRttMillis(mEwmaRttMillis, mLossRate);
+            }
+        }
+
+        synchronized NodeLatency snapshot(String nodeId) {
+            int count = (int) Math.min(mSampleCount, SAMPLE_WINDOW);
+            double[] sorted = Arrays.copyOf(mSamples, count);
+            Arrays.sort(sorted);
+            return new NodeLatency(nodeId, mEwmaRttMillis, percentile(sorted, 0.5),
+                    percentile(sorted, 0.9), percentile(sorted, 0.99), mLossRate, mSampleCount,
+                    mLostCount);
+        }
+
+        private static double percentile(double[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Node;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A {@link BalancingStrategy} that picks nodes at random, with a probability inversely
+ * proportional to their expected round trip time as measured by a {@link LatencyProber}. Faster
+ * nodes get most of the requests while slower ones still get some, so their measurements stay
+ * current. Nodes that have not been measured yet are weighted as the average measured node.
+ */
+public class LatencyWeightedStrategy implements BalancingStrategy {
+
+    private static final double DEFAULT_RTT_MILLIS = 100;
+    private static final double MIN_RTT_MILLIS = 1;
+
+    private final LatencyProber mLatencyProber;
+    private final Random mRandom = new Random();
+
+    public LatencyWeightedStrategy(LatencyProber latencyProber) {
+        mLatencyProber = WearUtil.assertNotNull(latencyProber, "latencyProber");
+    }
+
+    @Override
+    public Node choose(String capability, List<Node> candidates, CapabilityRouter router) {
+        int size = candidates.size();
+        double[] weights = new double[size];
+        double measuredWeight = 0;
+        int measuredCount = 0;
+        for (int i = 0; i < size; i++) {
+            double expectedRttMillis = mLatencyProber.getExpectedRttMillis(
+                    candidates.get(i).getId());
+            if (expectedRttMillis >= 0) {
+                weights[i] = 1 / Math.max(MIN_RTT_MILLIS, expectedRttMillis);
+                measuredWeight += weights[i];
+                measuredCount++;
+            }
+        }
+        double defaultWeight = measuredCount > 0 ? measuredWeight / measuredCount
+                : 1 / DEFAULT_RTT_MILLIS;
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            if (weights[i] == 0) {
+                weights[i] = defaultWeight;
+            }
+            total += weights[i];
+        }
+        double target = mRandom.nextDouble() * total;
+        for (int i = 0; i < size; i++) {
+            target -= weights[i];
+            if (target < 0) {
+                return candidates.get(i);
+            }
+        }
+        return candidates.get(size - 1);
+    }
+
+    @Override
+    public String describe() {
+        return "LatencyWeightedStrategy: Favors the nodes with the lowest round trip time";
+    }
+}
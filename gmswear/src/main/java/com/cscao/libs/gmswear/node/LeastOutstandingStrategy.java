@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import com.google.android.gms.wearable.Node;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link BalancingStrategy} that picks the node with the fewest requests in flight. Ties are
+ * broken in turn, so that idle nodes share the load evenly.
+ */
+public class LeastOutstandingStrategy implements BalancingStrategy {
+
+    private final AtomicInteger mTieBreaker = new AtomicInteger();
+
+    @Override
+    public Node choose(String capability, List<Node> candidates, CapabilityRouter router) {
+        int size = candidates.size();
+        int offset = (mTieBreaker.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Node best = null;
+        int bestInFlight = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Node node = candidates.get((offset + i) % size);
+            int inFlight = router.getInFlightCount(node.getId());
+            if (inFlight < bestInFlight) {
+                best = node;
+                bestInFlight = inFlight;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String describe() {
+        return "LeastOutstandingStrategy: Picks the node with the fewest requests in flight";
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+/**
+ * An immutable summary of the round trip latency to a node, as measured by a
+ * {@link LatencyProber}.
+ */
+public final class NodeLatency {
+
+    private final String mNodeId;
+    private final double mEwmaRttMillis;
+    private final double mP50RttMillis;
+    private final double mP90RttMillis;
+    private final double mP99RttMillis;
+    private final double mLossRate;
+    private final long mSampleCount;
+    private final long mLostCount;
+
+    NodeLatency(String nodeId, double ewmaRttMillis, double p50RttMillis, double p90RttMillis,
+            double p99RttMillis, double lossRate, long sampleCount, long lostCount) {
+        mNodeId = nodeId;
+        mEwmaRttMillis = ewmaRttMillis;
+        mP50RttMillis = p50RttMillis;
+        mP90RttMillis = p90RttMillis;
+        mP99RttMillis = p99RttMillis;
+        mLossRate = lossRate;
+        mSampleCount = sampleCount;
+        mLostCount = lostCount;
+    }
+
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Returns the exponentially weighted moving average of the round trip time, in milliseconds.
+     */
+    public double getEwmaRttMillis() {
+        return mEwmaRttMillis;
+    }
+
+    /**
+     * Returns the median round trip time over the recent samples, in milliseconds.
+     */
+    public double getP50RttMillis() {
+        return mP50RttMillis;
+    }
+
+    public double getP90RttMillis() {
+        return mP90RttMillis;
+    }
+
+    public double getP99RttMillis() {
+        return mP99RttMillis;
+    }
+
+    /**
+     * Returns the recent ratio of probes that got no answer in time, between 0 and 1. Recent
+     * probes weigh more than older ones.
+     */
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    /**
+     * Returns the round trip time to expect when accounting for losses: the average round trip
+     * time divided by the delivery rate. This is what nodes are ranked by.
+     */
+    public double getExpectedRttMillis() {
+        return LatencyProber.expectedRttMillis(mEwmaRttMillis, mLossRate);
+    }
+
+    /**
+     * Returns the number of probes that were answered.
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the number of probes that timed out.
+     */
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    /**
+     * Returns {@code true} if at least one probe was answered.
+     */
+    public boolean hasSamples() {
+        return mSampleCount > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeLatency{nodeId=" + mNodeId + ", ewma=" + mEwmaRttMillis + "ms, p50="
+                + mP50RttMillis + "ms, p90=" + mP90RttMillis + "ms, p99=" + mP99RttMillis
+                + "ms, loss=" + mLossRate + ", samples=" + mSampleCount + ", lost=" + mLostCount
+                + "}";
+    }
+}
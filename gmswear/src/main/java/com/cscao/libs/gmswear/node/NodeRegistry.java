@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+import com.google.android.gms.wearable.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of the connected nodes by publishing a new {@link NodeSnapshot} every time they
+ * change. Snapshots are swapped in atomically, so readers always see either the previous or the
+ * new set of nodes, never a partially updated one, and reading the current snapshot doesn't take a
+ * lock.
+ */
+public final class NodeRegistry {
+
+    private final Object mLock = new Object();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile NodeSnapshot mSnapshot = NodeSnapshot.EMPTY;
+
+    /**
+     * Returns the current snapshot. Callers that read it more than once should hold on to the
+     * returned snapshot so that they work on a consistent view.
+     */
+    public NodeSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Returns the connected node with the given {@code nodeId}, or {@code null}.
+     */
+    @Nullable
+    public Node getNode(String nodeId) {
+        return mSnapshot.getNode(nodeId);
+    }
+
+    /**
+     * Replaces the connected nodes with {@code nodes} and returns the new snapshot.
+     */
+    public NodeSnapshot publish(Collection<Node> nodes) {
+        WearUtil.assertNotNull(nodes, "nodes");
+        NodeSnapshot previous;
+        NodeSnapshot current;
+        synchronized (mLock) {
+            previous = mSnapshot;
+            current = swapLocked(nodes);
+        }
+        notifyListeners(previous, current);
+        return current;
+    }
+
+    /**
+     * Adds {@code node} to the connected nodes, if it is not there already.
+     */
+    public NodeSnapshot add(Node node) {
+        WearUtil.assertNotNull(node, "node");
+        NodeSnapshot previous;
+        NodeSnapshot current;
+        synchronized (mLock) {
+            previous = mSnapshot;
+            if (previous.contains(node.getId())) {
+                return previous;
+            }
+            List<Node> nodes = new ArrayList<>(previous.getNodes());
+            nodes.add(node);
+            current = swapLocked(nodes);
+        }
+        notifyListeners(previous, current);
+        return current;
+    }
+
+    /**
+     * Removes the node with the given {@code nodeId} from the connected nodes, if it is there.
+     */
+    public NodeSnapshot remove(String nodeId) {
+        WearUtil.assertNotNull(nodeId, "nodeId");
+        NodeSnapshot previous;
+        NodeSnapshot current;
+        synchronized (mLock) {
+            previous = mSnapshot;
+            if (!previous.contains(nodeId)) {
+                return previous;
+            }
+            List<Node> nodes = new ArrayList<>(previous.size());
+            for (Node node : previous.getNodes()) {
+                if (!nodeId.equals(node.getId())) {
+                    nodes.add(node);
+                }
+            }
+            current = swapLocked(nodes);
+        }
+        notifyListeners(previous, current);
+        return current;
+    }
+
+    private NodeSnapshot swapLocked(Collection<Node> nodes) {
+        NodeSnapshot snapshot = new NodeSnapshot(mSnapshot.getVersion() + 1, nodes);
+        mSnapshot = snapshot;
+        return snapshot;
+    }
+
+    private void notifyListeners(NodeSnapshot previous, NodeSnapshot current) {
+        for (Listener listener : mListeners) {
+            listener.onNodesChanged(previous, current);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(WearUtil.assertNotNull(listener, "listener"));
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(WearUtil.assertNotNull(listener, "listener"));
+    }
+
+    /**
+     * An interface to be notified when a new {@link NodeSnapshot} is published.
+     */
+    public interface Listener {
+
+        /**
+         * Called, on the thread that published it, after {@code current} has replaced
+         * {@code previous}.
+         */
+        void onNodesChanged(NodeSnapshot previous, NodeSnapshot current);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable view of the connected nodes at one point in time, published by a
+ * {@link NodeRegistry}. Besides the nodes themselves, it holds an index by node id and the nearby
+ * and cloud subsets, all computed once when the snapshot is built, so that lookups are O(1) and
+ * nothing is allocated when reading them. The lists can be walked by index to avoid allocating an
+ * iterator.
+ */
+public final class NodeSnapshot {
+
+    static final NodeSnapshot EMPTY = new NodeSnapshot(0, Collections.<Node>emptyList());
+
+    private final long mVersion;
+    private final Set<Node> mNodes;
+    private final Map<String, Node> mNodesById;
+    private final List<Node> mNearbyNodes;
+    private final List<Node> mCloudNodes;
+
+    NodeSnapshot(long version, Collection<Node> nodes) {
+        mVersion = version;
+        Set<Node> all = new LinkedHashSet<>();
+        Map<String, Node> byId = new HashMap<>(nodes.size() * 2);
+        List<Node> nearby = new ArrayList<>(nodes.size());
+        List<Node> cloud = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            if (byId.put(node.getId(), node) != null) {
+                continue;
+            }
+            all.add(node);
+            if (node.isNearby()) {
+                nearby.add(node);
+            } else {
+                cloud.add(node);
+            }
+        }
+        mNodes = Collections.unmodifiableSet(all);
+        mNodesById = byId;
+        mNearbyNodes = Collections.unmodifiableList(nearby);
+        mCloudNodes = Collections.unmodifiableList(cloud);
+    }
+
+    /**
+     * Returns the version of this snapshot; every snapshot published by a {@link NodeRegistry}
+     * has a higher version than the previous one.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns all the nodes of this snapshot.
+     */
+    public Set<Node> getNodes() {
+        return mNodes;
+    }
+
+    /**
+     * Returns the node with the given {@code nodeId}, or {@code null} if it is not in this
+     * snapshot.
+     */
+    @Nullable
+    public Node getNode(String nodeId) {
+        return mNodesById.get(nodeId);
+    }
+
+    public boolean contains(String nodeId) {
+        return mNodesById.containsKey(nodeId);
+    }
+
+    /**
+     * Returns the nodes that are directly connected to this node.
+     */
+    public List<Node> getNearbyNodes() {
+        return mNearbyNodes;
+    }
+
+    /**
+     * Returns the nodes that are only reachable through the cloud.
+     */
+    public List<Node> getCloudNodes() {
+        return mCloudNodes;
+    }
+
+    public int size() {
+        return mNodes.size();
+    }
+
+    public boolean isEmpty() {
+        return mNodes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "NodeSnapshot{version=" + mVersion + ", nodes=" + mNodes + "}";
+    }
+}
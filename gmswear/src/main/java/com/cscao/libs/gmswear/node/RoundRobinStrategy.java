@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import com.google.android.gms.wearable.Node;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link BalancingStrategy} that cycles through the nodes of each capability in turn.
+ */
+public class RoundRobinStrategy implements BalancingStrategy {
+
+    private final ConcurrentHashMap<String, AtomicInteger> mCounters = new ConcurrentHashMap<>();
+
+    @Override
+    public Node choose(String capability, List<Node> candidates, CapabilityRouter router) {
+        AtomicInteger counter = mCounters.get(capability);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            AtomicInteger existing = mCounters.putIfAbsent(capability, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        int index = (counter.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        return candidates.get(index);
+    }
+
+    @Override
+    public String describe() {
+        return "RoundRobinStrategy: Cycles through the nodes in turn";
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.stream;
+
+import com.google.android.gms.wearable.Channel;
+
+/**
+ * A change in the state of a channel, as emitted by
+ * {@link com.cscao.libs.gmswear.GmsWear#channelEvents()}. The close reason and the
+ * application specific error code are only set for the closing events.
+ */
+public final class ChannelEvent {
+
+    public static final int TYPE_OPENED = 1;
+    public static final int TYPE_CLOSED = 2;
+    public static final int TYPE_INPUT_CLOSED = 3;
+    public static final int TYPE_OUTPUT_CLOSED = 4;
+
+    private final int mType;
+    private final Channel mChannel;
+    private final int mCloseReason;
+    private final int mAppSpecificErrorCode;
+
+    public ChannelEvent(int type, Channel channel, int closeReason, int appSpecificErrorCode) {
+        mType = type;
+        mChannel = channel;
+        mCloseReason = closeReason;
+        mAppSpecificErrorCode = appSpecificErrorCode;
+    }
+
+    /**
+     * Returns one of {@link #TYPE_OPENED}, {@link #TYPE_CLOSED}, {@link #TYPE_INPUT_CLOSED} or
+     * {@link #TYPE_OUTPUT_CLOSED}.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    public Channel getChannel() {
+        return mChannel;
+    }
+
+    public String getPath() {
+        return mChannel.getPath();
+    }
+
+    public int getCloseReason() {
+        return mCloseReason;
+    }
+
+    public int getAppSpecificErrorCode() {
+        return mAppSpecificErrorCode;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelEvent{type=" + mType + ", path=" + mChannel.getPath() + ", closeReason="
+                + mCloseReason + ", appSpecificErrorCode=" + mAppSpecificErrorCode + "}";
+    }
+}
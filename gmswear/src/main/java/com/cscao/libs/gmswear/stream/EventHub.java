@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.stream;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Multicasts events to any number of Reactive Streams {@link Subscriber}s, each of which
+ * receives the events that match its filter as fast as it requests them.
+ * <p>
+ * The events are hot: a subscriber only receives the events published after it subscribed. Each
+ * subscriber picks what happens to the events that arrive while it has no outstanding demand:
+ * <ul>
+ * <li>{@link #STRATEGY_DROP} drops them,</li>
+ * <li>{@link #STRATEGY_LATEST} keeps only the most recent one,</li>
+ * <li>{@link #STRATEGY_BUFFER} keeps up to a given number of them and fails the subscription with
+ * an {@link IllegalStateException} if the subscriber falls further behind.</li>
+ * </ul>
+ * Events are delivered on the thread that publishes them or on the thread that requests more of
+ * them, never concurrently for the same subscriber. Publishing is cheap when nobody subscribed.
+ */
+public final class EventHub<T> {
+
+    public static final int STRATEGY_DROP = 0;
+    public static final int STRATEGY_LATEST = 1;
+    public static final int STRATEGY_BUFFER = 2;
+    public static final int DEFAULT_BUFFER_CAPACITY = 128;
+
+    private final CopyOnWriteArrayList<EventSubscription<T>> mSubscriptions =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Returns a {@link Publisher} of the events that {@code filter} accepts, buffering up to
+     * {@link #DEFAULT_BUFFER_CAPACITY} of them per subscriber.
+     */
+    public Publisher<T> publisher(Filter<? super T> filter) {
+        return publisher(filter, STRATEGY_BUFFER, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Returns a {@link Publisher} of the events that {@code filter} accepts.
+     *
+     * @param strategy One of {@link #STRATEGY_DROP}, {@link #STRATEGY_LATEST} or
+     *                 {@link #STRATEGY_BUFFER}.
+     * @param capacity The number of events buffered per subscriber with
+     *                 {@link #STRATEGY_BUFFER}; ignored otherwise.
+     */
+    public Publisher<T> publisher(final Filter<? super T> filter, final int strategy,
+            final int capacity) {
+        WearUtil.assertNotNull(filter, "filter");
+        if (strategy < STRATEGY_DROP || strategy > STRATEGY_BUFFER) {
+            throw new IllegalArgumentException("Unknown strategy: " + strategy);
+        }
+        if (strategy == STRATEGY_BUFFER && capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        return new Publisher<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                if (subscriber == null) {
+                    throw new NullPointerException("subscriber cannot be null");
+                }
+                EventSubscription<T> subscription = new EventSubscription<T>(EventHub.this,
+                        subscriber, filter, strategy, capacity);
+                subscriber.onSubscribe(subscription);
+                if (!subscription.isCancelled()) {
+                    mSubscriptions.add(subscription);
+                }
+            }
+        };
+    }
+
+    /**
+     * Offers {@code event} to every subscriber whose filter accepts it.
+     */
+    public void publish(T event) {
+        for (EventSubscription<T> subscription : mSubscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     * Completes every subscription once the subscriber has received the events buffered for it.
+     * Later subscribers are not affected.
+     */
+    public void complete() {
+        for (EventSubscription<T> subscription : mSubscriptions) {
+            subscription.complete();
+        }
+    }
+
+    void remove(EventSubscription<T> subscription) {
+        mSubscriptions.remove(subscription);
+    }
+
+    /**
+     * Selects the events that a {@link Publisher} emits.
+     */
+    public interface Filter<T> {
+
+        boolean accept(T event);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.stream;
+
+import com.cscao.libs.gmswear.util.WearLog;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link Subscription} of one subscriber of an {@link EventHub}. Events are queued here until
+ * the subscriber requests them, within the limits of its backpressure strategy, and a single
+ * drain loop delivers them so that the subscriber is never called concurrently.
+ */
+final class EventSubscription<T> implements Subscription {
+
+    private static final String TAG = "EventSubscription";
+
+    private final EventHub<T> mHub;
+    private final Subscriber<? super T> mSubscriber;
+    private final EventHub.Filter<? super T> mFilter;
+    private final int mStrategy;
+    private final int mCapacity;
+    private final ArrayDeque<T> mQueue = new ArrayDeque<>();
+    private final AtomicInteger mWip = new AtomicInteger();
+    private long mRequested;
+    private long mDropped;
+    private boolean mCompleted;
+    private Throwable mError;
+    private volatile boolean mCancelled;
+
+    EventSubscription(EventHub<T> hub, Subscriber<? super T> subscriber,
+            EventHub.Filter<? super T> filter, int strategy, int capacity) {
+        mHub = hub;
+        mSubscriber = subscriber;
+        mFilter = filter;
+        mStrategy = strategy;
+        mCapacity = capacity;
+    }
+
+    void offer(T event) {
+        if (mCancelled || !mFilter.accept(event)) {
+            return;
+        }
+        synchronized (this) {
+            if (mCompleted || mError != null) {
+                return;
+            }
+            // the events beyond the outstanding demand are the ones the strategy applies to
+            long excess = mQueue.size() + 1 - mRequested;
+            switch (mStrategy) {
+                case EventHub.STRATEGY_DROP:
+                    if (excess > 0) {
+                        mDropped++;
+                        logDropped();
+                        return;
+                    }
+                    break;
+                case EventHub.STRATEGY_LATEST:
+                    if (excess > 1) {
+                        mQueue.pollLast();
+                        mDropped++;
+                        logDropped();
+                    }
+                    break;
+                default:
+                    if (excess > mCapacity) {
+                        mQueue.clear();
+                        mError = new IllegalStateException("More than " + mCapacity
+                                + " events are waiting for demand; request more or use a "
+                                + "dropping strategy");
+                    }
+                    break;
+            }
+            if (mError == null) {
+                mQueue.addLast(event);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void request(long n) {
+        synchronized (this) {
+            if (n <= 0) {
+                mQueue.clear();
+                mError = new IllegalArgumentException(
+                        "Rule 3.9: request() needs a positive number, got " + n);
+            } else {
+                mRequested += n;
+                if (mRequested < 0) {
+                    mRequested = Long.MAX_VALUE;
+                }
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        mHub.remove(this);
+        synchronized (this) {
+            mQueue.clear();
+        }
+    }
+
+    void complete() {
+        synchronized (this) {
+            mCompleted = true;
+        }
+        drain();
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private void logDropped() {
+        // log the first drop and then every power of two, not every event
+        if ((mDropped & (mDropped - 1)) == 0) {
+            WearLog.d(TAG, "{} events dropped for {}", mDropped, mSubscriber);
+        }
+    }
+
+    private void drain() {
+        if (mWip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (!mCancelled) {
+                T event = null;
+                Throwable error;
+                boolean completed;
+                synchronized (this) {
+                    error = mError;
+                    completed = mCompleted && mQueue.isEmpty();
+                    if (error == null && mRequested > 0 && !mQueue.isEmpty()) {
+                        event = mQueue.pollFirst();
+                        if (mRequested != Long.MAX_VALUE) {
+                            mRequested--;
+                        }
+                    }
+                }
+                if (error != null || completed) {
+                    cancel();
+                    if (error != null) {
+                        mSubscriber.onError(error);
+                    } else {
+                        mSubscriber.onComplete();
+                    }
+                    return;
+                }
+                if (event == null) {
+                    break;
+                }
+                try {
+                    mSubscriber.onNext(event);
+                } catch (RuntimeException e) {
+                    // rule 2.13: a subscriber must not throw; treat it as cancelled
+                    WearLog.e(TAG, "Subscriber {} threw, cancelling", mSubscriber, e);
+                    cancel();
+                    return;
+                }
+            }
+            missed = mWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.stream;
+
+import com.google.android.gms.wearable.Node;
+
+/**
+ * A peer that connected or disconnected, as emitted by
+ * {@link com.cscao.libs.gmswear.GmsWear#nodeChanges()}.
+ */
+public final class NodeEvent {
+
+    public static final int TYPE_CONNECTED = 1;
+    public static final int TYPE_DISCONNECTED = 2;
+
+    private final int mType;
+    private final Node mNode;
+
+    public NodeEvent(int type, Node node) {
+        mType = type;
+        mNode = node;
+    }
+
+    /**
+     * Returns {@link #TYPE_CONNECTED} or {@link #TYPE_DISCONNECTED}.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    public Node getNode() {
+        return mNode;
+    }
+
+    public boolean isConnected() {
+        return mType == TYPE_CONNECTED;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeEvent{" + (mType == TYPE_CONNECTED ? "connected" : "disconnected") + ", node="
+                + mNode + "}";
+    }
+}
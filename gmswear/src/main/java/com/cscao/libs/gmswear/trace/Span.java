@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.trace;
+
+import com.cscao.libs.gmswear.node.ClockSync;
+
+/**
+ * A timed operation of a {@link Tracer}, started by {@link Tracer#begin(String, long)}. It is
+ * recorded when {@link #end()} is called, which may happen on another thread than the one that
+ * began it. While the tracer is disabled, spans are a shared instance that records nothing.
+ */
+public final class Span {
+
+    static final Span NOOP = new Span(null, null, 0, null, Tracer.FLOW_NONE);
+
+    final Tracer mTracer;
+    final String mName;
+    final long mTraceId;
+    final String mDetail;
+    final int mFlow;
+    final long mStartMicros;
+    final long mThreadId;
+    final String mThreadName;
+    boolean mEnded;
+
+    Span(Tracer tracer, String name, long traceId, String detail, int flow) {
+        mTracer = tracer;
+        mName = name;
+        mTraceId = traceId;
+        mDetail = detail;
+        mFlow = flow;
+        if (tracer == null) {
+            mStartMicros = 0;
+            mThreadId = 0;
+            mThreadName = null;
+        } else {
+            Thread thread = Thread.currentThread();
+            mStartMicros = ClockSync.nowMicros();
+            mThreadId = thread.getId();
+            mThreadName = thread.getName();
+        }
+    }
+
+    /**
+     * Returns the id of the trace this span belongs to, or 0 if it isn't recorded.
+     */
+    public long getTraceId() {
+        return mTraceId;
+    }
+
+    /**
+     * Returns {@code true} if this span will be recorded when it ends.
+     */
+    public boolean isRecording() {
+        return mTracer != null;
+    }
+
+    /**
+     * Ends this span and records it. Ending a span more than once has no effect.
+     */
+    public void end() {
+        if (mTracer != null) {
+            mTracer.record(this, ClockSync.nowMicros(), Thread.currentThread().getId());
+        }
+    }
+}
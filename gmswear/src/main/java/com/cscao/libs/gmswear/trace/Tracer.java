@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.trace;
+
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Records the {@link Span}s of the operations of the library into a fixed size ring buffer, so
+ * that the time of a slow operation can be broken down, e.g. a file transfer into opening the
+ * channel, getting its streams, copying the file and dispatching the result on the receiving
+ * node. The recent spans can be written out with {@link #writeChromeTrace(Writer, String, long)}
+ * and loaded in a trace viewer such as {@code chrome://tracing} or Perfetto.
+ * <p>
+ * Spans carry a trace id that the library passes to the other node along with the operation, so
+ * that the spans of both nodes can be matched. Transfers use the hash of their request id, see
+ * {@link #traceIdOf(String)}, which both nodes know already.
+ * <p>
+ * Tracing is disabled by default. While disabled, {@link #begin(String, long)} returns a shared
+ * span that does nothing, so instrumented code costs a volatile read. While enabled, each span
+ * allocates one small object; the buffer itself is allocated once.
+ */
+public final class Tracer {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    /**
+     * The span sends the operation to another node, where it continues.
+     */
+    public static final int FLOW_OUT = 1;
+    /**
+     * The span continues an operation received from another node.
+     */
+    public static final int FLOW_IN = 2;
+    public static final int FLOW_NONE = 0;
+    private static final int FLOW_MASK = 3;
+    private static final int FLAG_ASYNC = 4;
+    private static final String CATEGORY = "gmswear";
+    private static final Random sRandom = new Random();
+
+    private final String[] mNames;
+    private final String[] mDetails;
+    private final long[] mTraceIds;
+    private final long[] mStartMicros;
+    private final long[] mDurationMicros;
+    private final long[] mThreadIds;
+    private final String[] mThreadNames;
+    private final byte[] mFlags;
+    private long mRecorded;
+    private volatile boolean mEnabled;
+
+    public Tracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a tracer that keeps the last {@code capacity} spans.
+     */
+    public Tracer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be positive");
+        }
+        mNames = new String[capacity];
+        mDetails = new String[capacity];
+        mTraceIds = new long[capacity];
+        mStartMicros = new long[capacity];
+        mDurationMicros = new long[capacity];
+        mThreadIds = new long[capacity];
+        mThreadNames = new String[capacity];
+        mFlags = new byte[capacity];
+    }
+
+    /**
+     * Turns tracing on or off. Turning it off keeps the spans recorded so far; spans begun while
+     * it was on are still recorded when they end.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Returns a new random trace id; trace ids are never 0.
+     */
+    public static long newTraceId() {
+        long traceId;
+        do {
+            traceId = sRandom.nextLong();
+        } while (traceId == 0);
+        return traceId;
+    }
+
+    /**
+     * Returns the trace id derived from {@code key}, e.g. the request id of a transfer, so that
+     * both nodes come up with the same id without exchanging it.
+     */
+    public static long traceIdOf(String key) {
+        // 64 bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Same as {@link #begin(String, long, String, int)} with no detail, for a span that stays on
+     * this node.
+     */
+    public Span begin(String name, long traceId) {
+        return begin(name, traceId, null, FLOW_NONE);
+    }
+
+    /**
+     * Begins a span named {@code name} in the trace {@code traceId}.
+     *
+     * @param detail An optional description, e.g. the path of a message.
+     * @param flow   {@link #FLOW_OUT} or {@link #FLOW_IN} if the operation crosses to or from
+     *               another node, 0 otherwise.
+     */
+    public Span begin(String name, long traceId, @Nullable String detail, int flow) {
+        if (!mEnabled) {
+            return Span.NOOP;
+        }
+        return new Span(this, name, traceId, detail, flow);
+    }
+
+    synchronized void record(Span span, long endMicros, long endThreadId) {
+        if (span.mEnded) {
+            return;
+        }
+        span.mEnded = true;
+        int slot = (int) (mRecorded % mNames.length);
+        mNames[slot] = span.mName;
+        mDetails[slot] = span.mDetail;
+        mTraceIds[slot] = span.mTraceId;
+        mStartMicros[slot] = span.mStartMicros;
+        mDurationMicros[slot] = Math.max(0, endMicros - span.mStartMicros);
+        mThreadIds[slot] = span.mThreadId;
+        mThreadNames[slot] = span.mThreadName;
+        // spans that end on another thread can't be nested in the slices of the thread
+        mFlags[slot] = (byte) (span.mFlow | (endThreadId != span.mThreadId ? FLAG_ASYNC : 0));
+        mRecorded++;
+    }
+
+    /**
+     * Returns the number of spans in the buffer.
+     */
+    public synchronized int size() {
+        return (int) Math.min(mRecorded, mNames.length);
+    }
+
+    /**
+     * Returns the number of spans that were overwritten because the buffer was full.
+     */
+    public synchronized long getDroppedCount() {
+        return Math.max(0, mRecorded - mNames.length);
+    }
+
+    public synchronized void clear() {
+        mRecorded = 0;
+        for (int i = 0; i < mNames.length; i++) {
+            mNames[i] = null;
+            mDetails[i] = null;
+            mThreadNames[i] = null;
+        }
+    }
+
+    /**
+     * Writes the spans in the buffer as a JSON trace in the Chrome trace event format. The trace
+     * of each node should be written with a distinct {@code processName}; to view the traces of
+     * two nodes together, the timestamps of one of them can be moved to the clock of the other by
+     * {@code timeShiftMicros}, see {@link com.cscao.libs.gmswear.node.ClockSync}. The trace ids
+     * are in the {@code args} of the events and link the spans of both nodes as flow events.
+     */
+    public void writeChromeTrace(Writer writer, String processName, long timeShiftMicros)
+            throws IOException {
+        WearUtil.assertNotNull(writer, "writer");
+        WearUtil.assertNotNull(processName, "processName");
+        int count;
+        long dropped;
+        String[] names;
+        String[] details;
+        long[] traceIds;
+        long[] startMicros;
+        long[] durationMicros;
+        long[] threadIds;
+        String[] threadNames;
+        byte[] flags;
+        synchronized (this) {
+            count = size();
+            dropped = getDroppedCount();
+            names = new String[count];
+            details = new String[count];
+            traceIds = new long[count];
+            startMicros = new long[count];
+            durationMicros = new long[count];
+            threadIds = new long[count];
+            threadNames = new String[count];
+            flags = new byte[count];
+            // oldest first
+            int first = (int) ((mRecorded - count) % mNames.length);
+            for (int i = 0; i < count; i++) {
+                int slot = (first + i) % mNames.length;
+                names[i] = mNames[slot];
+                details[i] = mDetails[slot];
+                traceIds[i] = mTraceIds[slot];
+                startMicros[i] = mStartMicros[slot] + timeShiftMicros;
+                durationMicros[i] = mDurationMicros[slot];
+                threadIds[i] = mThreadIds[slot];
+                threadNames[i] = mThreadNames[slot];
+                flags[i] = mFlags[slot];
+            }
+        }
+
+        int pid = processName.hashCode() & 0x7fffffff;
+        writer.write("{\"traceEvents\":[\n");
+        writer.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + pid
+                + ",\"args\":{\"name\":" + quote(processName) + "}}");
+        Map<Long, String> threads = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (threads.put(threadIds[i], threadNames[i]) == null) {
+                writer.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid
+                        + ",\"tid\":" + threadIds[i] + ",\"args\":{\"name\":"
+                        + quote(threadNames[i]) + "}}");
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            String common = ",\"cat\":\"" + CATEGORY + "\",\"pid\":" + pid + ",\"tid\":"
+                    + threadIds[i];
+            String id = quote("0x" + Long.toHexString(traceIds[i]));
+            String args = ",\"args\":{\"traceId\":" + id
+                    + (details[i] != null ? ",\"detail\":" + quote(details[i]) : "") + "}";
+            if ((flags[i] & FLAG_ASYNC) != 0) {
+                writer.write(",\n{\"name\":" + quote(names[i]) + common + ",\"ph\":\"b\",\"id\":"
+                        + id + ",\"ts\":" + startMicros[i] + args + "}");
+                writer.write(",\n{\"name\":" + quote(names[i]) + common + ",\"ph\":\"e\",\"id\":"
+                        + id + ",\"ts\":" + (startMicros[i] + durationMicros[i]) + "}");
+            } else {
+                writer.write(",\n{\"name\":" + quote(names[i]) + common + ",\"ph\":\"X\",\"ts\":"
+                        + startMicros[i] + ",\"dur\":" + durationMicros[i] + args + "}");
+            }
+            int flow = flags[i] & FLOW_MASK;
+            if (flow != FLOW_NONE) {
+                writer.write(",\n{\"name\":\"flow\"" + common + ",\"ph\":\""
+                        + (flow == FLOW_OUT ? "s" : "f\",\"bp\":\"e") + "\",\"id\":" + id
+                        + ",\"ts\":" + startMicros[i] + "}");
+            }
+        }
+        writer.write("\n],\"displayTimeUnit\":\"ms\",\"otherData\":{\"process\":"
+                + quote(processName) + ",\"timeShiftMicros\":" + timeShiftMicros
+                + ",\"droppedSpans\":" + dropped + "}}\n");
+        writer.flush();
+    }
+
+    private static String quote(@Nullable String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * One end of a channel between two nodes of a {@link LoopbackNetwork}. The two ends are connected
+ * by a bounded in-memory pipe in each direction; writes block while the pipe is full and are
+ * throttled to the bandwidth of the network.
+ * <p>
+ * Closing the output stream of one end lets the other end read what is left and then reach the
+ * end of the stream. Closing the input stream, or the whole channel, makes further writes of the
+ * other end fail with an {@link IOException}.
+ */
+final class LoopbackChannel implements TransportChannel {
+
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    private final String mNodeId;
+    private final String mPath;
+    private final Pipe mIn;
+    private final Pipe mOut;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+
+    private LoopbackChannel(String nodeId, String path, Pipe in, Pipe out) {
+        mNodeId = nodeId;
+        mPath = path;
+        mIn = in;
+        mOut = out;
+        mInputStream = new PipeInputStream(in);
+        mOutputStream = new PipeOutputStream(out);
+    }
+
+    /**
+     * Returns the end of the opener, {@code fromId}, followed by the end of {@code toId}.
+     */
+    static LoopbackChannel[] open(LoopbackNetwork network, String fromId, String toId,
+            String path) {
+        Pipe forward = new Pipe(network);
+        Pipe backward = new Pipe(network);
+        return new LoopbackChannel[]{
+                new LoopbackChannel(toId, path, backward, forward),
+                new LoopbackChannel(fromId, path, forward, backward)};
+    }
+
+    @Override
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    @Override
+    public String getPath() {
+        return mPath;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mOutputStream;
+    }
+
+    @Override
+    public void close() {
+        mIn.closeRead();
+        mOut.closeWrite();
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackChannel{" + mNodeId + mPath + "}";
+    }
+
+    /**
+     * A bounded ring buffer of bytes between a single writer and a single reader.
+     */
+    private static final class Pipe {
+        private final LoopbackNetwork mNetwork;
+        private final byte[] mBuffer = new byte[PIPE_CAPACITY];
+        private int mHead;
+        private int mSize;
+        private boolean mWriteClosed;
+        private boolean mReadClosed;
+        private long mNextFreeNanos;
+
+        Pipe(LoopbackNetwork network) {
+            mNetwork = network;
+        }
+
+        synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (mSize == 0) {
+                if (mWriteClosed || mReadClosed) {
+                    return -1;
+                }
+                await();
+            }
+            int count = Math.min(length, mSize);
+            int first = Math.min(count, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, buffer, offset, first);
+            System.arraycopy(mBuffer, 0, buffer, offset + first, count - first);
+            mHead = (mHead + count) % mBuffer.length;
+            mSize -= count;
+            notifyAll();
+            return count;
+        }
+
+        void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = writeSome(buffer, offset, length);
+                throttle(count);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        private synchronized int writeSome(byte[] buffer, int offset, int length)
+                throws IOException {
+            while (true) {
+                if (mWriteClosed) {
+                    throw new IOException("Stream closed");
+                }
+                if (mReadClosed) {
+                    throw new IOException("Channel closed by the other node");
+                }
+                if (mSize < mBuffer.length) {
+                    break;
+                }
+                await();
+            }
+            int count = Math.min(length, mBuffer.length - mSize);
+            int tail = (mHead + mSize) % mBuffer.length;
+            int first = Math.min(count, mBuffer.length - tail);
+            System.arraycopy(buffer, offset, mBuffer, tail, first);
+            System.arraycopy(buffer, offset + first, mBuffer, 0, count - first);
+            mSize += count;
+            notifyAll();
+            return count;
+        }
+
+        /**
+         * Blocks the writer until {@code count} bytes would have been transmitted.
+         */
+        private void throttle(int count) throws IOException {
+            long bytesPerSecond = mNetwork.getBytesPerSecond();
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            mNextFreeNanos = Math.max(now, mNextFreeNanos) + count * 1000000000L / bytesPerSecond;
+            long waitNanos = mNextFreeNanos - now;
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        synchronized void closeWrite() {
+            mWriteClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeRead() {
+            mReadClosed = true;
+            mSize = 0;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static final class PipeInputStream extends InputStream {
+        private final Pipe mPipe;
+
+        PipeInputStream(Pipe pipe) {
+            mPipe = pipe;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return mPipe.read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            mPipe.closeRead();
+        }
+    }
+
+    private static final class PipeOutputStream extends OutputStream {
+        private final Pipe mPipe;
+
+        PipeOutputStream(Pipe pipe) {
+            mPipe = pipe;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mPipe.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            mPipe.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            mPipe.closeWrite();
+        }
+    }
+}
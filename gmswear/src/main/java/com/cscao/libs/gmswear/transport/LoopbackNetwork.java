@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory network of {@link LoopbackTransport} endpoints in the same process, with simulated
+ * link conditions, to exercise and measure code built on a {@link Transport} without devices.
+ * <p>
+ * Every pair of nodes is connected by a link in each direction. A link transmits one payload at
+ * a time at {@link #setBandwidth(long) the configured bandwidth}, and each payload then takes
+ * {@link #setLatency(long, long, TimeUnit) the configured latency}, plus a random jitter, to
+ * arrive. Payloads arrive in the order they were sent. Messages are lost at
+ * {@link #setLossRate(double) the configured rate}; like with the Wearable APIs, the sender is
+ * not told. Data items, capabilities and channels are reliable. Channel streams are throttled to
+ * the bandwidth, and the latency only applies when a channel is opened.
+ * <p>
+ * All the callbacks and events of the endpoints run on a single thread owned by the network.
+ * Pass a seed to {@link #LoopbackNetwork(long)} to make the jitter and the losses reproducible.
+ */
+public final class LoopbackNetwork {
+
+    private static final String TAG = "LoopbackNetwork";
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Random mRandom;
+    private final Map<String, LoopbackTransport> mNodes = new LinkedHashMap<>();
+    private final Set<String> mDisconnected = new HashSet<>();
+    private final Map<String, Link> mLinks = new HashMap<>();
+    private final Map<String, TransportDataItem> mDataItems = new TreeMap<>();
+    private final Map<String, Set<String>> mCapabilities = new HashMap<>();
+    private final AtomicInteger mNextRequestId = new AtomicInteger(1);
+    private final AtomicLong mMessagesSent = new AtomicLong();
+    private final AtomicLong mMessagesLost = new AtomicLong();
+    private final AtomicLong mMessagesDelivered = new AtomicLong();
+    private final AtomicLong mBytesDelivered = new AtomicLong();
+    private long mLatencyNanos;
+    private long mJitterNanos;
+    private long mBytesPerSecond;
+    private double mLossRate;
+
+    public LoopbackNetwork() {
+        this(new Random().nextLong());
+    }
+
+    public LoopbackNetwork(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Sets the one-way latency of every link, and the maximum random jitter added to it.
+     */
+    public synchronized void setLatency(long latency, long jitter, TimeUnit unit) {
+        if (latency < 0 || jitter < 0) {
+            throw new IllegalArgumentException("Invalid latency: " + latency + ", " + jitter);
+        }
+        mLatencyNanos = unit.toNanos(latency);
+        mJitterNanos = unit.toNanos(jitter);
+    }
+
+    /**
+     * Sets the bandwidth of every link, in bytes per second; 0 means unlimited.
+     */
+    public synchronized void setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth: " + bytesPerSecond);
+        }
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Sets the probability, between 0 and 1, that a message is lost.
+     */
+    public synchronized void setLossRate(double lossRate) {
+        if (lossRate < 0 || lossRate > 1) {
+            throw new IllegalArgumentException("Invalid loss rate: " + lossRate);
+        }
+        mLossRate = lossRate;
+    }
+
+    synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Adds a node to the network; the other nodes see it connect.
+     */
+    public LoopbackTransport createNode(String id) {
+        LoopbackTransport transport;
+        synchronized (this) {
+            if (mNodes.containsKey(id)) {
+                throw new IllegalArgumentException("Duplicate node: " + id);
+            }
+            transport = new LoopbackTransport(this, new TransportNode(id, id, true));
+            mNodes.put(id, transport);
+        }
+        notifyPeers(transport.getNode(), getConnectedPeers(id), true);
+        return transport;
+    }
+
+    /**
+     * Disconnects a node from the others, e.g. to simulate the watch going out of range.
+     * Messages to and from it fail until it is connected again.
+     */
+    public void disconnect(String id) {
+        TransportNode node;
+        List<LoopbackTransport> peers;
+        synchronized (this) {
+            node = requireNode(id).getNode();
+            peers = getConnectedPeers(id);
+            if (!mDisconnected.add(id)) {
+                return;
+            }
+        }
+        notifyPeers(node, peers, false);
+    }
+
+    public void connect(String id) {
+        TransportNode node;
+        synchronized (this) {
+            node = requireNode(id).getNode();
+            if (!mDisconnected.remove(id)) {
+                return;
+            }
+        }
+        notifyPeers(node, getConnectedPeers(id), true);
+    }
+
+    /**
+     * Stops the thread of the network; pending deliveries are discarded.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    public long getMessagesSent() {
+        return mMessagesSent.get();
+    }
+
+    public long getMessagesLost() {
+        return mMessagesLost.get();
+    }
+
+    public long getMessagesDelivered() {
+        return mMessagesDelivered.get();
+    }
+
+    /**
+     * Returns the number of message and data item bytes delivered to the nodes.
+     */
+    public long getBytesDelivered() {
+        return mBytesDelivered.get();
+    }
+
+    private LoopbackTransport requireNode(String id) {
+        LoopbackTransport transport = mNodes.get(id);
+        if (transport == null) {
+            throw new IllegalArgumentException("Unknown node: " + id);
+        }
+        return transport;
+    }
+
+    private void notifyPeers(final TransportNode node, List<LoopbackTransport> peers,
+            final boolean connected) {
+        for (final LoopbackTransport peer : peers) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    peer.onPeerChanged(node, connected);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the node with {@code id} if it and {@code fromId} are both connected, or
+     * {@code null}.
+     */
+    synchronized LoopbackTransport getReachableNode(String fromId, String id) {
+        if (mDisconnected.contains(fromId) || mDisconnected.contains(id)) {
+            return null;
+        }
+        return mNodes.get(id);
+    }
+
+    /**
+     * Returns the connected nodes other than {@code id}, or none if {@code id} is disconnected.
+     */
+    synchronized List<LoopbackTransport> getConnectedPeers(String id) {
+        List<LoopbackTransport> peers = new ArrayList<>();
+        if (mDisconnected.contains(id)) {
+            return peers;
+        }
+        for (LoopbackTransport transport : mNodes.values()) {
+            String peerId = transport.getNode().getId();
+            if (!peerId.equals(id) && !mDisconnected.contains(peerId)) {
+                peers.add(transport);
+            }
+        }
+        return peers;
+    }
+
+    int nextRequestId() {
+        return mNextRequestId.getAndIncrement();
+    }
+
+    /**
+     * Sends {@code message} from {@code fromId} to {@code target}, unless it is lost.
+     */
+    void transmitMessage(String fromId, final LoopbackTransport target,
+            final TransportMessage message) {
+        mMessagesSent.incrementAndGet();
+        synchronized (this) {
+            if (mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+                mMessagesLost.incrementAndGet();
+                return;
+            }
+        }
+        final int size = message.getData() == null ? 0 : message.getData().length;
+        transmit(fromId, target.getNode().getId(), size + message.getPath().length(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        mMessagesDelivered.incrementAndGet();
+                        mBytesDelivered.addAndGet(size);
+                        target.onMessage(message);
+                    }
+                });
+    }
+
+    /**
+     * Sends a payload of {@code bytes} from {@code fromId} to {@code toId}, reserving the link for
+     * its transmission, and runs {@code delivery} once it arrives. Deliveries on a link run in the
+     * order they were sent: each timer task runs the oldest delivery of the link rather than its
+     * own, since tasks scheduled with close delays may fire out of order.
+     */
+    synchronized void transmit(String fromId, String toId, long bytes, Runnable delivery) {
+        long now = System.nanoTime();
+        String key = fromId + '>' + toId;
+        Link link = mLinks.get(key);
+        if (link == null) {
+            link = new Link(now);
+            mLinks.put(key, link);
+        }
+        long start = Math.max(now, link.mNextStartNanos);
+        long transmit = mBytesPerSecond > 0 ? bytes * 1000000000L / mBytesPerSecond : 0;
+        link.mNextStartNanos = start + transmit;
+        long jitter = mJitterNanos > 0 ? (long) (mRandom.nextDouble() * mJitterNanos) : 0;
+        long arrival = Math.max(link.mLastArrivalNanos, start + transmit + mLatencyNanos + jitter);
+        link.mLastArrivalNanos = arrival;
+        link.mInFlight.addLast(delivery);
+        final Link target = link;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                Runnable next;
+                synchronized (LoopbackNetwork.this) {
+                    next = target.mInFlight.pollFirst();
+                }
+                next.run();
+            }
+        }, arrival - now);
+    }
+
+    synchronized long getLatencyNanos() {
+        return mLatencyNanos;
+    }
+
+    void putDataItem(final TransportDataItem item) {
+        synchronized (this) {
+            mDataItems.put(item.getNodeId() + item.getPath(), item);
+        }
+        replicate(item, false);
+    }
+
+    int deleteDataItems(String nodeId, String path, int filterType) {
+        List<TransportDataItem> deleted = new ArrayList<>();
+        synchronized (this) {
+            for (TransportDataItem item : new ArrayList<>(mDataItems.values())) {
+                if (item.getNodeId().equals(nodeId) && matches(item, path, filterType)) {
+                    mDataItems.remove(item.getNodeId() + item.getPath());
+                    deleted.add(item);
+                }
+            }
+        }
+        for (TransportDataItem item : deleted) {
+            replicate(item, true);
+        }
+        return deleted.size();
+    }
+
+    synchronized List<TransportDataItem> getDataItems(String path, int filterType) {
+        List<TransportDataItem> items = new ArrayList<>();
+        for (TransportDataItem item : mDataItems.values()) {
+            if (matches(item, path, filterType)) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private static boolean matches(TransportDataItem item, String path, int filterType) {
+        return filterType == Transport.FILTER_PREFIX ? item.getPath().startsWith(path)
+                : item.getPath().equals(path);
+    }
+
+    /**
+     * Tells the writer of {@code item} right away and the other nodes once it reached them.
+     */
+    private void replicate(final TransportDataItem item, final boolean deleted) {
+        final String fromId = item.getNodeId();
+        final LoopbackTransport self;
+        synchronized (this) {
+            self = mNodes.get(fromId);
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                self.onDataChanged(item, deleted);
+            }
+        });
+        final int size = item.getData() == null ? 0 : item.getData().length;
+        for (final LoopbackTransport peer : getConnectedPeers(fromId)) {
+            transmit(fromId, peer.getNode().getId(), size + item.getPath().length(),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            mBytesDelivered.addAndGet(size);
+                            peer.onDataChanged(item, deleted);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Adds or removes a capability of a node; returns {@code false} if nothing changed.
+     */
+    boolean setCapability(String nodeId, final String capability, boolean add) {
+        synchronized (this) {
+            Set<String> nodeIds = mCapabilities.get(capability);
+            if (nodeIds == null) {
+                nodeIds = new HashSet<>();
+                mCapabilities.put(capability, nodeIds);
+            }
+            if (add ? !nodeIds.add(nodeId) : !nodeIds.remove(nodeId)) {
+                return false;
+            }
+        }
+        for (final LoopbackTransport peer : getConnectedPeers(nodeId)) {
+            transmit(nodeId, peer.getNode().getId(), capability.length(), new Runnable() {
+                @Override
+                public void run() {
+                    peer.onCapabilityChanged(capability,
+                            getCapabilityNodes(peer.getNode().getId(), capability));
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Returns the nodes reachable from {@code fromId}, including itself, that advertise
+     * {@code capability}.
+     */
+    synchronized Set<TransportNode> getCapabilityNodes(String fromId, String capability) {
+        Set<TransportNode> nodes = new HashSet<>();
+        Set<String> nodeIds = mCapabilities.get(capability);
+        if (nodeIds == null) {
+            return nodes;
+        }
+        for (String nodeId : nodeIds) {
+            if (nodeId.equals(fromId) || getReachableNode(fromId, nodeId) != null) {
+                nodes.add(mNodes.get(nodeId).getNode());
+            }
+        }
+        return nodes;
+    }
+
+    void post(Runnable runnable) {
+        mExecutor.execute(runnable);
+    }
+
+    void schedule(Runnable runnable, long delayNanos) {
+        mExecutor.schedule(runnable, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The state of the link in one direction between two nodes.
+     */
+    private static final class Link {
+        private final ArrayDeque<Runnable> mInFlight = new ArrayDeque<>();
+        private long mNextStartNanos;
+        private long mLastArrivalNanos;
+
+        Link(long now) {
+            mNextStartNanos = now;
+            mLastArrivalNanos = now;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A node of a {@link LoopbackNetwork}, created with {@link LoopbackNetwork#createNode(String)}.
+ * Callbacks and events run on the thread of the network.
+ */
+public final class LoopbackTransport implements Transport {
+
+    private final LoopbackNetwork mNetwork;
+    private final TransportNode mNode;
+    private volatile Listener mListener;
+
+    LoopbackTransport(LoopbackNetwork network, TransportNode node) {
+        mNetwork = network;
+        mNode = node;
+    }
+
+    public TransportNode getNode() {
+        return mNode;
+    }
+
+    public LoopbackNetwork getNetwork() {
+        return mNetwork;
+    }
+
+    @Override
+    public void getLocalNode(Callback<TransportNode> callback) {
+        succeed(callback, mNode);
+    }
+
+    @Override
+    public void getConnectedNodes(Callback<List<TransportNode>> callback) {
+        List<TransportNode> nodes = new ArrayList<>();
+        for (LoopbackTransport peer : mNetwork.getConnectedPeers(mNode.getId())) {
+            nodes.add(peer.getNode());
+        }
+        succeed(callback, nodes);
+    }
+
+    @Override
+    public void sendMessage(String nodeId, String path, byte[] data, Callback<Integer> callback) {
+        LoopbackTransport target = mNetwork.getReachableNode(mNode.getId(), nodeId);
+        if (target == null) {
+            fail(callback, STATUS_TARGET_NODE_NOT_CONNECTED);
+            return;
+        }
+        int requestId = mNetwork.nextRequestId();
+        // the payload is copied, as if it was serialized
+        mNetwork.transmitMessage(mNode.getId(), target, new TransportMessage(mNode.getId(), path,
+                data == null ? null : data.clone(), requestId));
+        succeed(callback, requestId);
+    }
+
+    @Override
+    public void putDataItem(String path, byte[] data, boolean urgent,
+            Callback<TransportDataItem> callback) {
+        TransportDataItem item = new TransportDataItem(mNode.getId(), path,
+                data == null ? null : data.clone());
+        mNetwork.putDataItem(item);
+        succeed(callback, item);
+    }
+
+    @Override
+    public void getDataItems(String path, int filterType,
+            Callback<List<TransportDataItem>> callback) {
+        succeed(callback, mNetwork.getDataItems(path, filterType));
+    }
+
+    @Override
+    public void deleteDataItems(String path, int filterType, Callback<Integer> callback) {
+        succeed(callback, mNetwork.deleteDataItems(mNode.getId(), path, filterType));
+    }
+
+    @Override
+    public void addLocalCapability(String capability, Callback<Void> callback) {
+        mNetwork.setCapability(mNode.getId(), capability, true);
+        succeed(callback, null);
+    }
+
+    @Override
+    public void removeLocalCapability(String capability, Callback<Void> callback) {
+        mNetwork.setCapability(mNode.getId(), capability, false);
+        succeed(callback, null);
+    }
+
+    @Override
+    public void getCapability(String capability, Callback<Set<TransportNode>> callback) {
+        succeed(callback, mNetwork.getCapabilityNodes(mNode.getId(), capability));
+    }
+
+    @Override
+    public void openChannel(final String nodeId, String path,
+            final Callback<TransportChannel> callback) {
+        final LoopbackTransport target = mNetwork.getReachableNode(mNode.getId(), nodeId);
+        if (target == null) {
+            fail(callback, STATUS_TARGET_NODE_NOT_CONNECTED);
+            return;
+        }
+        final LoopbackChannel[] ends = LoopbackChannel.open(mNetwork, mNode.getId(), nodeId,
+                path);
+        long latency = mNetwork.getLatencyNanos();
+        mNetwork.schedule(new Runnable() {
+            @Override
+            public void run() {
+                target.onChannel(ends[1]);
+            }
+        }, latency);
+        // the opener learns about the channel once the other node acknowledged it
+        mNetwork.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(STATUS_SUCCESS, ends[0]);
+            }
+        }, 2 * latency);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    void onMessage(TransportMessage message) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMessageReceived(message);
+        }
+    }
+
+    void onDataChanged(TransportDataItem item, boolean deleted) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onDataChanged(item, deleted);
+        }
+    }
+
+    void onPeerChanged(TransportNode node, boolean connected) {
+        Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        if (connected) {
+            listener.onPeerConnected(node);
+        } else {
+            listener.onPeerDisconnected(node);
+        }
+    }
+
+    void onCapabilityChanged(String capability, Set<TransportNode> nodes) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCapabilityChanged(capability, nodes);
+        }
+    }
+
+    void onChannel(TransportChannel channel) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onChannelOpened(channel);
+        } else {
+            channel.close();
+        }
+    }
+
+    private <T> void succeed(final Callback<T> callback, final T value) {
+        mNetwork.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(STATUS_SUCCESS, value);
+            }
+        });
+    }
+
+    private <T> void fail(final Callback<T> callback, final int statusCode) {
+        mNetwork.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(statusCode, null);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackTransport{" + mNode.getId() + "}";
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.transport;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The operations that the library needs from the underlying wearable network: messages, data
+ * items, capabilities, nodes and channels, and the events that come with them.
+ * <p>
+ * {@link WearableTransport} implements it with the Wearable APIs of Google Play services, and
+ * {@link LoopbackTransport} with an in-memory network between endpoints in the same process, so
+ * that the code built on top of a transport can be exercised and measured on a plain JVM. This
+ * interface and its value types therefore don't depend on Android or Play services.
+ * <p>
+ * All operations are asynchronous and report their outcome to a {@link Callback} with one of the
+ * {@code STATUS_*} codes, which have the same values as the corresponding
+ * {@code WearableStatusCodes}. The {@code FILTER_*} values likewise match those of
+ * {@code DataApi}.
+ */
+public interface Transport {
+
+    int STATUS_SUCCESS = 0;
+    int STATUS_ERROR = 13;
+    int STATUS_API_NOT_CONNECTED = 17;
+    int STATUS_TARGET_NODE_NOT_CONNECTED = 4000;
+
+    /**
+     * Matches the data items whose path is the given path.
+     */
+    int FILTER_LITERAL = 0;
+
+    /**
+     * Matches the data items whose path starts with the given path.
+     */
+    int FILTER_PREFIX = 1;
+
+    void getLocalNode(Callback<TransportNode> callback);
+
+    void getConnectedNodes(Callback<List<TransportNode>> callback);
+
+    /**
+     * Sends a message; the callback receives the request id of the message.
+     */
+    void sendMessage(String nodeId, String path, byte[] data, Callback<Integer> callback);
+
+    /**
+     * Creates or replaces the data item of this node at {@code path}; it is synced to the other
+     * nodes. The callback receives the item as stored.
+     */
+    void putDataItem(String path, byte[] data, boolean urgent,
+            Callback<TransportDataItem> callback);
+
+    /**
+     * Retrieves the data items of all nodes whose path matches {@code path}, according to
+     * {@code filterType}, one of the {@code FILTER_*} values.
+     */
+    void getDataItems(String path, int filterType, Callback<List<TransportDataItem>> callback);
+
+    /**
+     * Deletes the data items of this node whose path matches {@code path}, according to
+     * {@code filterType}, one of the {@code FILTER_*} values; the callback receives the number of
+     * deleted items.
+     */
+    void deleteDataItems(String path, int filterType, Callback<Integer> callback);
+
+    void addLocalCapability(String capability, Callback<Void> callback);
+
+    void removeLocalCapability(String capability, Callback<Void> callback);
+
+    /**
+     * Retrieves the reachable nodes that advertise {@code capability}.
+     */
+    void getCapability(String capability, Callback<Set<TransportNode>> callback);
+
+    /**
+     * Opens a channel to {@code nodeId}; the other node receives it through
+     * {@link Listener#onChannelOpened(TransportChannel)}.
+     */
+    void openChannel(String nodeId, String path, Callback<TransportChannel> callback);
+
+    /**
+     * Sets the listener that receives the events of this transport, or removes it if
+     * {@code listener} is {@code null}.
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Receives the outcome of an operation of a {@link Transport}.
+     */
+    interface Callback<T> {
+
+        /**
+         * @param statusCode One of the {@code STATUS_*} codes.
+         * @param value      The value produced by the operation, or {@code null} if it failed.
+         */
+        void onResult(int statusCode, T value);
+    }
+
+    /**
+     * Receives the events of a {@link Transport}. Implementations document the thread the
+     * events are delivered on.
+     */
+    interface Listener {
+
+        void onMessageReceived(TransportMessage message);
+
+        /**
+         * Called when a data item of any node changed or was deleted, including the items of
+         * this node.
+         */
+        void onDataChanged(TransportDataItem item, boolean deleted);
+
+        void onPeerConnected(TransportNode node);
+
+        void onPeerDisconnected(TransportNode node);
+
+        void onCapabilityChanged(String capability, Set<TransportNode> nodes);
+
+        void onChannelOpened(TransportChannel channel);
+    }
+}
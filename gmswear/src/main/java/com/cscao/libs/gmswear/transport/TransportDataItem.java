@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.transport;
+
+/**
+ * A data item of a {@link Transport}, identified by the node that wrote it and its path.
+ */
+public final class TransportDataItem {
+
+    private final String mNodeId;
+    private final String mPath;
+    private final byte[] mData;
+
+    public TransportDataItem(String nodeId, String path, byte[] data) {
+        mNodeId = nodeId;
+        mPath = path;
+        mData = data;
+    }
+
+    /**
+     * Returns the id of the node that wrote this item.
+     */
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Returns the payload of the item, which may be {@code null}; it is not copied.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    @Override
+    public String toString() {
+        return "TransportDataItem{node=" + mNodeId + ", path=" + mPath + ", size="
+                + (mData == null ? 0 : mData.length) + "}";
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.transport;
+
+/**
+ * A message received through a {@link Transport}.
+ */
+public final class TransportMessage {
+
+    private final String mSourceNodeId;
+    private final String mPath;
+    private final byte[] mData;
+    private final int mRequestId;
+
+    public TransportMessage(String sourceNodeId, String path, byte[] data, int requestId) {
+        mSourceNodeId = sourceNodeId;
+        mPath = path;
+        mData = data;
+        mRequestId = requestId;
+    }
+
+    public String getSourceNodeId() {
+        return mSourceNodeId;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Returns the payload of the message, which may be {@code null}; it is not copied.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getRequestId() {
+        return mRequestId;
+    }
+
+    @Override
+    public String toString() {
+        return "TransportMessage{source=" + mSourceNodeId + ", path=" + mPath + ", size="
+                + (mData == null ? 0 : mData.length) + ", requestId=" + mRequestId + "}";
+    }
+}
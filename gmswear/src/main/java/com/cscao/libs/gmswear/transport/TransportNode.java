@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.transport;
+
+/**
+ * A node of a {@link Transport}. Two nodes are equal if they have the same id.
+ */
+public final class TransportNode {
+
+    private final String mId;
+    private final String mDisplayName;
+    private final boolean mNearby;
+
+    public TransportNode(String id, String displayName, boolean nearby) {
+        if (id == null) {
+            throw new NullPointerException("id cannot be null");
+        }
+        mId = id;
+        mDisplayName = displayName;
+        mNearby = nearby;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getDisplayName() {
+        return mDisplayName;
+    }
+
+    public boolean isNearby() {
+        return mNearby;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TransportNode && mId.equals(((TransportNode) o).mId);
+    }
+
+    @Override
+    public int hashCode() {
+        return mId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "TransportNode{id=" + mId + ", displayName=" + mDisplayName + ", nearby="
+                + mNearby + "}";
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.transport;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.wearable.CapabilityApi;
+import com.google.android.gms.wearable.CapabilityInfo;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.ChannelApi;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The {@link Transport} backed by the Wearable APIs of Google Play services, through a
+ * {@link GoogleApiClient} that the caller connects.
+ * <p>
+ * The Wearable APIs deliver their events to a {@code WearableListenerService}, so this transport
+ * doesn't register listeners of its own: whoever receives the events passes them on through the
+ * {@code dispatch*()} methods, which {@link com.cscao.libs.gmswear.GmsWear} does for the events
+ * of {@link com.cscao.libs.gmswear.GmsWearService}. Callbacks run on the main thread; the events
+ * on the thread that dispatches them.
+ */
+public class WearableTransport implements Transport {
+
+    private static final String ANY_NODE_URI = "wear://*";
+
+    private final GoogleApiClient mGoogleApiClient;
+    private volatile Listener mListener;
+
+    public WearableTransport(GoogleApiClient googleApiClient) {
+        if (googleApiClient == null) {
+            throw new NullPointerException("googleApiClient cannot be null");
+        }
+        mGoogleApiClient = googleApiClient;
+    }
+
+    @Override
+    public void getLocalNode(final Callback<TransportNode> callback) {
+        Wearable.NodeApi.getLocalNode(mGoogleApiClient).setResultCallback(
+                new ResultCallback<NodeApi.GetLocalNodeResult>() {
+                    @Override
+                    public void onResult(NodeApi.GetLocalNodeResult getLocalNodeResult) {
+                        Status status = getLocalNodeResult.getStatus();
+                        callback.onResult(status.getStatusCode(), status.isSuccess()
+                                ? toTransportNode(getLocalNodeResult.getNode()) : null);
+                    }
+                });
+    }
+
+    @Override
+    public void getConnectedNodes(final Callback<List<TransportNode>> callback) {
+        Wearable.NodeApi.getConnectedNodes(mGoogleApiClient).setResultCallback(
+                new ResultCallback<NodeApi.GetConnectedNodesResult>() {
+                    @Override
+                    public void onResult(NodeApi.GetConnectedNodesResult getConnectedNodesResult) {
+                        Status status = getConnectedNodesResult.getStatus();
+                        callback.onResult(status.getStatusCode(), status.isSuccess()
+                                ? new ArrayList<>(toTransportNodes(
+                                getConnectedNodesResult.getNodes())) : null);
+                    }
+                });
+    }
+
+    @Override
+    public void sendMessage(String nodeId, String path, byte[] data,
+            final Callback<Integer> callback) {
+        Wearable.MessageApi.sendMessage(mGoogleApiClient, nodeId, path, data).setResultCallback(
+                new ResultCallback<MessageApi.SendMessageResult>() {
+                    @Override
+                    public void onResult(MessageApi.SendMessageResult sendMessageResult) {
+                        Status status = sendMessageResult.getStatus();
+                        callback.onResult(status.getStatusCode(), status.isSuccess()
+                                ? sendMessageResult.getRequestId() : null);
+                    }
+                });
+    }
+
+    @Override
+    public void putDataItem(String path, byte[] data, boolean urgent,
+            final Callback<TransportDataItem> callback) {
+        PutDataRequest request = PutDataRequest.create(path).setData(data);
+        if (urgent) {
+            request = request.setUrgent();
+        }
+        Wearable.DataApi.putDataItem(mGoogleApiClient, request).setResultCallback(
+                new ResultCallback<DataApi.DataItemResult>() {
+                    @Override
+                    public void onResult(DataApi.DataItemResult dataItemResult) {
+                        Status status = dataItemResult.getStatus();
+                        callback.onResult(status.getStatusCode(), status.isSuccess()
+                                ? toTransportDataItem(dataItemResult.getDataItem()) : null);
+                    }
+                });
+    }
+
+    /**
+     * Puts {@code request} through the Data API as it is. Unlike
+     * {@link #putDataItem(String, byte[], boolean, Callback)}, this carries the assets of the
+     * request, and the result is the one of the Data API, with its status message and resolution
+     * and the assets of the stored item.
+     */
+    public PendingResult<DataApi.DataItemResult> putDataItem(PutDataRequest request) {
+        return Wearable.DataApi.putDataItem(mGoogleApiClient, request);
+    }
+
+    /**
+     * Gets the data item at {@code uri} through the Data API, with its assets.
+     */
+    public PendingResult<DataApi.DataItemResult> getDataItem(Uri uri) {
+        return Wearable.DataApi.getDataItem(mGoogleApiClient, uri);
+    }
+
+    /**
+     * Gets the data items that match {@code uri} through the Data API, or all of them if
+     * {@code uri} is {@code null}. The caller releases the returned buffer.
+     */
+    public PendingResult<DataItemBuffer> getDataItems(@Nullable Uri uri, int filterType) {
+        return uri == null ? Wearable.DataApi.getDataItems(mGoogleApiClient)
+                : Wearable.DataApi.getDataItems(mGoogleApiClient, uri, filterType);
+    }
+
+    /**
+     * Deletes the data items that match {@code uri} through the Data API.
+     */
+    public PendingResult<DataApi.DeleteDataItemsResult> deleteDataItems(Uri uri, int filterType) {
+        return Wearable.DataApi.deleteDataItems(mGoogleApiClient, uri, filterType);
+    }
+
+    @Override
+    public void getDataItems(String path, int filterType,
+            final Callback<List<TransportDataItem>> callback) {
+        getDataItems(Uri.parse(ANY_NODE_URI + path), filterType).setResultCallback(
+                new ResultCallback<DataItemBuffer>() {
+                    @Override
+                    public void onResult(DataItemBuffer dataItems) {
+                        Status status = dataItems.getStatus();
+                        List<TransportDataItem> items = null;
+                        if (status.isSuccess()) {
+                            items = new ArrayList<>(dataItems.getCount());
+                            for (DataItem dataItem : dataItems) {
+                                items.add(toTransportDataItem(dataItem));
+                            }
+                        }
+                        dataItems.release();
+                        callback.onResult(status.getStatusCode(), items);
+                    }
+                });
+    }
+
+    @Override
+    public void deleteDataItems(String path, int filterType, final Callback<Integer> callback) {
+        deleteDataItems(Uri.parse(ANY_NODE_URI + path), filterType).setResultCallback(
+                new ResultCallback<DataApi.DeleteDataItemsResult>() {
+                    @Override
+                    public void onResult(DataApi.DeleteDataItemsResult deleteDataItemsResult) {
+                        Status status = deleteDataItemsResult.getStatus();
+                        callback.onResult(status.getStatusCode(), status.isSuccess()
+                                ? deleteDataItemsResult.getNumDeleted() : null);
+                    }
+                });
+    }
+
+    @Override
+    public void addLocalCapability(String capability, final Callback<Void> callback) {
+        Wearable.CapabilityApi.addLocalCapability(mGoogleApiClient, capability)
+                .setResultCallback(new ResultCallback<CapabilityApi.AddLocalCapabilityResult>() {
+                    @Override
+                    public void onResult(
+                            CapabilityApi.AddLocalCapabilityResult addLocalCapabilityResult) {
+                        callback.onResult(addLocalCapabilityResult.getStatus().getStatusCode(),
+                                null);
+                    }
+                });
+    }
+
+    @Override
+    public void removeLocalCapability(String capability, final Callback<Void> callback) {
+        Wearable.CapabilityApi.removeLocalCapability(mGoogleApiClient, capability)
+                .setResultCallback(
+                        new ResultCallback<CapabilityApi.RemoveLocalCapabilityResult>() {
+                            @Override
+                            public void onResult(CapabilityApi.RemoveLocalCapabilityResult
+                                    removeLocalCapabilityResult) {
+                                callback.onResult(removeLocalCapabilityResult.getStatus()
+                                        .getStatusCode(), null);
+                            }
+                        });
+    }
+
+    @Override
+    public void getCapability(String capability, final Callback<Set<TransportNode>> callback) {
+        Wearable.CapabilityApi.getCapability(mGoogleApiClient, capability,
+                CapabilityApi.FILTER_REACHABLE).setResultCallback(
+                new ResultCallback<CapabilityApi.GetCapabilityResult>() {
+                    @Override
+                    public void onResult(CapabilityApi.GetCapabilityResult getCapabilityResult) {
+                        Status status = getCapabilityResult.getStatus();
+                        callback.onResult(status.getStatusCode(), status.isSuccess()
+                                ? toTransportNodes(getCapabilityResult.getCapability().getNodes())
+                                : null);
+                    }
+                });
+    }
+
+    @Override
+    public void openChannel(String nodeId, String path,
+            final Callback<TransportChannel> callback) {
+        Wearable.ChannelApi.openChannel(mGoogleApiClient, nodeId, path).setResultCallback(
+                new ResultCallback<ChannelApi.OpenChannelResult>() {
+                    @Override
+                    public void onResult(ChannelApi.OpenChannelResult openChannelResult) {
+                        Status status = openChannelResult.getStatus();
+                        callback.onResult(status.getStatusCode(), status.isSuccess()
+                                ? new WearableChannel(openChannelResult.getChannel()) : null);
+                    }
+                });
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void dispatchMessageReceived(MessageEvent messageEvent) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMessageReceived(new TransportMessage(messageEvent.getSourceNodeId(),
+                    messageEvent.getPath(), messageEvent.getData(), messageEvent.getRequestId()));
+        }
+    }
+
+    public void dispatchDataChanged(DataEvent dataEvent) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onDataChanged(toTransportDataItem(dataEvent.getDataItem()),
+                    dataEvent.getType() == DataEvent.TYPE_DELETED);
+        }
+    }
+
+    public void dispatchPeerConnected(Node node) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onPeerConnected(toTransportNode(node));
+        }
+    }
+
+    public void dispatchPeerDisconnected(Node node) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onPeerDisconnected(toTransportNode(node));
+        }
+    }
+
+    public void dispatchCapabilityChanged(CapabilityInfo capabilityInfo) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCapabilityChanged(capabilityInfo.getName(),
+                    toTransportNodes(capabilityInfo.getNodes()));
+        }
+    }
+
+    public void dispatchChannelOpened(Channel channel) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onChannelOpened(toTransportChannel(channel));
+        }
+    }
+
+    /**
+     * Returns {@code channel} as a {@link TransportChannel} of this transport. The channels
+     * returned for the same {@link Channel} are equal.
+     */
+    public TransportChannel toTransportChannel(Channel channel) {
+        return new WearableChannel(channel);
+    }
+
+    /**
+     * Returns the {@link Channel} behind {@code channel}, or {@code null} if it wasn't opened or
+     * dispatched by a {@code WearableTransport}.
+     */
+    public static Channel getChannel(TransportChannel channel) {
+        return channel instanceof WearableChannel ? ((WearableChannel) channel).mChannel : null;
+    }
+
+    private static TransportNode toTransportNode(Node node) {
+        return new TransportNode(node.getId(), node.getDisplayName(), node.isNearby());
+    }
+
+    private static Set<TransportNode> toTransportNodes(Collection<Node> nodes) {
+        Set<TransportNode> transportNodes = new HashSet<>();
+        for (Node node : nodes) {
+            transportNodes.add(toTransportNode(node));
+        }
+        return transportNodes;
+    }
+
+    private static TransportDataItem toTransportDataItem(DataItem dataItem) {
+        Uri uri = dataItem.getUri();
+        return new TransportDataItem(uri.getHost(), uri.getPath(), dataItem.getData());
+    }
+
+    /**
+     * A {@link TransportChannel} over a {@link Channel}. The streams are obtained by blocking on
+     * the Channel APIs, so they must be requested on a worker thread.
+     */
+    private final class WearableChannel implements TransportChannel {
+        private final Channel mChannel;
+
+        WearableChannel(Channel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public String getNodeId() {
+            return mChannel.getNodeId();
+        }
+
+        @Override
+        public String getPath() {
+            return mChannel.getPath();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            Channel.GetInputStreamResult result = mChannel.getInputStream(mGoogleApiClient)
+                    .await();
+            if (!result.getStatus().isSuccess()) {
+                throw new IOException("Failed to get the input stream, status code: "
+                        + result.getStatus().getStatusCode());
+            }
+            return result.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            Channel.GetOutputStreamResult result = mChannel.getOutputStream(mGoogleApiClient)
+                    .await();
+            if (!result.getStatus().isSuccess()) {
+                throw new IOException("Failed to get the output stream, status code: "
+                        + result.getStatus().getStatusCode());
+            }
+            return result.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            mChannel.close(mGoogleApiClient);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WearableChannel && mChannel.equals(((WearableChannel) o).mChannel);
+        }
+
+        @Override
+        public int hashCode() {
+            return mChannel.hashCode();
+        }
+    }
+}
@@ -84,9 +84,8 @@ public class AppVisibilityDetector {
     }
 
     private void incrementUiCounter() {
-        WearUtil.logD(TAG,
-                "decrementUiCounter() Old Values: counter = " + mCounter + ", mUiVisible: "
-                        + mUiVisible);
+        WearLog.d(TAG, "decrementUiCounter() Old Values: counter = {}, mUiVisible: {}", mCounter,
+                mUiVisible);
         mCounter++;
         if (!mUiVisible) {
             mUiVisible = true;
@@ -96,9 +95,8 @@ public class AppVisibilityDetector {
     }
 
     private void decrementUiCounter() {
-        WearUtil.logD(TAG,
-                "decrementUiCounter() Old Values: counter = " + mCounter + ", mUiVisible: "
-                        + mUiVisible);
+        WearLog.d(TAG, "decrementUiCounter() Old Values: counter = {}, mUiVisible: {}", mCounter,
+                mUiVisible);
         if (--mCounter <= 0) {
             mCounter = 0;
             if (mUiVisible) {
@@ -135,13 +133,13 @@ public class AppVisibilityDetector {
 
         @Override
         public void onActivityStarted(Activity activity) {
-            WearUtil.logD(TAG, "onActivityResumed()");
+            WearLog.d(TAG, "onActivityResumed()");
             incrementUiCounter();
         }
 
         @Override
         public void onActivityStopped(Activity activity) {
-            WearUtil.logD(TAG, "onActivityPaused()");
+            WearLog.d(TAG, "onActivityPaused()");
             decrementUiCounter();
         }
 
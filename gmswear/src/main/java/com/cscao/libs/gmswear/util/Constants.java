@@ -26,10 +26,28 @@ public class Constants {
             = "/com.cscao.libs.gmswear/transfer/file/";
     public static final String PATH_FILE_TRANSFER_TYPE_STREAM
             = "/com.cscao.libs.gmswear/transfer/stream/";
+    public static final String PATH_FILE_TRANSFER_TYPE_DELTA
+            = "/com.cscao.libs.gmswear/transfer/delta/";
+    public static final String PATH_FILE_TRANSFER_TYPE_DEDUP
+            = "/com.cscao.libs.gmswear/transfer/dedup/";
+    public static final String PATH_FILE_TRANSFER_TYPE_SENSOR
+            = "/com.cscao.libs.gmswear/transfer/sensor/";
+    // Paths of the latency probes exchanged between the library on both nodes
+    public static final String PATH_PING = "/com.cscao.libs.gmswear/ping";
+    public static final String PATH_PONG = "/com.cscao.libs.gmswear/pong";
+    // Paths of the clock synchronization exchanged between the library on both nodes
+    public static final String PATH_TIME_SYNC = "/com.cscao.libs.gmswear/time-sync";
+    public static final String PATH_TIME_SYNC_REPLY = "/com.cscao.libs.gmswear/time-sync-reply";
+    // Messages that carry a MessageHeader are sent under this path, and only to the nodes that
+    // advertise the capability below
+    public static final String PATH_MESSAGE_HEADER_PREFIX = "/com.cscao.libs.gmswear/header";
+    public static final String CAPABILITY_MESSAGE_HEADER = "com.cscao.libs.gmswear.header.v2";
 //    public static final String DATA_PATH_PREFIX = "/com.cscao.libs.gmswear/data/";
 //    public static final String ASSET_PATH_PREFIX = "/com.cscao.libs.gmswear/asset/";
 //    public static final String MSG_PATH_PREFIX = "/com.cscao.libs.gmswear/msg/";
 
     public static final String KEY_TIMESTAMP = "com.cscao.libs.gmswear.KEY_TIMESTAMP";
+    public static final String KEY_SEND_TIME = "com.cscao.libs.gmswear.KEY_SEND_TIME";
+    public static final String KEY_TRACE_ID = "com.cscao.libs.gmswear.KEY_TRACE_ID";
 
 }
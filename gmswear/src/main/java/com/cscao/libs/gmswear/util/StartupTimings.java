@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of the startup of {@link com.cscao.libs.gmswear.GmsWear} took, in
+ * the order the phases started. Only the first run of a phase is recorded, so reconnections don't
+ * overwrite the numbers of the cold start.
+ */
+public final class StartupTimings {
+
+    public static final String PHASE_BUILD_CLIENT = "build_client";
+    public static final String PHASE_REGISTER_VISIBILITY = "register_visibility_detector";
+    public static final String PHASE_DEFERRED = "deferred";
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_CAPABILITY_DISCOVERY = "capability_discovery";
+    public static final String PHASE_NODE_DISCOVERY = "node_discovery";
+
+    private final long mCreatedAtMillis = nowMillis();
+    private final Map<String, long[]> mPhases = new LinkedHashMap<>();
+    private String mConnectTrigger;
+
+    /**
+     * Marks the start of {@code phase}; has no effect if the phase already started.
+     */
+    public synchronized void begin(String phase) {
+        if (!mPhases.containsKey(phase)) {
+            mPhases.put(phase, new long[]{nowMillis(), -1});
+        }
+    }
+
+    /**
+     * Marks the end of {@code phase}; has no effect if the phase did not start or already ended.
+     */
+    public synchronized void end(String phase) {
+        long[] times = mPhases.get(phase);
+        if (times != null && times[1] < 0) {
+            times[1] = nowMillis();
+        }
+    }
+
+    /**
+     * Records what caused the first connection, e.g. {@code "initialize"}, {@code "foreground"}
+     * or {@code "api_use"}.
+     */
+    public synchronized void setConnectTrigger(String trigger) {
+        if (mConnectTrigger == null) {
+            mConnectTrigger = trigger;
+        }
+    }
+
+    public synchronized String getConnectTrigger() {
+        return mConnectTrigger;
+    }
+
+    /**
+     * Returns how long {@code phase} took, or -1 if it has not ended (or started) yet.
+     */
+    public synchronized long getDurationMillis(String phase) {
+        long[] times = mPhases.get(phase);
+        return times == null || times[1] < 0 ? -1 : times[1] - times[0];
+    }
+
+    /**
+     * Returns the duration of every phase that ended, in the order the phases started.
+     */
+    public synchronized Map<String, Long> getDurations() {
+        Map<String, Long> durations = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : mPhases.entrySet()) {
+            long[] times = entry.getValue();
+            if (times[1] >= 0) {
+                durations.put(entry.getKey(), times[1] - times[0]);
+            }
+        }
+        return Collections.unmodifiableMap(durations);
+    }
+
+    /**
+     * Returns the time from the creation of this object until the last phase ended.
+     */
+    public synchronized long getTotalMillis() {
+        long last = mCreatedAtMillis;
+        for (long[] times : mPhases.values()) {
+            last = Math.max(last, times[1]);
+        }
+        return last - mCreatedAtMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("StartupTimings{");
+        for (Map.Entry<String, Long> entry : getDurations().entrySet()) {
+            builder.append(entry.getKey()).append('=').append(entry.getValue()).append("ms, ");
+        }
+        return builder.append("trigger=").append(mConnectTrigger)
+                .append(", total=").append(getTotalMillis()).append("ms}").toString();
+    }
+
+    /**
+     * Only the durations are reported, so any monotonic clock does; this one also runs on the JVM.
+     */
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
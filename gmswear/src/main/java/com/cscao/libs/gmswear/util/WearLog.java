@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.util;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The logging facade of the library. Messages are format strings with {@code {}} placeholders,
+ * filled in with the arguments only once a message is known to be logged, so that a disabled call
+ * costs a single comparison and allocates nothing:
+ * <pre>
+ * WearLog.d(TAG, "Received a message with path: {}", messageEvent.getPath());
+ * </pre>
+ * Messages go to two sinks, each with its own minimum level:
+ * <ul>
+ * <li>logcat, from {@link Log#INFO} by default, or {@link Log#DEBUG} if the {@value #TAG} tag is
+ * loggable at that level when the library is loaded
+ * ({@code adb shell setprop log.tag.GmsWear DEBUG});</li>
+ * <li>an in-memory ring buffer of the last {@link #RING_CAPACITY} messages, also from
+ * {@link Log#INFO} by default, which can be written out on demand with
+ * {@link #dump(PrintWriter)}, e.g. from a bug report. Writing to it doesn't take locks and
+ * doesn't allocate: the arguments are kept as they are and only formatted when dumped, so they
+ * should be immutable values.</li>
+ * </ul>
+ * On hot paths, debug and info messages can also be sampled, see {@link #setSampleRate(int)}.
+ * Warnings and errors are never sampled.
+ */
+public final class WearLog {
+
+    public static final String TAG = "GmsWear";
+    public static final int RING_CAPACITY = 1024;
+    private static final String PLACEHOLDER = "{}";
+
+    private static volatile int sLogcatLevel = defaultLogcatLevel();
+    private static volatile int sRingLevel = Log.INFO;
+    private static volatile int sThreshold = Math.min(sLogcatLevel, sRingLevel);
+    private static volatile int sSampleRate = 1;
+    private static final AtomicLong sSampleCounter = new AtomicLong();
+
+    private static final AtomicLong sRingSequence = new AtomicLong();
+    private static volatile long sRingStart;
+    private static final AtomicLongArray sRingSequences = new AtomicLongArray(RING_CAPACITY);
+    private static final long[] sRingTimes = new long[RING_CAPACITY];
+    private static final long[] sRingThreadIds = new long[RING_CAPACITY];
+    private static final byte[] sRingLevels = new byte[RING_CAPACITY];
+    private static final byte[] sRingArgCounts = new byte[RING_CAPACITY];
+    private static final String[] sRingTags = new String[RING_CAPACITY];
+    private static final String[] sRingFormats = new String[RING_CAPACITY];
+    private static final Object[] sRingArgs1 = new Object[RING_CAPACITY];
+    private static final Object[] sRingArgs2 = new Object[RING_CAPACITY];
+    private static final Object[] sRingArgs3 = new Object[RING_CAPACITY];
+    private static final Throwable[] sRingThrowables = new Throwable[RING_CAPACITY];
+
+    static {
+        for (int i = 0; i < RING_CAPACITY; i++) {
+            sRingSequences.set(i, -1);
+        }
+    }
+
+    private WearLog() {
+    }
+
+    /**
+     * Sets the minimum level of the messages written to logcat, e.g. {@link Log#DEBUG}.
+     */
+    public static void setLevel(int level) {
+        sLogcatLevel = level;
+        sThreshold = Math.min(sLogcatLevel, sRingLevel);
+    }
+
+    public static int getLevel() {
+        return sLogcatLevel;
+    }
+
+    /**
+     * Sets the minimum level of the messages kept in the ring buffer.
+     */
+    public static void setRingLevel(int level) {
+        sRingLevel = level;
+        sThreshold = Math.min(sLogcatLevel, sRingLevel);
+    }
+
+    public static int getRingLevel() {
+        return sRingLevel;
+    }
+
+    /**
+     * Keeps only one in {@code oneIn} of the debug and info messages that would be logged, to
+     * bound the cost of logging on hot paths; 1 keeps them all, which is the default.
+     */
+    public static void setSampleRate(int oneIn) {
+        if (oneIn < 1) {
+            throw new IllegalArgumentException("oneIn should be at least 1");
+        }
+        sSampleRate = oneIn;
+    }
+
+    /**
+     * Returns {@code true} if a message of {@code level} would go to either sink. Callers only need
+     * this to skip computing expensive arguments.
+     */
+    public static boolean isEnabled(int level) {
+        return level >= sThreshold;
+    }
+
+    public static void d(String tag, String message) {
+        if (Log.DEBUG >= sThreshold) {
+            log(Log.DEBUG, 0, tag, message, null, null, null, null);
+        }
+    }
+
+    public static void d(String tag, String format, @Nullable Object arg) {
+        if (Log.DEBUG >= sThreshold) {
+            log(Log.DEBUG, 1, tag, format, arg, null, null, null);
+        }
+    }
+
+    public static void d(String tag, String format, long arg) {
+        if (Log.DEBUG >= sThreshold) {
+            log(Log.DEBUG, 1, tag, format, arg, null, null, null);
+        }
+    }
+
+    public static void d(String tag, String format, @Nullable Object arg1,
+            @Nullable Object arg2) {
+        if (Log.DEBUG >= sThreshold) {
+            log(Log.DEBUG, 2, tag, format, arg1, arg2, null, null);
+        }
+    }
+
+    public static void d(String tag, String format, long arg1, long arg2) {
+        if (Log.DEBUG >= sThreshold) {
+            log(Log.DEBUG, 2, tag, format, arg1, arg2, null, null);
+        }
+    }
+
+    public static void d(String tag, String format, @Nullable Object arg1, @Nullable Object arg2,
+            @Nullable Object arg3) {
+        if (Log.DEBUG >= sThreshold) {
+            log(Log.DEBUG, 3, tag, format, arg1, arg2, arg3, null);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (Log.INFO >= sThreshold) {
+            log(Log.INFO, 0, tag, message, null, null, null, null);
+        }
+    }
+
+    public static void i(String tag, String format, @Nullable Object arg) {
+        if (Log.INFO >= sThreshold) {
+            log(Log.INFO, 1, tag, format, arg, null, null, null);
+        }
+    }
+
+    public static void i(String tag, String format, long arg) {
+        if (Log.INFO >= sThreshold) {
+            log(Log.INFO, 1, tag, format, arg, null, null, null);
+        }
+    }
+
+    public static void i(String tag, String format, @Nullable Object arg1,
+            @Nullable Object arg2) {
+        if (Log.INFO >= sThreshold) {
+            log(Log.INFO, 2, tag, format, arg1, arg2, null, null);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (Log.WARN >= sThreshold) {
+            log(Log.WARN, 0, tag, message, null, null, null, null);
+        }
+    }
+
+    public static void w(String tag, String message, @Nullable Throwable throwable) {
+        if (Log.WARN >= sThreshold) {
+            log(Log.WARN, 0, tag, message, null, null, null, throwable);
+        }
+    }
+
+    public static void w(String tag, String format, @Nullable Object arg) {
+        if (Log.WARN >= sThreshold) {
+            log(Log.WARN, 1, tag, format, arg, null, null, null);
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (Log.ERROR >= sThreshold) {
+            log(Log.ERROR, 0, tag, message, null, null, null, null);
+        }
+    }
+
+    public static void e(String tag, String message, @Nullable Throwable throwable) {
+        if (Log.ERROR >= sThreshold) {
+            log(Log.ERROR, 0, tag, message, null, null, null, throwable);
+        }
+    }
+
+    public static void e(String tag, String format, @Nullable Object arg) {
+        if (Log.ERROR >= sThreshold) {
+            log(Log.ERROR, 1, tag, format, arg, null, null, null);
+        }
+    }
+
+    public static void e(String tag, String format, @Nullable Object arg,
+            @Nullable Throwable throwable) {
+        if (Log.ERROR >= sThreshold) {
+            log(Log.ERROR, 1, tag, format, arg, null, null, throwable);
+        }
+    }
+
+    public static void e(String tag, String format, @Nullable Object arg1,
+            @Nullable Object arg2) {
+        if (Log.ERROR >= sThreshold) {
+            log(Log.ERROR, 2, tag, format, arg1, arg2, null, null);
+        }
+    }
+
+    public static void e(String tag, String format, @Nullable Object arg1,
+            @Nullable Object arg2, @Nullable Throwable throwable) {
+        if (Log.ERROR >= sThreshold) {
+            log(Log.ERROR, 2, tag, format, arg1, arg2, null, throwable);
+        }
+    }
+
+    private static int defaultLogcatLevel() {
+        try {
+            return Log.isLoggable(TAG, Log.DEBUG) ? Log.DEBUG : Log.INFO;
+        } catch (RuntimeException e) {
+            // the stubs of android.jar, when the library runs on the JVM in the benchmarks
+            return Log.INFO;
+        }
+    }
+
+    private static void log(int level, int argCount, String tag, String format, Object arg1,
+            Object arg2, Object arg3, Throwable throwable) {
+        int sampleRate = sSampleRate;
+        if (sampleRate > 1 && level < Log.WARN
+                && sSampleCounter.getAndIncrement() % sampleRate != 0) {
+            return;
+        }
+        if (level >= sRingLevel) {
+            writeToRing(level, argCount, tag, format, arg1, arg2, arg3, throwable);
+        }
+        if (level >= sLogcatLevel) {
+            String message = format(format, argCount, arg1, arg2, arg3);
+            if (throwable != null) {
+                message = message + '\n' + Log.getStackTraceString(throwable);
+            }
+            Log.println(level, tag, message);
+        }
+    }
+
+    private static void writeToRing(int level, int argCount, String tag, String format,
+            Object arg1, Object arg2, Object arg3, Throwable throwable) {
+        long sequence = sRingSequence.getAndIncrement();
+        int slot = (int) (sequence % RING_CAPACITY);
+        // mark the slot as being written so that dump() skips it
+        sRingSequences.set(slot, -1);
+        sRingTimes[slot] = System.currentTimeMillis();
+        sRingThreadIds[slot] = Thread.currentThread().getId();
+        sRingLevels[slot] = (byte) level;
+        sRingArgCounts[slot] = (byte) argCount;
+        sRingTags[slot] = tag;
+        sRingFormats[slot] = format;
+        sRingArgs1[slot] = arg1;
+        sRingArgs2[slot] = arg2;
+        sRingArgs3[slot] = arg3;
+        sRingThrowables[slot] = throwable;
+        sRingSequences.set(slot, sequence);
+    }
+
+    /**
+     * Writes the messages in the ring buffer to {@code writer}, oldest first. Messages being
+     * written while this runs are skipped.
+     */
+    public static void dump(PrintWriter writer) {
+        long end = sRingSequence.get();
+        long start = Math.max(sRingStart, end - RING_CAPACITY);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        writer.println("WearLog: logcat level " + levelToChar(sLogcatLevel) + ", ring level "
+                + levelToChar(sRingLevel) + ", sampling 1/" + sSampleRate + ", "
+                + (end - start) + " of " + end + " messages");
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence % RING_CAPACITY);
+            Throwable throwable = sRingThrowables[slot];
+            String line = readSlot(slot, sequence, Log.VERBOSE, false, dateFormat, date);
+            if (line == null) {
+                continue;
+            }
+            writer.println(line);
+            if (throwable != null) {
+                throwable.printStackTrace(writer);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Returns up to {@code max} of the most recent messages of the ring buffer that were logged
+     * at {@code minLevel} or above, oldest first, formatted as they are by
+     * {@link #dump(PrintWriter)} but without stack traces. For instance,
+     * {@code recent(Log.WARN, 10)} lists the last ten warnings and errors.
+     */
+    public static List<String> recent(int minLevel, int max) {
+        long end = sRingSequence.get();
+        long start = Math.max(sRingStart, end - RING_CAPACITY);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        LinkedList<String> result = new LinkedList<>();
+        for (long sequence = end - 1; sequence >= start && result.size() < max; sequence--) {
+            String line = readSlot((int) (sequence % RING_CAPACITY), sequence, minLevel, true,
+                    dateFormat, date);
+            if (line != null) {
+                result.addFirst(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Formats the message held in {@code slot}, or returns {@code null} if the slot no longer
+     * holds message {@code sequence} or its level is below {@code minLevel}. The throwable is
+     * appended to the line if {@code withThrowable} is set.
+     */
+    private static String readSlot(int slot, long sequence, int minLevel, boolean withThrowable,
+            SimpleDateFormat dateFormat, Date date) {
+        if (sRingSequences.get(slot) != sequence || sRingLevels[slot] < minLevel) {
+            return null;
+        }
+        long time = sRingTimes[slot];
+        long threadId = sRingThreadIds[slot];
+        int level = sRingLevels[slot];
+        String tag = sRingTags[slot];
+        String message = format(sRingFormats[slot], sRingArgCounts[slot], sRingArgs1[slot],
+                sRingArgs2[slot], sRingArgs3[slot]);
+        Throwable throwable = sRingThrowables[slot];
+        if (sRingSequences.get(slot) != sequence) {
+            // overwritten while it was read
+            return null;
+        }
+        date.setTime(time);
+        String line = dateFormat.format(date) + " " + levelToChar(level) + "/" + tag + "("
+                + threadId + "): " + message;
+        return withThrowable && throwable != null ? line + ": " + throwable : line;
+    }
+
+    /**
+     * Empties the ring buffer.
+     */
+    public static void clear() {
+        sRingStart = sRingSequence.get();
+        for (int i = 0; i < RING_CAPACITY; i++) {
+            sRingSequences.set(i, -1);
+            sRingArgs1[i] = null;
+            sRingArgs2[i] = null;
+            sRingArgs3[i] = null;
+            sRingThrowables[i] = null;
+        }
+    }
+
+    /**
+     * Replaces the first {@code argCount} {@code {}} placeholders of {@code format} with the
+     * arguments, in order. Other placeholders are left as they are.
+     */
+    static String format(String format, int argCount, Object arg1, Object arg2, Object arg3) {
+        if (format == null || argCount == 0) {
+            return format;
+        }
+        StringBuilder builder = new StringBuilder(format.length() + 32);
+        int from = 0;
+        for (int i = 0; i < argCount; i++) {
+            int index = format.indexOf(PLACEHOLDER, from);
+            if (index < 0) {
+                break;
+            }
+            Object arg = i == 0 ? arg1 : i == 1 ? arg2 : arg3;
+            builder.append(format, from, index).append(arg);
+            from = index + PLACEHOLDER.length();
+        }
+        return builder.append(format, from, format.length()).toString();
+    }
+
+    private static char levelToChar(int level) {
+        switch (level) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.INFO:
+                return 'I';
+            case Log.WARN:
+                return 'W';
+            case Log.ERROR:
+                return 'E';
+            default:
+                return 'A';
+        }
+    }
+}
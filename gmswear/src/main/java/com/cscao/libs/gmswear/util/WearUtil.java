@@ -28,13 +28,15 @@ import android.os.Build;
 import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.Node;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Set;
 import java.util.UUID;
 
@@ -48,8 +50,6 @@ public class WearUtil {
     public static final int WIFI_NO_CONNECTION = 2;
     public static final int WIFI_CONNECTED = 3;
 
-    private static final boolean DEBUG = false;
-
     /**
      * Returns the status of wifi connectivity. The possible states are
      * <ul>
@@ -66,7 +66,7 @@ public class WearUtil {
         ConnectivityManager connectivityManager = (ConnectivityManager) context
                 .getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo networkInfo = connectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-        if (!networkInfo.isConnected()) {
+        if (networkInfo == null || !networkInfo.isConnected()) {
             return WIFI_NO_CONNECTION;
         }
         return WIFI_CONNECTED;
@@ -91,7 +91,9 @@ public class WearUtil {
      * Returns {@code true} if and only if the current thread is the UI thread.
      */
     public static boolean isUiThread() {
-        return Looper.getMainLooper().equals(Looper.myLooper());
+        // there is no main looper when GmsWear runs over a LoopbackNetwork on the JVM
+        Looper mainLooper = Looper.getMainLooper();
+        return mainLooper != null && mainLooper.equals(Looper.myLooper());
     }
 
     /**
@@ -164,6 +166,41 @@ public class WearUtil {
         }
     }
 
+    /**
+     * Copies at most {@code maxBytes} bytes, or all of them if {@code maxBytes} is negative, from
+     * {@code in} to {@code out}. Neither stream is closed.
+     *
+     * @return The number of bytes copied.
+     */
+    public static long copy(InputStream in, OutputStream out, long maxBytes) throws IOException {
+        byte[] buffer = new byte[8192];
+        long copied = 0;
+        while (maxBytes < 0 || copied < maxBytes) {
+            int length = maxBytes < 0 ? buffer.length
+                    : (int) Math.min(buffer.length, maxBytes - copied);
+            int read = in.read(buffer, 0, length);
+            if (read < 0) {
+                break;
+            }
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Closes {@code closeable} if it is not {@code null}, ignoring any {@link IOException}.
+     */
+    public static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
     /**
      * Determines if the wear device has a built-in speaker or not.
      * <p>
@@ -200,10 +237,12 @@ public class WearUtil {
 
     /**
      * A simple wrapper around Log.d
+     *
+     * @deprecated Use {@link WearLog#d(String, String, Object)}, which doesn't need the message to
+     * be built when debug logging is off.
      */
+    @Deprecated
     public static void logD(String tag, String message) {
-        if (DEBUG || Log.isLoggable(tag, Log.DEBUG)) {
-            Log.d(tag, message);
-        }
+        WearLog.d(tag, message);
     }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import com.google.android.gms.common.ConnectionResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionSupervisorTest {
+
+    private ManualTimer mTimer;
+    private int mConnectCount;
+    private final List<Integer> mGaveUp = new ArrayList<>();
+    private ConnectionSupervisor mSupervisor;
+
+    @Before
+    public void setUp() {
+        mTimer = new ManualTimer();
+        mSupervisor = new ConnectionSupervisor(new ConnectionSupervisor.Connector() {
+            @Override
+            public void connect() {
+                mConnectCount++;
+            }
+        }, mTimer);
+        mSupervisor.addListener(new ConnectionSupervisor.Listener() {
+            @Override
+            public void onGaveUp(int errorCode) {
+                mGaveUp.add(errorCode);
+            }
+        });
+        mSupervisor.start();
+    }
+
+    @After
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void recoverableFailureIsRetried() {
+        mSupervisor.onConnectionFailed(ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED);
+
+        assertEquals(1, mTimer.getScheduledCount());
+        mTimer.runScheduled();
+        assertEquals(2, mConnectCount);
+        assertFalse(mSupervisor.hasGivenUp());
+        assertTrue(mGaveUp.isEmpty());
+    }
+
+    @Test
+    public void unrecoverableFailureStopsRetrying() {
+        mSupervisor.onConnectionFailed(ConnectionResult.SERVICE_MISSING);
+        mSupervisor.onDisconnected();
+        mSupervisor.onConnectionFailed(ConnectionResult.API_UNAVAILABLE);
+
+        assertEquals(0, mTimer.getScheduledCount());
+        assertEquals(1, mConnectCount);
+        assertTrue(mSupervisor.hasGivenUp());
+        assertEquals(1, mGaveUp.size());
+        assertEquals(ConnectionResult.SERVICE_MISSING, (int) mGaveUp.get(0));
+        assertEquals(ConnectionResult.SERVICE_MISSING,
+                mSupervisor.getStats().getGiveUpErrorCode());
+    }
+
+    @Test
+    public void unrecoverableFailureCancelsPendingReconnect() {
+        mSupervisor.onDisconnected();
+        assertEquals(1, mTimer.getScheduledCount());
+        ManualFuture reconnect = mTimer.getScheduled(0);
+        mSupervisor.onConnectionFailed(ConnectionResult.SERVICE_INVALID);
+
+        assertTrue(reconnect.isCancelled());
+        mTimer.runScheduled();
+        assertEquals(1, mConnectCount);
+    }
+
+    @Test
+    public void operationsAreDroppedOnceGivenUp() {
+        RecordingOperation queued = new RecordingOperation();
+        mSupervisor.execute(queued);
+
+        mSupervisor.onConnectionFailed(ConnectionResult.SERVICE_INVALID);
+        assertTrue(queued.mDropped);
+
+        RecordingOperation later = new RecordingOperation();
+        mSupervisor.execute(later);
+        assertTrue(later.mDropped);
+        assertFalse(later.mRan);
+        assertEquals(0, mSupervisor.getStats().getQueueSize());
+        assertEquals(2, mSupervisor.getStats().getDroppedCount());
+    }
+
+    @Test
+    public void retryStartsOver() {
+        mSupervisor.onConnectionFailed(ConnectionResult.SERVICE_MISSING);
+        mSupervisor.retry();
+
+        assertEquals(2, mConnectCount);
+        assertFalse(mSupervisor.hasGivenUp());
+
+        RecordingOperation operation = new RecordingOperation();
+        mSupervisor.execute(operation);
+        mSupervisor.onConnected();
+        assertTrue(operation.mRan);
+    }
+
+    private static final class RecordingOperation implements ConnectionSupervisor.Operation {
+        private boolean mRan;
+        private boolean mDropped;
+
+        @Override
+        public void run() {
+            mRan = true;
+        }
+
+        @Override
+        public void onDropped() {
+            mDropped = true;
+        }
+    }
+
+    /**
+     * Keeps the scheduled tasks until {@link #runScheduled()} is called, instead of running them
+     * after their delay.
+     */
+    private static final class ManualTimer extends ScheduledThreadPoolExecutor {
+        private final List<ManualFuture> mScheduled = new ArrayList<>();
+
+        ManualTimer() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            ManualFuture future = new ManualFuture(command, unit.toMillis(delay));
+            mScheduled.add(future);
+            return future;
+        }
+
+        int getScheduledCount() {
+            return mScheduled.size();
+        }
+
+        ManualFuture getScheduled(int index) {
+            return mScheduled.get(index);
+        }
+
+        /**
+         * Runs the scheduled tasks that were not cancelled.
+         */
+        void runScheduled() {
+            List<ManualFuture> scheduled = new ArrayList<>(mScheduled);
+            mScheduled.clear();
+            for (ManualFuture future : scheduled) {
+                future.run();
+            }
+        }
+    }
+
+    /**
+     * The handle of a task kept by {@link ManualTimer}, which records whether it was cancelled.
+     */
+    private static final class ManualFuture implements ScheduledFuture<Object> {
+        private final Runnable mCommand;
+        private final long mDelayMillis;
+        private boolean mCancelled;
+        private boolean mDone;
+
+        ManualFuture(Runnable command, long delayMillis) {
+            mCommand = command;
+            mDelayMillis = delayMillis;
+        }
+
+        void run() {
+            if (mCancelled || mDone) {
+                return;
+            }
+            mDone = true;
+            mCommand.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mDone) {
+                return false;
+            }
+            mCancelled = true;
+            mDone = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone;
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) {
+            return null;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS),
+                    other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
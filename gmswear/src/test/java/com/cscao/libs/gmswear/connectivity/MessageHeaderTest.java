@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Puts {@link MessageHeader}s in front of payloads and parses them back, and checks that data
+ * that doesn't start with a valid header is not taken for one.
+ */
+public class MessageHeaderTest {
+
+    private static final byte[] PAYLOAD = {1, 2, 3, 4, 5};
+
+    @Test
+    public void noFieldsMeansNoHeader() {
+        assertNull(MessageHeader.create(-1, 0));
+    }
+
+    @Test
+    public void sendTimeAndTraceIdRoundTrip() {
+        byte[] data = MessageHeader.create(123456789L, 0xabcdefL).prependTo(PAYLOAD);
+
+        MessageHeader header = MessageHeader.parse(data);
+        assertTrue(header.hasSendTime());
+        assertEquals(123456789L, header.getSendTimeMicros());
+        assertTrue(header.hasTraceId());
+        assertEquals(0xabcdefL, header.getTraceId());
+        assertFalse(header.hasDeadline());
+        assertEquals(6 + 8 + 8, header.getSize());
+        assertEquals(MessageHeader.VERSION, data[4]);
+        assertArrayEquals(PAYLOAD, header.stripFrom(data));
+    }
+
+    @Test
+    public void fieldsAreOptional() {
+        MessageHeader header = MessageHeader.parse(MessageHeader.create(-1, 7).prependTo(PAYLOAD));
+
+        assertFalse(header.hasSendTime());
+        assertEquals(-1, header.getSendTimeMicros());
+        assertEquals(7, header.getTraceId());
+        assertEquals(6 + 8, header.getSize());
+    }
+
+    @Test
+    public void deadlineUsesTheNewerVersion() {
+        byte[] data = MessageHeader.create(1, 2, 5000).prependTo(PAYLOAD);
+
+        MessageHeader header = MessageHeader.parse(data);
+        assertTrue(header.hasDeadline());
+        assertEquals(5000, header.getDeadlineMicros());
+        assertEquals(1, header.getSendTimeMicros());
+        assertEquals(2, header.getTraceId());
+        assertEquals(MessageHeader.VERSION_DEADLINE, data[4]);
+        assertArrayEquals(PAYLOAD, header.stripFrom(data));
+    }
+
+    @Test
+    public void deadlineAloneMakesAHeader() {
+        MessageHeader header = MessageHeader.parse(
+                MessageHeader.create(-1, 0, 0).prependTo(null));
+
+        assertFalse(header.hasSendTime());
+        assertFalse(header.hasTraceId());
+        assertEquals(0, header.getDeadlineMicros());
+        assertNull(MessageHeader.create(-1, 0, -1));
+    }
+
+    @Test
+    public void deadlineFlagIsIgnoredInTheOriginalVersion() {
+        byte[] data = MessageHeader.create(1, 2, 5000).prependTo(PAYLOAD);
+        data[4] = (byte) MessageHeader.VERSION;
+
+        MessageHeader header = MessageHeader.parse(data);
+        assertFalse(header.hasDeadline());
+        assertEquals(-1, header.getDeadlineMicros());
+        assertEquals(6 + 8 + 8, header.getSize());
+    }
+
+    @Test
+    public void emptyPayloadRoundTrips() {
+        MessageHeader created = MessageHeader.create(1, 2);
+        byte[] data = created.prependTo(null);
+
+        assertEquals(created.getSize(), data.length);
+        assertEquals(0, MessageHeader.parse(data).stripFrom(data).length);
+        assertArrayEquals(data, created.prependTo(new byte[0]));
+    }
+
+    @Test
+    public void dataWithoutAHeaderIsNotParsed() {
+        assertNull(MessageHeader.parse(null));
+        assertNull(MessageHeader.parse(new byte[0]));
+        assertNull(MessageHeader.parse(PAYLOAD));
+        assertNull(MessageHeader.parse(new byte[64]));
+    }
+
+    @Test
+    public void truncatedHeaderIsNotParsed() {
+        byte[] data = MessageHeader.create(1, 2, 3).prependTo(null);
+
+        for (int length = 0; length < data.length; length++) {
+            assertNull(MessageHeader.parse(Arrays.copyOf(data, length)));
+        }
+    }
+
+    @Test
+    public void unknownVersionIsNotParsed() {
+        byte[] data = MessageHeader.create(1, 2).prependTo(PAYLOAD);
+        data[4] = 9;
+
+        assertNull(MessageHeader.parse(data));
+    }
+
+    @Test
+    public void magicIsChecked() {
+        byte[] data = MessageHeader.create(1, 2).prependTo(PAYLOAD);
+        ByteBuffer.wrap(data).putInt(MessageHeader.MAGIC + 1);
+
+        assertNull(MessageHeader.parse(data));
+    }
+}
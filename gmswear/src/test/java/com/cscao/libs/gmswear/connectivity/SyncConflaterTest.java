@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Offers writes to a {@link SyncConflater} and checks what reaches its {@link SyncConflater.Sink}.
+ * The writes are strings, since the conflater only hands them on.
+ */
+public class SyncConflaterTest {
+
+    private static final String PATH = "/state";
+    private static final long LONG_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private RecordingSink mSink;
+    private ScheduledThreadPoolExecutor mExecutor;
+    private SyncConflater<String> mConflater;
+
+    @Before
+    public void setUp() {
+        mSink = new RecordingSink();
+        mExecutor = new ScheduledThreadPoolExecutor(1);
+        mConflater = new SyncConflater<>(mSink, mExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void unregisteredPathsAreNotConflated() {
+        assertFalse(mConflater.isConflated(PATH));
+        assertFalse(mConflater.offer(PATH, "a", false));
+        assertEquals("[]", mSink.getPuts().toString());
+    }
+
+    @Test
+    public void firstWriteIsPutRightAway() {
+        mConflater.setMinIntervalMillis(PATH, LONG_INTERVAL_MILLIS);
+
+        assertTrue(mConflater.offer(PATH, "a", false));
+
+        assertEquals("[a]", mSink.getPuts().toString());
+        assertEquals(1, mConflater.getPutCount(PATH));
+    }
+
+    @Test
+    public void burstEndsWithTheLatestWrite() {
+        mConflater.setMinIntervalMillis(PATH, LONG_INTERVAL_MILLIS);
+        mConflater.offer(PATH, "a", false);
+
+        mConflater.offer(PATH, "b", true);
+        mConflater.offer(PATH, "c", false);
+        mConflater.offer(PATH, "d", false);
+        assertEquals("[a]", mSink.getPuts().toString());
+
+        mConflater.flush();
+
+        // the held write stays urgent once any write it replaced was
+        assertEquals("[a, d!]", mSink.getPuts().toString());
+        assertEquals(2, mConflater.getPutCount(PATH));
+        assertEquals(2, mConflater.getConflatedCount(PATH));
+    }
+
+    @Test
+    public void heldWriteIsPutOnceTheIntervalHasPassed() throws InterruptedException {
+        mConflater.setMinIntervalMillis(PATH, 50);
+        mConflater.offer(PATH, "a", false);
+        mConflater.offer(PATH, "b", false);
+
+        assertTrue(mSink.awaitPuts(2));
+
+        assertEquals("[a, b]", mSink.getPuts().toString());
+        assertEquals(0, mExecutor.getQueue().size());
+    }
+
+    @Test
+    public void zeroIntervalPutsEveryWrite() {
+        mConflater.setMinIntervalMillis(PATH, 0);
+
+        mConflater.offer(PATH, "a", false);
+        mConflater.offer(PATH, "b", false);
+
+        assertEquals("[a, b]", mSink.getPuts().toString());
+    }
+
+    @Test
+    public void pathsAreConflatedSeparately() {
+        mConflater.setMinIntervalMillis(PATH, LONG_INTERVAL_MILLIS);
+        mConflater.setMinIntervalMillis("/other", LONG_INTERVAL_MILLIS);
+
+        mConflater.offer(PATH, "a", false);
+        mConflater.offer("/other", "x", false);
+        mConflater.offer(PATH, "b", false);
+
+        assertEquals("[a, x]", mSink.getPuts().toString());
+    }
+
+    @Test
+    public void removingAPathPutsItsHeldWrite() {
+        mConflater.setMinIntervalMillis(PATH, LONG_INTERVAL_MILLIS);
+        mConflater.offer(PATH, "a", false);
+        mConflater.offer(PATH, "b", false);
+
+        mConflater.remove(PATH);
+
+        assertEquals("[a, b]", mSink.getPuts().toString());
+        assertFalse(mConflater.isConflated(PATH));
+        // the trailing put was cancelled
+        mExecutor.purge();
+        assertEquals(0, mExecutor.getQueue().size());
+    }
+
+    @Test
+    public void flushWithNothingHeldPutsNothing() {
+        mConflater.setMinIntervalMillis(PATH, LONG_INTERVAL_MILLIS);
+        mConflater.offer(PATH, "a", false);
+
+        mConflater.flush();
+
+        assertEquals("[a]", mSink.getPuts().toString());
+    }
+
+    /**
+     * Records the writes it is given, urgent ones marked with a {@code '!'}.
+     */
+    private static final class RecordingSink implements SyncConflater.Sink<String> {
+        private final List<String> mPuts = new ArrayList<>();
+
+        @Override
+        public synchronized void put(String request, boolean isUrgent) {
+            mPuts.add(isUrgent ? request + "!" : request);
+            notifyAll();
+        }
+
+        synchronized List<String> getPuts() {
+            return new ArrayList<>(mPuts);
+        }
+
+        synchronized boolean awaitPuts(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (mPuts.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+}
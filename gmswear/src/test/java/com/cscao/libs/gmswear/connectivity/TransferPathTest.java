@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity;
+
+import com.cscao.libs.gmswear.util.Constants;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes {@link TransferPath}s and parses them back, including the layout of older versions and
+ * paths that are malformed.
+ */
+public class TransferPathTest {
+
+    private static final String FILE = Constants.PATH_FILE_TRANSFER_TYPE_FILE;
+    private static final String STREAM = Constants.PATH_FILE_TRANSFER_TYPE_STREAM;
+
+    @Test
+    public void fileRoundTrips() {
+        TransferPath path = TransferPath.parse(FILE,
+                TransferPath.encode(FILE, "photo.jpg", 1234, "42", null));
+
+        assertTrue(path.isFile());
+        assertEquals(1, path.getVersion());
+        assertEquals("photo.jpg", path.getName());
+        assertEquals(1234, path.getSize());
+        assertEquals("42", path.getRequestId());
+        assertNull(path.getContentHash());
+        assertEquals(-1, path.getSendTimeMicros());
+        assertEquals(FILE, path.getPrefix());
+    }
+
+    @Test
+    public void originalLayoutHasNoVersionSegment() {
+        assertEquals(FILE + "a.txt/0/7/abc", TransferPath.encode(FILE, "a.txt", 0, "7", "abc"));
+    }
+
+    @Test
+    public void namesAreEncoded() {
+        String name = "my dir/~\u00fcber %file+.txt";
+        String encoded = TransferPath.encode(FILE, name, 5, "1", "hash");
+
+        // neither the separator nor the version marker survive in the name
+        String segments = encoded.substring(FILE.length());
+        assertEquals(-1, segments.indexOf('~'));
+        assertEquals(3, segments.length() - segments.replace("/", "").length());
+        TransferPath path = TransferPath.parse(FILE, encoded);
+        assertEquals(name, path.getName());
+        assertEquals("hash", path.getContentHash());
+    }
+
+    @Test
+    public void sendTimeUsesTheNewerVersion() {
+        String encoded = TransferPath.encode(FILE, "a", 10, "3", null, 987654321);
+        TransferPath path = TransferPath.parse(FILE, encoded);
+
+        assertEquals(TransferPath.VERSION, path.getVersion());
+        assertEquals(987654321, path.getSendTimeMicros());
+        assertEquals("a", path.getName());
+        assertEquals(10, path.getSize());
+    }
+
+    @Test
+    public void streamRoundTrips() {
+        TransferPath path = TransferPath.parse(STREAM, TransferPath.encodeStream(STREAM, "9"));
+
+        assertFalse(path.isFile());
+        assertNull(path.getName());
+        assertEquals(-1, path.getSize());
+        assertEquals("9", path.getRequestId());
+
+        path = TransferPath.parse(STREAM, TransferPath.encodeStream(STREAM, "9", 55));
+        assertEquals("9", path.getRequestId());
+        assertEquals(55, path.getSendTimeMicros());
+    }
+
+    @Test
+    public void malformedPathsAreRejected() {
+        assertNull(TransferPath.parse(FILE, null));
+        assertNull(TransferPath.parse(FILE, STREAM + "9"));
+        assertNull(TransferPath.parse(FILE, FILE));
+        assertNull(TransferPath.parse(FILE, FILE + "a/10"));
+        assertNull(TransferPath.parse(FILE, FILE + "a/-1/3"));
+        assertNull(TransferPath.parse(FILE, FILE + "a/ten/3"));
+        assertNull(TransferPath.parse(FILE, FILE + "a/10//hash"));
+        assertNull(TransferPath.parse(FILE, FILE + "a/10/3/"));
+        assertNull(TransferPath.parse(FILE, FILE + "a/10/3/hash/more"));
+        assertNull(TransferPath.parse(FILE, FILE + "/10/3"));
+        assertNull(TransferPath.parse(FILE, FILE + "a%2/10/3"));
+        assertNull(TransferPath.parse(FILE, FILE + "a%zz/10/3"));
+        assertNull(TransferPath.parse(FILE, FILE + "a/1234567890123456789/3"));
+    }
+
+    @Test
+    public void versionsAreChecked() {
+        assertNull(TransferPath.parse(FILE, FILE + "~3/1/a/10/3"));
+        assertNull(TransferPath.parse(FILE, FILE + "~0/a/10/3"));
+        assertNull(TransferPath.parse(FILE, FILE + "~2/"));
+        assertNull(TransferPath.parse(FILE, FILE + "~2/-5/a/10/3"));
+        assertNull(TransferPath.parse(FILE, FILE + "~2/5"));
+        assertEquals(1, TransferPath.parse(FILE, FILE + "~1/a/10/3").getVersion());
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.delta;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs both sides of {@link DeltaSync} against each other over piped streams, the receiver on a
+ * thread of its own, and checks the file the receiver ends up with.
+ */
+public class DeltaSyncTest {
+
+    private static final int BLOCK = FileSignature.MIN_BLOCK_SIZE;
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private File mDir;
+    private File mSource;
+    private File mTarget;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("delta-sync", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mSource = new File(mDir, "source");
+        mTarget = new File(mDir, "target");
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void missingTargetIsSentInFull() throws Exception {
+        byte[] data = randomBytes(3 * BLOCK + 11, 1);
+        write(mSource, data);
+
+        DeltaSync.Result result = sync();
+
+        assertEquals(DeltaSync.MODE_FULL, result.getMode());
+        assertEquals(data.length, result.getPayloadBytes());
+        assertTrue(result.isAcknowledged());
+        assertArrayEquals(data, read(mTarget));
+    }
+
+    @Test
+    public void emptySourceEmptiesTheTarget() throws Exception {
+        write(mSource, new byte[0]);
+        write(mTarget, randomBytes(2 * BLOCK, 1));
+
+        DeltaSync.Result result = sync();
+
+        assertTrue(result.isAcknowledged());
+        assertEquals(0, result.getFileLength());
+        assertEquals(0, mTarget.length());
+    }
+
+    @Test
+    public void changedBlockIsSentAsADelta() throws Exception {
+        byte[] basis = randomBytes(20 * BLOCK + 333, 1);
+        byte[] data = Arrays.copyOf(basis, basis.length);
+        data[5 * BLOCK + 7]++;
+        write(mTarget, basis);
+        write(mSource, data);
+
+        DeltaSync.Result result = sync();
+
+        assertEquals(DeltaSync.MODE_DELTA, result.getMode());
+        assertTrue(result.getPayloadBytes() < 2 * BLOCK);
+        assertTrue(result.isAcknowledged());
+        assertArrayEquals(data, read(mTarget));
+    }
+
+    @Test
+    public void fullyChangedFileFallsBackToFullMode() throws Exception {
+        byte[] data = randomBytes(8 * BLOCK + 1, 2);
+        write(mTarget, randomBytes(8 * BLOCK + 1, 1));
+        write(mSource, data);
+
+        DeltaSync.Result result = sync();
+
+        assertEquals(DeltaSync.MODE_FULL, result.getMode());
+        assertTrue(result.isAcknowledged());
+        assertArrayEquals(data, read(mTarget));
+    }
+
+    @Test
+    public void truncatedStreamLeavesTheTargetUntouched() throws Exception {
+        byte[] basis = randomBytes(2 * BLOCK, 1);
+        write(mTarget, basis);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DeltaSync.MODE_FULL);
+        out.writeLong(1000);
+        out.write(new byte[100]);
+        out.flush();
+
+        try {
+            DeltaSync.receive(mTarget, new ByteArrayInputStream(bytes.toByteArray()),
+                    new ByteArrayOutputStream());
+            fail("a truncated stream was received");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        assertArrayEquals(basis, read(mTarget));
+        // the partial copy was deleted
+        assertEquals(1, mDir.listFiles().length);
+    }
+
+    @Test
+    public void corruptedDataIsNotAcknowledged() throws Exception {
+        byte[] basis = randomBytes(BLOCK, 1);
+        write(mTarget, basis);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DeltaSync.MODE_FULL);
+        out.writeLong(10);
+        out.write(new byte[10]);
+        // not the digest of those 10 bytes
+        out.write(new byte[FileSignature.STRONG_HASH_LENGTH]);
+        out.flush();
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+
+        assertFalse(DeltaSync.receive(mTarget, new ByteArrayInputStream(bytes.toByteArray()),
+                reply));
+
+        byte[] replied = reply.toByteArray();
+        assertEquals(0, replied[replied.length - 1]);
+        assertArrayEquals(basis, read(mTarget));
+        assertEquals(1, mDir.listFiles().length);
+    }
+
+    /**
+     * Sends {@link #mSource} to {@link #mTarget}, the receiver running on {@link #mExecutor}.
+     */
+    private DeltaSync.Result sync() throws Exception {
+        final PipedInputStream senderIn = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream receiverOut = new PipedOutputStream(senderIn);
+        final PipedInputStream receiverIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream senderOut = new PipedOutputStream(receiverIn);
+        Future<Boolean> received = mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                try {
+                    return DeltaSync.receive(mTarget, receiverIn, receiverOut);
+                } finally {
+                    receiverOut.close();
+                }
+            }
+        });
+        DeltaSync.Result result = DeltaSync.send(mSource, senderIn, senderOut);
+        senderOut.close();
+        assertEquals(result.isAcknowledged(), received.get());
+        return result;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            assertEquals(data.length, FileSignature.readFully(in, data, data.length));
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.delta;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Computes the {@link Delta} of a source file against the {@link FileSignature} of an older copy
+ * and checks how much of it has to be sent as literal data.
+ */
+public class DeltaTest {
+
+    private static final int BLOCK = FileSignature.MIN_BLOCK_SIZE;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("delta", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void unchangedFileIsCopiedFromTheBasis() throws IOException {
+        byte[] data = randomBytes(7 * BLOCK + 123, 1);
+
+        Delta delta = compute(data, data);
+
+        assertEquals(0, delta.getLiteralBytes());
+        assertEquals(data.length, delta.getSourceLength());
+        // the blocks collapse into a single copy operation
+        assertTrue(delta.getEncodedSize() < 20);
+        assertArrayEquals(md5(data), delta.getDigest());
+    }
+
+    @Test
+    public void fullyChangedFileIsSentAsLiteralData() throws IOException {
+        Delta delta = compute(randomBytes(4 * BLOCK + 1, 1), randomBytes(4 * BLOCK + 1, 2));
+
+        assertEquals(4 * BLOCK + 1, delta.getLiteralBytes());
+        assertTrue(delta.getEncodedSize() > 4 * BLOCK + 1);
+    }
+
+    @Test
+    public void emptySourceHasNoData() throws IOException {
+        Delta delta = compute(randomBytes(3 * BLOCK, 1), new byte[0]);
+
+        assertEquals(0, delta.getSourceLength());
+        assertEquals(0, delta.getLiteralBytes());
+        assertEquals(1, delta.getEncodedSize());
+        assertArrayEquals(md5(new byte[0]), delta.getDigest());
+    }
+
+    @Test
+    public void missingBasisSendsEverything() throws IOException {
+        byte[] data = randomBytes(2 * BLOCK + 5, 1);
+
+        Delta delta = Delta.compute(write("source", data), FileSignature.empty());
+
+        assertEquals(data.length, delta.getLiteralBytes());
+    }
+
+    @Test
+    public void insertedByteOnlyResendsItsBlock() throws IOException {
+        byte[] basis = randomBytes(6 * BLOCK + 300, 1);
+        byte[] source = new byte[basis.length + 1];
+        int insertAt = 2 * BLOCK + 10;
+        System.arraycopy(basis, 0, source, 0, insertAt);
+        source[insertAt] = 42;
+        System.arraycopy(basis, insertAt, source, insertAt + 1, basis.length - insertAt);
+
+        Delta delta = compute(basis, source);
+
+        assertEquals(BLOCK + 1, delta.getLiteralBytes());
+    }
+
+    @Test
+    public void changedShortLastBlockIsResent() throws IOException {
+        byte[] basis = randomBytes(3 * BLOCK + 50, 1);
+        byte[] source = Arrays.copyOf(basis, basis.length);
+        source[source.length - 1]++;
+
+        Delta delta = compute(basis, source);
+
+        assertEquals(50, delta.getLiteralBytes());
+    }
+
+    @Test
+    public void truncatedSourceReusesTheBlocksItKept() throws IOException {
+        byte[] basis = randomBytes(5 * BLOCK, 1);
+
+        Delta delta = compute(basis, Arrays.copyOf(basis, 3 * BLOCK + 7));
+
+        assertEquals(7, delta.getLiteralBytes());
+    }
+
+    private Delta compute(byte[] basis, byte[] source) throws IOException {
+        FileSignature signature = FileSignature.compute(write("basis", basis));
+        return Delta.compute(write("source", source), signature);
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] md5(byte[] data) {
+        return FileSignature.newDigest().digest(data);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.delta;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Computes the {@link FileSignature} of files of various lengths and reads it back from what it
+ * writes.
+ */
+public class FileSignatureTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("signature", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void emptyFileHasNoBlocks() throws IOException {
+        FileSignature signature = FileSignature.compute(write(new byte[0]));
+
+        assertEquals(0, signature.getBlockCount());
+        assertEquals(0, signature.getFileLength());
+        assertEquals(FileSignature.MIN_BLOCK_SIZE, signature.getBlockSize());
+    }
+
+    @Test
+    public void lastBlockIsShorterWhenLengthIsNotAMultiple() throws IOException {
+        int length = 3 * FileSignature.MIN_BLOCK_SIZE + 17;
+        FileSignature signature = FileSignature.compute(write(randomBytes(length)));
+
+        assertEquals(4, signature.getBlockCount());
+        assertEquals(FileSignature.MIN_BLOCK_SIZE, signature.getBlockLength(0));
+        assertEquals(17, signature.getBlockLength(3));
+    }
+
+    @Test
+    public void blocksAreFoundByTheirWeakHash() throws IOException {
+        byte[] data = randomBytes(2 * FileSignature.MIN_BLOCK_SIZE + 100);
+        FileSignature signature = FileSignature.compute(write(data));
+
+        int blockSize = signature.getBlockSize();
+        assertEquals(1, signature.firstWithHash(RollingChecksum.of(data, blockSize, blockSize)));
+        assertEquals(2, signature.firstWithHash(RollingChecksum.of(data, 2 * blockSize, 100)));
+    }
+
+    @Test
+    public void identicalBlocksAreChained() throws IOException {
+        byte[] block = randomBytes(FileSignature.MIN_BLOCK_SIZE);
+        byte[] data = new byte[3 * block.length];
+        for (int i = 0; i < 3; i++) {
+            System.arraycopy(block, 0, data, i * block.length, block.length);
+        }
+        FileSignature signature = FileSignature.compute(write(data));
+
+        int first = signature.firstWithHash(RollingChecksum.of(block, 0, block.length));
+        assertEquals(0, first);
+        assertEquals(1, signature.nextWithSameHash(first));
+        assertEquals(2, signature.nextWithSameHash(1));
+        assertEquals(-1, signature.nextWithSameHash(2));
+    }
+
+    @Test
+    public void blockSizeGrowsWithTheFileAndStaysBounded() {
+        assertEquals(FileSignature.MIN_BLOCK_SIZE, FileSignature.blockSizeFor(0));
+        assertEquals(4096, FileSignature.blockSizeFor(4096L * 4096));
+        assertEquals(FileSignature.MAX_BLOCK_SIZE, FileSignature.blockSizeFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void roundTripsThroughItsEncoding() throws IOException {
+        byte[] data = randomBytes(5 * FileSignature.MIN_BLOCK_SIZE + 1);
+        FileSignature signature = FileSignature.compute(write(data));
+
+        FileSignature read = FileSignature.readFrom(new DataInputStream(
+                new ByteArrayInputStream(encode(signature))));
+
+        assertEquals(signature.getBlockSize(), read.getBlockSize());
+        assertEquals(signature.getFileLength(), read.getFileLength());
+        assertEquals(signature.getBlockCount(), read.getBlockCount());
+        assertEquals(5, read.firstWithHash(RollingChecksum.of(data, 5 * read.getBlockSize(), 1)));
+    }
+
+    @Test
+    public void truncatedEncodingIsRejected() throws IOException {
+        byte[] encoded = encode(FileSignature.compute(write(randomBytes(3000))));
+        try {
+            FileSignature.readFrom(new DataInputStream(new ByteArrayInputStream(
+                    Arrays.copyOf(encoded, encoded.length - 1))));
+            fail("a truncated signature was read");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void malformedEncodingIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeInt(FileSignature.MIN_BLOCK_SIZE);
+        // more data than the blocks can hold
+        out.writeLong(10L * FileSignature.MIN_BLOCK_SIZE);
+        out.writeInt(1);
+        try {
+            FileSignature.readFrom(new DataInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())));
+            fail("a malformed signature was read");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = new File(mDir, "file");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] encode(FileSignature signature) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        signature.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.delta;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that rolling a {@link RollingChecksum} one byte at a time gives the same value as
+ * computing the checksum of the new window from scratch.
+ */
+public class RollingChecksumTest {
+
+    @Test
+    public void emptyWindowIsZero() {
+        assertEquals(0, RollingChecksum.of(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void rollingMatchesRecomputingAtEveryOffset() {
+        byte[] data = randomBytes(4096);
+        int window = 1000;
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, 0, window);
+        for (int offset = 1; offset + window <= data.length; offset++) {
+            checksum.roll(data[offset - 1], data[offset + window - 1]);
+            assertEquals(RollingChecksum.of(data, offset, window), checksum.value());
+        }
+    }
+
+    @Test
+    public void rollingHandlesHighBytes() {
+        byte[] data = new byte[64];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (0xff - i);
+        }
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, 0, 7);
+        for (int offset = 1; offset + 7 <= data.length; offset++) {
+            checksum.roll(data[offset - 1], data[offset + 6]);
+            assertEquals(RollingChecksum.of(data, offset, 7), checksum.value());
+        }
+    }
+
+    @Test
+    public void resetStartsOverOnANewWindow() {
+        byte[] data = randomBytes(256);
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, 0, 100);
+        checksum.roll(data[0], data[100]);
+        checksum.reset(data, 50, 33);
+        assertEquals(RollingChecksum.of(data, 50, 33), checksum.value());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.policy;
+
+import com.cscao.libs.gmswear.util.WearUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link TransferScheduler} through a {@link FakeConnectivitySource}: Wi-Fi is the
+ * unmetered link that large transfers wait for, Bluetooth the metered one they are kept off.
+ */
+public class TransferSchedulerTest {
+
+    private static final long SMALL = 1024;
+    private static final long LARGE = TransferScheduler.DEFAULT_LARGE_TRANSFER_BYTES;
+
+    private FakeConnectivitySource mConnectivity;
+    private ManualTimer mTimer;
+    private TransferScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mConnectivity = new FakeConnectivitySource(WearUtil.WIFI_NO_CONNECTION);
+        mTimer = new ManualTimer();
+        mScheduler = new TransferScheduler(mConnectivity, mTimer);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void currentLinkFollowsWifiStatus() {
+        assertEquals(TransferScheduler.LINK_BLUETOOTH, mScheduler.getCurrentLink());
+        mConnectivity.setWifiStatus(WearUtil.WIFI_CONNECTED);
+        assertEquals(TransferScheduler.LINK_WIFI, mScheduler.getCurrentLink());
+        mConnectivity.setWifiStatus(WearUtil.WIFI_DISABLED);
+        assertEquals(TransferScheduler.LINK_BLUETOOTH, mScheduler.getCurrentLink());
+    }
+
+    @Test
+    public void smallTransferRunsWhileOffline() {
+        FakeTransfer transfer = new FakeTransfer(SMALL);
+        TransferScheduler.Ticket ticket = mScheduler.submit(transfer, false);
+
+        assertTrue(transfer.isStarted());
+        assertEquals(TransferScheduler.Ticket.STATE_RUNNING, ticket.getState());
+        assertEquals(0, mScheduler.getWaitingCount());
+    }
+
+    @Test
+    public void largeTransferWaitsUntilWifiConnects() {
+        FakeTransfer transfer = new FakeTransfer(LARGE);
+        TransferScheduler.Ticket ticket = mScheduler.submit(transfer, false);
+
+        assertFalse(transfer.isStarted());
+        assertEquals(TransferScheduler.Ticket.STATE_WAITING, ticket.getState());
+        assertEquals(1, mTimer.getScheduledCount());
+
+        mConnectivity.setWifiStatus(WearUtil.WIFI_CONNECTED);
+
+        assertTrue(transfer.isStarted());
+        assertEquals(TransferScheduler.Ticket.STATE_RUNNING, ticket.getState());
+        assertEquals(0, mScheduler.getWaitingCount());
+    }
+
+    @Test
+    public void largeTransferRunsRightAwayOverWifi() {
+        mConnectivity.setWifiStatus(WearUtil.WIFI_CONNECTED);
+        FakeTransfer transfer = new FakeTransfer(LARGE);
+        mScheduler.submit(transfer, false);
+
+        assertTrue(transfer.isStarted());
+        assertEquals(0, mTimer.getScheduledCount());
+    }
+
+    @Test
+    public void urgentTransferBypassesPolicy() {
+        FakeTransfer transfer = new FakeTransfer(LARGE);
+        mScheduler.submit(transfer, true);
+
+        assertTrue(transfer.isStarted());
+        assertEquals(0, mTimer.getScheduledCount());
+    }
+
+    @Test
+    public void goingOfflineDefersNewTransfersOnly() {
+        mConnectivity.setWifiStatus(WearUtil.WIFI_CONNECTED);
+        FakeTransfer running = new FakeTransfer(LARGE);
+        TransferScheduler.Ticket runningTicket = mScheduler.submit(running, false);
+
+        mConnectivity.setWifiStatus(WearUtil.WIFI_NO_CONNECTION);
+        FakeTransfer waiting = new FakeTransfer(LARGE);
+        mScheduler.submit(waiting, false);
+
+        assertEquals(TransferScheduler.Ticket.STATE_RUNNING, runningTicket.getState());
+        assertFalse(waiting.isStarted());
+
+        running.finish(true);
+
+        assertEquals(TransferScheduler.Ticket.STATE_SUCCEEDED, runningTicket.getState());
+        assertFalse(waiting.isStarted());
+    }
+
+    @Test
+    public void wifiConcurrencyIsLimited() {
+        mConnectivity.setWifiStatus(WearUtil.WIFI_CONNECTED);
+        mScheduler.setMaxConcurrentOverWifi(2);
+        FakeTransfer first = new FakeTransfer(LARGE);
+        FakeTransfer second = new FakeTransfer(LARGE);
+        FakeTransfer third = new FakeTransfer(LARGE);
+        mScheduler.submit(first, false);
+        mScheduler.submit(second, false);
+        mScheduler.submit(third, false);
+
+        assertTrue(first.isStarted());
+        assertTrue(second.isStarted());
+        assertFalse(third.isStarted());
+
+        first.finish(false);
+
+        assertTrue(third.isStarted());
+    }
+
+    @Test
+    public void throttlePolicyRunsOneLargeTransferOverBluetooth() {
+        mScheduler.setPolicy(TransferScheduler.POLICY_THROTTLE);
+        FakeTransfer first = new FakeTransfer(LARGE);
+        FakeTransfer second = new FakeTransfer(LARGE);
+        mScheduler.submit(first, false);
+        mScheduler.submit(second, false);
+
+        assertTrue(first.isStarted());
+        assertFalse(second.isStarted());
+        assertEquals(0, mTimer.getScheduledCount());
+
+        first.finish(true);
+
+        assertTrue(second.isStarted());
+    }
+
+    @Test
+    public void expiredDeferralFallsBackToBluetooth() throws InterruptedException {
+        mScheduler.setMaxDeferralMillis(1);
+        FakeTransfer transfer = new FakeTransfer(LARGE);
+        TransferScheduler.Ticket ticket = mScheduler.submit(transfer, false);
+        assertFalse(transfer.isStarted());
+
+        Thread.sleep(10);
+        mTimer.runScheduled();
+
+        assertTrue(transfer.isStarted());
+        assertEquals(TransferScheduler.Ticket.STATE_RUNNING, ticket.getState());
+    }
+
+    @Test
+    public void cancelledTransferNeverStarts() {
+        FakeTransfer transfer = new FakeTransfer(LARGE);
+        TransferScheduler.Ticket ticket = mScheduler.submit(transfer, false);
+
+        assertTrue(ticket.cancel());
+        mConnectivity.setWifiStatus(WearUtil.WIFI_CONNECTED);
+
+        assertFalse(transfer.isStarted());
+        assertEquals(TransferScheduler.Ticket.STATE_CANCELLED, ticket.getState());
+        assertFalse(ticket.cancel());
+    }
+
+    @Test
+    public void waitingLargeTransferIsEstimatedOverWifi() {
+        FakeTransfer transfer = new FakeTransfer(LARGE);
+        TransferScheduler.Ticket ticket = mScheduler.submit(transfer, false);
+
+        assertEquals(mScheduler.estimateMillis(LARGE, TransferScheduler.LINK_WIFI),
+                ticket.getEstimatedRemainingMillis());
+
+        mScheduler.setPolicy(TransferScheduler.POLICY_THROTTLE);
+
+        assertEquals(mScheduler.estimateMillis(LARGE, TransferScheduler.LINK_BLUETOOTH),
+                ticket.getEstimatedRemainingMillis());
+    }
+
+    private static final class FakeTransfer implements ScheduledTransfer {
+        private final long mSizeBytes;
+        private Completion mCompletion;
+
+        FakeTransfer(long sizeBytes) {
+            mSizeBytes = sizeBytes;
+        }
+
+        @Override
+        public long getSizeBytes() {
+            return mSizeBytes;
+        }
+
+        @Override
+        public void start(Completion completion) {
+            mCompletion = completion;
+        }
+
+        boolean isStarted() {
+            return mCompletion != null;
+        }
+
+        void finish(boolean success) {
+            mCompletion.onTransferFinished(success);
+        }
+    }
+
+    /**
+     * Keeps the scheduled tasks until {@link #runScheduled()} is called, instead of running them
+     * after their delay.
+     */
+    private static final class ManualTimer extends ScheduledThreadPoolExecutor {
+        private final List<Runnable> mScheduled = new ArrayList<>();
+
+        ManualTimer() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            mScheduled.add(command);
+            return null;
+        }
+
+        int getScheduledCount() {
+            return mScheduled.size();
+        }
+
+        void runScheduled() {
+            List<Runnable> scheduled = new ArrayList<>(mScheduled);
+            mScheduled.clear();
+            for (Runnable runnable : scheduled) {
+                runnable.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.connectivity.sensor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Encodes sensor streams with {@link SensorFrameEncoder} and decodes them back with
+ * {@link SensorFrameDecoder}, including streams that are truncated or corrupt.
+ */
+public class SensorFrameCodecTest {
+
+    private static final float RESOLUTION = 0.01f;
+
+    private ByteArrayOutputStream mBytes;
+    private DataOutputStream mOut;
+    private SensorFrameEncoder mEncoder;
+
+    @Before
+    public void setUp() throws IOException {
+        mBytes = new ByteArrayOutputStream();
+        mOut = new DataOutputStream(mBytes);
+        SensorFrameEncoder.writeHeader(mOut, "accel", 3, RESOLUTION);
+        mEncoder = new SensorFrameEncoder(3, RESOLUTION);
+    }
+
+    @Test
+    public void headerIsRead() throws IOException {
+        SensorFrameEncoder.writeEnd(mOut);
+        SensorFrame frame = new SensorFrame("node");
+
+        SensorFrameDecoder decoder = decoder();
+        decoder.readHeader(frame);
+
+        assertEquals("accel", frame.getStreamName());
+        assertEquals(3, frame.getColumnCount());
+        assertEquals(RESOLUTION, frame.getResolution(), 0);
+        assertEquals("node", frame.getNodeId());
+        // a stream without frames
+        assertFalse(decoder.readFrame(frame));
+    }
+
+    @Test
+    public void framesRoundTrip() throws IOException {
+        long[] timestamps = {1000000000000L, 1000000020000L, 1000000040000L, 1000000070000L,
+                1000000069000L};
+        float[][] values = {
+                {0f, 1.5f, -2.25f, 9.81f, -9.81f},
+                {100f, 100f, 100f, 100f, 100f},
+                {-0.01f, 0.02f, -0.03f, 0.04f, 0f}};
+        write(timestamps, values, 5);
+        write(timestamps, values, 2);
+        SensorFrameEncoder.writeEnd(mOut);
+
+        SensorFrameDecoder decoder = decoder();
+        SensorFrame frame = new SensorFrame("node");
+        decoder.readHeader(frame);
+
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(0, frame.getFrameIndex());
+        assertFrame(frame, timestamps, values, 5);
+        long[] reused = frame.getTimestamps();
+
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(1, frame.getFrameIndex());
+        assertFrame(frame, timestamps, values, 2);
+        // a smaller frame is decoded into the same arrays
+        assertSame(reused, frame.getTimestamps());
+
+        assertFalse(decoder.readFrame(frame));
+    }
+
+    @Test
+    public void valuesAreQuantizedToTheResolution() throws IOException {
+        write(new long[] {0, 1}, new float[][] {{0.004f, 0.006f}, {0f, 0f}, {0f, 0f}}, 2);
+        SensorFrameEncoder.writeEnd(mOut);
+
+        SensorFrame frame = readSingleFrame();
+
+        assertEquals(0f, frame.getValues(0)[0], 1e-6);
+        assertEquals(0.01f, frame.getValues(0)[1], 1e-6);
+    }
+
+    @Test
+    public void extremeTimestampsRoundTrip() throws IOException {
+        long[] timestamps = {Long.MAX_VALUE, Long.MIN_VALUE, 0, Long.MAX_VALUE, -1};
+        float[][] values = new float[3][5];
+        write(timestamps, values, timestamps.length);
+        SensorFrameEncoder.writeEnd(mOut);
+
+        SensorFrame frame = readSingleFrame();
+
+        assertEquals(Arrays.toString(timestamps),
+                Arrays.toString(Arrays.copyOf(frame.getTimestamps(), timestamps.length)));
+    }
+
+    @Test
+    public void frameStaysWithinItsMaximumLength() {
+        int count = 100;
+        long[] timestamps = new long[count];
+        float[][] values = new float[3][count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = i % 2 == 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+            for (int column = 0; column < 3; column++) {
+                values[column][i] = i % 2 == 0 ? Float.MAX_VALUE : -Float.MAX_VALUE;
+            }
+        }
+
+        mEncoder.encode(timestamps, values, count);
+
+        assertTrue(mEncoder.getLength() <= SensorFrameEncoder.maxFrameLength(3, count));
+    }
+
+    @Test
+    public void missingEndMarkerIsReported() throws IOException {
+        write(new long[] {1}, new float[3][1], 1);
+
+        SensorFrameDecoder decoder = decoder();
+        SensorFrame frame = new SensorFrame("node");
+        decoder.readHeader(frame);
+        assertTrue(decoder.readFrame(frame));
+        try {
+            decoder.readFrame(frame);
+            fail("a stream without its end marker was read to the end");
+        } catch (EOFException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedFrameIsReported() throws IOException {
+        write(new long[] {1, 2, 3}, new float[3][3], 3);
+        byte[] bytes = mBytes.toByteArray();
+
+        for (int cut = 1; cut < mEncoder.getLength(); cut++) {
+            SensorFrameDecoder decoder = new SensorFrameDecoder(new ByteArrayInputStream(
+                    Arrays.copyOf(bytes, bytes.length - cut)));
+            SensorFrame frame = new SensorFrame("node");
+            decoder.readHeader(frame);
+            try {
+                decoder.readFrame(frame);
+                fail("a frame missing " + cut + " bytes was read");
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void corruptHeadersAreRejected() throws IOException {
+        assertHeaderRejected(0x12345678, SensorFrameEncoder.VERSION, 3, RESOLUTION);
+        assertHeaderRejected(SensorFrameEncoder.MAGIC, SensorFrameEncoder.VERSION + 1, 3,
+                RESOLUTION);
+        assertHeaderRejected(SensorFrameEncoder.MAGIC, SensorFrameEncoder.VERSION, 0,
+                RESOLUTION);
+        assertHeaderRejected(SensorFrameEncoder.MAGIC, SensorFrameEncoder.VERSION, 3, 0f);
+        assertHeaderRejected(SensorFrameEncoder.MAGIC, SensorFrameEncoder.VERSION, 3,
+                Float.NaN);
+    }
+
+    @Test
+    public void oversizedFrameIsRejected() throws IOException {
+        // a frame length just above the limit, as a varint
+        int length = SensorFrameDecoder.MAX_FRAME_BYTES + 1;
+        while ((length & ~0x7f) != 0) {
+            mOut.writeByte((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        mOut.writeByte(length);
+
+        assertFrameRejected();
+    }
+
+    @Test
+    public void emptyFrameIsRejected() throws IOException {
+        // a frame of one byte holding a sample count of 0
+        mOut.writeByte(1);
+        mOut.writeByte(0);
+
+        assertFrameRejected();
+    }
+
+    @Test
+    public void trailingBytesAreRejected() throws IOException {
+        mEncoder.encode(new long[] {1}, new float[3][1], 1);
+        mOut.writeByte(mEncoder.getLength() + 1);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        mEncoder.writeTo(frame);
+        // the frame without its length prefix, followed by the extra byte
+        mOut.write(frame.toByteArray(), 1, mEncoder.getLength());
+        mOut.writeByte(0);
+
+        assertFrameRejected();
+    }
+
+    private void write(long[] timestamps, float[][] values, int count) throws IOException {
+        mEncoder.encode(timestamps, values, count);
+        mEncoder.writeTo(mOut);
+    }
+
+    private SensorFrameDecoder decoder() throws IOException {
+        mOut.flush();
+        return new SensorFrameDecoder(new ByteArrayInputStream(mBytes.toByteArray()));
+    }
+
+    private SensorFrame readSingleFrame() throws IOException {
+        SensorFrameDecoder decoder = decoder();
+        SensorFrame frame = new SensorFrame("node");
+        decoder.readHeader(frame);
+        assertTrue(decoder.readFrame(frame));
+        assertFalse(decoder.readFrame(frame));
+        return frame;
+    }
+
+    private void assertFrameRejected() throws IOException {
+        SensorFrameDecoder decoder = decoder();
+        SensorFrame frame = new SensorFrame("node");
+        decoder.readHeader(frame);
+        try {
+            decoder.readFrame(frame);
+            fail("a corrupt frame was read");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    private static void assertFrame(SensorFrame frame, long[] timestamps, float[][] values,
+            int count) {
+        assertEquals(count, frame.getSampleCount());
+        for (int i = 0; i < count; i++) {
+            assertEquals(timestamps[i], frame.getTimestamps()[i]);
+            for (int column = 0; column < values.length; column++) {
+                assertEquals(values[column][i], frame.getValues(column)[i], RESOLUTION / 2);
+            }
+        }
+    }
+
+    private static void assertHeaderRejected(int magic, int version, int columnCount,
+            float resolution) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(magic);
+        out.writeByte(version);
+        out.writeByte(columnCount);
+        out.writeFloat(resolution);
+        out.writeUTF("accel");
+        SensorFrameDecoder decoder = new SensorFrameDecoder(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            decoder.readHeader(new SensorFrame("node"));
+            fail("a corrupt header was read");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.node;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives a {@link CircuitBreaker} through its states. The open interval is kept short so that the
+ * tests can wait for it; the assertions made while a circuit is open are made right away.
+ */
+public class CircuitBreakerTest {
+
+    private static final String NODE = "node";
+    private static final long OPEN_MILLIS = 100;
+
+    private CircuitBreaker mBreaker;
+    private List<String> mTransitions;
+
+    @Before
+    public void setUp() {
+        mBreaker = new CircuitBreaker();
+        mBreaker.setFailureThreshold(3);
+        mBreaker.setOpenMillis(OPEN_MILLIS);
+        mTransitions = new ArrayList<>();
+        mBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onCircuitStateChanged(String nodeId, int previousState, int newState) {
+                mTransitions.add(nodeId + ":" + CircuitBreaker.stateToString(previousState)
+                        + "->" + CircuitBreaker.stateToString(newState));
+            }
+        });
+    }
+
+    @Test
+    public void unknownNodeIsClosed() {
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState(NODE));
+        assertTrue(mBreaker.allowRequest(NODE));
+        assertTrue(mBreaker.getMetrics().containsKey(NODE));
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        failRequests(2);
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState(NODE));
+
+        failRequests(1);
+
+        assertEquals(CircuitBreaker.STATE_OPEN, mBreaker.getState(NODE));
+        assertFalse(mBreaker.allowRequest(NODE));
+        CircuitMetrics metrics = mBreaker.getMetrics().get(NODE);
+        assertEquals(3, metrics.getFailureCount());
+        assertEquals(1, metrics.getRejectedCount());
+        assertEquals(1, metrics.getOpenCount());
+        assertEquals("[node:closed->open]", mTransitions.toString());
+    }
+
+    @Test
+    public void successResetsTheFailureCount() {
+        failRequests(2);
+        assertTrue(mBreaker.allowRequest(NODE));
+        mBreaker.onResult(NODE, true);
+        failRequests(2);
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState(NODE));
+    }
+
+    @Test
+    public void nodesHaveTheirOwnCircuit() {
+        failRequests(3);
+
+        assertTrue(mBreaker.allowRequest("other"));
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState("other"));
+    }
+
+    @Test
+    public void successfulProbeClosesTheCircuit() throws InterruptedException {
+        failRequests(3);
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        assertTrue(mBreaker.allowRequest(NODE));
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, mBreaker.getState(NODE));
+        // a single probe at a time
+        assertFalse(mBreaker.allowRequest(NODE));
+        mBreaker.onResult(NODE, true);
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState(NODE));
+        assertTrue(mBreaker.allowRequest(NODE));
+        assertEquals("[node:closed->open, node:open->half-open, node:half-open->closed]",
+                mTransitions.toString());
+    }
+
+    @Test
+    public void failedProbeReopensForLonger() throws InterruptedException {
+        failRequests(3);
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        assertTrue(mBreaker.allowRequest(NODE));
+        mBreaker.onResult(NODE, false);
+
+        assertEquals(CircuitBreaker.STATE_OPEN, mBreaker.getState(NODE));
+        assertFalse(mBreaker.allowRequest(NODE));
+        CircuitMetrics metrics = mBreaker.getMetrics().get(NODE);
+        assertTrue(metrics.getOpenRemainingMillis() > OPEN_MILLIS);
+        assertEquals(2, metrics.getOpenCount());
+    }
+
+    @Test
+    public void lostProbeIsGivenUpOn() throws InterruptedException {
+        failRequests(3);
+        Thread.sleep(OPEN_MILLIS + 50);
+        assertTrue(mBreaker.allowRequest(NODE));
+
+        // the result of the probe never arrives
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        assertTrue(mBreaker.allowRequest(NODE));
+    }
+
+    @Test
+    public void resetClosesTheCircuit() {
+        failRequests(3);
+
+        mBreaker.reset(NODE);
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState(NODE));
+        assertTrue(mBreaker.allowRequest(NODE));
+        assertEquals("[node:closed->open, node:open->closed]", mTransitions.toString());
+    }
+
+    @Test
+    public void invalidSettingsAreRejected() {
+        try {
+            mBreaker.setFailureThreshold(0);
+            fail("a threshold of 0 was accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        try {
+            mBreaker.setOpenMillis(0);
+            fail("an open interval of 0 was accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Sends {@code count} requests to {@link #NODE} that fail.
+     */
+    private void failRequests(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(mBreaker.allowRequest(NODE));
+            mBreaker.onResult(NODE, false);
+        }
+    }
+}
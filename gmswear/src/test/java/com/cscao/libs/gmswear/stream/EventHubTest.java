@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * imitations under the License.
+ */
+
+package com.cscao.libs.gmswear.stream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Subscribes {@link RecordingSubscriber}s to an {@link EventHub} and checks what each of them
+ * receives under its backpressure strategy.
+ */
+public class EventHubTest {
+
+    private static final EventHub.Filter<Integer> ALL = new EventHub.Filter<Integer>() {
+        @Override
+        public boolean accept(Integer event) {
+            return true;
+        }
+    };
+
+    private EventHub<Integer> mHub;
+
+    @Before
+    public void setUp() {
+        mHub = new EventHub<>();
+    }
+
+    @Test
+    public void eventsAreDeliveredAsRequested() {
+        RecordingSubscriber subscriber = subscribe(ALL, EventHub.STRATEGY_BUFFER, 10);
+
+        publish(1, 2, 3);
+        assertEquals("[]", subscriber.mEvents.toString());
+
+        subscriber.mSubscription.request(2);
+        assertEquals("[1, 2]", subscriber.mEvents.toString());
+
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        publish(4);
+        assertEquals("[1, 2, 3, 4]", subscriber.mEvents.toString());
+    }
+
+    @Test
+    public void onlyLaterEventsThatPassTheFilterAreDelivered() {
+        publish(0);
+        RecordingSubscriber subscriber = subscribe(new EventHub.Filter<Integer>() {
+            @Override
+            public boolean accept(Integer event) {
+                return event % 2 == 0;
+            }
+        }, EventHub.STRATEGY_BUFFER, 10);
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+
+        publish(1, 2, 3, 4);
+
+        assertEquals("[2, 4]", subscriber.mEvents.toString());
+    }
+
+    @Test
+    public void dropStrategyDropsEventsWithoutDemand() {
+        RecordingSubscriber subscriber = subscribe(ALL, EventHub.STRATEGY_DROP, 0);
+        subscriber.mSubscription.request(1);
+
+        publish(1, 2, 3);
+        subscriber.mSubscription.request(1);
+        publish(4);
+
+        assertEquals("[1, 4]", subscriber.mEvents.toString());
+    }
+
+    @Test
+    public void latestStrategyKeepsTheMostRecentEvent() {
+        RecordingSubscriber subscriber = subscribe(ALL, EventHub.STRATEGY_LATEST, 0);
+
+        publish(1, 2, 3);
+        subscriber.mSubscription.request(5);
+
+        assertEquals("[3]", subscriber.mEvents.toString());
+    }
+
+    @Test
+    public void bufferOverflowFailsTheSubscription() {
+        RecordingSubscriber subscriber = subscribe(ALL, EventHub.STRATEGY_BUFFER, 2);
+
+        publish(1, 2, 3);
+
+        assertTrue(subscriber.mError instanceof IllegalStateException);
+        assertEquals(0, mHub.getSubscriberCount());
+        assertEquals("[]", subscriber.mEvents.toString());
+    }
+
+    @Test
+    public void completionWaitsForTheBufferedEvents() {
+        RecordingSubscriber subscriber = subscribe(ALL, EventHub.STRATEGY_BUFFER, 10);
+        publish(1, 2);
+
+        mHub.complete();
+        assertFalse(subscriber.mCompleted);
+
+        subscriber.mSubscription.request(2);
+        assertEquals("[1, 2]", subscriber.mEvents.toString());
+        assertTrue(subscriber.mCompleted);
+        assertFalse(mHub.hasSubscribers());
+    }
+
+    @Test
+    public void nonPositiveRequestIsAnError() {
+        RecordingSubscriber subscriber = subscribe(ALL, EventHub.STRATEGY_BUFFER, 10);
+
+        subscriber.mSubscription.request(0);
+
+        assertTrue(subscriber.mError instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void cancelStopsTheEvents() {
+        RecordingSubscriber subscriber = subscribe(ALL, EventHub.STRATEGY_BUFFER, 10);
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        publish(1);
+
+        subscriber.mSubscription.cancel();
+        publish(2);
+
+        assertEquals("[1]", subscriber.mEvents.toString());
+        assertEquals(0, mHub.getSubscriberCount());
+    }
+
+    @Test
+    public void cancellingInOnSubscribeNeverSubscribes() {
+        mHub.publisher(ALL).subscribe(new RecordingSubscriber() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.cancel();
+            }
+        });
+
+        assertFalse(mHub.hasSubscribers());
+    }
+
+    @Test
+    public void throwingSubscriberIsCancelled() {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Integer event) {
+                super.onNext(event);
+                throw new IllegalStateException("boom");
+            }
+        };
+        mHub.publisher(ALL).subscribe(subscriber);
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+
+        publish(1, 2);
+
+        assertEquals("[1]", subscriber.mEvents.toString());
+        assertNull(subscriber.mError);
+        assertFalse(mHub.hasSubscribers());
+    }
+
+    @Test
+    public void requestingFromOnNextKeepsTheOrder() {
+        final List<Integer> events = new ArrayList<>();
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Integer event) {
+                events.add(event);
+                mSubscription.request(1);
+            }
+        };
+        mHub.publisher(ALL).subscribe(subscriber);
+        publish(1, 2, 3);
+
+        subscriber.mSubscription.request(1);
+
+        assertEquals("[1, 2, 3]", events.toString());
+    }
+
+    @Test
+    public void invalidArgumentsAreRejected() {
+        try {
+            mHub.publisher(ALL, 7, 1);
+            fail("an unknown strategy was accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        try {
+            mHub.publisher(ALL, EventHub.STRATEGY_BUFFER, 0);
+            fail("a buffer of 0 was accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        try {
+            mHub.publisher(ALL).subscribe(null);
+            fail("a null subscriber was accepted");
+        } catch (NullPointerException expected) {
+            // expected
+        }
+    }
+
+    private RecordingSubscriber subscribe(EventHub.Filter<Integer> filter, int strategy,
+            int capacity) {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        mHub.publisher(filter, strategy, capacity).subscribe(subscriber);
+        assertEquals(1, mHub.getSubscriberCount());
+        return subscriber;
+    }
+
+    private void publish(int... events) {
+        for (int event : events) {
+            mHub.publish(event);
+        }
+    }
+
+    /**
+     * Records what it receives; it requests nothing by itself.
+     */
+    private static class RecordingSubscriber implements Subscriber<Integer> {
+        final List<Integer> mEvents = new ArrayList<>();
+        Subscription mSubscription;
+        Throwable mError;
+        boolean mCompleted;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer event) {
+            mEvents.add(event);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            mError = error;
+        }
+
+        @Override
+        public void onComplete() {
+            mCompleted = true;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import static com.cscao.apps.shared.Constants.PATH_MSG_TWO;
 import static com.cscao.apps.shared.Constants.PERMISSIONS_REQUEST_CODE;
 import static com.cscao.apps.shared.Constants.SELECT_PICTURE;
 import static com.cscao.apps.shared.Constants.SYNC_KEY;
+import static com.cscao.apps.shared.Constants.SYNC_MIN_INTERVAL_MILLIS;
 import static com.cscao.apps.shared.Constants.SYNC_PATH;
 import static com.cscao.apps.shared.Utils.getElapsedTimeMsg;
 import static com.cscao.apps.shared.Utils.sendSelectedImage;
@@ -26,6 +27,8 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.bumptech.glide.Glide;
+import com.cscao.apps.shared.SoakConfig;
+import com.cscao.apps.shared.SoakTest;
 import com.cscao.apps.shared.Utils;
 import com.cscao.libs.gmswear.GmsWear;
 import com.cscao.libs.gmswear.connectivity.FileTransfer;
@@ -55,6 +58,7 @@ public class PhoneActivity extends Activity {
     private Button mSelectButton;
     private GmsWear mGmsWear;
     private DataConsumer mDataConsumer;
+    private SoakTest mSoakTest;
 
     private int mImageNo = 1;
 //    private int mIntSync = 1; // 1, 4, 7...
@@ -67,6 +71,8 @@ public class PhoneActivity extends Activity {
         setContentView(R.layout.phone_activity);
 
         mGmsWear = GmsWear.getInstance();
+        mGmsWear.getSyncConflater().setMinIntervalMillis(SYNC_PATH, SYNC_MIN_INTERVAL_MILLIS);
+        mGmsWear.getDataChangeCoalescer().setWindowMillis(SYNC_PATH, SYNC_MIN_INTERVAL_MILLIS);
 
         mMsgTextView = (TextView) findViewById(R.id.tv_msg);
         mImageView = (ImageView) findViewById(R.id.imageView);
@@ -112,6 +118,29 @@ public class PhoneActivity extends Activity {
 
         };
 
+        // a run survives configuration changes, it only ends with the activity
+        mSoakTest = (SoakTest) getLastNonConfigurationInstance();
+        if (mSoakTest == null) {
+            mSoakTest = new SoakTest(this, mGmsWear, null);
+            if (savedInstanceState == null
+                    && getIntent().getBooleanExtra(SoakConfig.EXTRA_SOAK, false)) {
+                mSoakTest.start(SoakConfig.fromIntent(getIntent()));
+            }
+        }
+        mSoakTest.setListener(new SoakTest.Listener() {
+            @Override
+            public void onSoakTestFinished(String runId, String role, File report) {
+                final String message = report == null ? getString(R.string.soak_report_failed)
+                        : getString(R.string.soak_report_written, report.getAbsolutePath());
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Utils.showToast(getApplicationContext(), message);
+                    }
+                });
+            }
+        });
+
         checkPermissions();
     }
 
@@ -170,6 +199,17 @@ public class PhoneActivity extends Activity {
         fileTransferHighLevel.startTransfer();
     }
 
+    // start or stop a soak test with the default load, see SoakConfig for running it from adb
+    public void toggleSoakTest(View view) {
+        if (mSoakTest.isRunning()) {
+            mSoakTest.stop();
+            Utils.showToast(this, getString(R.string.soak_stopped));
+        } else {
+            mSoakTest.start(SoakConfig.fromIntent(new Intent()));
+            Utils.showToast(this, getString(R.string.soak_started));
+        }
+    }
+
     private void checkPermissions() {
         boolean writeExternalStoragePermissionGranted =
                 ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
@@ -205,6 +245,7 @@ public class PhoneActivity extends Activity {
         Logger.d("onResume");
         mGmsWear.addCapabilities(CAPABILITY);
         mGmsWear.addWearConsumer(mDataConsumer);
+        mSoakTest.attach();
     }
 
     @Override
@@ -212,9 +253,23 @@ public class PhoneActivity extends Activity {
         Logger.d("onPause");
         mGmsWear.removeCapabilities(CAPABILITY);
         mGmsWear.removeWearConsumer(mDataConsumer);
+        mSoakTest.detach();
         super.onPause();
     }
 
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mSoakTest;
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (isFinishing()) {
+            mSoakTest.stop();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (resultCode == RESULT_OK) {
@@ -13,5 +13,11 @@ public class Constants {
     public static final String PATH_MSG_TWO = "/com.cscao.libs.gmswear/path_two";
     public static final String SYNC_PATH = "/com.cscao.libs.gmswear/sync";
     public static final String SYNC_KEY = "SYNC_KEY";
+    // the synced text only shows the latest value, so bursts of taps are conflated
+    public static final long SYNC_MIN_INTERVAL_MILLIS = 500;
     public static final String CAPABILITY = "msg_capability";
+    public static final String PATH_SOAK_CONTROL = "/com.cscao.libs.gmswear/soak/control";
+    public static final String PATH_SOAK_MESSAGE = "/com.cscao.libs.gmswear/soak/message";
+    public static final String PATH_SOAK_SYNC = "/com.cscao.libs.gmswear/soak/sync";
+    public static final String SOAK_SEQUENCE_KEY = "SOAK_SEQUENCE_KEY";
 }
@@ -0,0 +1,146 @@
+package com.cscao.apps.shared;
+
+import android.content.Intent;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * The load that a {@link SoakTest} run generates. A rate or an interval of 0 turns that kind of
+ * load off. The values can be passed as extras of the intent that launches the demo apps, e.g.
+ * <pre>
+ * adb shell am start -n com.cscao.apps.GmsWear/com.cscao.apps.gmswear.PhoneActivity \
+ *     --ez soak true --ei soak_duration_seconds 1800 --ei soak_message_rate 50 \
+ *     --es soak_file_sizes 65536,1048576
+ * </pre>
+ */
+public class SoakConfig {
+    public static final String EXTRA_SOAK = "soak";
+    public static final String EXTRA_DURATION_SECONDS = "soak_duration_seconds";
+    public static final String EXTRA_MESSAGE_RATE = "soak_message_rate";
+    public static final String EXTRA_MESSAGE_BYTES = "soak_message_bytes";
+    public static final String EXTRA_SYNC_RATE = "soak_sync_rate";
+    public static final String EXTRA_FILE_INTERVAL_SECONDS = "soak_file_interval_seconds";
+    public static final String EXTRA_FILE_SIZES = "soak_file_sizes";
+    public static final String EXTRA_MAX_IN_FLIGHT = "soak_max_in_flight";
+
+    private static final int DEFAULT_DURATION_SECONDS = 600;
+    private static final int DEFAULT_MESSAGE_RATE = 20;
+    private static final int DEFAULT_MESSAGE_BYTES = 256;
+    private static final int DEFAULT_SYNC_RATE = 2;
+    private static final int DEFAULT_FILE_INTERVAL_SECONDS = 30;
+    private static final String DEFAULT_FILE_SIZES = "16384,262144,1048576";
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final int mDurationSeconds;
+    private final int mMessageRate;
+    private final int mMessageBytes;
+    private final int mSyncRate;
+    private final int mFileIntervalSeconds;
+    private final int[] mFileSizes;
+    private final int mMaxInFlight;
+
+    /**
+     * @param durationSeconds     How long the load is generated for.
+     * @param messageRate         The number of messages sent per second.
+     * @param messageBytes        The size of each message; at least 8 bytes are sent.
+     * @param syncRate            The number of data items synced per second.
+     * @param fileIntervalSeconds The time between two file transfers.
+     * @param fileSizes           The sizes of the transferred files, used in turn.
+     * @param maxInFlight         The number of messages that may wait for their result; beyond
+     *                            that, messages are skipped rather than queued so that a slow link
+     *                            shows up in the report instead of in the memory of the app.
+     */
+    public SoakConfig(int durationSeconds, int messageRate, int messageBytes, int syncRate,
+            int fileIntervalSeconds, int[] fileSizes, int maxInFlight) {
+        mDurationSeconds = durationSeconds;
+        mMessageRate = messageRate;
+        mMessageBytes = Math.max(8, messageBytes);
+        mSyncRate = syncRate;
+        mFileIntervalSeconds = fileIntervalSeconds;
+        mFileSizes = fileSizes == null ? new int[0] : Arrays.copyOf(fileSizes, fileSizes.length);
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Returns the configuration from the extras of {@code intent}, using the default of every
+     * value that is missing.
+     */
+    public static SoakConfig fromIntent(Intent intent) {
+        String fileSizes = intent.getStringExtra(EXTRA_FILE_SIZES);
+        return new SoakConfig(
+                intent.getIntExtra(EXTRA_DURATION_SECONDS, DEFAULT_DURATION_SECONDS),
+                intent.getIntExtra(EXTRA_MESSAGE_RATE, DEFAULT_MESSAGE_RATE),
+                intent.getIntExtra(EXTRA_MESSAGE_BYTES, DEFAULT_MESSAGE_BYTES),
+                intent.getIntExtra(EXTRA_SYNC_RATE, DEFAULT_SYNC_RATE),
+                intent.getIntExtra(EXTRA_FILE_INTERVAL_SECONDS, DEFAULT_FILE_INTERVAL_SECONDS),
+                parseSizes(fileSizes == null ? DEFAULT_FILE_SIZES : fileSizes),
+                intent.getIntExtra(EXTRA_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT));
+    }
+
+    private static int[] parseSizes(String sizes) {
+        if (sizes.trim().isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = sizes.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    public int getDurationSeconds() {
+        return mDurationSeconds;
+    }
+
+    public int getMessageRate() {
+        return mMessageRate;
+    }
+
+    public int getMessageBytes() {
+        return mMessageBytes;
+    }
+
+    public int getSyncRate() {
+        return mSyncRate;
+    }
+
+    public int getFileIntervalSeconds() {
+        return mFileIntervalSeconds;
+    }
+
+    public int[] getFileSizes() {
+        return Arrays.copyOf(mFileSizes, mFileSizes.length);
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONArray fileSizes = new JSONArray();
+        for (int size : mFileSizes) {
+            fileSizes.put(size);
+        }
+        return new JSONObject()
+                .put("durationSeconds", mDurationSeconds)
+                .put("messageRate", mMessageRate)
+                .put("messageBytes", mMessageBytes)
+                .put("syncRate", mSyncRate)
+                .put("fileIntervalSeconds", mFileIntervalSeconds)
+                .put("fileSizes", fileSizes)
+                .put("maxInFlight", mMaxInFlight);
+    }
+
+    @Override
+    public String toString() {
+        return "SoakConfig{duration=" + mDurationSeconds + "s, messages=" + mMessageRate + "/s x "
+                + mMessageBytes + "B, syncItems=" + mSyncRate + "/s, files every "
+                + mFileIntervalSeconds + "s " + Arrays.toString(mFileSizes) + ", maxInFlight="
+                + mMaxInFlight + "}";
+    }
+}
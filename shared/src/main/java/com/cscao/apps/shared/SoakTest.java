@@ -0,0 +1,632 @@
+package com.cscao.apps.shared;
+
+import static com.cscao.apps.shared.Constants.PATH_SOAK_CONTROL;
+import static com.cscao.apps.shared.Constants.PATH_SOAK_MESSAGE;
+import static com.cscao.apps.shared.Constants.PATH_SOAK_SYNC;
+import static com.cscao.apps.shared.Constants.SOAK_SEQUENCE_KEY;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.cscao.libs.gmswear.GmsWear;
+import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.consumer.AbstractDataConsumer;
+import com.cscao.libs.gmswear.consumer.DataConsumer;
+import com.cscao.libs.gmswear.metrics.HistogramSnapshot;
+import com.cscao.libs.gmswear.metrics.LatencyHistogram;
+import com.cscao.libs.gmswear.metrics.MetricsSnapshot;
+import com.cscao.libs.gmswear.metrics.TrafficMetrics;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.WearableStatusCodes;
+import com.orhanobut.logger.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator to soak-test a build of the library on real hardware. A run drives messages,
+ * synced data items and file transfers through {@link GmsWear} at the rates of a
+ * {@link SoakConfig}; the app on the other end only needs an attached {@link SoakTest} to count
+ * what it receives. When the run ends, both ends write a JSON report to
+ * {@code <external files dir>/soak/soak-<run id>-<role>.json}:
+ * <ul>
+ * <li>the sender reports what it sent, the time it took for the messages to be acknowledged and
+ * for the files to be transferred, and the resulting throughput;</li>
+ * <li>the receiver reports what it received and what went missing, the throughput and the
+ * one-way latency of the messages, which the library measures from the send timestamps that the
+ * run turns on.</li>
+ * </ul>
+ * The reports can be fetched with
+ * {@code adb pull /sdcard/Android/data/com.cscao.apps.GmsWear/files/soak}.
+ */
+public class SoakTest {
+    public static final String ROLE_SENDER = "sender";
+    public static final String ROLE_RECEIVER = "receiver";
+
+    private static final String REPORT_DIRECTORY = "soak";
+    private static final String FILE_PREFIX = "soak-";
+    private static final String KEY_ACTION = "action";
+    private static final String KEY_RUN_ID = "run_id";
+    private static final String KEY_MESSAGES_SENT = "messages_sent";
+    private static final String KEY_SYNC_ITEMS_PUT = "sync_items_put";
+    private static final String KEY_FILES_SENT = "files_sent";
+    private static final String ACTION_START = "start";
+    private static final String ACTION_STOP = "stop";
+    // time given to the last messages and files to arrive before the peer is told to stop
+    private static final long DRAIN_MILLIS = 5000;
+
+    private final Context mContext;
+    private final GmsWear mGmsWear;
+    private volatile Listener mListener;
+    private final Map<String, Reception> mReceptions = new ConcurrentHashMap<>();
+    private final DataConsumer mConsumer = new AbstractDataConsumer() {
+        @Override
+        public void onMessageReceived(MessageEvent messageEvent) {
+            if (messageEvent.getPath().equals(PATH_SOAK_CONTROL)) {
+                onControlReceived(messageEvent.getSourceNodeId(),
+                        DataMap.fromByteArray(messageEvent.getData()));
+            } else if (messageEvent.getPath().equals(PATH_SOAK_MESSAGE)) {
+                Reception reception = mReceptions.get(messageEvent.getSourceNodeId());
+                if (reception != null) {
+                    reception.onMessage(messageEvent.getData());
+                }
+            }
+        }
+
+        @Override
+        public void onDataChanged(DataEvent event) {
+            if (event.getType() != DataEvent.TYPE_CHANGED
+                    || !PATH_SOAK_SYNC.equals(event.getDataItem().getUri().getPath())) {
+                return;
+            }
+            Reception reception = mReceptions.get(event.getDataItem().getUri().getHost());
+            if (reception != null) {
+                DataMap dataMap = DataMapItem.fromDataItem(event.getDataItem()).getDataMap();
+                reception.onSyncItem(dataMap.getLong(SOAK_SEQUENCE_KEY));
+            }
+        }
+
+        @Override
+        public void onFileReceivedResult(int statusCode, String requestId, File savedFile,
+                String originalName) {
+            if (originalName == null || !originalName.startsWith(FILE_PREFIX)) {
+                return;
+            }
+            for (Reception reception : mReceptions.values()) {
+                if (originalName.startsWith(FILE_PREFIX + reception.mRunId + "-")) {
+                    reception.onFile(statusCode, savedFile);
+                }
+            }
+            if (savedFile != null && !savedFile.delete()) {
+                Logger.e("Failed to delete soak test file " + savedFile);
+            }
+        }
+    };
+    private Run mRun;
+
+    public SoakTest(Context context, GmsWear gmsWear, @Nullable Listener listener) {
+        mContext = context.getApplicationContext();
+        mGmsWear = gmsWear;
+        mListener = listener;
+    }
+
+    /**
+     * Replaces the {@link Listener}, e.g. when the activity that owns this instance is recreated
+     * while a run is in progress.
+     */
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts counting what the peers send during their runs. Call it when the app comes to the
+     * foreground, as {@link GmsWear} only delivers events while it is there.
+     */
+    public void attach() {
+        mGmsWear.addWearConsumer(mConsumer);
+    }
+
+    public void detach() {
+        mGmsWear.removeWearConsumer(mConsumer);
+    }
+
+    public synchronized boolean isRunning() {
+        return mRun != null;
+    }
+
+    /**
+     * Starts a run that generates the load of {@code config} for its duration, or until
+     * {@link #stop()} is called.
+     */
+    public synchronized void start(SoakConfig config) {
+        if (mRun != null) {
+            throw new IllegalStateException("A soak test is already running");
+        }
+        final Run run = new Run(newRunId(), config, mGmsWear.isTimestampingEnabled());
+        mRun = run;
+        Logger.d("Starting soak test %s: %s", run.mRunId, config);
+        mGmsWear.setTimestampingEnabled(true);
+        sendControl(ACTION_START, run);
+        if (config.getMessageRate() > 0) {
+            run.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendMessage(run);
+                }
+            }, TimeUnit.SECONDS.toMicros(1) / config.getMessageRate());
+        }
+        if (config.getSyncRate() > 0) {
+            run.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    syncItem(run);
+                }
+            }, TimeUnit.SECONDS.toMicros(1) / config.getSyncRate());
+        }
+        if (config.getFileIntervalSeconds() > 0 && config.getFileSizes().length > 0) {
+            run.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    transferFile(run);
+                }
+            }, TimeUnit.SECONDS.toMicros(config.getFileIntervalSeconds()));
+        }
+        run.mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, config.getDurationSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops generating load. The report is written once the last transfers had some time to
+     * complete, and is then passed to the {@link Listener}.
+     */
+    public synchronized void stop() {
+        final Run run = mRun;
+        if (run == null) {
+            return;
+        }
+        mRun = null;
+        run.stop();
+        run.mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                finish(run);
+                run.mExecutor.shutdown();
+            }
+        }, DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendMessage(final Run run) {
+        List<Node> nodes = mGmsWear.getNodeSnapshot().getNearbyNodes();
+        if (nodes.isEmpty() || run.mInFlight.get() >= run.mConfig.getMaxInFlight()) {
+            run.mMessagesSkipped.incrementAndGet();
+            return;
+        }
+        byte[] payload = ByteBuffer.allocate(run.mConfig.getMessageBytes())
+                .putLong(run.mMessagesSent.getAndIncrement()).array();
+        for (Node node : nodes) {
+            final long startNanos = System.nanoTime();
+            run.mInFlight.incrementAndGet();
+            run.mBytesSent.addAndGet(payload.length);
+            mGmsWear.sendMessage(node.getId(), PATH_SOAK_MESSAGE, payload,
+                    new ResultCallback<MessageApi.SendMessageResult>() {
+                        @Override
+                        public void onResult(
+                                @NonNull MessageApi.SendMessageResult sendMessageResult) {
+                            run.mInFlight.decrementAndGet();
+                            if (sendMessageResult.getStatus().isSuccess()) {
+                                run.mMessagesAcknowledged.incrementAndGet();
+                                run.mAckLatency.record(TimeUnit.NANOSECONDS.toMicros(
+                                        System.nanoTime() - startNanos));
+                            } else {
+                                run.mMessagesFailed.incrementAndGet();
+                            }
+                        }
+                    });
+        }
+    }
+
+    private void syncItem(Run run) {
+        mGmsWear.syncLong(PATH_SOAK_SYNC, SOAK_SEQUENCE_KEY, run.mSyncItemsPut.getAndIncrement(),
+                true);
+    }
+
+    private void transferFile(final Run run) {
+        List<Node> nodes = mGmsWear.getNodeSnapshot().getNearbyNodes();
+        if (nodes.isEmpty()) {
+            run.mFilesSkipped.incrementAndGet();
+            return;
+        }
+        int[] sizes = run.mConfig.getFileSizes();
+        long index = run.mFilesStarted.getAndIncrement();
+        final int size = sizes[(int) (index % sizes.length)];
+        File file;
+        try {
+            file = payloadFile(size);
+        } catch (IOException e) {
+            Logger.e(e, "Failed to create a soak test file of %d bytes", size);
+            run.mFilesFailed.incrementAndGet();
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        new FileTransfer.Builder(nodes.get(0))
+                .setFile(file)
+                .setTargetName(FILE_PREFIX + run.mRunId + "-" + index)
+                .setOnFileTransferResultListener(new FileTransfer.OnFileTransferRequestListener() {
+                    @Override
+                    public void onFileTransferStatusResult(int statusCode) {
+                        if (statusCode == WearableStatusCodes.SUCCESS) {
+                            run.mFilesSucceeded.incrementAndGet();
+                            run.mFileBytesSent.addAndGet(size);
+                            run.mFileDuration.record(TimeUnit.NANOSECONDS.toMillis(
+                                    System.nanoTime() - startNanos));
+                        } else {
+                            run.mFilesFailed.incrementAndGet();
+                        }
+                    }
+                })
+                .build()
+                .startTransfer();
+    }
+
+    /**
+     * Returns a file of {@code size} random bytes, created once per size in the cache directory.
+     */
+    private File payloadFile(int size) throws IOException {
+        File directory = new File(mContext.getCacheDir(), REPORT_DIRECTORY);
+        File file = new File(directory, "payload-" + size + ".bin");
+        if (file.length() == size) {
+            return file;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        byte[] bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private void sendControl(String action, Run run) {
+        DataMap dataMap = new DataMap();
+        dataMap.putString(KEY_ACTION, action);
+        dataMap.putString(KEY_RUN_ID, run.mRunId);
+        dataMap.putLong(KEY_MESSAGES_SENT, run.mMessagesSent.get());
+        dataMap.putLong(KEY_SYNC_ITEMS_PUT, run.mSyncItemsPut.get());
+        dataMap.putLong(KEY_FILES_SENT, run.mFilesSucceeded.get());
+        mGmsWear.sendMessage(PATH_SOAK_CONTROL, dataMap.toByteArray());
+    }
+
+    private void onControlReceived(String nodeId, DataMap dataMap) {
+        String action = dataMap.getString(KEY_ACTION);
+        String runId = dataMap.getString(KEY_RUN_ID);
+        if (ACTION_START.equals(action)) {
+            Logger.d("Soak test %s started by %s", runId, nodeId);
+            mReceptions.put(nodeId, new Reception(runId, nodeId,
+                    mGmsWear.getMetrics().snapshot()));
+        } else if (ACTION_STOP.equals(action)) {
+            final Reception reception = mReceptions.remove(nodeId);
+            if (reception == null || !reception.mRunId.equals(runId)) {
+                return;
+            }
+            reception.stop(dataMap.getLong(KEY_MESSAGES_SENT),
+                    dataMap.getLong(KEY_SYNC_ITEMS_PUT), dataMap.getLong(KEY_FILES_SENT));
+            mGmsWear.runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        report(reception.mRunId, ROLE_RECEIVER, reception.mStartedAtMillis,
+                                reception.mEndNanos - reception.mStartNanos,
+                                reception.toJson(mGmsWear.getMetrics().snapshot()));
+                    } catch (JSONException e) {
+                        Logger.e(e, "Failed to create the soak test report");
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish(Run run) {
+        sendControl(ACTION_STOP, run);
+        mGmsWear.setTimestampingEnabled(run.mTimestampingWasEnabled);
+        try {
+            report(run.mRunId, ROLE_SENDER, run.mStartedAtMillis, run.mEndNanos - run.mStartNanos,
+                    run.toJson());
+        } catch (JSONException e) {
+            Logger.e(e, "Failed to create the soak test report");
+        }
+    }
+
+    private void report(String runId, String role, long startedAtMillis, long durationNanos,
+            JSONObject results) throws JSONException {
+        JSONObject report = new JSONObject()
+                .put("runId", runId)
+                .put("role", role)
+                .put("device", Build.MANUFACTURER + " " + Build.MODEL)
+                .put("sdk", Build.VERSION.SDK_INT)
+                .put("libraryVersion", mGmsWear.getVersion())
+                .put("startedAtMillis", startedAtMillis)
+                .put("durationMillis", TimeUnit.NANOSECONDS.toMillis(durationNanos))
+                .put("results", results);
+        File directory = mContext.getExternalFilesDir(REPORT_DIRECTORY);
+        if (directory == null) {
+            directory = new File(mContext.getFilesDir(), REPORT_DIRECTORY);
+        }
+        File file = new File(directory, FILE_PREFIX + runId + "-" + role + ".json");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            Writer writer = new FileWriter(file);
+            try {
+                writer.write(report.toString(2));
+            } finally {
+                writer.close();
+            }
+            Logger.d("Soak test report written to %s", file);
+        } catch (IOException e) {
+            Logger.e(e, "Failed to write the soak test report to %s", file);
+            file = null;
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSoakTestFinished(runId, role, file);
+        }
+    }
+
+    private static String newRunId() {
+        return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+    }
+
+    private static double perSecond(long count, long durationNanos) {
+        return durationNanos <= 0 ? 0 : count * 1e9 / durationNanos;
+    }
+
+    private static JSONObject toJson(HistogramSnapshot histogram) throws JSONException {
+        return new JSONObject()
+                .put("count", histogram.getCount())
+                .put("mean", histogram.getMean())
+                .put("p50", histogram.getPercentile(50))
+                .put("p90", histogram.getPercentile(90))
+                .put("p99", histogram.getPercentile(99))
+                .put("max", histogram.getMax());
+    }
+
+    /**
+     * Is notified when a report has been written, on a background thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param report The report, or {@code null} if it could not be written.
+         */
+        void onSoakTestFinished(String runId, String role, @Nullable File report);
+    }
+
+    /**
+     * The state of a run on the sender.
+     */
+    private static final class Run {
+        final String mRunId;
+        final SoakConfig mConfig;
+        final boolean mTimestampingWasEnabled;
+        final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+        final List<ScheduledFuture<?>> mTasks = new ArrayList<>();
+        final long mStartedAtMillis = System.currentTimeMillis();
+        final long mStartNanos = System.nanoTime();
+        final AtomicInteger mInFlight = new AtomicInteger();
+        final AtomicLong mMessagesSent = new AtomicLong();
+        final AtomicLong mMessagesSkipped = new AtomicLong();
+        final AtomicLong mMessagesAcknowledged = new AtomicLong();
+        final AtomicLong mMessagesFailed = new AtomicLong();
+        final AtomicLong mBytesSent = new AtomicLong();
+        final AtomicLong mSyncItemsPut = new AtomicLong();
+        final AtomicLong mFilesStarted = new AtomicLong();
+        final AtomicLong mFilesSkipped = new AtomicLong();
+        final AtomicLong mFilesSucceeded = new AtomicLong();
+        final AtomicLong mFilesFailed = new AtomicLong();
+        final AtomicLong mFileBytesSent = new AtomicLong();
+        final LatencyHistogram mAckLatency = new LatencyHistogram();
+        final LatencyHistogram mFileDuration = new LatencyHistogram();
+        volatile long mEndNanos;
+
+        Run(String runId, SoakConfig config, boolean timestampingWasEnabled) {
+            mRunId = runId;
+            mConfig = config;
+            mTimestampingWasEnabled = timestampingWasEnabled;
+        }
+
+        void schedule(final Runnable task, long periodMicros) {
+            mTasks.add(mExecutor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // a periodic task that throws is not run again
+                        Logger.e(e, "Soak test task failed");
+                    }
+                }
+            }, 0, Math.max(1, periodMicros), TimeUnit.MICROSECONDS));
+        }
+
+        void stop() {
+            for (ScheduledFuture<?> task : mTasks) {
+                task.cancel(false);
+            }
+            mEndNanos = System.nanoTime();
+        }
+
+        JSONObject toJson() throws JSONException {
+            long durationNanos = mEndNanos - mStartNanos;
+            JSONObject messages = new JSONObject()
+                    .put("sent", mMessagesSent.get())
+                    .put("skipped", mMessagesSkipped.get())
+                    .put("acknowledged", mMessagesAcknowledged.get())
+                    .put("failed", mMessagesFailed.get())
+                    .put("bytes", mBytesSent.get())
+                    .put("perSecond", perSecond(mMessagesAcknowledged.get(), durationNanos))
+                    .put("bytesPerSecond", perSecond(mBytesSent.get(), durationNanos))
+                    .put("ackLatencyMicros", SoakTest.toJson(mAckLatency.snapshot()));
+            JSONObject syncItems = new JSONObject()
+                    .put("put", mSyncItemsPut.get())
+                    .put("perSecond", perSecond(mSyncItemsPut.get(), durationNanos));
+            JSONObject files = new JSONObject()
+                    .put("started", mFilesStarted.get())
+                    .put("skipped", mFilesSkipped.get())
+                    .put("succeeded", mFilesSucceeded.get())
+                    .put("failed", mFilesFailed.get())
+                    .put("bytes", mFileBytesSent.get())
+                    .put("bytesPerSecond", perSecond(mFileBytesSent.get(), durationNanos))
+                    .put("durationMillis", SoakTest.toJson(mFileDuration.snapshot()));
+            return new JSONObject()
+                    .put("config", mConfig.toJson())
+                    .put("messages", messages)
+                    .put("syncItems", syncItems)
+                    .put("files", files);
+        }
+    }
+
+    /**
+     * What a receiver got from the run of one peer.
+     */
+    private static final class Reception {
+        final String mRunId;
+        final String mNodeId;
+        final MetricsSnapshot mStartMetrics;
+        final long mStartedAtMillis = System.currentTimeMillis();
+        final long mStartNanos = System.nanoTime();
+        final AtomicLong mMessages = new AtomicLong();
+        final AtomicLong mBytes = new AtomicLong();
+        final AtomicLong mOutOfOrder = new AtomicLong();
+        final AtomicLong mHighestSequence = new AtomicLong(-1);
+        final AtomicLong mSyncItems = new AtomicLong();
+        final AtomicLong mLastSyncSequence = new AtomicLong(-1);
+        final AtomicLong mFiles = new AtomicLong();
+        final AtomicLong mFilesFailed = new AtomicLong();
+        final AtomicLong mFileBytes = new AtomicLong();
+        volatile long mEndNanos;
+        volatile long mMessagesSent;
+        volatile long mSyncItemsPut;
+        volatile long mFilesSent;
+
+        Reception(String runId, String nodeId, MetricsSnapshot startMetrics) {
+            mRunId = runId;
+            mNodeId = nodeId;
+            mStartMetrics = startMetrics;
+        }
+
+        void onMessage(byte[] payload) {
+            mMessages.incrementAndGet();
+            if (payload == null || payload.length < 8) {
+                return;
+            }
+            mBytes.addAndGet(payload.length);
+            long sequence = ByteBuffer.wrap(payload).getLong();
+            long highest = mHighestSequence.get();
+            while (sequence > highest && !mHighestSequence.compareAndSet(highest, sequence)) {
+                highest = mHighestSequence.get();
+            }
+            if (sequence < highest) {
+                mOutOfOrder.incrementAndGet();
+            }
+        }
+
+        void onSyncItem(long sequence) {
+            mSyncItems.incrementAndGet();
+            mLastSyncSequence.set(sequence);
+        }
+
+        void onFile(int statusCode, File file) {
+            if (statusCode != WearableStatusCodes.SUCCESS || file == null) {
+                mFilesFailed.incrementAndGet();
+                return;
+            }
+            mFiles.incrementAndGet();
+            mFileBytes.addAndGet(file.length());
+        }
+
+        void stop(long messagesSent, long syncItemsPut, long filesSent) {
+            mEndNanos = System.nanoTime();
+            mMessagesSent = messagesSent;
+            mSyncItemsPut = syncItemsPut;
+            mFilesSent = filesSent;
+        }
+
+        JSONObject toJson(MetricsSnapshot endMetrics) throws JSONException {
+            long durationNanos = mEndNanos - mStartNanos;
+            JSONObject messages = new JSONObject()
+                    .put("received", mMessages.get())
+                    .put("sentByPeer", mMessagesSent)
+                    .put("missing", Math.max(0, mMessagesSent - mMessages.get()))
+                    .put("outOfOrder", mOutOfOrder.get())
+                    .put("bytes", mBytes.get())
+                    .put("perSecond", perSecond(mMessages.get(), durationNanos))
+                    .put("bytesPerSecond", perSecond(mBytes.get(), durationNanos))
+                    .put("oneWayLatencyMicros", SoakTest.toJson(oneWayLatency(endMetrics)));
+            // data items are conflated per path, so fewer changes than puts is expected
+            JSONObject syncItems = new JSONObject()
+                    .put("received", mSyncItems.get())
+                    .put("putByPeer", mSyncItemsPut)
+                    .put("lastSequence", mLastSyncSequence.get());
+            JSONObject files = new JSONObject()
+                    .put("received", mFiles.get())
+                    .put("failed", mFilesFailed.get())
+                    .put("sentByPeer", mFilesSent)
+                    .put("bytes", mFileBytes.get())
+                    .put("bytesPerSecond", perSecond(mFileBytes.get(), durationNanos));
+            return new JSONObject()
+                    .put("peer", mNodeId)
+                    .put("messages", messages)
+                    .put("syncItems", syncItems)
+                    .put("files", files);
+        }
+
+        private HistogramSnapshot oneWayLatency(MetricsSnapshot endMetrics) {
+            TrafficMetrics end = endMetrics.getPaths().get(PATH_SOAK_MESSAGE);
+            TrafficMetrics start = mStartMetrics.getPaths().get(PATH_SOAK_MESSAGE);
+            if (end == null) {
+                return new LatencyHistogram().snapshot();
+            }
+            return start == null ? end.getOneWayLatency()
+                    : end.getOneWayLatency().minus(start.getOneWayLatency());
+        }
+    }
+}
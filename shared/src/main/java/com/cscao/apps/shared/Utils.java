@@ -2,7 +2,6 @@ package com.cscao.apps.shared;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Environment;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
@@ -111,47 +110,6 @@ public class Utils {
         }).start();
     }
 
-    public static void setImageFromInputStream(final InputStream inputStream,
-            final ImageView imageView) {
-        final Context context = imageView.getContext();
-        new AsyncTask<Void, Void, File>() {
-            @Override
-            protected File doInBackground(Void... params) {
-                try {
-                    File imageFile = new File(context.getCacheDir(),
-                            "temp" + SystemClock.elapsedRealtime());
-                    FileOutputStream outputStream = new FileOutputStream(imageFile);
-                    IOUtils.copy(inputStream, outputStream);
-                    return imageFile;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    closeStreams();
-                }
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(File imageFile) {
-                if (imageFile != null) {
-                    Logger.d("setting image");
-                    Glide.with(context).load(imageFile).into(imageView);
-                } else {
-                    Logger.e("image file null");
-                }
-            }
-
-            void closeStreams() {
-                try {
-                    if (inputStream != null) {
-                        inputStream.close();
-                    }
-                } catch (IOException e) {
-                    // no-op
-                }
-            }
-        }.execute();
-    }
-
     @NonNull
     public static String getElapsedTimeMsg() {
         return "" + SystemClock.elapsedRealtime();
@@ -5,12 +5,13 @@ import static com.cscao.apps.shared.Constants.PATH_MSG_ONE;
 import static com.cscao.apps.shared.Constants.PATH_MSG_TWO;
 import static com.cscao.apps.shared.Constants.PERMISSIONS_REQUEST_CODE;
 import static com.cscao.apps.shared.Constants.SYNC_KEY;
+import static com.cscao.apps.shared.Constants.SYNC_MIN_INTERVAL_MILLIS;
 import static com.cscao.apps.shared.Constants.SYNC_PATH;
 import static com.cscao.apps.shared.Utils.getElapsedTimeMsg;
-import static com.cscao.apps.shared.Utils.setImageFromInputStream;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -23,9 +24,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.bumptech.glide.Glide;
+import com.cscao.apps.shared.SoakConfig;
+import com.cscao.apps.shared.SoakTest;
 import com.cscao.apps.shared.Utils;
 import com.cscao.libs.gmswear.GmsWear;
 import com.cscao.libs.gmswear.connectivity.FileTransfer;
+import com.cscao.libs.gmswear.connectivity.StreamingImageDecoder;
 import com.cscao.libs.gmswear.consumer.AbstractDataConsumer;
 import com.cscao.libs.gmswear.consumer.DataConsumer;
 import com.google.android.gms.common.api.ResultCallback;
@@ -54,6 +58,7 @@ public class WearActivity extends Activity {
 
     private GmsWear mGmsWear;
     private DataConsumer mDataConsumer;
+    private SoakTest mSoakTest;
 
     private int mImageNo = 1;
 
@@ -63,9 +68,19 @@ public class WearActivity extends Activity {
         setContentView(R.layout.wear_activity);
 
         mGmsWear = GmsWear.getInstance();
+        mGmsWear.getSyncConflater().setMinIntervalMillis(SYNC_PATH, SYNC_MIN_INTERVAL_MILLIS);
+        mGmsWear.getDataChangeCoalescer().setWindowMillis(SYNC_PATH, SYNC_MIN_INTERVAL_MILLIS);
 
         mMsgTextView = (TextView) findViewById(R.id.tv_msg);
         mMsgTextView.setKeepScreenOn(true);
+        // there is no room for another button, so a long press toggles the soak test
+        mMsgTextView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                toggleSoakTest(view);
+                return true;
+            }
+        });
 
         mImageView = (ImageView) findViewById(R.id.imageView);
 
@@ -116,11 +131,34 @@ public class WearActivity extends Activity {
                     return;
                 }
                 Logger.d("Channel opened for path: " + channel.getPath());
-                setImageFromInputStream(inputStream, mImageView);
+                StreamingImageDecoder.decodeInto(channel, inputStream, mImageView, null);
 
             }
         };
 
+        // a run survives configuration changes, it only ends with the activity
+        mSoakTest = (SoakTest) getLastNonConfigurationInstance();
+        if (mSoakTest == null) {
+            mSoakTest = new SoakTest(this, mGmsWear, null);
+            if (savedInstanceState == null
+                    && getIntent().getBooleanExtra(SoakConfig.EXTRA_SOAK, false)) {
+                mSoakTest.start(SoakConfig.fromIntent(getIntent()));
+            }
+        }
+        mSoakTest.setListener(new SoakTest.Listener() {
+            @Override
+            public void onSoakTestFinished(String runId, String role, File report) {
+                final String message = report == null ? getString(R.string.soak_report_failed)
+                        : getString(R.string.soak_report_written, report.getAbsolutePath());
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Utils.showToast(getApplicationContext(), message);
+                    }
+                });
+            }
+        });
+
         checkPermissions();
     }
 
@@ -171,6 +209,17 @@ public class WearActivity extends Activity {
         fileTransferHighLevel.startTransfer();
     }
 
+    // start or stop a soak test with the default load, see SoakConfig for running it from adb
+    public void toggleSoakTest(View view) {
+        if (mSoakTest.isRunning()) {
+            mSoakTest.stop();
+            Utils.showToast(this, getString(R.string.soak_stopped));
+        } else {
+            mSoakTest.start(SoakConfig.fromIntent(new Intent()));
+            Utils.showToast(this, getString(R.string.soak_started));
+        }
+    }
+
     private void checkPermissions() {
         boolean writeExternalStoragePermissionGranted =
                 ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
@@ -203,15 +252,30 @@ public class WearActivity extends Activity {
         super.onResume();
         mGmsWear.addCapabilities(CAPABILITY);
         mGmsWear.addWearConsumer(mDataConsumer);
+        mSoakTest.attach();
     }
 
     @Override
     protected void onPause() {
         mGmsWear.removeCapabilities(CAPABILITY);
         mGmsWear.removeWearConsumer(mDataConsumer);
+        mSoakTest.detach();
         super.onPause();
     }
 
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mSoakTest;
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (isFinishing()) {
+            mSoakTest.stop();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode,
             @NonNull String permissions[], @NonNull int[] grantResults) {
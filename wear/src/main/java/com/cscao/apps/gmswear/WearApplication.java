@@ -14,6 +14,6 @@ public class WearApplication extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
-        GmsWear.initialize(this);
+        GmsWear.initializeLazily(this);
     }
 }